@@ -0,0 +1,172 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.BinaryEventCodec;
+import co.uk.michallet.chatapp.server.ChatServer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Measures the bytes the server allocates to send messages, read from each thread's allocation counter. A sender in
+ * the lobby sends messages at a steady rate to a room of readers that only drain their sockets, and the bytes the
+ * server's threads allocated meanwhile are reported per message and per frame delivered. Decoding each message as it
+ * arrives allocates its event, everything after that should be free.
+ */
+public class AllocationBenchmark {
+    private final BinaryEventCodec _codec;
+    private final AtomicLong _received;
+
+    private AllocationBenchmark() {
+        _codec = BinaryEventCodec.getInstance();
+        _received = new AtomicLong();
+    }
+
+    private Socket join(int port, String name, boolean drain) throws IOException {
+        var socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        var input = new BufferedInputStream(socket.getInputStream());
+        _codec.read(input);
+        socket.getOutputStream().write(_codec.encode(ChatEventFactory.fromUserJoin(name)));
+        if (drain) {
+            var reader = new Thread(() -> drain(input), "reader-" + name);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        return socket;
+    }
+
+    private void drain(InputStream input) {
+        var buffer = new byte[65536];
+        try {
+            while (true) {
+                var read = input.read(buffer);
+                if (read < 0) {
+                    return;
+                }
+                _received.addAndGet(read);
+            }
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return Bytes allocated so far by every thread whose name starts with one of the prefixes.
+     */
+    private static long allocatedBy(String... prefixes) {
+        var threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        var ids = new ArrayList<Long>();
+        for (var thread : Thread.getAllStackTraces().keySet()) {
+            for (var prefix : prefixes) {
+                if (thread.getName().startsWith(prefix)) {
+                    ids.add(thread.getId());
+                    break;
+                }
+            }
+        }
+        var total = 0L;
+        for (var id : ids) {
+            total += Math.max(0, threads.getThreadAllocatedBytes(id));
+        }
+        return total;
+    }
+
+    /**
+     * Sends messages at a steady rate and waits for every reader to have received them.
+     * @return Bytes allocated by the server's threads meanwhile.
+     */
+    private long send(OutputStream output, byte[] frame, int messages, int rate, long expectedBytes, String[] threads) throws Exception {
+        _received.set(0);
+        var before = allocatedBy(threads);
+        var intervalNanos = 1_000_000_000L / rate;
+        var start = System.nanoTime();
+        for (int m = 0; m < messages; m++) {
+            var due = start + m * intervalNanos;
+            while (System.nanoTime() < due) {
+                LockSupport.parkNanos(due - System.nanoTime());
+            }
+            output.write(frame);
+        }
+        var deadline = System.nanoTime() + 30_000_000_000L;
+        while (_received.get() < expectedBytes && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        return allocatedBy(threads) - before;
+    }
+
+    public static void main(String[] args) throws Exception {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(AllocationBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==AllocationBenchmark==")
+                .addItem("messages", "Messages sent while measuring. Defaults to 20000")
+                .addItem("rate", "Messages sent per second. Defaults to 10000")
+                .addItem("readers", "Readers in the room. Defaults to 50")
+                .addItem("csp", "The port the server binds to. Defaults to 14501")
+                .addItem("transport", "Passed through to the server, blocking or nio. Defaults to nio")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var messages = Integer.parseInt(config.getString("messages", "20000"));
+        var rate = Integer.parseInt(config.getString("rate", "10000"));
+        var readers = Integer.parseInt(config.getString("readers", "50"));
+        var port = Integer.parseInt(config.getString("csp", "14501"));
+        var transport = config.getString("transport", "nio");
+        config.setString("csp", String.valueOf(port));
+        config.setString("transport", transport);
+        // Nothing kept per message that would show up as allocation
+        config.setString("history", config.getString("history", "0"));
+        config.setString("search", config.getString("search", "0"));
+        config.setString("resume", config.getString("resume", "0"));
+
+        var server = new ChatServer(config, new DefaultLogger(ChatServer.class.getSimpleName(), Level.WARNING, display));
+        var serverThread = new Thread(server::listen, "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        var benchmark = new AllocationBenchmark();
+        for (int i = 0; i < readers; i++) {
+            benchmark.join(port, "allocreader" + i, true);
+        }
+        var sender = benchmark.join(port, "allocsender", false);
+        Thread.sleep(1000);
+
+        var frame = benchmark._codec.encode(ChatEventFactory.fromMessage(null, "hey, is anyone around to review my pull request?"));
+        // Each reader receives the message with the sender's name and a sequence number filled in
+        var delivered = benchmark._codec.encode(ChatEventFactory.fromMessage("allocsender", "hey, is anyone around to review my pull request?")).length + 2;
+        var expected = (long)messages * readers * delivered;
+        // The nio loops do all the work on that transport, the blocking one reads and writes on the app's pools
+        var threads = transport.equals("nio") ? new String[] { "nio-loop" } : new String[] { "pool-" };
+
+        // Unreported run so the JIT has warmed up
+        benchmark.send(sender.getOutputStream(), frame, messages, rate, expected, threads);
+        var allocated = benchmark.send(sender.getOutputStream(), frame, messages, rate, expected, threads);
+        logger.info("%s: %d messages to %d readers, %.1f KB received, %.0f bytes allocated per message, %.1f per frame delivered",
+                transport, messages, readers, benchmark._received.get() / 1024.0, (double)allocated / messages,
+                (double)allocated / ((long)messages * readers));
+        server.abort();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,156 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.AppThreadPool;
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.server.ChatServer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Has a few clients burst messages into a room full of readers, and reports delivery throughput along with how well
+ * the server coalesced its writes. Run it with the default --flushus=0 and with e.g. --flushus=500 to compare.
+ */
+public class BurstBenchmark {
+    private final IEventCodec _codec;
+    private final AtomicLong _delivered;
+
+    private BurstBenchmark(IEventCodec codec) {
+        _codec = codec;
+        _delivered = new AtomicLong();
+    }
+
+    /**
+     * Connects, logs in and starts counting everything the server sends back.
+     */
+    private Socket join(int port, String name) throws IOException {
+        var socket = new Socket("127.0.0.1", port);
+        var input = new BufferedInputStream(socket.getInputStream());
+        _codec.read(input);
+        socket.getOutputStream().write(_codec.encode(ChatEventFactory.fromUserJoin(name)));
+
+        var reader = new Thread(() -> read(input), "reader-" + name);
+        reader.setDaemon(true);
+        reader.start();
+        return socket;
+    }
+
+    private void read(InputStream input) {
+        try {
+            while (true) {
+                _codec.read(input);
+                _delivered.incrementAndGet();
+            }
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(BurstBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+        AppThreadPool.configure(config);
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==BurstBenchmark==")
+                .addItem("clients", "The number of connected clients, every one of them receives every message. Defaults to 25")
+                .addItem("senders", "How many of the clients send. Defaults to 5")
+                .addItem("messages", "Messages sent by each sender. Defaults to 2000")
+                .addItem("csp", "The port the in-process server binds to. Defaults to 14102")
+                .addItem("flushus", "Passed through to the server")
+                .addItem("flushbytes", "Passed through to the server")
+                .addItem("transport", "Passed through to the server, blocking or nio")
+                .addItem("codec", "Passed through to the server, binary or java")
+                .addItem("pipeline", "Passed through to the server")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var clients = Integer.parseInt(config.getString("clients", "25"));
+        var senders = Math.min(clients, Integer.parseInt(config.getString("senders", "5")));
+        var messages = Integer.parseInt(config.getString("messages", "2000"));
+        var port = Integer.parseInt(config.getString("csp", "14102"));
+        config.setString("csp", String.valueOf(port));
+        // Measure coalescing rather than the overflow policy, unless asked otherwise
+        config.setString("queuehigh", config.getString("queuehigh", "1000000"));
+
+        var server = new ChatServer(config, new DefaultLogger(ChatServer.class.getSimpleName(), Level.WARNING, display));
+        var serverThread = new Thread(server::listen, "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+        if (!serverThread.isAlive()) {
+            logger.error("the server failed to start");
+            return;
+        }
+
+        var codec = EventCodecFactory.fromConfig(config, logger);
+        var benchmark = new BurstBenchmark(codec);
+        var sockets = new ArrayList<Socket>(clients);
+        for (int i = 0; i < clients; i++) {
+            sockets.add(benchmark.join(port, "burst" + i));
+        }
+        // Let the join announcements settle before measuring.
+        Thread.sleep(1000);
+        server.getMessageBus().getWriteStats().getBatchFrames().reset();
+        server.getMessageBus().getWriteStats().getBatchBytes().reset();
+        server.getMessageBus().getWriteStats().getFlushLatency().reset();
+        benchmark._delivered.set(0);
+
+        var frame = codec.encode(ChatEventFactory.fromMessage(null, "hey, is anyone around to review my pull request?"));
+        var expected = (long)senders * messages * clients;
+        var start = System.nanoTime();
+        var senderThreads = new ArrayList<Thread>();
+        for (int i = 0; i < senders; i++) {
+            var output = sockets.get(i).getOutputStream();
+            var sender = new Thread(() -> {
+                try {
+                    for (int m = 0; m < messages; m++) {
+                        output.write(frame);
+                    }
+                }
+                catch (IOException ignored) {
+                }
+            }, "sender-" + i);
+            sender.start();
+            senderThreads.add(sender);
+        }
+        for (var sender : senderThreads) {
+            sender.join();
+        }
+
+        var deadline = System.nanoTime() + 60_000_000_000L;
+        while (benchmark._delivered.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        var elapsed = System.nanoTime() - start;
+        var stats = server.getMessageBus().getWriteStats();
+
+        logger.info("%d of %d messages delivered in %d ms (%.0f / s), flushus=%s, transport=%s", benchmark._delivered.get(), expected,
+                elapsed / 1_000_000, benchmark._delivered.get() / (elapsed / 1e9), config.getString("flushus", "0"),
+                config.getString("transport", "blocking"));
+        logger.info("frames per write : %s", stats.getBatchFrames().summarize());
+        logger.info("bytes per write  : %s", stats.getBatchBytes().summarize());
+        logger.info("flush latency ns : %s", stats.getFlushLatency().summarize());
+
+        server.abort();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,77 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.BinaryEventCodec;
+import co.uk.michallet.chatapp.common.net.ChatEvent;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.SerializedEventCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+
+/**
+ * Compares the frame size and encode/decode cost of each IEventCodec on a typical chat message and DM.
+ */
+public class CodecBenchmark {
+    // Stops the JIT from discarding the decode loop
+    private static long _sink;
+
+    private static void measure(DefaultLogger logger, String name, IEventCodec codec, ChatEvent event, int iterations) throws IOException {
+        var frame = codec.encode(event);
+
+        // Warm up both paths before timing them
+        for (int i = 0; i < iterations; i++) {
+            _sink += codec.encode(event).length;
+            _sink += codec.tryDecode(ByteBuffer.wrap(frame)).getOpCode();
+        }
+
+        var start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            _sink += codec.encode(event).length;
+        }
+        var encodeNanos = (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            _sink += codec.tryDecode(ByteBuffer.wrap(frame)).getOpCode();
+        }
+        var decodeNanos = (System.nanoTime() - start) / iterations;
+
+        logger.info("%-6s : %4d bytes, encode %6d ns, decode %6d ns", name, frame.length, encodeNanos, decodeNanos);
+    }
+
+    public static void main(String[] args) throws Exception {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(CodecBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==CodecBenchmark==")
+                .addItem("iterations", "How many times each event is encoded and decoded. Defaults to 200000")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var iterations = Integer.parseInt(config.getString("iterations", "200000"));
+        var message = ChatEventFactory.fromMessage("alice", "hey, is anyone around to review my pull request?");
+        var dm = ChatEventFactory.fromDM("alice", "bob", "lunch?");
+
+        logger.info("MESSAGE");
+        measure(logger, "java", SerializedEventCodec.getInstance(), message, iterations);
+        measure(logger, "binary", BinaryEventCodec.getInstance(), message, iterations);
+        logger.info("DIRECT_MESSAGE");
+        measure(logger, "java", SerializedEventCodec.getInstance(), dm, iterations);
+        measure(logger, "binary", BinaryEventCodec.getInstance(), dm, iterations);
+        logger.debug("sink %d", _sink);
+    }
+}
@@ -0,0 +1,209 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.BinaryEventCodec;
+import co.uk.michallet.chatapp.common.net.FrameCompressor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses frames of the payloads a chat server sends, short chat lines, the bot's help menu, DoD LOOK grids and
+ * pasted text, and reports the bytes saved against the time spent compressing and decoding them at each deflate level.
+ * Also shows what the preset dictionary is worth, and how much of a mix of all of them each threshold compresses.
+ */
+public class CompressionBenchmark {
+    private static final String[] WORDS = ("the and you that have for not with this but what just like know it's was "
+            + "are they can get would when there about because really think going good yeah time people if some one "
+            + "lol haha okay thanks sorry anyone does here code build test merge review lunch tomorrow meeting").split(" ");
+    private static final char[] TILES = "##########......GEPB".toCharArray();
+
+    // Stops the JIT from discarding the decode loop
+    private static long _sink;
+
+    private final BinaryEventCodec _codec;
+    private final Random _random;
+
+    private CompressionBenchmark() {
+        _codec = BinaryEventCodec.getInstance();
+        _random = new Random(42);
+    }
+
+    private String words(int minLength) {
+        var sb = new StringBuilder();
+        while (sb.length() < minLength) {
+            sb.append(WORDS[_random.nextInt(WORDS.length)]);
+            sb.append(_random.nextInt(12) == 0 ? ". " : " ");
+        }
+        return sb.toString();
+    }
+
+    private String lookGrid() {
+        var sb = new StringBuilder(System.lineSeparator());
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 5; x++) {
+                sb.append(TILES[_random.nextInt(TILES.length)]).append(' ');
+            }
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    private static String botHelp() {
+        return new HelpMenuBuilder()
+                .setTitle("BOT HELP")
+                .setDescription("I'm a chat bot!")
+                .addItem("ECHO", "Echoes any provided text right back to you!")
+                .addItem("DADJOKE", "Tells you a really, really funny joke.")
+                .build();
+    }
+
+    private List<byte[]> frames(String kind, int count) throws IOException {
+        var frames = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            String content;
+            switch (kind) {
+                case "chat":
+                    content = words(20 + _random.nextInt(80));
+                    break;
+                case "help":
+                    content = botHelp();
+                    break;
+                case "look":
+                    content = lookGrid();
+                    break;
+                default:
+                    content = words(1000 + _random.nextInt(3000));
+                    break;
+            }
+            // LOOK grids go out as DMs, the rest as room messages
+            var event = kind.equals("look")
+                    ? ChatEventFactory.fromDM("dodbot", "player" + i, content)
+                    : ChatEventFactory.fromMessage("user" + _random.nextInt(100), content);
+            event.setSequence(1_000_000 + i);
+            frames.add(_codec.encode(event));
+        }
+        return frames;
+    }
+
+    private static long size(List<byte[]> frames) {
+        var bytes = 0L;
+        for (var frame : frames) {
+            bytes += frame.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return Bytes the frames' bodies deflate to without a dictionary, for comparison.
+     */
+    private static long sizeWithoutDictionary(List<byte[]> frames) {
+        var deflater = new Deflater(FrameCompressor.DEFAULT_LEVEL, true);
+        var output = new byte[1 << 16];
+        var bytes = 0L;
+        for (var frame : frames) {
+            deflater.reset();
+            deflater.setInput(frame);
+            deflater.finish();
+            bytes += Math.min(frame.length, deflater.deflate(output) + 4);
+        }
+        deflater.end();
+        return bytes;
+    }
+
+    private void measure(DefaultLogger logger, String kind, List<byte[]> frames, int level, int threshold, int passes) throws IOException {
+        var compressor = new FrameCompressor(level);
+        var compressed = new ArrayList<byte[]>(frames.size());
+        for (var frame : frames) {
+            compressed.add(compressor.compressFrames(frame, threshold));
+        }
+
+        // Warm up both paths before timing them
+        for (int pass = 0; pass < passes; pass++) {
+            for (int i = 0; i < frames.size(); i++) {
+                _sink += compressor.compressFrames(frames.get(i), threshold).length;
+                _sink += _codec.tryDecode(ByteBuffer.wrap(compressed.get(i))).getOpCode();
+            }
+        }
+
+        var start = System.nanoTime();
+        for (int pass = 0; pass < passes; pass++) {
+            for (var frame : frames) {
+                _sink += compressor.compressFrames(frame, threshold).length;
+            }
+        }
+        var compressNanos = (System.nanoTime() - start) / ((long)passes * frames.size());
+
+        start = System.nanoTime();
+        for (int pass = 0; pass < passes; pass++) {
+            for (var frame : compressed) {
+                _sink += _codec.tryDecode(ByteBuffer.wrap(frame)).getOpCode();
+            }
+        }
+        var decodeNanos = (System.nanoTime() - start) / ((long)passes * frames.size());
+
+        var plainDecodeNanos = 0L;
+        start = System.nanoTime();
+        for (int pass = 0; pass < passes; pass++) {
+            for (var frame : frames) {
+                _sink += _codec.tryDecode(ByteBuffer.wrap(frame)).getOpCode();
+            }
+        }
+        plainDecodeNanos = (System.nanoTime() - start) / ((long)passes * frames.size());
+        compressor.end();
+
+        var plain = size(frames);
+        var after = size(compressed);
+        logger.info("%-6s level %d threshold %4d: %5.0f -> %5.0f bytes per frame (%3.0f%%), compress %6d ns, decode %6d ns (plain %5d ns)",
+                kind, level, threshold, (double)plain / frames.size(), (double)after / frames.size(), 100.0 * after / plain,
+                compressNanos, decodeNanos, plainDecodeNanos);
+    }
+
+    public static void main(String[] args) throws Exception {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(CompressionBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==CompressionBenchmark==")
+                .addItem("frames", "Frames of each kind of payload compressed. Defaults to 2000")
+                .addItem("passes", "How many times each frame is compressed and decoded while timing. Defaults to 20")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var count = Integer.parseInt(config.getString("frames", "2000"));
+        var passes = Integer.parseInt(config.getString("passes", "20"));
+        var benchmark = new CompressionBenchmark();
+
+        var kinds = new String[] { "chat", "help", "look", "paste" };
+        var mixed = new ArrayList<byte[]>();
+        for (var kind : kinds) {
+            var frames = benchmark.frames(kind, count);
+            // Mostly chat, with the odd large payload
+            mixed.addAll(kind.equals("chat") ? frames : frames.subList(0, count / 10));
+            for (var level : new int[] { Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION }) {
+                benchmark.measure(logger, kind, frames, level, 1, passes);
+            }
+            logger.info("%-6s without the dictionary: %5.0f bytes per frame", kind, (double)sizeWithoutDictionary(frames) / count);
+        }
+        for (var threshold : new int[] { 1, 64, 128, 256, 1024 }) {
+            benchmark.measure(logger, "mixed", mixed, FrameCompressor.DEFAULT_LEVEL, threshold, passes);
+        }
+        logger.debug("sink %d", _sink);
+    }
+}
@@ -0,0 +1,144 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.common.net.FlushOptions;
+import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
+import co.uk.michallet.chatapp.server.ClientSession;
+import co.uk.michallet.chatapp.server.ConcurrentMessageBus;
+import co.uk.michallet.chatapp.server.OutboundQueue;
+import co.uk.michallet.chatapp.server.OutboundQueueOptions;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Measures the cost of fanning a single message out to every session on the bus, without any sockets involved.
+ * Compares encoding the event once per subscriber against the bus' encode-once broadcast, and against broadcasting
+ * to one room once the sessions are spread over several.
+ */
+public class FanOutBenchmark {
+    /**
+     * Session with a writer that drains its queue as soon as a frame arrives and only counts what it's sent.
+     */
+    private static class CountingSession extends ClientSession {
+        private final AtomicLong _frames;
+        private final OutboundQueue _outbound;
+
+        CountingSession(ILogger logger, String name, ConcurrentMessageBus messageBus, AtomicLong frames) {
+            super(logger, joinArgs(name), messageBus);
+            _frames = frames;
+            _outbound = new OutboundQueue(messageBus.getQueueOptions());
+        }
+
+        private static UserJoinEventArgs joinArgs(String name) {
+            var args = new UserJoinEventArgs();
+            args.setName(name);
+            return args;
+        }
+
+        @Override
+        protected void writeFrame(byte[] frame) {
+            _outbound.offer(frame);
+            if (_outbound.poll() != null) {
+                _frames.incrementAndGet();
+            }
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return _outbound;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    public static void main(String[] args) {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(FanOutBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==FanOutBenchmark==")
+                .addItem("sessions", "The number of sessions on the bus. Defaults to 5000")
+                .addItem("messages", "How many messages are broadcast per run. Defaults to 200")
+                .addItem("rooms", "How many rooms the sessions are spread over for the room broadcast. Defaults to 100")
+                .addItem("codec", "The codec events are encoded with, binary or java")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var sessionCount = Integer.parseInt(config.getString("sessions", "5000"));
+        var messages = Integer.parseInt(config.getString("messages", "200"));
+        var roomCount = Integer.parseInt(config.getString("rooms", "100"));
+        var codec = EventCodecFactory.fromConfig(config, logger);
+        var frames = new AtomicLong();
+        var bus = new ConcurrentMessageBus(codec, OutboundQueueOptions.fromConfig(config, logger), FlushOptions.fromConfig(config));
+        var sessions = new ArrayList<ClientSession>(sessionCount);
+        for (int i = 0; i < sessionCount; i++) {
+            var session = new CountingSession(logger, "user" + i, bus, frames);
+            bus.tryAddClient(session);
+            sessions.add(session);
+        }
+        var event = ChatEventFactory.fromMessage("alice", "hey, is anyone around to review my pull request?");
+
+        // Two passes, the first one warms up the JIT
+        for (int pass = 0; pass < 2; pass++) {
+            frames.set(0);
+            var start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                for (var session : sessions) {
+                    session.send(event);
+                }
+            }
+            var perSessionNanos = System.nanoTime() - start;
+
+            frames.set(0);
+            start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                bus.broadcast(event);
+            }
+            var broadcastNanos = System.nanoTime() - start;
+
+            // Spread everyone over the rooms, then only talk in the first one
+            for (int i = 0; i < sessionCount; i++) {
+                bus.moveToRoom(sessions.get(i), "room" + (i % roomCount));
+            }
+            frames.set(0);
+            start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                bus.broadcastToRoom("room0", event);
+            }
+            var roomNanos = System.nanoTime() - start;
+            var roomFrames = frames.get();
+            for (var session : sessions) {
+                bus.moveToRoom(session, ConcurrentMessageBus.DEFAULT_ROOM);
+            }
+
+            if (pass == 1) {
+                logger.info("%d messages to %d sessions", messages, sessionCount);
+                logger.info("encode per session : %8.1f us per message", perSessionNanos / 1000.0 / messages);
+                logger.info("encode once        : %8.1f us per message", broadcastNanos / 1000.0 / messages);
+                logger.info("one of %4d rooms   : %8.1f us per message, %d frames delivered", roomCount, roomNanos / 1000.0 / messages, roomFrames);
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,226 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.SocketOpCode;
+import co.uk.michallet.chatapp.common.net.models.MessageSendEventArgs;
+import co.uk.michallet.chatapp.server.ChatServer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Runs a federation of three in-process servers on loopback, with a client on the first sending to the lobby and a
+ * client on each node listening. Reports the latency of messages reaching the sender's own node and the other two,
+ * first at a steady rate and then the throughput of sending flat out.
+ */
+public class FederationBenchmark {
+    private static final int NODES = 3;
+    private static final String SENDER = "fedsender";
+
+    private final IEventCodec _codec;
+    // Indexed by node
+    private final Histogram[] _latency;
+    private final AtomicLong[] _delivered;
+
+    private FederationBenchmark(IEventCodec codec) {
+        _codec = codec;
+        _latency = new Histogram[NODES];
+        _delivered = new AtomicLong[NODES];
+        for (int i = 0; i < NODES; i++) {
+            _latency[i] = new Histogram();
+            _delivered[i] = new AtomicLong();
+        }
+    }
+
+    private ChatServer startNode(String[] args, DefaultLogger serverLogger, int port, int federationPort, int node) throws Exception {
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+        config.setString("csp", String.valueOf(port + node));
+        config.setString("federation", String.valueOf(federationPort + node));
+        config.setString("node", "node" + node);
+        var peers = new ArrayList<String>();
+        for (int i = 0; i < NODES; i++) {
+            if (i != node) {
+                peers.add("127.0.0.1:" + (federationPort + i));
+            }
+        }
+        config.setString("peers", String.join(",", peers));
+        // Measure throughput rather than the overflow policy
+        config.setString("queuehigh", config.getString("queuehigh", "1000000"));
+        var server = new ChatServer(config, serverLogger);
+        var serverThread = new Thread(server::listen, "server-" + node);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return server;
+    }
+
+    /**
+     * Connects to a node, logs in and starts timing every message the sender sends.
+     * @param node The node whose timings to record, -1 to only drain what's received.
+     */
+    private Socket join(int port, String name, int node) throws IOException {
+        var socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        var input = new BufferedInputStream(socket.getInputStream());
+        _codec.read(input);
+        socket.getOutputStream().write(_codec.encode(ChatEventFactory.fromUserJoin(name)));
+
+        var reader = new Thread(() -> read(input, node), "reader-" + name);
+        reader.setDaemon(true);
+        reader.start();
+        return socket;
+    }
+
+    private void read(InputStream input, int node) {
+        try {
+            while (true) {
+                var event = _codec.read(input);
+                if (node < 0 || event.getOpCode() != SocketOpCode.MESSAGE.getValue()) {
+                    continue;
+                }
+                var messageArgs = (MessageSendEventArgs)event.getEventArgs();
+                if (!SENDER.equals(messageArgs.getAuthor())) {
+                    continue;
+                }
+                _latency[node].record(System.nanoTime() - Long.parseLong(messageArgs.getContent()));
+                _delivered[node].incrementAndGet();
+            }
+        }
+        catch (IOException | NumberFormatException ignored) {
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < NODES; i++) {
+            _latency[i].reset();
+            _delivered[i].set(0);
+        }
+    }
+
+    /**
+     * Sends messages stamped with the time they were sent, and waits for every listener to receive them.
+     * @param rate Messages per second, 0 to send flat out.
+     * @return Nanoseconds from the first being sent to the last being received.
+     */
+    private long send(Socket sender, int messages, int rate) throws Exception {
+        reset();
+        var output = sender.getOutputStream();
+        var intervalNanos = rate > 0 ? 1_000_000_000L / rate : 0;
+        var start = System.nanoTime();
+        for (int m = 0; m < messages; m++) {
+            if (intervalNanos > 0) {
+                var due = start + m * intervalNanos;
+                while (System.nanoTime() < due) {
+                    LockSupport.parkNanos(due - System.nanoTime());
+                }
+            }
+            output.write(_codec.encode(ChatEventFactory.fromMessage(null, Long.toString(System.nanoTime()))));
+        }
+
+        var deadline = System.nanoTime() + 60_000_000_000L;
+        while (System.nanoTime() < deadline && !allDelivered(messages)) {
+            Thread.sleep(1);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private boolean allDelivered(int messages) {
+        for (var delivered : _delivered) {
+            if (delivered.get() < messages) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void report(DefaultLogger logger, String phase, int messages, long elapsed) {
+        for (int i = 0; i < NODES; i++) {
+            var delivered = _delivered[i].get();
+            if (delivered < messages) {
+                logger.warn("node%d: only %d of %d messages were delivered", i, delivered, messages);
+            }
+            logger.info("%s %s : %10.0f messages / s, latency us p50=%d p99=%d max=%d", phase, i == 0 ? "local " : "remote",
+                    delivered / (elapsed / 1e9), _latency[i].getValueAtPercentile(50) / 1000,
+                    _latency[i].getValueAtPercentile(99) / 1000, _latency[i].getMax() / 1000);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(FederationBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==FederationBenchmark==")
+                .addItem("messages", "Messages sent in each phase. Defaults to 20000")
+                .addItem("rate", "Messages per second sent while measuring latency. Defaults to 5000")
+                .addItem("csp", "The port the first node binds to, the others take the next ones. Defaults to 14301")
+                .addItem("federation", "The port the first node links on, the others take the next ones. Defaults to 14401")
+                .addItem("transport", "Passed through to each node, blocking or nio")
+                .addItem("codec", "Passed through to each node, binary or java")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var messages = Integer.parseInt(config.getString("messages", "20000"));
+        var rate = Integer.parseInt(config.getString("rate", "5000"));
+        var port = Integer.parseInt(config.getString("csp", "14301"));
+        var federationPort = Integer.parseInt(config.getString("federation", "14401"));
+
+        var benchmark = new FederationBenchmark(EventCodecFactory.fromConfig(config, logger));
+        var serverLogger = new DefaultLogger(ChatServer.class.getSimpleName(), Level.WARNING, display);
+        var servers = new ChatServer[NODES];
+        for (int i = 0; i < NODES; i++) {
+            servers[i] = benchmark.startNode(args, serverLogger, port, federationPort, i);
+        }
+        // Every node links to both the others
+        var deadline = System.nanoTime() + 30_000_000_000L;
+        for (var server : servers) {
+            while (server.getMessageBus().getFederation() == null || server.getMessageBus().getFederation().getLinks().size() < NODES - 1) {
+                if (System.nanoTime() > deadline) {
+                    logger.error("the nodes didn't link up");
+                    System.exit(1);
+                }
+                Thread.sleep(10);
+            }
+        }
+
+        var sender = benchmark.join(port, SENDER, -1);
+        for (int i = 0; i < NODES; i++) {
+            benchmark.join(port + i, "fedlistener" + i, i);
+        }
+        // Let the join announcements settle before measuring.
+        Thread.sleep(1000);
+
+        // Unreported run so the JIT has warmed up
+        benchmark.send(sender, messages, 0);
+        var elapsed = benchmark.send(sender, messages, rate);
+        benchmark.report(logger, String.format("%d / s", rate), messages, elapsed);
+        elapsed = benchmark.send(sender, messages, 0);
+        benchmark.report(logger, "flat out", messages, elapsed);
+
+        for (var server : servers) {
+            server.abort();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,256 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.AppThreadPool;
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.server.ChatServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Holds a large number of mostly-idle connections against an in-process ChatServer and reports how much heap and how
+ * many platform threads the server needs to keep them open.
+ * A small number of the connections log in, the rest stay parked in the handshake. Both park a session executor thread
+ * on the blocking transport, but only logged in sessions receive join announcements, which grow with the square of
+ * their count and would otherwise dominate the measurement.
+ * The process needs a file descriptor limit of at least twice the connection count, e.g. ulimit -n 25000.
+ */
+public class IdleConnectionBenchmark {
+    // Give up waiting for a HELLO after this long, the server has run out of threads to handshake with
+    private static final int HELLO_TIMEOUT_MILLIS = 5000;
+
+    private final IEventCodec _codec;
+    private final Selector _selector;
+    // Channel and initial attachment pairs waiting to be registered on the drain thread
+    private final Queue<Object[]> _pendingRegistrations;
+    private final AtomicLong _bytesDrained;
+    private final AtomicLong _servedConnections;
+    private volatile long _lastDrainNanos;
+
+    private IdleConnectionBenchmark(IEventCodec codec) throws IOException {
+        _codec = codec;
+        _selector = Selector.open();
+        _pendingRegistrations = new ConcurrentLinkedQueue<>();
+        _bytesDrained = new AtomicLong();
+        _servedConnections = new AtomicLong();
+        _lastDrainNanos = System.nanoTime();
+    }
+
+    /**
+     * Discards everything the server sends so that join announcements never back up into the server.
+     */
+    private void drain() {
+        var buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (!Thread.interrupted()) {
+                _selector.select(100);
+                Object[] registration;
+                while ((registration = _pendingRegistrations.poll()) != null) {
+                    ((SocketChannel)registration[0]).register(_selector, SelectionKey.OP_READ, registration[1]);
+                }
+                for (var key : _selector.selectedKeys()) {
+                    buffer.clear();
+                    var read = ((SocketChannel)key.channel()).read(buffer);
+                    if (read > 0) {
+                        // The first bytes on a parked connection are its HELLO, i.e. the server gave it a thread.
+                        if (key.attachment() == null) {
+                            key.attach(Boolean.TRUE);
+                            _servedConnections.incrementAndGet();
+                        }
+                        _bytesDrained.addAndGet(read);
+                        _lastDrainNanos = System.nanoTime();
+                    }
+                    else if (read < 0) {
+                        key.cancel();
+                    }
+                }
+                _selector.selectedKeys().clear();
+            }
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Opens a connection and completes the HELLO/USER_JOIN handshake on it.
+     * @return The connection, or null if the server never sent a HELLO.
+     */
+    private SocketChannel join(InetSocketAddress addr, String name) throws IOException {
+        var channel = SocketChannel.open(addr);
+        var socket = channel.socket();
+        socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+        try {
+            _codec.read(socket.getInputStream());
+        }
+        catch (SocketTimeoutException timeoutEx) {
+            channel.close();
+            return null;
+        }
+        socket.getOutputStream().write(_codec.encode(ChatEventFactory.fromUserJoin(name)));
+
+        _servedConnections.incrementAndGet();
+        hold(channel, Boolean.TRUE);
+        return channel;
+    }
+
+    /**
+     * Opens a connection and leaves it before the handshake, waiting on the server's HELLO.
+     */
+    private SocketChannel park(InetSocketAddress addr) throws IOException {
+        var channel = SocketChannel.open(addr);
+        hold(channel, null);
+        return channel;
+    }
+
+    /**
+     * Waits for the server to have sent a HELLO on the given number of connections.
+     * @return False if it didn't happen within the HELLO timeout.
+     */
+    private boolean awaitServed(long count) throws InterruptedException {
+        var deadline = System.nanoTime() + HELLO_TIMEOUT_MILLIS * 1_000_000L;
+        while (_servedConnections.get() < count) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private void hold(SocketChannel channel, Boolean served) throws IOException {
+        channel.configureBlocking(false);
+        _pendingRegistrations.add(new Object[] { channel, served });
+        _selector.wakeup();
+    }
+
+    private static long usedHeap() {
+        var runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(IdleConnectionBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+        AppThreadPool.configure(config);
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==IdleConnectionBenchmark==")
+                .addItem("connections", "The number of idle connections to open. Defaults to 10000")
+                .addItem("sessions", "How many of the connections complete the login. Defaults to 100")
+                .addItem("csp", "The port the in-process server binds to. Defaults to 14101")
+                .addItem("transport", "Passed through to the server, blocking or nio")
+                .addItem("loops", "Passed through to the server")
+                .addItem("executor", "Passed through to the server, fixed or virtual")
+                .addItem("codec", "Passed through to the server, binary or java")
+                .addItem("handshake", "Passed through to the server. Defaults to 0, so parked connections aren't dropped")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var connections = Integer.parseInt(config.getString("connections", "10000"));
+        var sessions = Math.min(connections, Integer.parseInt(config.getString("sessions", "100")));
+        var port = Integer.parseInt(config.getString("csp", "14101"));
+        config.setString("csp", String.valueOf(port));
+        // Connections are held in the handshake, and sessions never answer a PING, for as long as the benchmark runs
+        if (!config.isSet("handshake")) {
+            config.setString("handshake", "0");
+        }
+        if (!config.isSet("ping")) {
+            config.setString("ping", "0");
+        }
+
+        var threads = ManagementFactory.getThreadMXBean();
+        var heapBefore = usedHeap();
+        var threadsBefore = threads.getThreadCount();
+
+        // The server only logs warnings, otherwise every join is printed.
+        var server = new ChatServer(config, new DefaultLogger(ChatServer.class.getSimpleName(), Level.WARNING, display));
+        var serverThread = new Thread(server::listen, "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+        // listen() only returns early if the server couldn't bind.
+        if (!serverThread.isAlive()) {
+            logger.error("the server failed to start");
+            return;
+        }
+
+        var benchmark = new IdleConnectionBenchmark(EventCodecFactory.fromConfig(config, logger));
+        var drainThread = new Thread(benchmark::drain, "drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+
+        logger.info("opening %d connections, %d logged in (executor=%s, virtual=%s, transport=%s)", connections, sessions,
+                config.getString("executor", "fixed"), AppThreadPool.isVirtual(), config.getString("transport", "blocking"));
+        var addr = new InetSocketAddress("127.0.0.1", port);
+        var channels = new ArrayList<SocketChannel>(connections);
+        var start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            var channel = benchmark.join(addr, "idle" + i);
+            if (channel == null) {
+                logger.warn("no HELLO after %d sessions, the server has no threads left to handshake on", i);
+                break;
+            }
+            channels.add(channel);
+        }
+        // The accept backlog is small, so pace connects on the server's HELLOs until it stops handing out threads.
+        var paced = true;
+        while (channels.size() < connections) {
+            channels.add(benchmark.park(addr));
+            if (paced && !benchmark.awaitServed(channels.size())) {
+                logger.warn("no HELLO after %d connections, the server has no threads left to handshake on", channels.size() - 1);
+                paced = false;
+            }
+            if (channels.size() % 1000 == 0) {
+                logger.info("%d connections open", channels.size());
+            }
+        }
+        var connectMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // Wait for HELLOs and join announcements to stop arriving, at that point every connection is idle.
+        while (System.nanoTime() - benchmark._lastDrainNanos < 2_000_000_000L) {
+            Thread.sleep(250);
+        }
+
+        var heapAfter = usedHeap();
+        var threadsAfter = threads.getThreadCount();
+        logger.info("connections         : %d", channels.size());
+        logger.info("given a thread      : %d", benchmark._servedConnections.get());
+        logger.info("connect time        : %d ms", connectMillis);
+        logger.info("bytes drained       : %d", benchmark._bytesDrained.get());
+        logger.info("heap growth         : %d KiB (%d bytes/connection, client side included)", (heapAfter - heapBefore) / 1024, (heapAfter - heapBefore) / connections);
+        logger.info("platform threads    : %d -> %d", threadsBefore, threadsAfter);
+
+        server.abort();
+        for (var channel : channels) {
+            channel.close();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,101 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.server.JournalOptions;
+import co.uk.michallet.chatapp.server.MessageJournal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.logging.Level;
+
+/**
+ * Measures sustained append throughput of the MessageJournal: producer threads append room messages as fast as the
+ * writer takes them, and the clock stops once the writer has committed the last one. The journal lives in a fresh
+ * directory that's deleted afterwards.
+ */
+public class JournalBenchmark {
+    // Producers hold off while this many appends are waiting, so the writer is measured rather than the drop policy
+    private static final int MAX_IN_FLIGHT = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(JournalBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==JournalBenchmark==")
+                .addItem("messages", "Messages appended in total. Defaults to 2000000")
+                .addItem("producers", "Threads appending at once. Defaults to 2")
+                .addItem("rooms", "Rooms the messages are spread over. Defaults to 16")
+                .addItem("journalsegment", "Bytes per segment file. Defaults to 67108864")
+                .addItem("journalsync", "batch to force every group commit to disk, none to leave it to the OS. Defaults to batch")
+                .addItem("codec", "Format the messages are encoded in, binary or java")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var messages = Integer.parseInt(config.getString("messages", "2000000"));
+        var producers = Math.max(1, Integer.parseInt(config.getString("producers", "2")));
+        var rooms = Math.max(1, Integer.parseInt(config.getString("rooms", "16")));
+        var directory = Files.createTempDirectory("journal-bench");
+        config.setString("journal", directory.toString());
+
+        var codec = EventCodecFactory.fromConfig(config, logger);
+        var frame = codec.encode(ChatEventFactory.fromMessage("bench", "hey, is anyone around to review my pull request?"));
+        var options = JournalOptions.fromConfig(config);
+        var journal = MessageJournal.open(logger, new JournalOptions(directory, options.getSegmentBytes(),
+                Long.MAX_VALUE, Long.MAX_VALUE, options.getSync(), 0));
+        journal.start();
+
+        var start = System.nanoTime();
+        var threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            var share = messages / producers + (p < messages % producers ? 1 : 0);
+            var offset = p;
+            var thread = new Thread(() -> {
+                for (int m = 0; m < share; m++) {
+                    while (journal.getPendingCount() > MAX_IN_FLIGHT) {
+                        Thread.onSpinWait();
+                    }
+                    journal.append("room" + ((m + offset) % rooms), frame);
+                }
+            }, "producer-" + p);
+            thread.start();
+            threads.add(thread);
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        while (journal.getLastSequence() + journal.getDropped() < messages) {
+            Thread.sleep(1);
+        }
+        var elapsed = System.nanoTime() - start;
+        journal.close();
+
+        logger.info("%d messages of %d bytes in %.2f s : %10.0f messages / s, %.1f MB / s", messages, frame.length,
+                elapsed / 1e9, messages / (elapsed / 1e9), (double)messages * frame.length / (elapsed / 1e3));
+        logger.info("sync %s, %d dropped, %d segments", options.getSync() ? "batch" : "none", journal.getDropped(), journal.getSegmentCount());
+        logger.info("batch size : %s", journal.getBatchSizes().summarize());
+        logger.info("commit ns  : %s", journal.getCommitLatency().summarize());
+        delete(directory);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
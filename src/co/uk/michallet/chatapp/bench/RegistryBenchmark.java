@@ -0,0 +1,190 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.common.net.FlushOptions;
+import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
+import co.uk.michallet.chatapp.server.ClientSession;
+import co.uk.michallet.chatapp.server.ConcurrentMessageBus;
+import co.uk.michallet.chatapp.server.OutboundQueue;
+import co.uk.michallet.chatapp.server.OutboundQueueOptions;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Races threads to log in under, and rename themselves to, the same names on one bus and checks each name went to
+ * exactly one of them. Then compares walking every session through a ConcurrentHashMap's values, as a broadcast
+ * used to, against the registry's array, in time and bytes allocated per walk.
+ */
+public class RegistryBenchmark {
+    /**
+     * Session that's never written to.
+     */
+    private static class IdleSession extends ClientSession {
+        private final OutboundQueue _outbound;
+
+        IdleSession(ILogger logger, String name, ConcurrentMessageBus messageBus) {
+            super(logger, joinArgs(name), messageBus);
+            _outbound = new OutboundQueue(messageBus.getQueueOptions());
+        }
+
+        private static UserJoinEventArgs joinArgs(String name) {
+            var args = new UserJoinEventArgs();
+            args.setName(name);
+            return args;
+        }
+
+        @Override
+        protected void writeFrame(byte[] frame) {
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return _outbound;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    // Stops the JIT from discarding the walks
+    private static long _sink;
+
+    private interface IRacer {
+        boolean race(int thread, int index);
+    }
+
+    /**
+     * Runs the racer for every index on every thread at once.
+     * @return How many of the races were won.
+     */
+    private static int race(int threads, int count, IRacer racer) throws InterruptedException {
+        var wins = new AtomicInteger();
+        var start = new CountDownLatch(1);
+        var workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            var thread = t;
+            var worker = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException ignored) {
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (racer.race(thread, i)) {
+                        wins.incrementAndGet();
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (var worker : workers) {
+            worker.join();
+        }
+        return wins.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(RegistryBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==RegistryBenchmark==")
+                .addItem("names", "Names raced for, and sessions walked. Defaults to 5000")
+                .addItem("threads", "Threads racing for each name. Defaults to 8")
+                .addItem("walks", "How many times every session is walked while timing. Defaults to 2000")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var names = Integer.parseInt(config.getString("names", "5000"));
+        var threads = Integer.parseInt(config.getString("threads", "8"));
+        var walks = Integer.parseInt(config.getString("walks", "2000"));
+        var codec = EventCodecFactory.fromConfig(config, logger);
+        var bus = new ConcurrentMessageBus(codec, OutboundQueueOptions.fromConfig(config, logger), FlushOptions.fromConfig(config));
+
+        var start = System.nanoTime();
+        var joined = race(threads, names, (thread, i) -> bus.tryAddClient(new IdleSession(logger, "user" + i, bus)));
+        logger.info("logins : %d threads raced for %d names, %d won (%s) in %d ms", threads, names, joined,
+                joined == names && bus.getLocalClients().length == names ? "ok" : "WRONG", (System.nanoTime() - start) / 1_000_000);
+
+        // Every thread has its own sessions, each trying to take the same new name as the others' at the same index
+        var racers = new IdleSession[threads][names];
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < names; i++) {
+                racers[t][i] = new IdleSession(logger, "racer" + t + "-" + i, bus);
+                bus.tryAddClient(racers[t][i]);
+            }
+        }
+        start = System.nanoTime();
+        var renamed = race(threads, names, (thread, i) -> bus.tryRename("racer" + thread + "-" + i, "renamed" + i));
+        var held = 0;
+        for (int i = 0; i < names; i++) {
+            if (bus.getLocalClient("renamed" + i) != null) {
+                held++;
+            }
+        }
+        logger.info("renames: %d threads raced for %d names, %d won, %d held (%s) in %d ms", threads, names, renamed, held,
+                renamed == names && held == names && bus.getNames().size() == names * (threads + 1) ? "ok" : "WRONG",
+                (System.nanoTime() - start) / 1_000_000);
+
+        var map = new ConcurrentHashMap<String, ClientSession>();
+        var sessions = bus.getLocalClients();
+        for (var session : sessions) {
+            map.put(session.getName(), session);
+        }
+        var allocation = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        // Two passes, the first one warms up the JIT
+        for (int pass = 0; pass < 2; pass++) {
+            var bytesBefore = allocation.getThreadAllocatedBytes(Thread.currentThread().getId());
+            start = System.nanoTime();
+            for (int w = 0; w < walks; w++) {
+                for (var session : map.values()) {
+                    _sink += session.hashCode();
+                }
+            }
+            var mapNanos = System.nanoTime() - start;
+            var mapBytes = allocation.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytesBefore;
+
+            bytesBefore = allocation.getThreadAllocatedBytes(Thread.currentThread().getId());
+            start = System.nanoTime();
+            for (int w = 0; w < walks; w++) {
+                for (var session : bus.getLocalClients()) {
+                    _sink += session.hashCode();
+                }
+            }
+            var arrayNanos = System.nanoTime() - start;
+            var arrayBytes = allocation.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytesBefore;
+
+            if (pass == 1) {
+                logger.info("walking %d sessions", map.size());
+                logger.info("map values : %8.1f us per walk, %6.1f bytes allocated", mapNanos / 1000.0 / walks, (double)mapBytes / walks);
+                logger.info("array      : %8.1f us per walk, %6.1f bytes allocated", arrayNanos / 1000.0 / walks, (double)arrayBytes / walks);
+            }
+        }
+        logger.debug("sink %d", _sink);
+    }
+}
@@ -0,0 +1,172 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.common.net.FlushOptions;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
+import co.uk.michallet.chatapp.server.ClientSession;
+import co.uk.michallet.chatapp.server.ConcurrentMessageBus;
+import co.uk.michallet.chatapp.server.OutboundQueue;
+import co.uk.michallet.chatapp.server.OutboundQueueOptions;
+import co.uk.michallet.chatapp.server.Roster;
+import co.uk.michallet.chatapp.server.TimerWheel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Logs a crowd of sessions in at once, without any sockets involved, and measures what telling them who's online
+ * costs. Compares building a snapshot for each session as it logs in against the roster's shared snapshots, with a
+ * delta for every change and with changes gathered up on the timer wheel.
+ */
+public class RosterBenchmark {
+    /**
+     * Session that only counts the frames and bytes it's sent.
+     */
+    private static class CountingSession extends ClientSession {
+        private final AtomicLong _frames;
+        private final AtomicLong _bytes;
+
+        CountingSession(ILogger logger, String name, ConcurrentMessageBus messageBus, AtomicLong frames, AtomicLong bytes) {
+            super(logger, joinArgs(name), messageBus);
+            _frames = frames;
+            _bytes = bytes;
+        }
+
+        private static UserJoinEventArgs joinArgs(String name) {
+            var args = new UserJoinEventArgs();
+            args.setName(name);
+            return args;
+        }
+
+        @Override
+        protected void writeFrame(byte[] frame) {
+            _frames.incrementAndGet();
+            _bytes.addAndGet(frame.length);
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    private final ILogger _logger;
+    private final IConfiguration _config;
+    private final IEventCodec _codec;
+    private final AtomicLong _frames;
+    private final AtomicLong _bytes;
+
+    private RosterBenchmark(ILogger logger, IConfiguration config) {
+        _logger = logger;
+        _config = config;
+        _codec = EventCodecFactory.fromConfig(config, logger);
+        _frames = new AtomicLong();
+        _bytes = new AtomicLong();
+    }
+
+    private ConcurrentMessageBus createBus() {
+        return new ConcurrentMessageBus(_codec, OutboundQueueOptions.fromConfig(_config, _logger), FlushOptions.fromConfig(_config));
+    }
+
+    /**
+     * Logs sessions in one after another, each sent a snapshot of its own and everyone sent a delta per login.
+     */
+    private long runPerSession(int sessions) {
+        var bus = createBus();
+        var start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            var session = new CountingSession(_logger, "user" + i, bus, _frames, _bytes);
+            bus.tryAddClient(session);
+            bus.broadcast(ChatEventFactory.fromRosterDelta(i + 1, List.of(session.getName()), List.of()));
+            session.send(ChatEventFactory.fromRosterSnapshot(i, new ArrayList<>(bus.getNames())));
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Logs sessions in one after another through a roster.
+     * @param wheel Gathers changes up if set, otherwise the roster sends a delta per login.
+     */
+    private long runRoster(int sessions, TimerWheel wheel, long delayMillis) throws InterruptedException {
+        var bus = createBus();
+        var roster = new Roster(bus, wheel, delayMillis);
+        bus.setRoster(roster);
+        var start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            var session = new CountingSession(_logger, "user" + i, bus, _frames, _bytes);
+            bus.tryAddClient(session);
+            roster.join(session.getName());
+            roster.sendSnapshot(session);
+        }
+        var elapsed = System.nanoTime() - start;
+        // Wait for the last delta, it's what the crowd is waiting on too
+        while (roster.getCount() < sessions) {
+            Thread.sleep(1);
+        }
+        _logger.info("    %d versions, %d snapshots encoded for %d sent", roster.getVersion(), roster.getSnapshotsEncoded(), roster.getSnapshotsSent());
+        return elapsed;
+    }
+
+    private void report(String label, int sessions, long elapsed) {
+        _logger.info("%-22s: %8.1f ms, %6.1f us per login, %9d frames, %7.1f MB sent", label, elapsed / 1e6,
+                elapsed / 1000.0 / sessions, _frames.get(), _bytes.get() / 1e6);
+        _frames.set(0);
+        _bytes.set(0);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(RosterBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==RosterBenchmark==")
+                .addItem("sessions", "The number of sessions logging in. Defaults to 2000")
+                .addItem("roster", "Milliseconds the gathering roster holds changes for. Defaults to 100")
+                .addItem("codec", "The codec events are encoded with, binary or java")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var sessions = Integer.parseInt(config.getString("sessions", "2000"));
+        var delayMillis = Long.parseLong(config.getString("roster", "100"));
+        var benchmark = new RosterBenchmark(logger, config);
+        var wheel = new TimerWheel(logger, 10, 256);
+        wheel.start();
+
+        // Two passes, the first one warms up the JIT
+        for (int pass = 0; pass < 2; pass++) {
+            var perSession = benchmark.runPerSession(sessions);
+            benchmark.report("snapshot per session", sessions, perSession);
+            var perChange = benchmark.runRoster(sessions, null, 0);
+            benchmark.report("delta per change", sessions, perChange);
+            var gathered = benchmark.runRoster(sessions, wheel, delayMillis);
+            benchmark.report(String.format("gathered for %d ms", delayMillis), sessions, gathered);
+        }
+        wheel.close();
+        System.exit(0);
+    }
+}
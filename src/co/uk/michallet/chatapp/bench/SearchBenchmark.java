@@ -0,0 +1,104 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+import co.uk.michallet.chatapp.server.SearchIndex;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Level;
+
+/**
+ * Indexes a large number of generated messages, then reports how long typical searches take over them. Words are
+ * drawn from a Zipf-like distribution, so the most common ones appear in a large share of messages, as in real chat.
+ */
+public class SearchBenchmark {
+    // Producers hold off while this many messages are waiting, so the indexer is measured rather than the drop policy
+    private static final int MAX_IN_FLIGHT = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(SearchBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==SearchBenchmark==")
+                .addItem("messages", "Messages indexed before searching. Defaults to 1000000")
+                .addItem("words", "Size of the vocabulary messages are made from. Defaults to 20000")
+                .addItem("queries", "Times each query is run. Defaults to 200")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var messages = Integer.parseInt(config.getString("messages", "1000000"));
+        var vocabulary = Integer.parseInt(config.getString("words", "20000"));
+        var queries = Integer.parseInt(config.getString("queries", "200"));
+
+        var random = new Random(42);
+        var words = new String[vocabulary];
+        for (int i = 0; i < vocabulary; i++) {
+            words[i] = "w" + Integer.toString(i, 36);
+        }
+        // Cumulative weights of 1 / rank
+        var weights = new double[vocabulary];
+        var sum = 0.0;
+        for (int i = 0; i < vocabulary; i++) {
+            sum += 1.0 / (i + 1);
+            weights[i] = sum;
+        }
+
+        var index = new SearchIndex(logger, messages);
+        index.start();
+        var start = System.nanoTime();
+        var content = new StringBuilder();
+        for (int m = 0; m < messages; m++) {
+            content.setLength(0);
+            var length = 4 + random.nextInt(12);
+            for (int w = 0; w < length; w++) {
+                var point = random.nextDouble() * sum;
+                var rank = Arrays.binarySearch(weights, point);
+                content.append(words[rank < 0 ? -rank - 1 : rank]).append(' ');
+            }
+            while (index.getPendingCount() > MAX_IN_FLIGHT) {
+                Thread.onSpinWait();
+            }
+            index.add("user" + random.nextInt(500), "room" + random.nextInt(50), content.toString());
+        }
+        while (index.getIndexed() + index.getDropped() < messages) {
+            Thread.sleep(1);
+        }
+        var elapsed = System.nanoTime() - start;
+        logger.info("indexed %d messages in %.2f s, %.0f messages / s, %d terms, %d MB", index.getMessageCount(),
+                elapsed / 1e9, messages / (elapsed / 1e9), index.getTermCount(), index.getBytes() >> 20);
+
+        String[] cases = {
+                words[0],
+                words[vocabulary / 2],
+                words[0] + " " + words[1],
+                words[3] + " " + words[vocabulary / 10],
+                "from:user7",
+                words[2] + " in:room3",
+        };
+        for (var query : cases) {
+            var latency = new Histogram();
+            var total = 0;
+            for (int q = 0; q < queries; q++) {
+                var queryStart = System.nanoTime();
+                // Every fifth search asks for a later page
+                total = index.search(query, q % 5 == 0 ? 5 : 1).getTotal();
+                latency.record(System.nanoTime() - queryStart);
+            }
+            logger.info("%-16s %8d matches, ms p50 %.2f p99 %.2f max %.2f", query, total,
+                    latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(99) / 1e6, latency.getMax() / 1e6);
+        }
+        index.close();
+    }
+}
@@ -0,0 +1,171 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.server.ChatServer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Runs the same room traffic against a sharded server at 1, 2, 4 and 8 shards and reports delivery throughput for
+ * each. The clients run in-process, so they compete with the server for cores. Scaling is only meaningful on a
+ * machine with more cores than the largest shard count.
+ */
+public class ShardBenchmark {
+    private final IEventCodec _codec;
+    private final AtomicLong _delivered;
+
+    private ShardBenchmark(IEventCodec codec) {
+        _codec = codec;
+        _delivered = new AtomicLong();
+    }
+
+    /**
+     * Connects, logs in, moves into a room and starts counting everything the server sends back.
+     */
+    private Socket join(int port, String name, String room) throws IOException {
+        var socket = new Socket("127.0.0.1", port);
+        var input = new BufferedInputStream(socket.getInputStream());
+        _codec.read(input);
+        var output = socket.getOutputStream();
+        output.write(_codec.encode(ChatEventFactory.fromUserJoin(name)));
+        output.write(_codec.encode(ChatEventFactory.fromRoomJoin(name, room)));
+
+        var reader = new Thread(() -> read(input), "reader-" + name);
+        reader.setDaemon(true);
+        reader.start();
+        return socket;
+    }
+
+    private void read(InputStream input) {
+        try {
+            while (true) {
+                _codec.read(input);
+                _delivered.incrementAndGet();
+            }
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return Messages delivered per second.
+     */
+    private double run(IConfiguration config, DefaultLogger serverLogger, int port, int shards, int clients, int rooms, int messages) throws Exception {
+        config.setString("csp", String.valueOf(port));
+        config.setString("shards", String.valueOf(shards));
+        var server = new ChatServer(config, serverLogger);
+        var serverThread = new Thread(server::listen, "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        var sockets = new ArrayList<Socket>(clients);
+        for (int i = 0; i < clients; i++) {
+            sockets.add(join(port, "shard" + i, "room" + (i % rooms)));
+        }
+        // Let the join announcements settle before measuring.
+        Thread.sleep(1000);
+        _delivered.set(0);
+
+        var frame = _codec.encode(ChatEventFactory.fromMessage(null, "hey, is anyone around to review my pull request?"));
+        // Every client talks in its own room, which holds clients / rooms readers
+        var expected = 0L;
+        for (int i = 0; i < clients; i++) {
+            expected += (long)messages * ((clients - i % rooms + rooms - 1) / rooms);
+        }
+        var start = System.nanoTime();
+        var senders = new ArrayList<Thread>();
+        for (var socket : sockets) {
+            var output = socket.getOutputStream();
+            var sender = new Thread(() -> {
+                try {
+                    for (int m = 0; m < messages; m++) {
+                        output.write(frame);
+                    }
+                }
+                catch (IOException ignored) {
+                }
+            });
+            sender.start();
+            senders.add(sender);
+        }
+        for (var sender : senders) {
+            sender.join();
+        }
+
+        var deadline = System.nanoTime() + 60_000_000_000L;
+        while (_delivered.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        var elapsed = System.nanoTime() - start;
+        var delivered = _delivered.get();
+        if (delivered < expected) {
+            serverLogger.warn("only %d of %d messages were delivered", delivered, expected);
+        }
+
+        server.abort();
+        for (var socket : sockets) {
+            socket.close();
+        }
+        return delivered / (elapsed / 1e9);
+    }
+
+    public static void main(String[] args) throws Exception {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(ShardBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==ShardBenchmark==")
+                .addItem("clients", "The number of connected clients, every one of them sends. Defaults to 32")
+                .addItem("rooms", "How many rooms the clients are spread over. Defaults to 4")
+                .addItem("messages", "Messages sent by each client. Defaults to 500")
+                .addItem("maxshards", "The largest shard count measured, counts double from 1 up to it. Defaults to 8")
+                .addItem("csp", "The first port the in-process servers bind to, each run, including a warm up, uses the next one. Defaults to 14202")
+                .addItem("codec", "Passed through to the server, binary or java")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var clients = Integer.parseInt(config.getString("clients", "32"));
+        var rooms = Math.max(1, Integer.parseInt(config.getString("rooms", "4")));
+        var messages = Integer.parseInt(config.getString("messages", "500"));
+        var maxShards = Integer.parseInt(config.getString("maxshards", "8"));
+        var port = Integer.parseInt(config.getString("csp", "14202"));
+        // Measure throughput rather than the overflow policy
+        config.setString("queuehigh", config.getString("queuehigh", "1000000"));
+
+        var benchmark = new ShardBenchmark(EventCodecFactory.fromConfig(config, logger));
+        var serverLogger = new DefaultLogger(ChatServer.class.getSimpleName(), Level.WARNING, display);
+        // Unreported run so the JIT has warmed up before the single shard baseline
+        benchmark.run(config, serverLogger, port++, 1, clients, rooms, messages);
+        double baseline = 0;
+        for (int shards = 1; shards <= maxShards; shards *= 2) {
+            var rate = benchmark.run(config, serverLogger, port++, shards, clients, rooms, messages);
+            if (shards == 1) {
+                baseline = rate;
+            }
+            logger.info("%d shards : %10.0f messages / s, %.2fx", shards, rate, rate / baseline);
+        }
+        logger.info("%d cores available", Runtime.getRuntime().availableProcessors());
+        System.exit(0);
+    }
+}
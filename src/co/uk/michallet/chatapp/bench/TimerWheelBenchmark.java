@@ -0,0 +1,89 @@
+package co.uk.michallet.chatapp.bench;
+
+import co.uk.michallet.chatapp.common.ConfigurationBuilder;
+import co.uk.michallet.chatapp.common.ConsoleWriter;
+import co.uk.michallet.chatapp.common.HelpMenuBuilder;
+import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.server.TimerEntry;
+import co.uk.michallet.chatapp.server.TimerWheel;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Schedules one timer per simulated session on a TimerWheel, each rescheduling itself as a session's heartbeat would,
+ * then reports how long the wheel's ticks take and how much heap the timers hold.
+ */
+public class TimerWheelBenchmark {
+    private static class Entry extends TimerEntry {
+        private final long _period;
+        private final AtomicLong _expired;
+
+        Entry(long period, AtomicLong expired) {
+            _period = period;
+            _expired = expired;
+        }
+
+        @Override
+        protected void expire(TimerWheel wheel) {
+            _expired.incrementAndGet();
+            wheel.schedule(this, _period);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        var display = new ConsoleWriter();
+        var logger = new DefaultLogger(TimerWheelBenchmark.class.getSimpleName(), Level.INFO, display);
+        var config = new ConfigurationBuilder()
+                .addConsole(args)
+                .build();
+
+        var helpMenu = new HelpMenuBuilder()
+                .setTitle("==TimerWheelBenchmark==")
+                .addItem("sessions", "Timers scheduled, one per simulated session. Defaults to 100000")
+                .addItem("tickms", "Milliseconds per tick. Defaults to 10")
+                .addItem("period", "Average ticks between a timer's expiries, each is spread +/- 50%. Defaults to 100")
+                .addItem("seconds", "How long to run for. Defaults to 10")
+                .build();
+
+        if (config.isSet("help")) {
+            display.write(helpMenu);
+            return;
+        }
+
+        var sessions = Integer.parseInt(config.getString("sessions", "100000"));
+        var tickMillis = Long.parseLong(config.getString("tickms", "10"));
+        var period = Long.parseLong(config.getString("period", "100"));
+        var seconds = Integer.parseInt(config.getString("seconds", "10"));
+
+        var runtime = Runtime.getRuntime();
+        System.gc();
+        var heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        var wheel = new TimerWheel(logger, tickMillis, 1024);
+        var expired = new AtomicLong();
+        var random = new Random(42);
+        var entries = new Entry[sessions];
+        wheel.start();
+        for (int i = 0; i < sessions; i++) {
+            entries[i] = new Entry(Math.max(1, period / 2 + random.nextInt((int)Math.max(1, period))), expired);
+            wheel.schedule(entries[i], 1 + random.nextInt((int)Math.max(1, period)));
+        }
+
+        Thread.sleep(1000);
+        System.gc();
+        var heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        wheel.getTickLatency().reset();
+        var expiredBefore = expired.get();
+        var start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        var elapsed = System.nanoTime() - start;
+        wheel.close();
+
+        logger.info("%d timers, %d scheduled, %d threads", sessions, wheel.getScheduledCount(), Thread.activeCount());
+        logger.info("%.0f expiries / s, %d ticks", (expired.get() - expiredBefore) / (elapsed / 1e9), wheel.getTickLatency().getCount());
+        logger.info("tick ns : %s", wheel.getTickLatency().summarize());
+        logger.info("heap    : %d bytes per timer", Math.max(0, heapAfter - heapBefore) / sessions);
+    }
+}
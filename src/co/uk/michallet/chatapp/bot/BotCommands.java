@@ -50,6 +50,14 @@ public class BotCommands {
         return new ExecutionResult(true);
     }
 
+    @Command("STATS")
+    public IResult stats(String[] args) {
+        var stats = String.join(System.lineSeparator(), _context.getBot().summarizeStats());
+        _context.getBot().sendEvent(ChatEventFactory.fromMessage("", stats));
+
+        return new ExecutionResult(true);
+    }
+
     @Command("HELP")
     public IResult help(String[] args) {
         var help = new HelpMenuBuilder()
@@ -57,6 +65,7 @@ public class BotCommands {
                 .setDescription("I'm a chat bot!")
                 .addItem("ECHO", "Echoes any provided text right back to you!")
                 .addItem("DADJOKE", "Tells you a really, really funny joke.")
+                .addItem("STATS", "Shows how much I've heard and how quickly I answer.")
                 .build();
 
         _context.getBot().sendEvent(ChatEventFactory.fromMessage("", help));
@@ -1,5 +1,6 @@
 package co.uk.michallet.chatapp.bot;
 
+import co.uk.michallet.chatapp.common.AppThreadPool;
 import co.uk.michallet.chatapp.common.ConfigurationBuilder;
 import co.uk.michallet.chatapp.common.ConsoleWriter;
 import co.uk.michallet.chatapp.common.HelpMenuBuilder;
@@ -10,6 +11,8 @@ import co.uk.michallet.chatapp.common.SDK.GenericClient;
 import co.uk.michallet.chatapp.common.commands.CommandNotFoundResult;
 import co.uk.michallet.chatapp.common.commands.CommandService;
 import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.common.net.FlushOptions;
 import co.uk.michallet.chatapp.common.net.ChatEvent;
 import co.uk.michallet.chatapp.common.net.SocketOpCode;
 import co.uk.michallet.chatapp.common.net.models.MessageSendEventArgs;
@@ -18,8 +21,11 @@ import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutionException;
@@ -43,8 +49,9 @@ public class ChatBot {
     public ChatBot(IConfiguration config, ILogger logger) {
         _logger = logger;
         _config = config;
-        _client = new GenericClient(_logger);
-        _commands = new CommandService<>();
+        _client = new GenericClient(_logger, EventCodecFactory.fromConfig(config, _logger), FlushOptions.fromConfig(config));
+        _client.setTracing(config.isSet("trace"));
+        _commands = new CommandService<>(_client.getMetrics());
         _commands.registerCommands(BotCommands.class);
     }
 
@@ -58,6 +65,18 @@ public class ChatBot {
         _client.sendEvent(event);
     }
 
+    /**
+     * @return Lines summing up the traffic and commands run so far, and how long traced messages took to arrive.
+     */
+    public List<String> summarizeStats() {
+        var lines = new ArrayList<String>(List.of(_client.summarizeTraffic(), _commands.summarize()));
+        var trace = _client.summarizeTrace();
+        if (trace != null) {
+            lines.add(trace);
+        }
+        return lines;
+    }
+
     public void connect() throws InterruptedException {
         var serverHost = _config.getString("cca", "127.0.0.1");
         var serverPort = _config.getString("ccp", "14001");
@@ -75,25 +94,36 @@ public class ChatBot {
         hookClient();
 
         for (;;) {
+            for (;;) {
+                try {
+                    _logger.info("connecting to %s:%s", host, port);
+                    _client.connect(host, port, _config.getString("name", "Unnamed Bot"));
+                    break;
+                }
+                catch (IOException e) {
+                    _logger.warn("connection failed, retrying in %s seconds", _backoff);
+                    Thread.sleep(_backoff * 1000);
+                    _backoff = (int) Math.pow(_backoff, BACKOFF_FACTOR);
+                }
+            }
+
             try {
-                _logger.info("connecting to %s:%s", host, port);
-                _client.connect(host, port);
+                _logger.info("connected!");
+                _listenTask = _client.runAsync();
+                _listenTask.get();
+            }
+            catch (ExecutionException e) {
+                _logger.error("the server connection was aborted");
+            }
+            catch (CancellationException e) {
                 break;
             }
-            catch (IOException e) {
-                _logger.warn("connection failed, retrying in %s seconds", _backoff);
-                Thread.sleep(_backoff * 1000);
-                _backoff = (int) Math.pow(_backoff, BACKOFF_FACTOR);
+            if (_client.isDisposed()) {
+                break;
             }
-        }
-
-        try {
-            _logger.info("connected!");
-            _listenTask = _client.runAsync();
-            _listenTask.get();
-        }
-        catch (ExecutionException e) {
-            _logger.error("the server connection was aborted");
+            _logger.warn(_client.canResume() ? "lost the connection, resuming" : "lost the connection, reconnecting");
+            // A server shedding load says how long to hold off for
+            Thread.sleep(_client.takeRetryAfterMillis());
         }
 
         _client.dispose();
@@ -116,10 +146,6 @@ public class ChatBot {
 
     private void acceptCommands(ChatEvent chatEvent) {
         switch (SocketOpCode.fromValue(chatEvent.getOpCode())) {
-            case HELLO:
-                _logger.debug("received server handshake");
-                _client.sendEvent(ChatEventFactory.fromUserJoin(_config.getString("name", "Unnamed Bot")));
-                break;
             case MESSAGE:
                 var eventArgs = (MessageSendEventArgs)chatEvent.getEventArgs();
                 var commandTokens = eventArgs.getContent().split(" ");
@@ -145,6 +171,11 @@ public class ChatBot {
                 catch (InterruptedException | ExecutionException ignored) {
                 }
                 break;
+            case GOODBYE:
+                // Told to leave, so don't reconnect
+                _logger.info("server closed the connection");
+                _client.dispose();
+                break;
             default:
                 break;
         }
@@ -157,12 +188,17 @@ public class ChatBot {
         var config = new ConfigurationBuilder()
                 .addConsole(args)
                 .build();
+        AppThreadPool.configure(config);
 
         var helpMenu = new HelpMenuBuilder()
                 .setTitle("==ChatBot==")
                 .addItem("cca", "Sets the host of the server the client will attempt a connection to")
                 .addItem("ccp", "Sets the port of the server the client will attempt a connection to")
                 .addItem("name", "Sets the name to use for this session")
+                .addItem("codec", "Wire format spoken with the server, binary or java. Must match the server. Defaults to binary")
+                .addItem("flushus", "Microseconds outgoing events may be held back to share a write, e.g. 500. Defaults to 0, flushing whenever the writer runs dry")
+                .addItem("trace", "Stamp the messages and DMs we send so whoever receives them can time each hop, shown by STATS")
+                .addItem("executor", "Runs the send and receive loops on a fixed pool or on virtual threads. Defaults to fixed")
                 .build();
 
         if (config.isSet("help")) {
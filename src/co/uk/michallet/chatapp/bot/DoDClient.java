@@ -6,6 +6,7 @@ import co.uk.michallet.chatapp.bot.dod.MapUtil;
 import co.uk.michallet.chatapp.bot.dod.PlayerBase;
 import co.uk.michallet.chatapp.bot.dod.Point2D;
 import co.uk.michallet.chatapp.bot.dod.TileFlags;
+import co.uk.michallet.chatapp.common.AppThreadPool;
 import co.uk.michallet.chatapp.common.ConfigurationBuilder;
 import co.uk.michallet.chatapp.common.ConsoleWriter;
 import co.uk.michallet.chatapp.common.HelpMenuBuilder;
@@ -14,6 +15,8 @@ import co.uk.michallet.chatapp.common.ILogger;
 import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
 import co.uk.michallet.chatapp.common.SDK.GenericClient;
 import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.common.net.FlushOptions;
 import co.uk.michallet.chatapp.common.net.ChatEvent;
 import co.uk.michallet.chatapp.common.net.SocketOpCode;
 import co.uk.michallet.chatapp.common.net.models.MessageSendEventArgs;
@@ -23,6 +26,7 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutionException;
@@ -48,7 +52,7 @@ public class DoDClient {
         _logger = logger;
         _game = game;
 
-        _client = new GenericClient(_logger);
+        _client = new GenericClient(_logger, EventCodecFactory.fromConfig(config, _logger), FlushOptions.fromConfig(config));
     }
 
     public void sendEvent(ChatEvent event) {
@@ -78,25 +82,36 @@ public class DoDClient {
         hookClient();
 
         for (;;) {
+            for (;;) {
+                try {
+                    _logger.info("connecting to %s:%s", host, port);
+                    _client.connect(host, port, _config.getString("name", "DoDClient"));
+                    break;
+                }
+                catch (IOException e) {
+                    _logger.warn("connection failed, retrying in %s seconds", _backoff);
+                    Thread.sleep(_backoff * 1000);
+                    _backoff = (int) Math.pow(_backoff, BACKOFF_FACTOR);
+                }
+            }
+
             try {
-                _logger.info("connecting to %s:%s", host, port);
-                _client.connect(host, port);
+                _logger.info("connected!");
+                _listenTask = _client.runAsync();
+                _listenTask.get();
+            }
+            catch (ExecutionException e) {
+                _logger.error("the server connection was aborted");
+            }
+            catch (CancellationException e) {
                 break;
             }
-            catch (IOException e) {
-                _logger.warn("connection failed, retrying in %s seconds", _backoff);
-                Thread.sleep(_backoff * 1000);
-                _backoff = (int) Math.pow(_backoff, BACKOFF_FACTOR);
+            if (_client.isDisposed()) {
+                break;
             }
-        }
-
-        try {
-            _logger.info("connected!");
-            _listenTask = _client.runAsync();
-            _listenTask.get();
-        }
-        catch (ExecutionException e) {
-            _logger.error("the server connection was aborted");
+            _logger.warn(_client.canResume() ? "lost the connection, resuming" : "lost the connection, reconnecting");
+            // A server shedding load says how long to hold off for
+            Thread.sleep(_client.takeRetryAfterMillis());
         }
 
         _client.dispose();
@@ -117,10 +132,6 @@ public class DoDClient {
 
     private void acceptCommands(ChatEvent event) {
         switch (SocketOpCode.fromValue(event.getOpCode())) {
-            case HELLO:
-                _logger.debug("Received server handshake");
-                _client.sendEvent(ChatEventFactory.fromUserJoin(_config.getString("name", "DoDClient")));
-                return;
             case MESSAGE:
                 var eventArgs = (MessageSendEventArgs)event.getEventArgs();
                 _logger.debug("%s: %s", eventArgs.getAuthor(), eventArgs.getContent());
@@ -159,6 +170,11 @@ public class DoDClient {
                     _client.sendEvent(ChatEventFactory.fromDM("", eventArgs.getAuthor(), String.format("You've joined the dungeon!", eventArgs.getAuthor())));
                 }
                 return;
+            case GOODBYE:
+                // Told to leave, so don't reconnect
+                _logger.info("Server closed the connection");
+                _client.dispose();
+                return;
             default:
                 return;
         }
@@ -171,12 +187,16 @@ public class DoDClient {
         var config = new ConfigurationBuilder()
                 .addConsole(args)
                 .build();
+        AppThreadPool.configure(config);
 
         var helpMenu = new HelpMenuBuilder()
                 .setTitle("==DoDClient==")
                 .addItem("cca", "Sets the host of the server the client will attempt a connection to")
                 .addItem("ccp", "Sets the port of the server the client will attempt a connection to")
                 .addItem("name", "Sets the name to use for this session")
+                .addItem("codec", "Wire format spoken with the server, binary or java. Must match the server. Defaults to binary")
+                .addItem("flushus", "Microseconds outgoing events may be held back to share a write, e.g. 500. Defaults to 0, flushing whenever the writer runs dry")
+                .addItem("executor", "Runs the send and receive loops on a fixed pool or on virtual threads. Defaults to fixed")
                 .build();
 
         if (config.isSet("help")) {
@@ -1,5 +1,6 @@
 package co.uk.michallet.chatapp.client;
 
+import co.uk.michallet.chatapp.common.AppThreadPool;
 import co.uk.michallet.chatapp.common.ConfigurationBuilder;
 import co.uk.michallet.chatapp.common.ConsoleWriter;
 import co.uk.michallet.chatapp.common.HelpMenuBuilder;
@@ -11,10 +12,17 @@ import co.uk.michallet.chatapp.common.SDK.GenericClient;
 import co.uk.michallet.chatapp.common.commands.CommandNotFoundResult;
 import co.uk.michallet.chatapp.common.commands.CommandService;
 import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.common.net.FlushOptions;
 import co.uk.michallet.chatapp.common.net.ChatEvent;
 import co.uk.michallet.chatapp.common.net.SocketOpCode;
 import co.uk.michallet.chatapp.common.net.models.DmEventArgs;
 import co.uk.michallet.chatapp.common.net.models.MessageSendEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RejectEventArgs;
+import co.uk.michallet.chatapp.common.net.models.ResumeEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RoomEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RosterEventArgs;
+import co.uk.michallet.chatapp.common.net.models.SearchEventArgs;
 import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
 import co.uk.michallet.chatapp.common.net.models.UserLeftEventArgs;
 
@@ -22,8 +30,11 @@ import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
@@ -50,8 +61,9 @@ public class ChatClient {
         _config = config;
         _logger = logger;
         _displayOutput = displayOutput;
-        _client = new GenericClient(logger);
-        _commands = new CommandService<>();
+        _client = new GenericClient(logger, EventCodecFactory.fromConfig(config, logger), FlushOptions.fromConfig(config));
+        _client.setTracing(config.isSet("trace"));
+        _commands = new CommandService<>(_client.getMetrics());
         _commands.registerCommands(ClientCommands.class);
     }
 
@@ -62,10 +74,29 @@ public class ChatClient {
         }
     }
 
+    /**
+     * @return Who's online, as the server last told us.
+     */
+    public List<String> getOnlineNames() {
+        return _client.getRoster().getNames();
+    }
+
     public void sendEvent(ChatEvent event) {
         _client.sendEvent(event);
     }
 
+    /**
+     * @return Lines summing up the traffic and commands run so far, and how long traced messages took to arrive.
+     */
+    public List<String> summarizeStats() {
+        var lines = new ArrayList<String>(List.of(_client.summarizeTraffic(), _commands.summarize()));
+        var trace = _client.summarizeTrace();
+        if (trace != null) {
+            lines.add(trace);
+        }
+        return lines;
+    }
+
     public void connect() throws InterruptedException {
         var serverHost = _config.getString("cca", "127.0.0.1");
         var serverPort = _config.getString("ccp", "14001");
@@ -83,31 +114,43 @@ public class ChatClient {
         // Set the supplier and consumer methods of our GenericClient
         hookClient();
 
-        // Loop
         for (;;) {
-            // Attempt a connection
+            // Loop
+            for (;;) {
+                // Attempt a connection
+                try {
+                    _logger.info("connecting to %s:%s", host, port);
+                    _client.connect(host, port, _config.getString("name", "Unnamed User"));
+                    break;
+                }
+                catch (IOException e) {
+                    _logger.warn("connection failed, retrying in %s seconds", _backoff);
+                    Thread.sleep(_backoff * 1000);
+                    _backoff = (int) Math.pow(_backoff, BACKOFF_FACTOR);
+                }
+            }
+
             try {
-                _logger.info("connecting to %s:%s", host, port);
-                _client.connect(host, port);
+                _logger.info("connected!");
+                // Start up the client listener task
+                _listenTask = _client.runAsync();
+                // Block on it so the calling thread does not exit and kill the application
+                _listenTask.get();
+            }
+            catch (ExecutionException e) {
+                _logger.error("the server connection was aborted");
+            }
+            catch (CancellationException e) {
                 break;
             }
-            catch (IOException e) {
-                _logger.warn("connection failed, retrying in %s seconds", _backoff);
-                Thread.sleep(_backoff * 1000);
-                _backoff = (int) Math.pow(_backoff, BACKOFF_FACTOR);
+            if (_client.isDisposed()) {
+                break;
             }
-        }
-
-        try {
-            _displayOutput.clearAll();
-            _logger.info("connected!");
-            // Start up the client listener task
-            _listenTask = _client.runAsync();
-            // Block on it so the calling thread does not exit and kill the application
-            _listenTask.get();
-        }
-        catch (ExecutionException e) {
-            _logger.error("the server connection was aborted");
+            // The connection dropped without either side saying GOODBYE, so pick the session back up
+            _logger.warn(_client.canResume() ? "lost the connection, resuming" : "lost the connection, reconnecting");
+            // A server shedding load says how long to hold off for
+            Thread.sleep(_client.takeRetryAfterMillis());
+            _backoff = 2;
         }
         // Clean up
         _client.dispose();
@@ -142,11 +185,12 @@ public class ChatClient {
      */
     private void acceptEvent(ChatEvent event) {
         switch (SocketOpCode.fromValue(event.getOpCode())) {
-            // Opening handshake
-            case HELLO:
-                // Respond with a USER_JOIN to log in
-                _logger.debug("received server handshake");
-                _client.sendEvent(ChatEventFactory.fromUserJoin(_config.getString("name", "Unnamed User")));
+            // Issued a token for resuming the session, after resuming one if its sequence is set
+            case RESUME:
+                var resumeArgs = (ResumeEventArgs)event.getEventArgs();
+                if (resumeArgs.getSequence() > 0) {
+                    _logger.info("resumed the session as %s", resumeArgs.getName());
+                }
                 break;
             // Received a message
             case MESSAGE:
@@ -168,6 +212,34 @@ public class ChatClient {
                 var dmArgs = (DmEventArgs)event.getEventArgs();
                 _displayOutput.write(String.format("[%s -> %s] %s", dmArgs.getSenderName(), dmArgs.getTargetName(), dmArgs.getContent()));
                 break;
+            // Someone, possibly us, moved into or out of our room
+            case JOIN:
+                var roomJoinArgs = (RoomEventArgs)event.getEventArgs();
+                _logger.info("%s joined #%s", roomJoinArgs.getName(), roomJoinArgs.getRoom());
+                break;
+            case PART:
+                var roomPartArgs = (RoomEventArgs)event.getEventArgs();
+                _logger.info("%s left #%s", roomPartArgs.getName(), roomPartArgs.getRoom());
+                break;
+            // A page of results for a SEARCH we sent
+            case SEARCH:
+                var searchArgs = (SearchEventArgs)event.getEventArgs();
+                for (var hit : searchArgs.getHits()) {
+                    _displayOutput.write(String.format("#%s <%s> %s (%ds ago)", hit.getRoom(), hit.getAuthor(), hit.getContent(), hit.getAgeSeconds()));
+                }
+                _logger.info("\"%s\": page %d, %d matches", searchArgs.getQuery(), searchArgs.getPage(), searchArgs.getTotal());
+                break;
+            // Who's online changed, the client keeps its own copy
+            case ROSTER:
+                var rosterArgs = (RosterEventArgs)event.getEventArgs();
+                _logger.debug("roster version %d, %d online", rosterArgs.getVersion(), _client.getRoster().getNames().size());
+                break;
+            // The server is shedding load and dropped something we sent, or turned the connection away
+            case REJECT:
+                var rejectArgs = (RejectEventArgs)event.getEventArgs();
+                _logger.warn("server rejected %s: %s, retry in %d ms", SocketOpCode.fromValue(rejectArgs.getRejectedOpCode()),
+                        rejectArgs.getReason(), rejectArgs.getRetryAfterMillis());
+                break;
             case GOODBYE:
                 _logger.error("Server closed the connection");
                 _client.dispose();
@@ -222,12 +294,17 @@ public class ChatClient {
         var config = new ConfigurationBuilder()
                 .addConsole(args)
                 .build();
+        AppThreadPool.configure(config);
 
         var helpMenu = new HelpMenuBuilder()
                 .setTitle("==ChatClient==")
                 .addItem("cca", "Sets the host of the server the client will attempt a connection to")
                 .addItem("ccp", "Sets the port of the server the client will attempt a connection to")
                 .addItem("name", "Sets the name to use for this session")
+                .addItem("codec", "Wire format spoken with the server, binary or java. Must match the server. Defaults to binary")
+                .addItem("flushus", "Microseconds outgoing events may be held back to share a write, e.g. 500. Defaults to 0, flushing whenever the writer runs dry")
+                .addItem("trace", "Stamp the messages and DMs we send so whoever receives them can time each hop, shown by STATS")
+                .addItem("executor", "Runs the send and receive loops on a fixed pool or on virtual threads. Defaults to fixed")
                 .build();
 
         if (config.isSet("help")) {
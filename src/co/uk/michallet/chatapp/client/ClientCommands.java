@@ -31,6 +31,75 @@ public class ClientCommands {
         return new ExecutionResult(true);
     }
 
+    // Not JOIN, a bare "JOIN" message is how players enter the DoD game
+    @Command("ROOM")
+    public IResult room(String[] args) {
+        if (args.length != 1) {
+            return new ExecutionResult(false, "only one parameter accepted");
+        }
+        var joinEvent = ChatEventFactory.fromRoomJoin("", args[0]);
+        _context.getClient().sendEvent(joinEvent);
+        return new ExecutionResult(true);
+    }
+
+    @Command("PART")
+    public IResult part(String[] args) {
+        _context.getClient().sendEvent(ChatEventFactory.fromRoomPart("", null));
+        return new ExecutionResult(true);
+    }
+
+    @Command("HISTORY")
+    public IResult history(String[] args) {
+        if (args.length != 1) {
+            return new ExecutionResult(false, "only one parameter accepted");
+        }
+        int count;
+        try {
+            count = Integer.parseInt(args[0]);
+        }
+        catch (NumberFormatException formatEx) {
+            return new ExecutionResult(false, "the number of messages must be a number");
+        }
+        _context.getClient().sendEvent(ChatEventFactory.fromHistoryRequest(null, count));
+        return new ExecutionResult(true);
+    }
+
+    @Command("SEARCH")
+    public IResult search(String[] args) {
+        var page = 1;
+        var first = 0;
+        if (args.length > 1 && args[0].equals("-p")) {
+            try {
+                page = Integer.parseInt(args[1]);
+            }
+            catch (NumberFormatException formatEx) {
+                return new ExecutionResult(false, "the page must be a number");
+            }
+            first = 2;
+        }
+        if (first >= args.length) {
+            return new ExecutionResult(false, "nothing to search for");
+        }
+        var query = String.join(" ", Arrays.copyOfRange(args, first, args.length));
+        _context.getClient().sendEvent(ChatEventFactory.fromSearchRequest(query, page));
+        return new ExecutionResult(true);
+    }
+
+    @Command("WHO")
+    public IResult who(String[] args) {
+        var names = _context.getClient().getOnlineNames();
+        _context.getLogger().info("%d users online: %s", names.size(), String.join(", ", names));
+        return new ExecutionResult(true);
+    }
+
+    @Command("STATS")
+    public IResult stats(String[] args) {
+        for (var line : _context.getClient().summarizeStats()) {
+            _context.getLogger().info("%s", line);
+        }
+        return new ExecutionResult(true);
+    }
+
     @Command("DM")
     public IResult dm(String[] args) {
         if (args.length < 2) {
@@ -2,12 +2,18 @@ package co.uk.michallet.chatapp.common;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * Accessible threadpool using the Singleton pattern
  */
 public class AppThreadPool {
     private static ExecutorService _pool;
+    private static ExecutorService _sessionPool;
+    private static ExecutorService _writerPool;
+    private static ScheduledExecutorService _scheduler;
+    private static String _mode = "fixed";
+    private static boolean _isVirtual;
 
     public synchronized static ExecutorService getInstance() {
         if (_pool == null) {
@@ -18,6 +24,72 @@ public class AppThreadPool {
         return _pool;
     }
 
+    /**
+     * Executor for work that lives as long as a connection does, e.g. handshakes, session loops and the
+     * read/write loops of a client. In fixed mode this is the shared pool above.
+     */
+    public synchronized static ExecutorService getSessionInstance() {
+        if (_sessionPool == null) {
+            _sessionPool = _mode.equals("virtual") ? createVirtualExecutor() : getInstance();
+        }
+        return _sessionPool;
+    }
+
+    /**
+     * Executor for draining session outbound queues. A writer only holds a thread while it has frames to write, but
+     * may block on a slow client, so in fixed mode these get their own pool rather than competing with session loops.
+     */
+    public synchronized static ExecutorService getWriterInstance() {
+        if (_writerPool == null) {
+            _writerPool = _mode.equals("virtual") ? getSessionInstance() : Executors.newCachedThreadPool();
+        }
+        return _writerPool;
+    }
+
+    /**
+     * Single daemon thread for short, non-blocking timed work such as flush deadlines.
+     */
+    public synchronized static ScheduledExecutorService getSchedulerInstance() {
+        if (_scheduler == null) {
+            _scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return _scheduler;
+    }
+
+    /**
+     * Selects the session executor mode from the "executor" configuration value, either fixed or virtual.
+     * Must be called before the session executor is first used.
+     */
+    public synchronized static void configure(IConfiguration config) {
+        _mode = config.getString("executor", "fixed");
+    }
+
+    /**
+     * @return Whether sessions are actually being run on virtual threads.
+     */
+    public synchronized static boolean isVirtual() {
+        getSessionInstance();
+        return _isVirtual;
+    }
+
+    private static ExecutorService createVirtualExecutor() {
+        // Looked up reflectively so the project still builds for, and runs on, Java 11.
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            var executor = (ExecutorService)factory.invoke(null);
+            _isVirtual = true;
+            return executor;
+        }
+        catch (ReflectiveOperationException unsupportedEx) {
+            // Without virtual threads, a thread per session is the closest we can get without the 32 thread cap.
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     private AppThreadPool() {
     }
 }
@@ -3,11 +3,22 @@ package co.uk.michallet.chatapp.common.SDK;
 import co.uk.michallet.chatapp.common.net.ChatEvent;
 import co.uk.michallet.chatapp.common.net.SocketOpCode;
 import co.uk.michallet.chatapp.common.net.models.DmEventArgs;
+import co.uk.michallet.chatapp.common.net.models.HelloEventArgs;
+import co.uk.michallet.chatapp.common.net.models.HistoryEventArgs;
 import co.uk.michallet.chatapp.common.net.models.MessageSendEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RejectEventArgs;
+import co.uk.michallet.chatapp.common.net.models.ResumeEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RoomEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RosterEventArgs;
+import co.uk.michallet.chatapp.common.net.models.SearchEventArgs;
+import co.uk.michallet.chatapp.common.net.models.SearchHit;
 import co.uk.michallet.chatapp.common.net.models.UserChangeNameArgs;
 import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
 import co.uk.michallet.chatapp.common.net.models.UserLeftEventArgs;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * Helper class for quickly creating ChatEvents
  */
@@ -50,9 +61,17 @@ public class ChatEventFactory {
     }
 
     public static ChatEvent fromUserJoin(String name) {
+        return fromUserJoin(name, 0);
+    }
+
+    /**
+     * @param compression Version of the compression dictionary the client can inflate frames with, 0 if it can't.
+     */
+    public static ChatEvent fromUserJoin(String name, int compression) {
         var event = new ChatEvent();
         var eventArgs = new UserJoinEventArgs();
         eventArgs.setName(name);
+        eventArgs.setCompression(compression);
         event.setOpCode(SocketOpCode.USER_JOIN.getValue());
         event.setEventArgs(eventArgs);
 
@@ -69,6 +88,124 @@ public class ChatEventFactory {
         return event;
     }
 
+    public static ChatEvent fromRoomJoin(String name, String room) {
+        return fromRoomEvent(SocketOpCode.JOIN, name, room);
+    }
+
+    public static ChatEvent fromRoomPart(String name, String room) {
+        return fromRoomEvent(SocketOpCode.PART, name, room);
+    }
+
+    private static ChatEvent fromRoomEvent(SocketOpCode opCode, String name, String room) {
+        var event = new ChatEvent();
+        var eventArgs = new RoomEventArgs();
+        eventArgs.setName(name);
+        eventArgs.setRoom(room);
+        event.setOpCode(opCode.getValue());
+        event.setEventArgs(eventArgs);
+
+        return event;
+    }
+
+    public static ChatEvent fromHistoryRequest(String room, int count) {
+        var event = new ChatEvent();
+        var eventArgs = new HistoryEventArgs();
+        eventArgs.setRoom(room);
+        eventArgs.setCount(count);
+        event.setOpCode(SocketOpCode.HISTORY.getValue());
+        event.setEventArgs(eventArgs);
+
+        return event;
+    }
+
+    public static ChatEvent fromSearchRequest(String query, int page) {
+        var event = new ChatEvent();
+        var eventArgs = new SearchEventArgs();
+        eventArgs.setQuery(query);
+        eventArgs.setPage(page);
+        event.setOpCode(SocketOpCode.SEARCH.getValue());
+        event.setEventArgs(eventArgs);
+
+        return event;
+    }
+
+    public static ChatEvent fromSearchResults(String query, int page, int total, List<SearchHit> hits) {
+        var event = new ChatEvent();
+        var eventArgs = new SearchEventArgs();
+        eventArgs.setQuery(query);
+        eventArgs.setPage(page);
+        eventArgs.setTotal(total);
+        eventArgs.setHits(hits);
+        event.setOpCode(SocketOpCode.SEARCH.getValue());
+        event.setEventArgs(eventArgs);
+
+        return event;
+    }
+
+    public static ChatEvent fromResume(String name, String token, long sequence) {
+        return fromResume(name, token, sequence, 0);
+    }
+
+    /**
+     * @param compression Version of the compression dictionary the client can inflate frames with, 0 if it can't.
+     */
+    public static ChatEvent fromResume(String name, String token, long sequence, int compression) {
+        var event = new ChatEvent();
+        var eventArgs = new ResumeEventArgs();
+        eventArgs.setName(name);
+        eventArgs.setToken(token);
+        eventArgs.setSequence(sequence);
+        eventArgs.setCompression(compression);
+        event.setOpCode(SocketOpCode.RESUME.getValue());
+        event.setEventArgs(eventArgs);
+
+        return event;
+    }
+
+    public static ChatEvent fromReject(int rejectedOpCode, String reason, int retryAfterMillis) {
+        var event = new ChatEvent();
+        var eventArgs = new RejectEventArgs();
+        eventArgs.setRejectedOpCode(rejectedOpCode);
+        eventArgs.setReason(reason);
+        eventArgs.setRetryAfterMillis(retryAfterMillis);
+        event.setOpCode(SocketOpCode.REJECT.getValue());
+        event.setEventArgs(eventArgs);
+
+        return event;
+    }
+
+    public static ChatEvent fromRosterRequest() {
+        var event = new ChatEvent();
+        event.setOpCode(SocketOpCode.ROSTER.getValue());
+        event.setEventArgs(new RosterEventArgs());
+
+        return event;
+    }
+
+    public static ChatEvent fromRosterSnapshot(long version, Collection<String> names) {
+        var event = new ChatEvent();
+        var eventArgs = new RosterEventArgs();
+        eventArgs.setVersion(version);
+        eventArgs.setSnapshot(true);
+        eventArgs.getJoined().addAll(names);
+        event.setOpCode(SocketOpCode.ROSTER.getValue());
+        event.setEventArgs(eventArgs);
+
+        return event;
+    }
+
+    public static ChatEvent fromRosterDelta(long version, Collection<String> joined, Collection<String> left) {
+        var event = new ChatEvent();
+        var eventArgs = new RosterEventArgs();
+        eventArgs.setVersion(version);
+        eventArgs.getJoined().addAll(joined);
+        eventArgs.getLeft().addAll(left);
+        event.setOpCode(SocketOpCode.ROSTER.getValue());
+        event.setEventArgs(eventArgs);
+
+        return event;
+    }
+
     public static ChatEvent fromHello() {
         var event = new ChatEvent();
         event.setOpCode(SocketOpCode.HELLO.getValue());
@@ -76,10 +213,38 @@ public class ChatEventFactory {
         return event;
     }
 
+    /**
+     * @param compression Version of the compression dictionary the server compresses frames with.
+     * @param compressionThreshold Smallest frame body worth compressing.
+     */
+    public static ChatEvent fromHello(int compression, int compressionThreshold) {
+        var event = fromHello();
+        var eventArgs = new HelloEventArgs();
+        eventArgs.setCompression(compression);
+        eventArgs.setCompressionThreshold(compressionThreshold);
+        event.setEventArgs(eventArgs);
+
+        return event;
+    }
+
     public static ChatEvent fromGoodbye() {
         var event = new ChatEvent();
         event.setOpCode(SocketOpCode.GOODBYE.getValue());
 
         return event;
     }
+
+    public static ChatEvent fromPing() {
+        var event = new ChatEvent();
+        event.setOpCode(SocketOpCode.PING.getValue());
+
+        return event;
+    }
+
+    public static ChatEvent fromPong() {
+        var event = new ChatEvent();
+        event.setOpCode(SocketOpCode.PONG.getValue());
+
+        return event;
+    }
 }
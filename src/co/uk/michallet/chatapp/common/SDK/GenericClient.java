@@ -2,29 +2,206 @@ package co.uk.michallet.chatapp.common.SDK;
 
 import co.uk.michallet.chatapp.common.AppThreadPool;
 import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.metrics.Counter;
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+import co.uk.michallet.chatapp.common.metrics.MetricRegistry;
+import co.uk.michallet.chatapp.common.net.BinaryEventCodec;
 import co.uk.michallet.chatapp.common.net.ChatEvent;
+import co.uk.michallet.chatapp.common.net.CoalescingWriter;
+import co.uk.michallet.chatapp.common.net.EventTrace;
+import co.uk.michallet.chatapp.common.net.FlushOptions;
+import co.uk.michallet.chatapp.common.net.FrameCompressor;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.MeteredInputStream;
+import co.uk.michallet.chatapp.common.net.SocketOpCode;
+import co.uk.michallet.chatapp.common.net.WriteStats;
+import co.uk.michallet.chatapp.common.net.models.HelloEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RejectEventArgs;
+import co.uk.michallet.chatapp.common.net.models.ResumeEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RosterEventArgs;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 /**
  * Generic client implementation for use in a variety of scenarios.
+ * Remembers the resume token the server issues and the sequence number of the last event it received, so that after
+ * losing the connection it can connect() again and log in with createLogin() to resume where it left off.
+ * Speaking the binary codec, it asks the server to compress what it sends us when logging in, and compresses what it
+ * sends if the server's HELLO offers to take compressed frames.
  */
 public class GenericClient {
     private Consumer<ChatEvent> _eventHandler;
     private Supplier<ChatEvent> _eventProducer;
     private Socket _socket;
+    private InputStream _input;
+    private CoalescingWriter _writer;
     private final ILogger _logger;
+    private final IEventCodec _codec;
+    private final FlushOptions _flushOptions;
+    private final WriteStats _writeStats;
+    // Runs for the life of the client, across reconnects
+    private CompletableFuture<Void> _producingFuture;
+    private volatile String _resumeToken;
+    private volatile long _lastSequence;
+    // Set once the client has been disposed of on purpose, rather than having lost its connection
+    private volatile boolean _disposed;
+    // Set when the server turned the connection away, for how long it asked us to wait before trying again
+    private volatile int _retryAfterMillis;
+    // Set if we logged in as we connected, the server's HELLO then needs no answer
+    private volatile boolean _loginPipelined;
+    // Who's online, kept across reconnects, a fresh login is sent a fresh snapshot
+    private final RosterView _roster;
+    // Compresses what we send, null if the codec can't carry compressed frames
+    private final FrameCompressor _compressor;
+    // Smallest frame body the server wants compressed, 0 until its HELLO offers it
+    private volatile int _compressionThreshold;
+    private boolean _hooked;
+    private final MetricRegistry _metrics;
+    private final Counter _eventsIn;
+    private final Counter _messagesIn;
+    private final Counter _bytesIn;
+    private final Counter _eventsOut;
+    private final Counter _bytesOut;
+    private final Histogram _dispatchLatency;
+    // Set if the messages and DMs we send carry a trace
+    private volatile boolean _tracing;
+    private final Histogram _traceUplink;
+    private final Histogram _traceServer;
+    private final Histogram _traceDownlink;
+    private final Histogram _traceTotal;
 
     public GenericClient(ILogger logger) {
+        this(logger, BinaryEventCodec.getInstance());
+    }
+
+    /**
+     * @param codec Wire format to speak, this must match the server's.
+     */
+    public GenericClient(ILogger logger, IEventCodec codec) {
+        this(logger, codec, FlushOptions.createDefault());
+    }
+
+    /**
+     * @param codec Wire format to speak, this must match the server's.
+     * @param flushOptions How long outgoing events may be held back so that a burst of them shares a write.
+     */
+    public GenericClient(ILogger logger, IEventCodec codec, FlushOptions flushOptions) {
         _logger = logger;
+        _codec = codec;
+        _flushOptions = flushOptions;
+        _writeStats = new WriteStats();
+        _roster = new RosterView();
+        _compressor = codec instanceof BinaryEventCodec ? new FrameCompressor() : null;
+        _metrics = new MetricRegistry();
+        _eventsIn = _metrics.counter("client_events_in_total", "Events received from the server");
+        _messagesIn = _metrics.counter("client_messages_in_total", "Room messages and DMs received from the server");
+        _bytesIn = _metrics.counter("client_bytes_in_total", "Bytes read from the server");
+        _eventsOut = _metrics.counter("client_events_out_total", "Events sent to the server");
+        _bytesOut = _metrics.counter("client_bytes_out_total", "Bytes sent to the server, after compression");
+        _dispatchLatency = _metrics.histogram("client_dispatch_nanos", "Time the subscriber took to handle each event");
+        _traceUplink = _metrics.histogram("client_trace_uplink_nanos", "Traced messages from being sent by their author to being decoded by the server");
+        _traceServer = _metrics.histogram("client_trace_server_nanos", "Traced messages from being decoded by the server to being handed to its bus");
+        _traceDownlink = _metrics.histogram("client_trace_downlink_nanos", "Traced messages from being handed to the server's bus to being received here");
+        _traceTotal = _metrics.histogram("client_trace_total_nanos", "Traced messages from being sent by their author to being received here");
+    }
+
+    public WriteStats getWriteStats() {
+        return _writeStats;
+    }
+
+    /**
+     * @return The client's traffic, and anything else the app registers alongside it, e.g. its commands.
+     */
+    public MetricRegistry getMetrics() {
+        return _metrics;
+    }
+
+    public Counter getEventsIn() {
+        return _eventsIn;
+    }
+
+    public Counter getMessagesIn() {
+        return _messagesIn;
+    }
+
+    public Counter getBytesIn() {
+        return _bytesIn;
+    }
+
+    public Counter getEventsOut() {
+        return _eventsOut;
+    }
+
+    public Counter getBytesOut() {
+        return _bytesOut;
+    }
+
+    /**
+     * @return How long the subscriber took to handle each event, in nanoseconds.
+     */
+    public Histogram getDispatchLatency() {
+        return _dispatchLatency;
+    }
+
+    public boolean isTracing() {
+        return _tracing;
+    }
+
+    /**
+     * @param value Whether messages and DMs sent from now on carry a trace, timing each hop to whoever receives them.
+     */
+    public void setTracing(boolean value) {
+        _tracing = value;
+    }
+
+    /**
+     * @return Traced messages received from their author to the server's bus, and on to us, end to end.
+     */
+    public Histogram getTraceTotal() {
+        return _traceTotal;
+    }
+
+    /**
+     * One line summary of how long traced messages took over each hop to reach us, e.g. for a STATS command.
+     * @return The summary, or null if no traced messages have been received.
+     */
+    public String summarizeTrace() {
+        if (_traceTotal.getCount() == 0) {
+            return null;
+        }
+        return String.format("%d traced, us p50/p99 uplink %.1f/%.1f, server %.1f/%.1f, downlink %.1f/%.1f, end to end %.1f/%.1f",
+                _traceTotal.getCount(), _traceUplink.getValueAtPercentile(50) / 1000.0, _traceUplink.getValueAtPercentile(99) / 1000.0,
+                _traceServer.getValueAtPercentile(50) / 1000.0, _traceServer.getValueAtPercentile(99) / 1000.0,
+                _traceDownlink.getValueAtPercentile(50) / 1000.0, _traceDownlink.getValueAtPercentile(99) / 1000.0,
+                _traceTotal.getValueAtPercentile(50) / 1000.0, _traceTotal.getValueAtPercentile(99) / 1000.0);
+    }
+
+    /**
+     * One line summary of the traffic so far, with the rate of messages since the last summary, e.g. for a STATS
+     * command.
+     */
+    public String summarizeTraffic() {
+        return String.format("%d messages in (%.1f/s), %d events in, %d out, %.1f KB in, %.1f KB out, handled in us p50=%.1f p99=%.1f p999=%.1f",
+                _messagesIn.get(), _messagesIn.sampleRate(), _eventsIn.get(), _eventsOut.get(), _bytesIn.get() / 1024.0,
+                _bytesOut.get() / 1024.0, _dispatchLatency.getValueAtPercentile(50) / 1000.0,
+                _dispatchLatency.getValueAtPercentile(99) / 1000.0, _dispatchLatency.getValueAtPercentile(99.9) / 1000.0);
+    }
+
+    /**
+     * @return Who's online, as of the last ROSTER received.
+     */
+    public RosterView getRoster() {
+        return _roster;
     }
 
     public void setEventSubscriber(Consumer<ChatEvent> eventHandler) {
@@ -36,54 +213,96 @@ public class GenericClient {
     }
 
     /**
-     * Attempts to connect to a server on the supplied host and port.
+     * Attempts to connect to a server on the supplied host and port. May be called again once the connection is lost.
      */
-    public void connect(InetAddress addr, int port) throws IOException {
+    public synchronized void connect(InetAddress addr, int port) throws IOException {
+        _loginPipelined = false;
+        _compressionThreshold = 0;
         _socket = new Socket(addr, port);
-        Runtime.getRuntime().addShutdownHook(new Thread(AppThreadPool.getInstance()::shutdown));
+        _input = new BufferedInputStream(new MeteredInputStream(_socket.getInputStream(), _bytesIn));
+        _writer = new CoalescingWriter(_socket.getOutputStream(), _flushOptions, _writeStats);
+        if (!_hooked) {
+            _hooked = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(AppThreadPool.getInstance()::shutdown));
+            // Set a hook here to account for sudden external shutdowns.
+            Runtime.getRuntime().addShutdownHook(new Thread(this::dispose));
+        }
     }
 
     /**
-     * Asynchronously run the producing and listening loops of the client on common ForkJoinPool threads.
-     * @return A future that completes when the socket is closed or one of the loops encounters an exception.
+     * Connects, and logs in with createLogin() straight away rather than waiting a round trip for the server's HELLO.
+     * The HELLO still arrives, and isn't passed on to the subscriber.
      */
-    public CompletableFuture<Void> runAsync() {
-        // Set a hook here to account for sudden external shutdowns.
-        Runtime.getRuntime().addShutdownHook(new Thread(this::dispose));
-        // Spin up the producing (sending) loop
-        var producingFuture = CompletableFuture.runAsync(() -> {
-            while(_socket.isConnected() && !Thread.interrupted()) {
-                // Async read from the provided Producer<ChatEvent> and pass it to sendEvent() in a continuation.
-                var iterationFuture = CompletableFuture.supplyAsync(_eventProducer)
-                    .thenAcceptAsync(this::sendEvent);
+    public synchronized void connect(InetAddress addr, int port, String name) throws IOException {
+        connect(addr, port);
+        _loginPipelined = true;
+        sendEvent(createLogin(name));
+    }
 
-                try {
-                    // Block on it so we aren't trying to write in parallel
-                    iterationFuture.get();
-                }
-                catch (InterruptedException interruptEx) {
-                    // Don't lose the IRQ for when we loop around again
-                    Thread.currentThread().interrupt();
-                }
-                catch (ExecutionException ignored) {
-                }
-            }
-        }, AppThreadPool.getInstance());
+    /**
+     * @return The event to answer the server's HELLO with, a RESUME of the previous session if the server issued a
+     * token for one, otherwise a USER_JOIN.
+     */
+    public ChatEvent createLogin(String name) {
+        var compression = _compressor == null ? 0 : FrameCompressor.DICTIONARY_VERSION;
+        var token = _resumeToken;
+        if (token == null) {
+            return ChatEventFactory.fromUserJoin(name, compression);
+        }
+        return ChatEventFactory.fromResume(name, token, _lastSequence, compression);
+    }
+
+    /**
+     * @return Whether the server has issued a token a reconnect could resume the session with.
+     */
+    public boolean canResume() {
+        return _resumeToken != null;
+    }
+
+    /**
+     * @return Whether dispose() has been called, as opposed to the connection having been lost.
+     */
+    public boolean isDisposed() {
+        return _disposed;
+    }
+
+    /**
+     * @return How long the server asked us to wait before reconnecting, if it turned the last connection away, or 0.
+     * Cleared once read.
+     */
+    public int takeRetryAfterMillis() {
+        var millis = _retryAfterMillis;
+        _retryAfterMillis = 0;
+        return millis;
+    }
+
+    /**
+     * Asynchronously run the producing and listening loops of the client on session executor threads. After a
+     * reconnect only the listening loop is started again, the producing loop runs until the client is disposed.
+     * @return A future that completes when the connection is lost or the client is disposed.
+     */
+    public synchronized CompletableFuture<Void> runAsync() {
+        // Both loops and their blocking iterations run here, so that in virtual mode none of them pin a platform thread.
+        var executor = AppThreadPool.getSessionInstance();
+        if (_producingFuture == null) {
+            _producingFuture = runProducer(executor);
+        }
+        var socket = _socket;
+        var input = _input;
         // Spin up the dispatching (receiving) loop
-        var dispatchingFuture = CompletableFuture.runAsync(() -> {
-            while (!_socket.isClosed() && !Thread.interrupted()) {
+        return CompletableFuture.runAsync(() -> {
+            while (!socket.isClosed() && !Thread.interrupted()) {
                 // Asynchronously return a ChatEvent to the chained continuation (_eventHandler)
                 var iterationFuture = CompletableFuture.supplyAsync(() -> {
                     try {
-                        var reader = new ObjectInputStream(_socket.getInputStream());
-                        return (ChatEvent)reader.readObject();
+                        return _codec.read(input);
                     }
-                    catch (IOException | ClassNotFoundException ioEx) {
-                        // Climate change is endangering the IRQ, let's save it
-                        Thread.currentThread().interrupt();
+                    catch (IOException ioEx) {
+                        // The connection is gone, closing the socket ends the loop
+                        closeQuietly(socket);
                     }
                     return null;
-                }).thenAcceptAsync(_eventHandler);
+                }, executor).thenAcceptAsync(this::dispatch, executor);
 
                 try {
                     // Block on it to prevent concurrent socket reads.
@@ -96,10 +315,103 @@ public class GenericClient {
                 catch (ExecutionException ignored) {
                 }
             }
-        }, AppThreadPool.getInstance());
+        }, executor);
+    }
 
-        // Wrap them both info a future the caller can block on or chain their own continuation to.
-        return CompletableFuture.allOf(producingFuture, dispatchingFuture);
+    private CompletableFuture<Void> runProducer(Executor executor) {
+        // Spin up the producing (sending) loop
+        return CompletableFuture.runAsync(() -> {
+            while(!_disposed && !Thread.interrupted()) {
+                // Async read from the provided Producer<ChatEvent> and pass it to sendEvent() in a continuation.
+                var iterationFuture = CompletableFuture.supplyAsync(_eventProducer, executor)
+                    .thenAcceptAsync(this::sendEvent, executor);
+
+                try {
+                    // Block on it so we aren't trying to write in parallel
+                    iterationFuture.get();
+                }
+                catch (InterruptedException interruptEx) {
+                    // Don't lose the IRQ for when we loop around again
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException ignored) {
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Notes the sequence number of every event, the token of any RESUME, the changes of any ROSTER and what a HELLO
+     * offers before handing the event to the subscriber.
+     */
+    private void dispatch(ChatEvent event) {
+        if (event == null) {
+            return;
+        }
+        _eventsIn.increment();
+        if (event.getSequence() > 0) {
+            _lastSequence = event.getSequence();
+        }
+        if (event.getOpCode() == SocketOpCode.RESUME.getValue()) {
+            _resumeToken = ((ResumeEventArgs)event.getEventArgs()).getToken();
+        }
+        if (event.getOpCode() == SocketOpCode.REJECT.getValue()) {
+            var rejectArgs = (RejectEventArgs)event.getEventArgs();
+            if (rejectArgs.getRejectedOpCode() == SocketOpCode.HELLO.getValue()) {
+                _retryAfterMillis = rejectArgs.getRetryAfterMillis();
+            }
+        }
+        if (event.getOpCode() == SocketOpCode.ROSTER.getValue() && !_roster.apply((RosterEventArgs)event.getEventArgs())) {
+            // We missed a delta, so start again from a snapshot
+            sendEvent(ChatEventFactory.fromRosterRequest());
+        }
+        if (event.getOpCode() == SocketOpCode.HELLO.getValue()) {
+            var helloArgs = (HelloEventArgs)event.getEventArgs();
+            if (_compressor != null && helloArgs != null && helloArgs.getCompression() == FrameCompressor.DICTIONARY_VERSION) {
+                _compressionThreshold = helloArgs.getCompressionThreshold();
+            }
+            if (_loginPipelined) {
+                return;
+            }
+        }
+        if (event.getOpCode() == SocketOpCode.PING.getValue()) {
+            // Answered here, so no handler has to know about heartbeats
+            sendEvent(ChatEventFactory.fromPong());
+            return;
+        }
+        if (event.getOpCode() == SocketOpCode.MESSAGE.getValue() || event.getOpCode() == SocketOpCode.DIRECT_MESSAGE.getValue()) {
+            _messagesIn.increment();
+            if (event.getTrace() != null) {
+                recordTrace(event.getTrace());
+            }
+        }
+        var start = System.nanoTime();
+        _eventHandler.accept(event);
+        _dispatchLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Stamps when a traced message reached us and records each hop it took. Hops the server didn't stamp, or whose
+     * stamps aren't plausible, are skipped.
+     */
+    private void recordTrace(EventTrace trace) {
+        var received = EventTrace.now();
+        trace.setClientReceived(received);
+        var sent = trace.getClientSent();
+        var decoded = trace.getServerDecoded();
+        var enqueued = trace.getBusEnqueued();
+        if (EventTrace.isPlausible(sent, decoded)) {
+            _traceUplink.record((decoded - sent) * 1000);
+        }
+        if (EventTrace.isPlausible(decoded, enqueued)) {
+            _traceServer.record((enqueued - decoded) * 1000);
+        }
+        if (EventTrace.isPlausible(enqueued, received)) {
+            _traceDownlink.record((received - enqueued) * 1000);
+        }
+        if (EventTrace.isPlausible(sent, received)) {
+            _traceTotal.record((received - sent) * 1000);
+        }
     }
 
     /**
@@ -109,22 +421,61 @@ public class GenericClient {
         if (event == null) {
             return;
         }
+        if (_tracing && event.getTrace() == null && (event.getOpCode() == SocketOpCode.MESSAGE.getValue()
+                || event.getOpCode() == SocketOpCode.DIRECT_MESSAGE.getValue())) {
+            var trace = new EventTrace();
+            trace.setClientSent(EventTrace.now());
+            event.setTrace(trace);
+        }
+
+        try {
+            var frame = _codec.encode(event);
+            if (_compressionThreshold > 0) {
+                frame = _compressor.compressFrames(frame, _compressionThreshold);
+            }
+            _eventsOut.increment();
+            _bytesOut.add(frame.length);
+            var startedBatch = _writer.write(frame);
+            if (_flushOptions.getDeadlineNanos() == 0) {
+                _writer.flush();
+            }
+            else if (startedBatch) {
+                // Anything else sent before the deadline joins this batch and goes out in the same write.
+                AppThreadPool.getSchedulerInstance().schedule(this::flush, _flushOptions.getDeadlineNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Writes out any events still being held back for their flush deadline.
+     */
+    public void flush() {
+        try {
+            _writer.flush();
+        }
+        catch (IOException ignored) {
+        }
+    }
 
+    private static void closeQuietly(Socket socket) {
         try {
-            var writer = new ObjectOutputStream(_socket.getOutputStream());
-            writer.writeObject(event);
-            writer.flush();
+            socket.close();
         }
         catch (IOException ignored) {
         }
     }
 
     public synchronized void dispose() {
+        _disposed = true;
         try {
             if (_socket.isClosed()) {
                 return;
             }
             _logger.info("disconnecting");
+            // Don't lose anything still waiting on its flush deadline, e.g. a GOODBYE.
+            flush();
             _socket.close();
             _logger.info("disconnected");
         }
@@ -0,0 +1,59 @@
+package co.uk.michallet.chatapp.common.SDK;
+
+import co.uk.michallet.chatapp.common.net.models.RosterEventArgs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A client's copy of who's online, kept from the snapshot the server sends on login and the deltas after it.
+ */
+public class RosterView {
+    private final Set<String> _names;
+    // -1 until a snapshot has been applied
+    private long _version;
+
+    public RosterView() {
+        _names = new TreeSet<>();
+        _version = -1;
+    }
+
+    /**
+     * Applies a snapshot, or a delta if it's the next version. Deltas already covered by the snapshot are skipped.
+     * @return False if a delta has been missed, and a fresh snapshot should be asked for.
+     */
+    public synchronized boolean apply(RosterEventArgs rosterArgs) {
+        if (rosterArgs.isSnapshot()) {
+            _names.clear();
+            _names.addAll(rosterArgs.getJoined());
+            _version = rosterArgs.getVersion();
+            return true;
+        }
+        // Nothing to apply it to until our snapshot arrives, which already includes it
+        if (_version < 0 || rosterArgs.getVersion() <= _version) {
+            return true;
+        }
+        if (rosterArgs.getVersion() != _version + 1) {
+            // Stop applying deltas until we've caught up
+            _version = -1;
+            return false;
+        }
+        _names.removeAll(rosterArgs.getLeft());
+        _names.addAll(rosterArgs.getJoined());
+        _version = rosterArgs.getVersion();
+        return true;
+    }
+
+    public synchronized long getVersion() {
+        return _version;
+    }
+
+    /**
+     * @return Everyone online, in name order.
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList<>(_names);
+    }
+}
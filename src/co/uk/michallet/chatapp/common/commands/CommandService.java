@@ -1,5 +1,9 @@
 package co.uk.michallet.chatapp.common.commands;
 
+import co.uk.michallet.chatapp.common.metrics.Counter;
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+import co.uk.michallet.chatapp.common.metrics.MetricRegistry;
+
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
 import java.util.Arrays;
@@ -14,9 +18,31 @@ import java.util.stream.Collectors;
  */
 public class CommandService<TContext extends CommandContext> {
     private Map<String, CommandInfo> _commands;
+    private final Counter _executed;
+    private final Counter _failed;
+    private final Histogram _latency;
 
     public CommandService() {
+        this(new MetricRegistry());
+    }
+
+    /**
+     * @param metrics Where the commands run, how many failed and how long they took are recorded.
+     */
+    public CommandService(MetricRegistry metrics) {
         _commands = new HashMap<>();
+        _executed = metrics.counter("command_executions_total", "Commands run");
+        _failed = metrics.counter("command_failures_total", "Commands that returned an error or threw");
+        _latency = metrics.histogram("command_nanos", "Time taken to run a command");
+    }
+
+    /**
+     * One line summary of the commands run so far, e.g. "12 commands, 1 failed, us p50=40.0 p99=120.0 p999=120.0".
+     */
+    public String summarize() {
+        return String.format("%d commands, %d failed, us p50=%.1f p99=%.1f p999=%.1f", _executed.get(), _failed.get(),
+                _latency.getValueAtPercentile(50) / 1000.0, _latency.getValueAtPercentile(99) / 1000.0,
+                _latency.getValueAtPercentile(99.9) / 1000.0);
     }
 
     /**
@@ -55,16 +81,22 @@ public class CommandService<TContext extends CommandContext> {
 
         // Run the command on the thread pool and return it as a Future
         return CompletableFuture.supplyAsync(() -> {
+            var start = System.nanoTime();
+            IResult result;
             try {
                 var info = _commands.get(name);
                 var instance = info.getModule().getConstructors()[0].newInstance(context);
-                var result = info.getMethod().invoke(instance, (Object) args);
-
-                return (IResult)result;
+                result = (IResult)info.getMethod().invoke(instance, (Object) args);
             }
             catch (InstantiationException | InvocationTargetException | IllegalAccessException e) {
-                return new ExecutionResult(false, "");
+                result = new ExecutionResult(false, "");
+            }
+            _executed.increment();
+            if (!result.isSuccess()) {
+                _failed.increment();
             }
+            _latency.record(System.nanoTime() - start);
+            return result;
         });
     }
 }
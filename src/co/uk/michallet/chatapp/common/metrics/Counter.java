@@ -0,0 +1,43 @@
+package co.uk.michallet.chatapp.common.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count of something that only goes up, e.g. messages received. Striped over cells so threads counting at once don't
+ * contend on a single value, and free to add to once they've warmed up.
+ */
+public class Counter {
+    private final LongAdder _count;
+    // Where the last sampleRate() left off
+    private long _sampledCount;
+    private long _sampledNanos;
+
+    public Counter() {
+        _count = new LongAdder();
+        _sampledNanos = System.nanoTime();
+    }
+
+    public void increment() {
+        _count.increment();
+    }
+
+    public void add(long amount) {
+        _count.add(amount);
+    }
+
+    public long get() {
+        return _count.sum();
+    }
+
+    /**
+     * @return How much was counted per second since the previous call, or since the counter was made.
+     */
+    public synchronized double sampleRate() {
+        var count = _count.sum();
+        var now = System.nanoTime();
+        var rate = now == _sampledNanos ? 0 : (count - _sampledCount) * 1e9 / (now - _sampledNanos);
+        _sampledCount = count;
+        _sampledNanos = now;
+        return rate;
+    }
+}
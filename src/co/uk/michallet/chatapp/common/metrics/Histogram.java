@@ -0,0 +1,153 @@
+package co.uk.michallet.chatapp.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of non-negative longs. Every power of two is split into 8 linear buckets, so any
+ * recorded value is reported to within 12.5% while the whole range of a long fits in a few hundred counters.
+ * Recording allocates nothing, and the totals every record touches are striped so threads recording at once don't
+ * contend on them.
+ */
+public class Histogram {
+    // log2 of the number of linear buckets each power of two is split into
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray _counts;
+    private final LongAdder _count;
+    private final LongAdder _sum;
+    private final AtomicLong _max;
+
+    public Histogram() {
+        _counts = new AtomicLongArray(BUCKET_COUNT);
+        _count = new LongAdder();
+        _sum = new LongAdder();
+        _max = new AtomicLong();
+    }
+
+    /**
+     * Records a value, negative values are counted as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        _counts.incrementAndGet(bucketOf(value));
+        _count.increment();
+        _sum.add(value);
+        // Only contended while the maximum is still climbing
+        if (value > _max.get()) {
+            _max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return _count.sum();
+    }
+
+    public long getSum() {
+        return _sum.sum();
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+    public double getMean() {
+        var count = _count.sum();
+        return count == 0 ? 0 : (double)_sum.sum() / count;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return The upper bound of the bucket the percentile falls into, or 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        var count = _count.sum();
+        if (count == 0) {
+            return 0;
+        }
+        var target = Math.max(1, (long)Math.ceil(count * percentile / 100));
+        var seen = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += _counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    /**
+     * Reads every percentile from the same copy of the buckets, so they agree with each other even while values are
+     * being recorded.
+     * @param percentiles Each between 0 and 100.
+     * @return The value at each percentile, as getValueAtPercentile would report it.
+     */
+    public long[] getValuesAtPercentiles(double... percentiles) {
+        var counts = new long[BUCKET_COUNT];
+        var count = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = _counts.get(i);
+            count += counts[i];
+        }
+        var max = _max.get();
+        var values = new long[percentiles.length];
+        if (count == 0) {
+            return values;
+        }
+        for (int p = 0; p < percentiles.length; p++) {
+            var target = Math.max(1, (long)Math.ceil(count * percentiles[p] / 100));
+            var seen = 0L;
+            values[p] = max;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    values[p] = Math.min(upperBoundOf(i), max);
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * One line summary, e.g. "n=10 mean=4.2 p50=4 p99=9 max=9".
+     */
+    public String summarize() {
+        return String.format("n=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", getCount(), getMean(),
+                getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99), getMax());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            _counts.set(i, 0);
+        }
+        _count.reset();
+        _sum.reset();
+        _max.set(0);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        // The top bit picks the power of two, the next SUB_BUCKET_BITS bits the linear bucket within it.
+        var exponent = 63 - Long.numberOfLeadingZeros(value);
+        var subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        var exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        var subBucket = bucket % SUB_BUCKETS;
+        var width = 1L << (exponent - SUB_BUCKET_BITS);
+        var upper = ((SUB_BUCKETS + subBucket) * width) + width - 1;
+        // The very top bucket's bound doesn't fit in a long
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
@@ -0,0 +1,8 @@
+package co.uk.michallet.chatapp.common.metrics;
+
+/**
+ * A value read when it's reported, e.g. how many sessions are connected, rather than counted as it changes.
+ */
+public interface IGauge {
+    long get();
+}
@@ -0,0 +1,96 @@
+package co.uk.michallet.chatapp.common.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The named counters, gauges and histograms an app reports, so they can all be listed at once. Each has a one line
+ * description of what it measures.
+ * Whatever records a metric looks it up once and holds on to it, nothing here is touched while recording. Parts of an
+ * app that already keep their own counts and histograms register those instead, so they're reported as they are.
+ */
+public class MetricRegistry {
+    // Sorted, so metrics are always listed in the same order
+    private final Map<String, Counter> _counters;
+    // Counts kept elsewhere, e.g. in an AtomicLong, read when they're reported
+    private final Map<String, IGauge> _counts;
+    private final Map<String, IGauge> _gauges;
+    private final Map<String, Histogram> _histograms;
+    private final Map<String, String> _help;
+
+    public MetricRegistry() {
+        _counters = new ConcurrentSkipListMap<>();
+        _counts = new ConcurrentSkipListMap<>();
+        _gauges = new ConcurrentSkipListMap<>();
+        _histograms = new ConcurrentSkipListMap<>();
+        _help = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return The counter of that name, registered on first use.
+     */
+    public Counter counter(String name, String help) {
+        _help.putIfAbsent(name, help);
+        return _counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    /**
+     * Registers a count kept elsewhere, which only ever goes up, replacing any of the same name.
+     */
+    public void counter(String name, String help, IGauge count) {
+        _help.putIfAbsent(name, help);
+        _counts.put(name, count);
+    }
+
+    /**
+     * Registers a gauge, replacing any of the same name.
+     */
+    public void gauge(String name, String help, IGauge gauge) {
+        _help.putIfAbsent(name, help);
+        _gauges.put(name, gauge);
+    }
+
+    /**
+     * @return The histogram of that name, registered on first use.
+     */
+    public Histogram histogram(String name, String help) {
+        _help.putIfAbsent(name, help);
+        return _histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Registers a histogram kept elsewhere, replacing any of the same name.
+     */
+    public void histogram(String name, String help, Histogram histogram) {
+        _help.putIfAbsent(name, help);
+        _histograms.put(name, histogram);
+    }
+
+    public Map<String, Counter> getCounters() {
+        return Collections.unmodifiableMap(_counters);
+    }
+
+    /**
+     * @return The counts registered with counter(String, String, IGauge).
+     */
+    public Map<String, IGauge> getCounts() {
+        return Collections.unmodifiableMap(_counts);
+    }
+
+    public Map<String, IGauge> getGauges() {
+        return Collections.unmodifiableMap(_gauges);
+    }
+
+    public Map<String, Histogram> getHistograms() {
+        return Collections.unmodifiableMap(_histograms);
+    }
+
+    /**
+     * @return What the metric of that name measures, or null if there isn't one.
+     */
+    public String getHelp(String name) {
+        return _help.get(name);
+    }
+}
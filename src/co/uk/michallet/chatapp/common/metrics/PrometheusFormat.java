@@ -0,0 +1,56 @@
+package co.uk.michallet.chatapp.common.metrics;
+
+/**
+ * Writes a registry's metrics in the Prometheus text exposition format (version 0.0.4). Counters and gauges are
+ * written as they are, histograms as summaries of their p50, p90, p99 and p999 with their sum and count.
+ */
+public class PrometheusFormat {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String[] QUANTILES = { "0.5", "0.9", "0.99", "0.999" };
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    /**
+     * @return Every metric in the registry, as it stands while each is read.
+     */
+    public static String write(MetricRegistry registry) {
+        var builder = new StringBuilder(4096);
+        for (var counter : registry.getCounters().entrySet()) {
+            writeHeader(builder, registry, counter.getKey(), "counter");
+            writeSample(builder, counter.getKey(), counter.getValue().get());
+        }
+        for (var count : registry.getCounts().entrySet()) {
+            writeHeader(builder, registry, count.getKey(), "counter");
+            writeSample(builder, count.getKey(), count.getValue().get());
+        }
+        for (var gauge : registry.getGauges().entrySet()) {
+            writeHeader(builder, registry, gauge.getKey(), "gauge");
+            writeSample(builder, gauge.getKey(), gauge.getValue().get());
+        }
+        for (var histogram : registry.getHistograms().entrySet()) {
+            var name = histogram.getKey();
+            var values = histogram.getValue().getValuesAtPercentiles(PERCENTILES);
+            writeHeader(builder, registry, name, "summary");
+            for (int i = 0; i < QUANTILES.length; i++) {
+                builder.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ").append(values[i]).append('\n');
+            }
+            writeSample(builder, name + "_sum", histogram.getValue().getSum());
+            writeSample(builder, name + "_count", histogram.getValue().getCount());
+        }
+        return builder.toString();
+    }
+
+    private static void writeHeader(StringBuilder builder, MetricRegistry registry, String name, String type) {
+        var help = registry.getHelp(name);
+        if (help != null) {
+            // Backslashes and line breaks are the only characters HELP text escapes
+            builder.append("# HELP ").append(name).append(' ')
+                    .append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        }
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(StringBuilder builder, String name, long value) {
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+}
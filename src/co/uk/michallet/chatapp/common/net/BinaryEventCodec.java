@@ -0,0 +1,513 @@
+package co.uk.michallet.chatapp.common.net;
+
+import co.uk.michallet.chatapp.common.net.models.DmEventArgs;
+import co.uk.michallet.chatapp.common.net.models.HelloEventArgs;
+import co.uk.michallet.chatapp.common.net.models.HistoryEventArgs;
+import co.uk.michallet.chatapp.common.net.models.MessageSendEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RejectEventArgs;
+import co.uk.michallet.chatapp.common.net.models.ResumeEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RoomEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RosterEventArgs;
+import co.uk.michallet.chatapp.common.net.models.SearchEventArgs;
+import co.uk.michallet.chatapp.common.net.models.SearchHit;
+import co.uk.michallet.chatapp.common.net.models.UserChangeNameArgs;
+import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
+import co.uk.michallet.chatapp.common.net.models.UserLeftEventArgs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Compact wire format. Every frame is a varint length followed by the body: the opcode as a single byte, the event's
+ * sequence number as a varint, then the fields of its EventArgs in a fixed order. Strings are a varint length + 1 (0 meaning null) and their UTF-8 bytes.
+ * Names, DM targets and message content may not be null, a frame that leaves one out is rejected.
+ * Fields added to an event later go on the end, and are only written when set, so older decoders never see them.
+ * A traced MESSAGE or DIRECT_MESSAGE ends with its trace's stamps.
+ * A body may be compressed by FrameCompressor, decoding inflates it first, if the connection negotiated compression.
+ */
+public class BinaryEventCodec implements IEventCodec {
+    // Largest frame body we'll accept, anything bigger is treated as a corrupt or hostile stream
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+
+    private static final BinaryEventCodec _instance = new BinaryEventCodec();
+
+    // Encoding scratch space, reused so that each encode only allocates the finished frame
+    private final ThreadLocal<BinaryWriter> _writers = ThreadLocal.withInitial(() -> new BinaryWriter(256));
+
+    public static BinaryEventCodec getInstance() {
+        return _instance;
+    }
+
+    private BinaryEventCodec() {
+    }
+
+    @Override
+    public byte[] encode(ChatEvent event) throws IOException {
+        var writer = _writers.get();
+        writer.reset();
+        writer.writeByte(event.getOpCode());
+        writer.writeVarlong(event.getSequence());
+
+        switch (SocketOpCode.fromValue(event.getOpCode())) {
+            case HELLO:
+                if (event.getEventArgs() != null) {
+                    encodeHello(writer, (HelloEventArgs)event.getEventArgs());
+                }
+                break;
+            case USER_JOIN:
+                encodeUserJoin(writer, (UserJoinEventArgs)event.getEventArgs());
+                break;
+            case USER_LEAVE:
+                encodeUserLeft(writer, (UserLeftEventArgs)event.getEventArgs());
+                break;
+            case MESSAGE:
+                encodeMessage(writer, (MessageSendEventArgs)event.getEventArgs());
+                encodeTrace(writer, event.getTrace());
+                break;
+            case DIRECT_MESSAGE:
+                encodeDm(writer, (DmEventArgs)event.getEventArgs());
+                encodeTrace(writer, event.getTrace());
+                break;
+            case CHANGE_NAME:
+                encodeChangeName(writer, (UserChangeNameArgs)event.getEventArgs());
+                break;
+            case JOIN:
+            case PART:
+                encodeRoom(writer, (RoomEventArgs)event.getEventArgs());
+                break;
+            case HISTORY:
+                encodeHistory(writer, (HistoryEventArgs)event.getEventArgs());
+                break;
+            case SEARCH:
+                encodeSearch(writer, (SearchEventArgs)event.getEventArgs());
+                break;
+            case RESUME:
+                encodeResume(writer, (ResumeEventArgs)event.getEventArgs());
+                break;
+            case REJECT:
+                encodeReject(writer, (RejectEventArgs)event.getEventArgs());
+                break;
+            case ROSTER:
+                encodeRoster(writer, (RosterEventArgs)event.getEventArgs());
+                break;
+            default:
+                // GOODBYE, PING and PONG carry no EventArgs
+                break;
+        }
+
+        return writer.toFrame();
+    }
+
+    @Override
+    public ChatEvent tryDecode(ByteBuffer buffer) throws IOException {
+        return tryDecode(buffer, true);
+    }
+
+    @Override
+    public ChatEvent tryDecode(ByteBuffer buffer, boolean compressed) throws IOException {
+        var start = buffer.position();
+        var length = BinaryReader.tryReadVarint(buffer);
+        if (length < 0) {
+            return null;
+        }
+        checkLength(length);
+        if (buffer.remaining() < length) {
+            // Only part of the body has arrived, rewind past the length so we can try again later.
+            buffer.position(start);
+            return null;
+        }
+
+        var body = buffer.slice();
+        body.limit(length);
+        buffer.position(buffer.position() + length);
+        return decode(body, compressed);
+    }
+
+    @Override
+    public ChatEvent read(InputStream input) throws IOException {
+        return read(input, true);
+    }
+
+    @Override
+    public ChatEvent read(InputStream input, boolean compressed) throws IOException {
+        var length = readVarint(input);
+        checkLength(length);
+        var body = input.readNBytes(length);
+        if (body.length < length) {
+            throw new EOFException();
+        }
+        return decode(ByteBuffer.wrap(body), compressed);
+    }
+
+    /**
+     * Blocks until the length prefix of the next frame has been read, leaving the stream at the start of its body.
+     * Lets a reader split frames off the stream and leave decoding them to someone else.
+     * @return The length of the body.
+     */
+    public int readFrameLength(InputStream input) throws IOException {
+        var length = readVarint(input);
+        checkLength(length);
+        return length;
+    }
+
+    /**
+     * Non-blocking counterpart of readFrameLength().
+     * @param buffer Buffer in read mode. If the whole frame has arrived its position is moved to the start of the
+     *               body, otherwise it is left untouched.
+     * @return The length of the body, or -1 if the buffer doesn't hold a complete frame yet.
+     */
+    public int tryReadFrameLength(ByteBuffer buffer) throws IOException {
+        var start = buffer.position();
+        var length = BinaryReader.tryReadVarint(buffer);
+        if (length < 0) {
+            return -1;
+        }
+        checkLength(length);
+        if (buffer.remaining() < length) {
+            buffer.position(start);
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * Decodes the body of a frame split off by readFrameLength() or tryReadFrameLength().
+     * @param body Exactly the bytes of the body, from position to limit.
+     */
+    public ChatEvent decodeFrame(ByteBuffer body) throws IOException {
+        return decode(body, true);
+    }
+
+    /**
+     * As decodeFrame(body), for a connection that may not have agreed to compress frames.
+     * @param compressed Whether compression was negotiated, if not a compressed frame is rejected.
+     */
+    public ChatEvent decodeFrame(ByteBuffer body, boolean compressed) throws IOException {
+        return decode(body, compressed);
+    }
+
+    private ChatEvent decode(ByteBuffer body, boolean compressed) throws IOException {
+        if (!body.hasRemaining() || (body.get(body.position()) & 0xFF) != FrameCompressor.COMPRESSED) {
+            return decodeBody(body);
+        }
+        if (!compressed) {
+            throw new ProtocolException("compressed frame on a connection that didn't negotiate compression");
+        }
+        body.get();
+        // Decoded before the compressor is handed back, the body is inflated into its buffer
+        var compressor = FrameCompressor.acquire();
+        try {
+            return decodeBody(compressor.inflate(body, MAX_FRAME_SIZE));
+        }
+        finally {
+            FrameCompressor.release(compressor);
+        }
+    }
+
+    private ChatEvent decodeBody(ByteBuffer body) throws IOException {
+        var reader = new BinaryReader(body);
+        var event = new ChatEvent();
+        var opCode = reader.readByte();
+        event.setOpCode(opCode);
+        event.setSequence(reader.readVarlong());
+
+        SocketOpCode op;
+        try {
+            op = SocketOpCode.fromValue(opCode);
+        }
+        catch (IllegalArgumentException unknownEx) {
+            throw new ProtocolException(String.format("unknown opcode %d", opCode));
+        }
+
+        switch (op) {
+            case HELLO:
+                // Only there if the server offers anything
+                if (reader.hasRemaining()) {
+                    event.setEventArgs(decodeHello(reader));
+                }
+                break;
+            case USER_JOIN:
+                event.setEventArgs(decodeUserJoin(reader));
+                break;
+            case USER_LEAVE:
+                event.setEventArgs(decodeUserLeft(reader));
+                break;
+            case MESSAGE:
+                event.setEventArgs(decodeMessage(reader));
+                event.setTrace(decodeTrace(reader));
+                break;
+            case DIRECT_MESSAGE:
+                event.setEventArgs(decodeDm(reader));
+                event.setTrace(decodeTrace(reader));
+                break;
+            case CHANGE_NAME:
+                event.setEventArgs(decodeChangeName(reader));
+                break;
+            case JOIN:
+            case PART:
+                event.setEventArgs(decodeRoom(reader));
+                break;
+            case HISTORY:
+                event.setEventArgs(decodeHistory(reader));
+                break;
+            case SEARCH:
+                event.setEventArgs(decodeSearch(reader));
+                break;
+            case RESUME:
+                event.setEventArgs(decodeResume(reader));
+                break;
+            case REJECT:
+                event.setEventArgs(decodeReject(reader));
+                break;
+            case ROSTER:
+                event.setEventArgs(decodeRoster(reader));
+                break;
+            default:
+                break;
+        }
+        return event;
+    }
+
+    private static void encodeHello(BinaryWriter writer, HelloEventArgs args) {
+        writer.writeVarint(args.getCompression());
+        writer.writeVarint(args.getCompressionThreshold());
+    }
+
+    private static HelloEventArgs decodeHello(BinaryReader reader) throws ProtocolException {
+        var args = new HelloEventArgs();
+        args.setCompression(reader.readVarint());
+        args.setCompressionThreshold(reader.readVarint());
+        return args;
+    }
+
+    private static void encodeUserJoin(BinaryWriter writer, UserJoinEventArgs args) {
+        writer.writeString(args.getName());
+        if (args.getCompression() > 0) {
+            writer.writeVarint(args.getCompression());
+        }
+    }
+
+    private static UserJoinEventArgs decodeUserJoin(BinaryReader reader) throws ProtocolException {
+        var args = new UserJoinEventArgs();
+        args.setName(reader.readRequiredString("name"));
+        if (reader.hasRemaining()) {
+            args.setCompression(reader.readVarint());
+        }
+        return args;
+    }
+
+    private static void encodeUserLeft(BinaryWriter writer, UserLeftEventArgs args) {
+        writer.writeString(args.getName());
+    }
+
+    private static UserLeftEventArgs decodeUserLeft(BinaryReader reader) throws ProtocolException {
+        var args = new UserLeftEventArgs();
+        args.setName(reader.readString());
+        return args;
+    }
+
+    private static void encodeMessage(BinaryWriter writer, MessageSendEventArgs args) {
+        writer.writeString(args.getAuthor());
+        writer.writeString(args.getContent());
+    }
+
+    private static MessageSendEventArgs decodeMessage(BinaryReader reader) throws ProtocolException {
+        var args = new MessageSendEventArgs();
+        args.setAuthor(reader.readString());
+        args.setContent(reader.readRequiredString("content"));
+        return args;
+    }
+
+    private static void encodeDm(BinaryWriter writer, DmEventArgs args) {
+        writer.writeString(args.getSenderName());
+        writer.writeString(args.getTargetName());
+        writer.writeString(args.getContent());
+    }
+
+    private static DmEventArgs decodeDm(BinaryReader reader) throws ProtocolException {
+        var args = new DmEventArgs();
+        args.setSenderName(reader.readString());
+        args.setTargetName(reader.readRequiredString("target"));
+        args.setContent(reader.readRequiredString("content"));
+        return args;
+    }
+
+    private static void encodeTrace(BinaryWriter writer, EventTrace trace) {
+        if (trace == null) {
+            return;
+        }
+        writer.writeVarlong(Math.max(0, trace.getClientSent()));
+        writer.writeVarlong(Math.max(0, trace.getServerDecoded()));
+        writer.writeVarlong(Math.max(0, trace.getBusEnqueued()));
+    }
+
+    private static EventTrace decodeTrace(BinaryReader reader) throws ProtocolException {
+        if (!reader.hasRemaining()) {
+            return null;
+        }
+        var trace = new EventTrace();
+        trace.setClientSent(reader.readVarlong());
+        trace.setServerDecoded(reader.readVarlong());
+        trace.setBusEnqueued(reader.readVarlong());
+        return trace;
+    }
+
+    private static void encodeChangeName(BinaryWriter writer, UserChangeNameArgs args) {
+        writer.writeString(args.getOldName());
+        writer.writeString(args.getName());
+    }
+
+    private static UserChangeNameArgs decodeChangeName(BinaryReader reader) throws ProtocolException {
+        var args = new UserChangeNameArgs();
+        args.setOldName(reader.readString());
+        args.setName(reader.readRequiredString("name"));
+        return args;
+    }
+
+    private static void encodeRoom(BinaryWriter writer, RoomEventArgs args) {
+        writer.writeString(args.getName());
+        writer.writeString(args.getRoom());
+    }
+
+    private static RoomEventArgs decodeRoom(BinaryReader reader) throws ProtocolException {
+        var args = new RoomEventArgs();
+        args.setName(reader.readString());
+        args.setRoom(reader.readString());
+        return args;
+    }
+
+    private static void encodeHistory(BinaryWriter writer, HistoryEventArgs args) {
+        writer.writeString(args.getRoom());
+        writer.writeVarint(Math.max(0, args.getCount()));
+    }
+
+    private static HistoryEventArgs decodeHistory(BinaryReader reader) throws ProtocolException {
+        var args = new HistoryEventArgs();
+        args.setRoom(reader.readString());
+        args.setCount(reader.readVarint());
+        return args;
+    }
+
+    private static void encodeSearch(BinaryWriter writer, SearchEventArgs args) {
+        writer.writeString(args.getQuery());
+        writer.writeVarint(Math.max(0, args.getPage()));
+        writer.writeVarint(Math.max(0, args.getTotal()));
+        var hits = args.getHits();
+        writer.writeVarint(hits == null ? 0 : hits.size());
+        if (hits == null) {
+            return;
+        }
+        for (var hit : hits) {
+            writer.writeString(hit.getAuthor());
+            writer.writeString(hit.getRoom());
+            writer.writeString(hit.getContent());
+            writer.writeVarint(Math.max(0, hit.getAgeSeconds()));
+        }
+    }
+
+    private static SearchEventArgs decodeSearch(BinaryReader reader) throws ProtocolException {
+        var args = new SearchEventArgs();
+        args.setQuery(reader.readString());
+        args.setPage(reader.readVarint());
+        args.setTotal(reader.readVarint());
+        var count = reader.readVarint();
+        for (int i = 0; i < count; i++) {
+            var hit = new SearchHit();
+            hit.setAuthor(reader.readString());
+            hit.setRoom(reader.readString());
+            hit.setContent(reader.readString());
+            hit.setAgeSeconds(reader.readVarint());
+            args.getHits().add(hit);
+        }
+        return args;
+    }
+
+    private static void encodeResume(BinaryWriter writer, ResumeEventArgs args) {
+        writer.writeString(args.getName());
+        writer.writeString(args.getToken());
+        writer.writeVarlong(Math.max(0, args.getSequence()));
+        if (args.getCompression() > 0) {
+            writer.writeVarint(args.getCompression());
+        }
+    }
+
+    private static ResumeEventArgs decodeResume(BinaryReader reader) throws ProtocolException {
+        var args = new ResumeEventArgs();
+        args.setName(reader.readString());
+        args.setToken(reader.readString());
+        args.setSequence(reader.readVarlong());
+        if (reader.hasRemaining()) {
+            args.setCompression(reader.readVarint());
+        }
+        return args;
+    }
+
+    private static void encodeReject(BinaryWriter writer, RejectEventArgs args) {
+        writer.writeVarint(args.getRejectedOpCode());
+        writer.writeString(args.getReason());
+        writer.writeVarint(Math.max(0, args.getRetryAfterMillis()));
+    }
+
+    private static RejectEventArgs decodeReject(BinaryReader reader) throws ProtocolException {
+        var args = new RejectEventArgs();
+        args.setRejectedOpCode(reader.readVarint());
+        args.setReason(reader.readString());
+        args.setRetryAfterMillis(reader.readVarint());
+        return args;
+    }
+
+    private static void encodeRoster(BinaryWriter writer, RosterEventArgs args) {
+        writer.writeVarlong(Math.max(0, args.getVersion()));
+        writer.writeByte(args.isSnapshot() ? 1 : 0);
+        writeNames(writer, args.getJoined());
+        writeNames(writer, args.getLeft());
+    }
+
+    private static void writeNames(BinaryWriter writer, List<String> names) {
+        writer.writeVarint(names.size());
+        for (var name : names) {
+            writer.writeString(name);
+        }
+    }
+
+    private static RosterEventArgs decodeRoster(BinaryReader reader) throws ProtocolException {
+        var args = new RosterEventArgs();
+        args.setVersion(reader.readVarlong());
+        args.setSnapshot(reader.readByte() != 0);
+        readNames(reader, args.getJoined());
+        readNames(reader, args.getLeft());
+        return args;
+    }
+
+    private static void readNames(BinaryReader reader, List<String> names) throws ProtocolException {
+        var count = reader.readVarint();
+        for (int i = 0; i < count; i++) {
+            names.add(reader.readString());
+        }
+    }
+
+    private static int readVarint(InputStream input) throws IOException {
+        var value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            var b = input.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("varint too long");
+    }
+
+    private static void checkLength(int length) throws ProtocolException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException(String.format("frame of %d bytes exceeds the maximum size", length));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package co.uk.michallet.chatapp.common.net;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the primitive encodings written by BinaryWriter out of a ByteBuffer.
+ */
+public class BinaryReader {
+    private final ByteBuffer _buffer;
+
+    public BinaryReader(ByteBuffer buffer) {
+        _buffer = buffer;
+    }
+
+    public boolean hasRemaining() {
+        return _buffer.hasRemaining();
+    }
+
+    public int readByte() throws ProtocolException {
+        if (!_buffer.hasRemaining()) {
+            throw new ProtocolException("unexpected end of frame");
+        }
+        return _buffer.get() & 0xFF;
+    }
+
+    public int readVarint() throws ProtocolException {
+        var value = tryReadVarint(_buffer);
+        if (value < 0) {
+            throw new ProtocolException("unexpected end of frame");
+        }
+        return value;
+    }
+
+    public long readVarlong() throws ProtocolException {
+        var value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            var b = readByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("varint too long");
+    }
+
+    /**
+     * Reads a string that has to be there, e.g. a name or a message's content.
+     * @throws ProtocolException If it was written as null.
+     */
+    public String readRequiredString(String field) throws ProtocolException {
+        var value = readString();
+        if (value == null) {
+            throw new ProtocolException(String.format("%s is missing", field));
+        }
+        return value;
+    }
+
+    public String readString() throws ProtocolException {
+        var length = readVarint();
+        if (length == 0) {
+            return null;
+        }
+        length--;
+        if (_buffer.remaining() < length) {
+            throw new ProtocolException("string exceeds frame");
+        }
+        String value;
+        if (_buffer.hasArray()) {
+            value = new String(_buffer.array(), _buffer.arrayOffset() + _buffer.position(), length, StandardCharsets.UTF_8);
+        }
+        else {
+            var bytes = new byte[length];
+            _buffer.duplicate().get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        _buffer.position(_buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Reads a varint without throwing if the buffer runs out part way through.
+     * @return The value, or -1 if the buffer doesn't hold the whole varint. The position is only moved on success.
+     */
+    public static int tryReadVarint(ByteBuffer buffer) throws ProtocolException {
+        var position = buffer.position();
+        var value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                buffer.position(position);
+                return -1;
+            }
+            var b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new ProtocolException("varint out of range");
+                }
+                return value;
+            }
+        }
+        throw new ProtocolException("varint too long");
+    }
+}
@@ -0,0 +1,113 @@
+package co.uk.michallet.chatapp.common.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer with the primitive encodings used by the binary wire format.
+ */
+public class BinaryWriter {
+    private byte[] _buffer;
+    private int _length;
+
+    public BinaryWriter(int initialCapacity) {
+        _buffer = new byte[initialCapacity];
+    }
+
+    public int length() {
+        return _length;
+    }
+
+    public void reset() {
+        _length = 0;
+    }
+
+    public BinaryWriter writeByte(int value) {
+        ensureCapacity(1);
+        _buffer[_length++] = (byte)value;
+        return this;
+    }
+
+    public BinaryWriter writeBytes(byte[] value, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(value, offset, _buffer, _length, length);
+        _length += length;
+        return this;
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint, 7 bits per byte with the high bit set on every byte but the last.
+     */
+    public BinaryWriter writeVarint(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            _buffer[_length++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        _buffer[_length++] = (byte)value;
+        return this;
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint of up to 64 bits.
+     */
+    public BinaryWriter writeVarlong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            _buffer[_length++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        _buffer[_length++] = (byte)value;
+        return this;
+    }
+
+    /**
+     * Writes a UTF-8 string prefixed with its length + 1, so that a prefix of 0 can represent null.
+     */
+    public BinaryWriter writeString(String value) {
+        if (value == null) {
+            return writeVarint(0);
+        }
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length + 1);
+        return writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return A copy of the bytes written so far, prefixed with their length as a varint.
+     */
+    public byte[] toFrame() {
+        var frame = new byte[getVarintSize(_length) + _length];
+        var offset = 0;
+        var value = _length;
+        while ((value & ~0x7F) != 0) {
+            frame[offset++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        frame[offset++] = (byte)value;
+        System.arraycopy(_buffer, 0, frame, offset, _length);
+        return frame;
+    }
+
+    /**
+     * @return A copy of the bytes written so far.
+     */
+    public byte[] toArray() {
+        return Arrays.copyOf(_buffer, _length);
+    }
+
+    public static int getVarintSize(int value) {
+        var size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (_length + extra > _buffer.length) {
+            _buffer = Arrays.copyOf(_buffer, Math.max(_buffer.length * 2, _length + extra));
+        }
+    }
+}
@@ -10,6 +10,10 @@ import java.io.Serializable;
 public class ChatEvent implements Serializable {
     private EventArgs _eventArgs;
     private int _opCode;
+    // Stamped by the server on every event it sends, 0 on events sent by clients
+    private long _sequence;
+    // Only on messages and DMs sent by clients that trace them, null otherwise
+    private EventTrace _trace;
 
     private static final long serialVersionUID = 58482308L;
 
@@ -21,6 +25,21 @@ public class ChatEvent implements Serializable {
         return _opCode;
     }
 
+    /**
+     * @return The number the server gave this event when it was sent, which a reconnecting client passes back in its
+     * RESUME to say how far it got.
+     */
+    public long getSequence() {
+        return _sequence;
+    }
+
+    /**
+     * @return When the event passed each point between its sender and this end, or null if it isn't traced.
+     */
+    public EventTrace getTrace() {
+        return _trace;
+    }
+
     public void setEventArgs(EventArgs value) {
         _eventArgs = value;
     }
@@ -28,4 +47,12 @@ public class ChatEvent implements Serializable {
     public void setOpCode(int value) {
         _opCode = value;
     }
+
+    public void setSequence(long value) {
+        _sequence = value;
+    }
+
+    public void setTrace(EventTrace value) {
+        _trace = value;
+    }
 }
@@ -0,0 +1,76 @@
+package co.uk.michallet.chatapp.common.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffers encoded frames in front of a blocking stream so that a burst of them goes out in a single write.
+ * The owner decides when the deadline is honoured, by calling flush() once getFlushDeadline() has passed.
+ */
+public class CoalescingWriter {
+    private final OutputStream _output;
+    private final FlushOptions _options;
+    private final WriteStats _stats;
+    private final byte[] _buffer;
+    private int _length;
+    private int _frames;
+    // When the oldest buffered frame was appended
+    private long _firstFrameNanos;
+
+    public CoalescingWriter(OutputStream output, FlushOptions options, WriteStats stats) {
+        _output = output;
+        _options = options;
+        _stats = stats;
+        _buffer = new byte[options.getBufferSize()];
+    }
+
+    /**
+     * Buffers a frame, writing the buffer out first if the frame doesn't fit.
+     * @return Whether this frame started a new batch, i.e. the buffer was empty beforehand.
+     */
+    public synchronized boolean write(byte[] frame) throws IOException {
+        if (_length + frame.length > _buffer.length) {
+            flush();
+        }
+        var started = _length == 0;
+        if (frame.length >= _buffer.length) {
+            // Too big to ever be coalesced, write it straight through.
+            var start = System.nanoTime();
+            _output.write(frame);
+            _stats.recordFlush(1, frame.length, System.nanoTime() - start);
+            return false;
+        }
+
+        if (started) {
+            _firstFrameNanos = System.nanoTime();
+        }
+        System.arraycopy(frame, 0, _buffer, _length, frame.length);
+        _length += frame.length;
+        _frames++;
+        return started;
+    }
+
+    /**
+     * Writes out everything buffered so far.
+     */
+    public synchronized void flush() throws IOException {
+        if (_length == 0) {
+            return;
+        }
+        _output.write(_buffer, 0, _length);
+        _stats.recordFlush(_frames, _length, System.nanoTime() - _firstFrameNanos);
+        _length = 0;
+        _frames = 0;
+    }
+
+    public synchronized boolean hasPending() {
+        return _length > 0;
+    }
+
+    /**
+     * @return The System.nanoTime() by which the buffered frames should be flushed.
+     */
+    public synchronized long getFlushDeadline() {
+        return _firstFrameNanos + _options.getDeadlineNanos();
+    }
+}
@@ -0,0 +1,28 @@
+package co.uk.michallet.chatapp.common.net;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.ILogger;
+
+/**
+ * Resolves the IEventCodec selected by configuration.
+ */
+public class EventCodecFactory {
+    private EventCodecFactory() {
+    }
+
+    /**
+     * @return The codec named by the "codec" configuration value, binary unless set to java.
+     */
+    public static IEventCodec fromConfig(IConfiguration config, ILogger logger) {
+        var codec = config.getString("codec", "binary");
+        switch (codec) {
+            case "binary":
+                return BinaryEventCodec.getInstance();
+            case "java":
+                return SerializedEventCodec.getInstance();
+            default:
+                logger.warn("unknown codec %s, using binary", codec);
+                return BinaryEventCodec.getInstance();
+        }
+    }
+}
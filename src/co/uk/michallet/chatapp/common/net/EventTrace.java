@@ -0,0 +1,89 @@
+package co.uk.michallet.chatapp.common.net;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+/**
+ * When a traced message passed each point on its way from one client to another, in microseconds since the epoch, 0
+ * for a point it hasn't reached yet. Stamps taken by different processes are compared, so hops between machines are
+ * only as accurate as their clocks agree.
+ */
+public class EventTrace implements Serializable {
+    // nanoTime is cheap and allocates nothing, so it's pinned to the wall clock once rather than read each time
+    private static final long EPOCH_OFFSET_NANOS = epochOffsetNanos();
+    // Longest a hop is believed to have taken, anything longer is a bad clock or a made up stamp
+    private static final long MAX_HOP_MICROS = 60_000_000;
+
+    private long _clientSent;
+    private long _serverDecoded;
+    private long _busEnqueued;
+    // Stamped by the receiving client, never sent
+    private transient long _clientReceived;
+
+    private static final long serialVersionUID = 73551042L;
+
+    public long getClientSent() {
+        return _clientSent;
+    }
+
+    public long getServerDecoded() {
+        return _serverDecoded;
+    }
+
+    public long getBusEnqueued() {
+        return _busEnqueued;
+    }
+
+    public long getClientReceived() {
+        return _clientReceived;
+    }
+
+    public void setClientSent(long value) {
+        _clientSent = value;
+    }
+
+    public void setServerDecoded(long value) {
+        _serverDecoded = value;
+    }
+
+    public void setBusEnqueued(long value) {
+        _busEnqueued = value;
+    }
+
+    public void setClientReceived(long value) {
+        _clientReceived = value;
+    }
+
+    /**
+     * @return Microseconds since the epoch.
+     */
+    public static long now() {
+        return (System.nanoTime() + EPOCH_OFFSET_NANOS) / 1000;
+    }
+
+    /**
+     * Whether a hop between two stamps is worth recording. Stamps are taken, or made up, by whoever sent the message,
+     * so one missing, later than the one after it or from longer ago than any hop takes would only skew the timings.
+     * @param from Microseconds since the epoch at the start of the hop.
+     * @param to Microseconds since the epoch at the end of the hop.
+     */
+    public static boolean isPlausible(long from, long to) {
+        return from > 0 && to >= from && to - from <= MAX_HOP_MICROS;
+    }
+
+    /**
+     * Stamps the trace of an event that has just been decoded by the server, if it carries one.
+     * @return The event.
+     */
+    public static ChatEvent stampDecoded(ChatEvent event) {
+        if (event != null && event.getTrace() != null) {
+            event.getTrace().setServerDecoded(now());
+        }
+        return event;
+    }
+
+    private static long epochOffsetNanos() {
+        var now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano() - System.nanoTime();
+    }
+}
@@ -0,0 +1,47 @@
+package co.uk.michallet.chatapp.common.net;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+
+/**
+ * How long, and how many bytes, outbound frames may be held back for so they can share a single write.
+ */
+public class FlushOptions {
+    private static final int DEFAULT_BUFFER_SIZE = 16384;
+    private static final long DEFAULT_DEADLINE_MICROS = 0;
+
+    private final int _bufferSize;
+    private final long _deadlineNanos;
+
+    /**
+     * @param bufferSize Bytes buffered before a flush is forced.
+     * @param deadlineNanos Longest a frame may wait for others to join it, 0 flushes whenever the writer runs dry.
+     */
+    public FlushOptions(int bufferSize, long deadlineNanos) {
+        _bufferSize = Math.max(1, bufferSize);
+        _deadlineNanos = Math.max(0, deadlineNanos);
+    }
+
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+    public long getDeadlineNanos() {
+        return _deadlineNanos;
+    }
+
+    /**
+     * @return 16KiB buffers, flushed as soon as the writer has nothing else queued.
+     */
+    public static FlushOptions createDefault() {
+        return new FlushOptions(DEFAULT_BUFFER_SIZE, DEFAULT_DEADLINE_MICROS * 1000);
+    }
+
+    /**
+     * Reads the "flushbytes" and "flushus" configuration values, falling back to the defaults above.
+     */
+    public static FlushOptions fromConfig(IConfiguration config) {
+        var bufferSize = Integer.parseInt(config.getString("flushbytes", String.valueOf(DEFAULT_BUFFER_SIZE)));
+        var deadlineMicros = Long.parseLong(config.getString("flushus", String.valueOf(DEFAULT_DEADLINE_MICROS)));
+        return new FlushOptions(bufferSize, deadlineMicros * 1000);
+    }
+}
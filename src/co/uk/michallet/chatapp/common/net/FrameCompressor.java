@@ -0,0 +1,215 @@
+package co.uk.michallet.chatapp.common.net;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates and inflates the bodies of binary codec frames. A compressed frame's body is the COMPRESSED marker in place
+ * of the opcode, the length of the original body as a varint, then the original body as raw deflate.
+ * Every body is compressed on its own against a preset dictionary of typical chat traffic, so a short message still
+ * has something to refer back to, and a compressed frame can be inflated without any that came before it and shared
+ * between connections like any other frame.
+ * Not thread safe, the Deflater and Inflater are reused for every frame. acquire() and release() share them out.
+ */
+public class FrameCompressor {
+    // Never a valid opcode, the high bit marks a deflated body
+    public static final int COMPRESSED = 0x80;
+    // Version of DICTIONARY, both ends compress only if they agree on it, 0 meaning they don't compress at all
+    public static final int DICTIONARY_VERSION = 1;
+    // Small frames are compressed often, so favour speed, the dictionary does most of the work on them
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+    // Each compressor holds native zlib state, so only so many idle ones are kept
+    private static final int MAX_POOLED = 64;
+    // Largest inflate buffer a pooled compressor holds on to, one grown past it by a big frame is dropped on release
+    private static final int MAX_POOLED_INFLATE = 65536;
+
+    // What's most likely to come up goes last, deflate refers back to the end of the dictionary most cheaply.
+    // Gathered from the bot's and the DoD game's replies, the server's notices and the commonest words said in rooms.
+    private static final byte[] DICTIONARY = String.join("",
+            "https://www. .com .co.uk .org http:// ",
+            "Usage: -flag <value> or --flag=<value> e.g. -foo bar, --foo=bar\r\n\r\n",
+            "help : Shows this menu\r\n",
+            "BOT HELP\r\nI'm a chat bot!\r\n\r\n",
+            "ECHO    : Echoes any provided text right back to you!\r\n",
+            "DADJOKE : Tells you a really, really funny joke.\r\n",
+            "FAIL: Unknown command.The bot caught you!Gold to win: Gold owned: SUCCESSFAIL",
+            "rate limitedname in use on another node#lobby",
+            "I don't know what you think about that, because it would be really good if we could have ",
+            "anyone there? does this mean when are you going to? I'm not sure why they said it's ",
+            "thanks, yeah, okay, sorry, hello, haha lol what's up with the the and you that have ",
+            "\n# # # # # \n# . . . # \n# . P . # \n# . G . # \n# . E . # \n. . B . . \n",
+            "# # # # # \r\n# . . . # \r\n# . P . # \r\n. . . . . \r\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final ConcurrentLinkedQueue<FrameCompressor> _pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger _pooled = new AtomicInteger();
+
+    private final Deflater _deflater;
+    private final Inflater _inflater;
+    // Where a run of frames is put back together as some of them are compressed
+    private final BinaryWriter _writer;
+    private byte[] _deflated;
+    // Where bodies are inflated to, grown as they turn out to need it
+    private byte[] _inflated;
+
+    public FrameCompressor() {
+        this(DEFAULT_LEVEL);
+    }
+
+    /**
+     * @param level Deflate compression level, 1 (fastest) to 9 (smallest).
+     */
+    public FrameCompressor(int level) {
+        _deflater = new Deflater(level, true);
+        _inflater = new Inflater(true);
+        _writer = new BinaryWriter(1024);
+        _deflated = new byte[1024];
+        _inflated = new byte[1024];
+    }
+
+    /**
+     * @return An idle compressor at the default level, or a new one if there aren't any.
+     */
+    public static FrameCompressor acquire() {
+        var compressor = _pool.poll();
+        if (compressor == null) {
+            return new FrameCompressor();
+        }
+        _pooled.decrementAndGet();
+        return compressor;
+    }
+
+    /**
+     * Hands a compressor from acquire() back once it's no longer in use.
+     */
+    public static void release(FrameCompressor compressor) {
+        if (_pooled.incrementAndGet() > MAX_POOLED) {
+            _pooled.decrementAndGet();
+            compressor.end();
+            return;
+        }
+        if (compressor._inflated.length > MAX_POOLED_INFLATE) {
+            compressor._inflated = new byte[1024];
+        }
+        _pool.offer(compressor);
+    }
+
+    /**
+     * Compresses each frame of a run of frames whose body is at least threshold bytes, where that makes it smaller.
+     * Frames already compressed are left as they are.
+     * @param frames One or more complete frames, as produced by BinaryEventCodec.
+     * @return The frames with the bodies worth compressing compressed, or the same array if none were.
+     */
+    public byte[] compressFrames(byte[] frames, int threshold) throws ProtocolException {
+        var copied = 0;
+        var offset = 0;
+        while (offset < frames.length) {
+            var frameStart = offset;
+            var length = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (offset >= frames.length || shift > 28) {
+                    throw new ProtocolException("truncated frame");
+                }
+                var b = frames[offset++];
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            var bodyStart = offset;
+            offset += length;
+            if (length < threshold || (frames[bodyStart] & 0xFF) == COMPRESSED) {
+                continue;
+            }
+            var deflatedLength = deflate(frames, bodyStart, length);
+            var bodyLength = 1 + BinaryWriter.getVarintSize(length) + deflatedLength;
+            if (deflatedLength < 0 || BinaryWriter.getVarintSize(bodyLength) + bodyLength >= offset - frameStart) {
+                continue;
+            }
+            if (copied == 0) {
+                _writer.reset();
+            }
+            _writer.writeBytes(frames, copied, frameStart - copied)
+                    .writeVarint(bodyLength)
+                    .writeByte(COMPRESSED)
+                    .writeVarint(length)
+                    .writeBytes(_deflated, 0, deflatedLength);
+            copied = offset;
+        }
+        if (copied == 0) {
+            return frames;
+        }
+        _writer.writeBytes(frames, copied, frames.length - copied);
+        return _writer.toArray();
+    }
+
+    /**
+     * @return The length of the deflated bytes, or -1 if they'd be no smaller.
+     */
+    private int deflate(byte[] input, int offset, int length) {
+        if (_deflated.length < length) {
+            _deflated = new byte[Math.max(_deflated.length * 2, length)];
+        }
+        _deflater.reset();
+        _deflater.setDictionary(DICTIONARY);
+        _deflater.setInput(input, offset, length);
+        _deflater.finish();
+        var deflatedLength = _deflater.deflate(_deflated, 0, length);
+        return _deflater.finished() ? deflatedLength : -1;
+    }
+
+    /**
+     * Inflates the body of a compressed frame. The buffer only grows as far as the frame actually inflates, never
+     * straight to the length it claims.
+     * @param body The body after the COMPRESSED marker, from position to limit.
+     * @param maxLength Longest body the frame may inflate to, anything longer is treated as hostile.
+     * @return The original body, a view of the compressor's buffer valid until it next inflates or is released.
+     */
+    public ByteBuffer inflate(ByteBuffer body, int maxLength) throws ProtocolException {
+        var length = new BinaryReader(body).readVarint();
+        if (length < 0 || length > maxLength) {
+            throw new ProtocolException(String.format("compressed frame inflates to %d bytes", length));
+        }
+        _inflater.reset();
+        _inflater.setDictionary(DICTIONARY);
+        _inflater.setInput(body);
+        var inflated = 0;
+        try {
+            while (!_inflater.finished()) {
+                if (inflated == _inflated.length) {
+                    if (inflated >= length) {
+                        throw new ProtocolException("compressed frame doesn't match its length");
+                    }
+                    _inflated = Arrays.copyOf(_inflated, (int)Math.min(length, _inflated.length * 2L));
+                }
+                var count = _inflater.inflate(_inflated, inflated, _inflated.length - inflated);
+                if (count == 0 && (_inflater.needsInput() || _inflater.needsDictionary())) {
+                    throw new ProtocolException("truncated compressed frame");
+                }
+                inflated += count;
+            }
+        }
+        catch (DataFormatException badDataEx) {
+            throw new ProtocolException(String.format("corrupt compressed frame: %s", badDataEx.getMessage()));
+        }
+        if (inflated != length) {
+            throw new ProtocolException("compressed frame doesn't match its length");
+        }
+        return ByteBuffer.wrap(_inflated, 0, length);
+    }
+
+    /**
+     * Frees the native state, the compressor can't be used again.
+     */
+    public void end() {
+        _deflater.end();
+        _inflater.end();
+    }
+}
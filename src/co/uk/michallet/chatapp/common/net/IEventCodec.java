@@ -0,0 +1,44 @@
+package co.uk.michallet.chatapp.common.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts ChatEvents to and from the bytes sent over a connection.
+ */
+public interface IEventCodec {
+    /**
+     * Encodes an event into a complete frame, ready to be written to a socket as-is.
+     */
+    byte[] encode(ChatEvent event) throws IOException;
+
+    /**
+     * Decodes one event from a buffer holding the bytes read so far, for non-blocking readers.
+     * @param buffer Buffer in read mode. On success its position is moved past the event, otherwise it is left untouched.
+     * @return The event, or null if the buffer doesn't hold a complete event yet.
+     */
+    ChatEvent tryDecode(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Blocks until a complete event has been read from the stream.
+     * @param input The connection's stream. It should be buffered and reused for every read on the connection.
+     */
+    ChatEvent read(InputStream input) throws IOException;
+
+    /**
+     * As tryDecode(buffer), for a connection that may not have agreed to compress frames.
+     * @param compressed Whether compression was negotiated, if not a compressed frame is rejected.
+     */
+    default ChatEvent tryDecode(ByteBuffer buffer, boolean compressed) throws IOException {
+        return tryDecode(buffer);
+    }
+
+    /**
+     * As read(input), for a connection that may not have agreed to compress frames.
+     * @param compressed Whether compression was negotiated, if not a compressed frame is rejected.
+     */
+    default ChatEvent read(InputStream input, boolean compressed) throws IOException {
+        return read(input);
+    }
+}
@@ -0,0 +1,37 @@
+package co.uk.michallet.chatapp.common.net;
+
+import co.uk.michallet.chatapp.common.metrics.Counter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it, placed under any buffering so the count is of what came off the socket.
+ */
+public class MeteredInputStream extends FilterInputStream {
+    private final Counter _bytes;
+
+    public MeteredInputStream(InputStream input, Counter bytes) {
+        super(input);
+        _bytes = bytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        var b = super.read();
+        if (b >= 0) {
+            _bytes.increment();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        var read = super.read(buffer, offset, length);
+        if (read > 0) {
+            _bytes.add(read);
+        }
+        return read;
+    }
+}
@@ -0,0 +1,71 @@
+package co.uk.michallet.chatapp.common.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * The original wire format, each event written as its own Java serialization stream. Kept for compatibility with
+ * clients that haven't moved to the binary codec.
+ */
+public class SerializedEventCodec implements IEventCodec {
+    private static final SerializedEventCodec _instance = new SerializedEventCodec();
+
+    public static SerializedEventCodec getInstance() {
+        return _instance;
+    }
+
+    private SerializedEventCodec() {
+    }
+
+    @Override
+    public byte[] encode(ChatEvent event) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var objectWriter = new ObjectOutputStream(bytes);
+        objectWriter.writeObject(event);
+        objectWriter.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Serialization streams aren't length prefixed, so this attempts a read over everything buffered and waits for
+     * more bytes if it runs out part way through.
+     */
+    @Override
+    public ChatEvent tryDecode(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        var input = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        try {
+            var event = readObject(new ObjectInputStream(input));
+            // Consume exactly the bytes the event occupied, anything left over belongs to the next one.
+            buffer.position(buffer.limit() - input.available());
+            return event;
+        }
+        catch (EOFException truncated) {
+            // We've only got part of the event so far, wait for the rest to arrive.
+            return null;
+        }
+    }
+
+    @Override
+    public ChatEvent read(InputStream input) throws IOException {
+        return readObject(new ObjectInputStream(input));
+    }
+
+    private static ChatEvent readObject(ObjectInputStream objectReader) throws IOException {
+        try {
+            return (ChatEvent)objectReader.readObject();
+        }
+        catch (ClassNotFoundException | ClassCastException badTypeEx) {
+            throw new StreamCorruptedException(String.format("not a ChatEvent: %s", badTypeEx.getMessage()));
+        }
+    }
+}
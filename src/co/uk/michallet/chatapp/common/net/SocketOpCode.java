@@ -11,7 +11,16 @@ public enum SocketOpCode {
     USER_LEAVE(3),
     MESSAGE(4),
     DIRECT_MESSAGE(5),
-    CHANGE_NAME(8);
+    PING(6),
+    PONG(7),
+    CHANGE_NAME(8),
+    JOIN(9),
+    PART(10),
+    HISTORY(11),
+    SEARCH(12),
+    RESUME(13),
+    REJECT(14),
+    ROSTER(15);
 
     private final int _value;
 
@@ -37,8 +46,26 @@ public enum SocketOpCode {
                 return SocketOpCode.MESSAGE;
             case 5:
                 return SocketOpCode.DIRECT_MESSAGE;
+            case 6:
+                return SocketOpCode.PING;
+            case 7:
+                return SocketOpCode.PONG;
             case 8:
                 return SocketOpCode.CHANGE_NAME;
+            case 9:
+                return SocketOpCode.JOIN;
+            case 10:
+                return SocketOpCode.PART;
+            case 11:
+                return SocketOpCode.HISTORY;
+            case 12:
+                return SocketOpCode.SEARCH;
+            case 13:
+                return SocketOpCode.RESUME;
+            case 14:
+                return SocketOpCode.REJECT;
+            case 15:
+                return SocketOpCode.ROSTER;
         }
 
         throw new IllegalArgumentException();
@@ -0,0 +1,44 @@
+package co.uk.michallet.chatapp.common.net;
+
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+
+/**
+ * Shows how well outbound frames are being coalesced: how many share each write, and how long they waited for it.
+ */
+public class WriteStats {
+    private final Histogram _batchFrames;
+    private final Histogram _batchBytes;
+    private final Histogram _flushLatency;
+
+    public WriteStats() {
+        _batchFrames = new Histogram();
+        _batchBytes = new Histogram();
+        _flushLatency = new Histogram();
+    }
+
+    /**
+     * @param frames Frames written by a single write.
+     * @param bytes Bytes written by that write.
+     * @param latencyNanos Time between the first of the frames being buffered and the write completing.
+     */
+    public void recordFlush(int frames, int bytes, long latencyNanos) {
+        _batchFrames.record(frames);
+        _batchBytes.record(bytes);
+        _flushLatency.record(latencyNanos);
+    }
+
+    public Histogram getBatchFrames() {
+        return _batchFrames;
+    }
+
+    public Histogram getBatchBytes() {
+        return _batchBytes;
+    }
+
+    /**
+     * @return Flush latencies in nanoseconds.
+     */
+    public Histogram getFlushLatency() {
+        return _flushLatency;
+    }
+}
@@ -0,0 +1,30 @@
+package co.uk.michallet.chatapp.common.net.models;
+
+/**
+ * What the server offers a new connection in its HELLO. Only sent by a server that offers anything, a HELLO without
+ * it offers nothing.
+ */
+public class HelloEventArgs extends EventArgs {
+    // Version of the compression dictionary the server compresses frames with, 0 if it doesn't
+    private int _compression;
+    // Smallest frame body worth compressing
+    private int _compressionThreshold;
+
+    private static final long serialVersionUID = 41020194L;
+
+    public int getCompression() {
+        return _compression;
+    }
+
+    public int getCompressionThreshold() {
+        return _compressionThreshold;
+    }
+
+    public void setCompression(int value) {
+        _compression = value;
+    }
+
+    public void setCompressionThreshold(int value) {
+        _compressionThreshold = value;
+    }
+}
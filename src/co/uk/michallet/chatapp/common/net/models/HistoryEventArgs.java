@@ -0,0 +1,24 @@
+package co.uk.michallet.chatapp.common.net.models;
+
+public class HistoryEventArgs extends EventArgs {
+    private String _room;
+    private int _count;
+
+    private static final long serialVersionUID = 20417685L;
+
+    public String getRoom() {
+        return _room;
+    }
+
+    public int getCount() {
+        return _count;
+    }
+
+    public void setRoom(String value) {
+        _room = value;
+    }
+
+    public void setCount(int value) {
+        _count = value;
+    }
+}
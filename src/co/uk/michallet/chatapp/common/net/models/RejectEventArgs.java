@@ -0,0 +1,39 @@
+package co.uk.michallet.chatapp.common.net.models;
+
+/**
+ * Sent by the server in place of handling an event, when it's shedding load. A connection the server won't accept at
+ * all is sent one in place of the HELLO, with the HELLO opcode.
+ */
+public class RejectEventArgs extends EventArgs {
+    // Opcode of the event that was rejected
+    private int _rejectedOpCode;
+    private String _reason;
+    // How long the client should hold off before trying again, 0 if it needn't
+    private int _retryAfterMillis;
+
+    private static final long serialVersionUID = 58120364L;
+
+    public int getRejectedOpCode() {
+        return _rejectedOpCode;
+    }
+
+    public String getReason() {
+        return _reason;
+    }
+
+    public int getRetryAfterMillis() {
+        return _retryAfterMillis;
+    }
+
+    public void setRejectedOpCode(int value) {
+        _rejectedOpCode = value;
+    }
+
+    public void setReason(String value) {
+        _reason = value;
+    }
+
+    public void setRetryAfterMillis(int value) {
+        _retryAfterMillis = value;
+    }
+}
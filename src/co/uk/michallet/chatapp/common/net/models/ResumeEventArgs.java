@@ -0,0 +1,48 @@
+package co.uk.michallet.chatapp.common.net.models;
+
+/**
+ * Sent by the server once a session is established, carrying the token a client can resume it with after losing its
+ * connection. A client sends one back instead of a USER_JOIN to resume, along with the last sequence number it saw.
+ */
+public class ResumeEventArgs extends EventArgs {
+    private String _name;
+    private String _token;
+    // From the client the last sequence it received, from the server the one it resumed after or 0 for a new session
+    private long _sequence;
+    // As in a USER_JOIN, the version of the compression dictionary the client can inflate frames with
+    private int _compression;
+
+    private static final long serialVersionUID = 40718263L;
+
+    public String getName() {
+        return _name;
+    }
+
+    public String getToken() {
+        return _token;
+    }
+
+    public long getSequence() {
+        return _sequence;
+    }
+
+    public int getCompression() {
+        return _compression;
+    }
+
+    public void setName(String value) {
+        _name = value;
+    }
+
+    public void setToken(String value) {
+        _token = value;
+    }
+
+    public void setSequence(long value) {
+        _sequence = value;
+    }
+
+    public void setCompression(int value) {
+        _compression = value;
+    }
+}
@@ -0,0 +1,24 @@
+package co.uk.michallet.chatapp.common.net.models;
+
+public class RoomEventArgs extends EventArgs {
+    private String _room;
+    private String _name;
+
+    private static final long serialVersionUID = 51782093L;
+
+    public String getRoom() {
+        return _room;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public void setRoom(String value) {
+        _room = value;
+    }
+
+    public void setName(String value) {
+        _name = value;
+    }
+}
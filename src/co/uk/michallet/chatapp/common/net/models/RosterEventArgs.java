@@ -0,0 +1,52 @@
+package co.uk.michallet.chatapp.common.net.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Who's online. Sent by the server as a snapshot of everyone when a client logs in, then as deltas numbered one
+ * version after another, so a client can keep its own list and notice if it missed one. A client sends one with no
+ * names to ask for a fresh snapshot.
+ */
+public class RosterEventArgs extends EventArgs {
+    // The roster's version once this has been applied
+    private long _version;
+    // Whether joined holds everyone, rather than only those who joined since the last version
+    private boolean _snapshot;
+    private List<String> _joined;
+    private List<String> _left;
+
+    private static final long serialVersionUID = 40817235L;
+
+    public RosterEventArgs() {
+        _joined = new ArrayList<>();
+        _left = new ArrayList<>();
+    }
+
+    public long getVersion() {
+        return _version;
+    }
+
+    public boolean isSnapshot() {
+        return _snapshot;
+    }
+
+    public List<String> getJoined() {
+        return _joined;
+    }
+
+    /**
+     * @return Empty in a snapshot.
+     */
+    public List<String> getLeft() {
+        return _left;
+    }
+
+    public void setVersion(long value) {
+        _version = value;
+    }
+
+    public void setSnapshot(boolean value) {
+        _snapshot = value;
+    }
+}
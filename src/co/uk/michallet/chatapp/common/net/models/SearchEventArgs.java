@@ -0,0 +1,57 @@
+package co.uk.michallet.chatapp.common.net.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A search of the server's messages when sent by a client, and one page of its results when the server replies.
+ */
+public class SearchEventArgs extends EventArgs {
+    private String _query;
+    // Counted from 1
+    private int _page;
+    // Set by the server, matches across every page
+    private int _total;
+    private List<SearchHit> _hits;
+
+    private static final long serialVersionUID = 73950281L;
+
+    public SearchEventArgs() {
+        _hits = new ArrayList<>();
+    }
+
+    public String getQuery() {
+        return _query;
+    }
+
+    public int getPage() {
+        return _page;
+    }
+
+    public int getTotal() {
+        return _total;
+    }
+
+    /**
+     * @return Newest first, empty in a request.
+     */
+    public List<SearchHit> getHits() {
+        return _hits;
+    }
+
+    public void setQuery(String value) {
+        _query = value;
+    }
+
+    public void setPage(int value) {
+        _page = value;
+    }
+
+    public void setTotal(int value) {
+        _total = value;
+    }
+
+    public void setHits(List<SearchHit> value) {
+        _hits = value;
+    }
+}
@@ -0,0 +1,48 @@
+package co.uk.michallet.chatapp.common.net.models;
+
+import java.io.Serializable;
+
+/**
+ * One message matching a search.
+ */
+public class SearchHit implements Serializable {
+    private String _author;
+    private String _room;
+    private String _content;
+    // How long ago the message was sent when the search ran
+    private int _ageSeconds;
+
+    private static final long serialVersionUID = 61402377L;
+
+    public String getAuthor() {
+        return _author;
+    }
+
+    public String getRoom() {
+        return _room;
+    }
+
+    public String getContent() {
+        return _content;
+    }
+
+    public int getAgeSeconds() {
+        return _ageSeconds;
+    }
+
+    public void setAuthor(String value) {
+        _author = value;
+    }
+
+    public void setRoom(String value) {
+        _room = value;
+    }
+
+    public void setContent(String value) {
+        _content = value;
+    }
+
+    public void setAgeSeconds(int value) {
+        _ageSeconds = value;
+    }
+}
@@ -4,6 +4,8 @@ import java.io.Serializable;
 
 public class UserJoinEventArgs extends EventArgs {
     private String _name;
+    // Version of the compression dictionary the client can inflate frames with, 0 if it can't
+    private int _compression;
 
     private static final long serialVersionUID = 720599L;
 
@@ -14,4 +16,12 @@ public class UserJoinEventArgs extends EventArgs {
     public void setName(String value) {
         _name = value;
     }
+
+    public int getCompression() {
+        return _compression;
+    }
+
+    public void setCompression(int value) {
+        _compression = value;
+    }
 }
@@ -0,0 +1,114 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how fast the server takes on work, so a flood of events or connections is shed before it costs a fan-out or
+ * a session. Each session gets its own TokenBucket for the events it sends, and connections are accepted from one
+ * bucket shared by the whole server.
+ */
+public class AdmissionControl {
+    private final double _eventRate;
+    private final int _eventBurst;
+    // Null if connections aren't limited, only touched by the transport's accept thread
+    private final TokenBucket _acceptBucket;
+    private final AtomicLong _shedEvents;
+    private final AtomicLong _throttled;
+    private final AtomicLong _rejectedConnections;
+
+    /**
+     * @param eventRate Events per second each session may send, 0 for no limit.
+     * @param eventBurst Events a session may send at once after being quiet.
+     * @param acceptRate Connections per second accepted across the server, 0 for no limit.
+     * @param acceptBurst Connections accepted at once after being quiet.
+     */
+    public AdmissionControl(double eventRate, int eventBurst, double acceptRate, int acceptBurst) {
+        _eventRate = eventRate;
+        _eventBurst = eventBurst;
+        _acceptBucket = acceptRate > 0 ? new TokenBucket(acceptRate, acceptBurst) : null;
+        _shedEvents = new AtomicLong();
+        _throttled = new AtomicLong();
+        _rejectedConnections = new AtomicLong();
+    }
+
+    public double getEventRate() {
+        return _eventRate;
+    }
+
+    public int getEventBurst() {
+        return _eventBurst;
+    }
+
+    /**
+     * @return A bucket for a new session's events, or null if events aren't limited.
+     */
+    public TokenBucket createSessionBucket() {
+        return _eventRate > 0 ? new TokenBucket(_eventRate, _eventBurst) : null;
+    }
+
+    /**
+     * Called by the transport for each connection it accepts, before the handshake.
+     * @return False if the connection should be rejected.
+     */
+    public boolean tryAccept() {
+        if (_acceptBucket == null || _acceptBucket.tryAcquire()) {
+            return true;
+        }
+        _rejectedConnections.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return Milliseconds until another connection would be accepted.
+     */
+    public int getAcceptRetryMillis() {
+        return _acceptBucket == null ? 0 : _acceptBucket.getMillisUntilAvailable();
+    }
+
+    /**
+     * Counts an event a session sent over its limit.
+     * @param startedThrottling Whether it was the first since the session was last within its limit.
+     */
+    public void recordShed(boolean startedThrottling) {
+        _shedEvents.incrementAndGet();
+        if (startedThrottling) {
+            _throttled.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Events dropped for being over a session's limit.
+     */
+    public long getShedEvents() {
+        return _shedEvents.get();
+    }
+
+    /**
+     * @return Times a session went over its limit, each is told once rather than for every event dropped.
+     */
+    public long getThrottledCount() {
+        return _throttled.get();
+    }
+
+    public long getRejectedConnections() {
+        return _rejectedConnections.get();
+    }
+
+    /**
+     * Reads the "rate", "burst", "acceptrate" and "acceptburst" configuration values. Nothing is limited by default.
+     * @return The admission control, or null if neither "rate" nor "acceptrate" is set.
+     */
+    public static AdmissionControl fromConfig(IConfiguration config) {
+        var rate = Double.parseDouble(config.getString("rate", "0"));
+        var acceptRate = Double.parseDouble(config.getString("acceptrate", "0"));
+        if (rate <= 0 && acceptRate <= 0) {
+            return null;
+        }
+        // Bursts default to a couple of seconds' worth
+        var burst = Integer.parseInt(config.getString("burst", Integer.toString((int)Math.max(1, rate * 2))));
+        var acceptBurst = Integer.parseInt(config.getString("acceptburst", Integer.toString((int)Math.max(1, acceptRate * 2))));
+        return new AdmissionControl(Math.max(0, rate), burst, Math.max(0, acceptRate), acceptBurst);
+    }
+}
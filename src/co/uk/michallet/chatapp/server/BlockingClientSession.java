@@ -0,0 +1,236 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.AppThreadPool;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.net.ChatEvent;
+import co.uk.michallet.chatapp.common.net.CoalescingWriter;
+import co.uk.michallet.chatapp.common.net.EventTrace;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Session of a client connected over a blocking socket, which parks a thread in run() for its whole lifetime.
+ * Outbound frames are queued and written by a single writer task that only runs while there's something to write,
+ * which coalesces whatever it finds queued, plus anything arriving before the flush deadline, into a single write.
+ * Once it runs dry the writer waits a moment for more before giving its thread back, so steady traffic is written by
+ * one long running task rather than a task handed to the pool, which allocates, for every frame.
+ */
+public class BlockingClientSession extends ClientSession implements Runnable {
+    private static final long LINGER_NANOS = 1_000_000;
+
+    private final Socket _socket;
+    // Buffered stream the handshake was read from, it may already hold events the client pipelined after USER_JOIN
+    private final InputStream _input;
+    private final IEventCodec _codec;
+    private final OutboundQueue _outbound;
+    // Created by the first drain, so that sessions which are never written to don't hold a buffer
+    private CoalescingWriter _writer;
+    // Held by whichever thread is currently draining the queue
+    private final AtomicBoolean _draining;
+    // Handed to the writer pool each time the queue needs draining, made once rather than for every drain
+    private final Runnable _drainTask;
+    // Whether the writer is blocked inside a socket write
+    private volatile boolean _writing;
+    private volatile boolean _closeWhenDrained;
+    // Holds the writer for a moment once it runs out of frames, in case more are on their way
+    private final IdleParker _lingerer;
+    // Holds a frame between reading it and publishing it to the pipeline, grown to the largest frame seen
+    private byte[] _frameBuffer;
+
+    public BlockingClientSession(ILogger logger, Socket socket, InputStream input, IEventCodec codec, UserJoinEventArgs joinEventArgs, ConcurrentMessageBus messageBus) {
+        super(logger, joinEventArgs, messageBus);
+        _socket = socket;
+        _input = input;
+        _codec = codec;
+        _outbound = new OutboundQueue(messageBus.getQueueOptions());
+        _draining = new AtomicBoolean(false);
+        _drainTask = this::drain;
+        _lingerer = new IdleParker(() -> !_outbound.isEmpty() || _closeWhenDrained);
+    }
+
+    /**
+     * Queues a frame to be written to the socket, never blocks.
+     * @param frame A complete, already encoded frame.
+     */
+    @Override
+    protected void writeFrame(byte[] frame) {
+        if (_closeWhenDrained || _socket.isClosed()) {
+            return;
+        }
+        if (!_outbound.offer(frame)) {
+            disconnectSlowConsumer();
+            return;
+        }
+        scheduleDrain();
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return _outbound;
+    }
+
+    private void scheduleDrain() {
+        if (!_draining.compareAndSet(false, true)) {
+            // The current writer will pick the frame up before it lets go, once woken if it's waiting for more
+            _lingerer.wake();
+            return;
+        }
+        try {
+            AppThreadPool.getWriterInstance().execute(_drainTask);
+        }
+        catch (RejectedExecutionException shutdownEx) {
+            closeQuietly();
+        }
+    }
+
+    private void drain() {
+        try {
+            if (_writer == null) {
+                var bus = getMessageBus();
+                _writer = new CoalescingWriter(_socket.getOutputStream(), bus.getFlushOptions(), bus.getWriteStats());
+            }
+            while (true) {
+                byte[] frame;
+                _writing = true;
+                while ((frame = _outbound.poll()) != null) {
+                    _writer.write(frame);
+                }
+                if (_writer.hasPending()) {
+                    var remaining = _writer.getFlushDeadline() - System.nanoTime();
+                    if (remaining > 0 && !_closeWhenDrained) {
+                        // Give the rest of a burst a chance to join the batch before writing it.
+                        _writing = false;
+                        LockSupport.parkNanos(remaining);
+                        continue;
+                    }
+                    _writer.flush();
+                    // More frames may have arrived while we were blocked in the write.
+                    continue;
+                }
+                _writing = false;
+
+                if (_closeWhenDrained) {
+                    _socket.close();
+                    return;
+                }
+
+                _lingerer.park(LINGER_NANOS);
+                if (!_outbound.isEmpty() || _closeWhenDrained) {
+                    continue;
+                }
+
+                _draining.set(false);
+                // Frames or a close queued between our last poll and releasing the flag would otherwise be stranded.
+                if ((_outbound.isEmpty() && !_closeWhenDrained) || !_draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+        catch (IOException ioEx) {
+            // The reader will see the socket die and end the session.
+            _outbound.clear();
+            closeQuietly();
+        }
+    }
+
+    private void disconnectSlowConsumer() {
+        end();
+        getLogger().warn("%s: more than %d frames queued, disconnecting", getName(), _outbound.getOptions().getHighWatermark());
+        _outbound.clear();
+        if (_writing) {
+            // The writer is stuck on a client that has stopped reading, a GOODBYE would never get through.
+            closeQuietly();
+            return;
+        }
+        try {
+            _outbound.forceOffer(encode(ChatEventFactory.fromGoodbye()));
+        }
+        catch (IOException ignored) {
+        }
+        close();
+    }
+
+    /**
+     * Called when the session has been established and the server is ready to read in messages from the client.
+     */
+    @Override
+    public void run() {
+        var pipeline = getMessageBus().getPipeline();
+        try {
+            while (!Thread.interrupted() && !_socket.isClosed()) {
+                if (pipeline != null) {
+                    publishFrame(pipeline);
+                    continue;
+                }
+
+                var eventData = readEvent();
+
+                if (eventData == null) {
+                    getLogger().debug("%s: null, aborting", getName());
+                    return;
+                }
+
+                if (!handleEvent(eventData)) {
+                    return;
+                }
+            }
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Reads the next frame off the socket and leaves decoding and handling it to the pipeline.
+     */
+    private void publishFrame(EventPipeline pipeline) throws IOException {
+        var length = pipeline.getCodec().readFrameLength(_input);
+        if (_frameBuffer == null || _frameBuffer.length < length) {
+            _frameBuffer = new byte[Math.max(length, 256)];
+        }
+        if (_input.readNBytes(_frameBuffer, 0, length) < length) {
+            throw new EOFException();
+        }
+        pipeline.publish(this, _frameBuffer, 0, length);
+    }
+
+    private ChatEvent readEvent() throws IOException {
+        // Decode the next frame on the socket into a ChatEvent POJO
+        return EventTrace.stampDecoded(_codec.read(_input, isCompressed()));
+    }
+
+    private void closeQuietly() {
+        try {
+            _socket.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Closes the socket at once, the reader sees it die.
+     */
+    @Override
+    public void abort() {
+        _outbound.clear();
+        closeQuietly();
+    }
+
+    /**
+     * Close the socket once everything already queued has been written.
+     */
+    @Override
+    public void close() {
+        end();
+        _closeWhenDrained = true;
+        scheduleDrain();
+    }
+}
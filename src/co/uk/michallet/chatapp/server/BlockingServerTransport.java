@@ -0,0 +1,117 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.AppThreadPool;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.SocketOpCode;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Thread-per-session transport. Every established session parks a session executor thread until it disconnects.
+ */
+public class BlockingServerTransport implements IServerTransport {
+    private final ILogger _logger;
+    private final ChatServer _server;
+    private final ConcurrentMessageBus _messageBus;
+    private final IEventCodec _codec;
+    private ServerSocket _socket;
+
+    public BlockingServerTransport(ILogger logger, ChatServer server, ConcurrentMessageBus messageBus, IEventCodec codec) {
+        _logger = logger;
+        _server = server;
+        _messageBus = messageBus;
+        _codec = codec;
+    }
+
+    @Override
+    public void bind(InetAddress addr, int port, int backlog) throws IOException {
+        _socket = new ServerSocket(port, backlog, addr);
+    }
+
+    /**
+     * Asynchronously accept new client sessions on the socket
+     * @return Returns a Future that will complete only when cancelled or the socket terminates.
+     */
+    @Override
+    public CompletableFuture<Void> acceptAsync() {
+        // Run this on a threadpool thread
+        return CompletableFuture.runAsync(() -> {
+            _logger.info("ready");
+            while(!Thread.interrupted() && !_socket.isClosed()) {
+                try {
+                    // Block on accept();
+                    var clientSocket = _socket.accept();
+                    var admission = _messageBus.getAdmission();
+                    if (admission != null && !admission.tryAccept()) {
+                        reject(clientSocket, admission);
+                        continue;
+                    }
+                    // Prepare to handle the client handshake
+                    var handshaker = new ClientSessionNegotiator(_logger, clientSocket, _codec, _messageBus);
+                    // Chain an async continuation that calls handleSession() to the result of the handshake
+                    var sessionPool = AppThreadPool.getSessionInstance();
+                    CompletableFuture.supplyAsync(handshaker, sessionPool).thenAcceptAsync(this::handleSession, sessionPool);
+                }
+                catch (IOException ignored) {
+                    return;
+                }
+            }
+        }, AppThreadPool.getInstance());
+    }
+
+    /**
+     * Tells a client the server is taking on no more connections for now, in place of a HELLO, and closes it.
+     */
+    private void reject(Socket clientSocket, AdmissionControl admission) {
+        _logger.debug("accepting connections too fast, rejecting one");
+        try (clientSocket) {
+            var reject = ChatEventFactory.fromReject(SocketOpCode.HELLO.getValue(), "too many connections", admission.getAcceptRetryMillis());
+            // Small enough to fit in the socket's send buffer, so this doesn't block the accept loop
+            clientSocket.getOutputStream().write(_codec.encode(reject));
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Called asynchronously when a client has completed the handshake process and established a new potential session.
+     * @param session The potential session
+     */
+    private void handleSession(BlockingClientSession session) {
+        // If the session wasn't established i.e. failed the handshake, we're done.
+        if (session == null) {
+            return;
+        }
+
+        if (!_server.openSession(session)) {
+            return;
+        }
+        try {
+            // Block
+            session.run();
+        }
+        catch (RuntimeException ex) {
+            _logger.warn("%s: session failed: %s", session.getName(), ex);
+        }
+        finally {
+            // Once this method returns, it means they disconnected- time to clean up.
+            _server.closeSession(session);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return _socket.isBound() && !_socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        _socket.close();
+    }
+}
@@ -0,0 +1,74 @@
+package co.uk.michallet.chatapp.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Free lists of ByteBuffers in power of two size classes, from MIN_SIZE to MAX_SIZE, for the socket I/O of one
+ * thread. Each NioEventLoop owns its own pools, so they need no locking and must only be used on the loop thread.
+ * Buffers are only held while something is being read or written, so a loop reuses a handful of them for every
+ * connection it owns rather than each connection keeping its own.
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 4096;
+    public static final int MAX_SIZE = 1 << 20;
+
+    private final boolean _direct;
+    private final long _maxPooledBytes;
+    // Indexed by size class, MIN_SIZE << index
+    private final List<ArrayDeque<ByteBuffer>> _free;
+    private long _pooledBytes;
+
+    /**
+     * @param direct Whether the buffers are allocated outside the heap, so the OS can read and write them in place.
+     * @param maxPooledBytes Most bytes kept in the free lists, anything released past this is left to the GC.
+     */
+    public BufferPool(boolean direct, long maxPooledBytes) {
+        _direct = direct;
+        _maxPooledBytes = maxPooledBytes;
+        _free = new ArrayList<>();
+        for (int size = MIN_SIZE; size <= MAX_SIZE; size <<= 1) {
+            _free.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * @param capacity Bytes needed, at most MAX_SIZE.
+     * @return An empty buffer of at least the capacity, in write mode.
+     */
+    public ByteBuffer acquire(int capacity) {
+        var sizeClass = getSizeClass(capacity);
+        var buffer = _free.get(sizeClass).poll();
+        if (buffer != null) {
+            _pooledBytes -= buffer.capacity();
+            return buffer;
+        }
+        var size = MIN_SIZE << sizeClass;
+        return _direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Hands a buffer from acquire() back, nothing else may use it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (_pooledBytes + buffer.capacity() > _maxPooledBytes) {
+            return;
+        }
+        buffer.clear();
+        _free.get(getSizeClass(buffer.capacity())).push(buffer);
+        _pooledBytes += buffer.capacity();
+    }
+
+    private static int getSizeClass(int capacity) {
+        if (capacity > MAX_SIZE) {
+            throw new IllegalArgumentException(String.format("%d bytes is more than a pooled buffer holds", capacity));
+        }
+        var sizeClass = 0;
+        while (MIN_SIZE << sizeClass < capacity) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+}
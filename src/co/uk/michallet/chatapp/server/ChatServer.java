@@ -10,10 +10,16 @@ import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
 import co.uk.michallet.chatapp.common.commands.CommandNotFoundResult;
 import co.uk.michallet.chatapp.common.commands.CommandService;
 import co.uk.michallet.chatapp.common.logging.DefaultLogger;
+import co.uk.michallet.chatapp.common.net.BinaryEventCodec;
+import co.uk.michallet.chatapp.common.net.EventCodecFactory;
+import co.uk.michallet.chatapp.common.net.FlushOptions;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.models.MessageSendEventArgs;
+import co.uk.michallet.chatapp.common.net.models.ResumeEventArgs;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.Inet4Address;
-import java.net.ServerSocket;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Scanner;
@@ -30,15 +36,25 @@ public class ChatServer {
     private ILogger _logger;
     // The CommandService handles mapping and executing commands from the console
     private CommandService<ServerCommandContext> _commands;
-    private ServerSocket _socket;
+    // Owns the listening socket and moves events between client connections and the bus
+    private IServerTransport _transport;
 
     // Semaphore is used to ensure that the serversocket isn't cleaned up multiple times
     private final Semaphore _cleanupLock;
     // CMB implementation stores and broadcasts to connected clients
     private final ConcurrentMessageBus _messageBus;
+    // Wire format spoken with every client
+    private final IEventCodec _codec;
+    // Runs every deadline the server keeps, e.g. heartbeats and handshakes, on one thread
+    private final TimerWheel _timers;
+    // Serves the metrics for dashboards to scrape, null unless configured
+    private final MetricsEndpoint _metricsEndpoint;
 
-    // The number of pending connections we'll allow on the socket
-    private final int BACKLOG = 5;
+    // The number of pending connections we'll allow on the socket, unless configured otherwise
+    private static final int DEFAULT_BACKLOG = 50;
+    // Coarse enough that a tick over 100k sessions is cheap, fine enough for deadlines in seconds
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_WHEEL_SIZE = 1024;
 
     /**
      * Create a new configured instance of a ChatServer
@@ -49,26 +65,50 @@ public class ChatServer {
         _config = config;
         _logger = logger;
         _cleanupLock = new Semaphore(1);
-        _messageBus = new ConcurrentMessageBus();
+        _codec = EventCodecFactory.fromConfig(config, logger);
+        _timers = new TimerWheel(logger, TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE);
+        _timers.start();
+        _messageBus = createMessageBus();
+        if (config.isSet("trace")) {
+            _messageBus.getMetrics().enableQueueTiming(_messageBus.getQueueOptions());
+        }
+        _messageBus.setPipeline(createPipeline());
+        _messageBus.setHistory(MessageHistory.fromConfig(config));
+        _messageBus.setSearch(SearchIndex.fromConfig(config, logger));
+        _messageBus.setJournal(openJournal());
+        _messageBus.setInboxes(createInboxes());
+        _messageBus.setParkedSessions(ParkedSessions.fromConfig(config));
+        _messageBus.setHeartbeat(HeartbeatMonitor.fromConfig(config, logger, _timers));
+        _messageBus.setHandshakes(HandshakeMonitor.fromConfig(config, _timers));
+        _messageBus.setAdmission(AdmissionControl.fromConfig(config));
+        _messageBus.setRoster(Roster.fromConfig(config, _messageBus, _timers));
+        _messageBus.setFederation(createFederation());
+        _messageBus.setCompression(FrameCompression.fromConfig(config, _codec, logger));
 
-        _commands = new CommandService<>();
+        _commands = new CommandService<>(_messageBus.getMetrics().getRegistry());
         _commands.registerCommands(ServerCommands.class);
+        _metricsEndpoint = createMetricsEndpoint();
+    }
+
+    public ConcurrentMessageBus getMessageBus() {
+        return _messageBus;
     }
 
     /**
      * Shuts down the server.
      */
     public void abort() {
-        dispose();
-        for (var client : _messageBus.getNames()) {
+        for (var session : _messageBus.getLocalClients()) {
             try {
-                var session = _messageBus.getClient(client);
+                session.end();
                 session.send(ChatEventFactory.fromGoodbye());
                 session.close();
             }
             catch (IOException ignored) {
             }
         }
+        // Sessions are told first, the nio transport can only deliver their GOODBYE while its loops are running.
+        dispose();
     }
 
     /**
@@ -80,12 +120,22 @@ public class ChatServer {
         var serverHost = _config.getString("csa", "127.0.0.1");
         _logger.info("binding on %s:%s", serverHost, serverPort);
 
+        _transport = createTransport();
+        if (_transport == null) {
+            return;
+        }
+
         try {
             var port = Integer.parseInt(serverPort);
             var addr = Inet4Address.getByName(serverHost);
             // Bind to the provided address
-            _socket = new ServerSocket(port, BACKLOG, addr);
+            _transport.bind(addr, port, Integer.parseInt(_config.getString("backlog", Integer.toString(DEFAULT_BACKLOG))));
             _logger.debug("socket bound");
+            // Only linked once we can take clients, peers start passing on their events straight away
+            if (_messageBus.getFederation() != null) {
+                _messageBus.getFederation().start();
+            }
+            startMetricsEndpoint();
 
             // When the application is killed, e.g. ^C then run cleanup of the socket.
             Runtime.getRuntime().addShutdownHook(new Thread(this::dispose));
@@ -99,9 +149,13 @@ public class ChatServer {
             return;
         }
 
+        if (_config.getString("executor", "fixed").equals("virtual") && !AppThreadPool.isVirtual()) {
+            _logger.warn("virtual threads are not supported by this runtime, falling back to a thread per session");
+        }
+
         _logger.info("starting listeners");
         // Fire off an asynchronous call to accept new clients.
-        var acceptTask = acceptClients();
+        var acceptTask = _transport.acceptAsync();
         // Fire off another async call to read and execute commands from the console.
         var consoleCommandTask = acceptCommands();
 
@@ -128,7 +182,7 @@ public class ChatServer {
         return CompletableFuture.runAsync(() -> {
             // Scan in input from stdin
             var scanner = new Scanner(System.in);
-            while(!Thread.interrupted() && _socket.isBound()) {
+            while(!Thread.interrupted() && _transport.isOpen()) {
                 // We don't want to be blocking on nextLine(), spinning on sleeps ensures we observe IRQs
                 while(!scanner.hasNextLine()) {
                     try {
@@ -168,61 +222,316 @@ public class ChatServer {
     }
 
     /**
-     * Asynchronously accept new client sessions on the socket
-     * @return Returns a Future that will complete only when cancelled or the socket terminates.
+     * Creates a sharded bus if the "shards" configuration value asks for one, otherwise the shared bus.
      */
-    private CompletableFuture<Void> acceptClients() {
-        // Run this on a threadpool thread
-        return CompletableFuture.runAsync(() -> {
-            _logger.info("ready");
-            while(!Thread.interrupted() && !_socket.isClosed()) {
+    private ConcurrentMessageBus createMessageBus() {
+        var queueOptions = OutboundQueueOptions.fromConfig(_config, _logger);
+        var flushOptions = FlushOptions.fromConfig(_config);
+        var shards = _config.getString("shards", "0");
+        try {
+            var shardCount = Integer.parseInt(shards);
+            if (shardCount > 0) {
+                return new ShardedMessageBus(_codec, queueOptions, flushOptions, shardCount);
+            }
+        }
+        catch (NumberFormatException formatEx) {
+            _logger.warn("invalid shard count %s, sessions will share a single bus", shards);
+        }
+        return new ConcurrentMessageBus(_codec, queueOptions, flushOptions);
+    }
+
+    /**
+     * Creates the pipeline sessions hand events to, if the "pipeline" configuration value asks for one.
+     * @return The started pipeline, or null if events are handled on the threads that read them.
+     */
+    private EventPipeline createPipeline() {
+        if (!_config.isSet("pipeline")) {
+            return null;
+        }
+        if (_messageBus instanceof ShardedMessageBus) {
+            _logger.warn("--pipeline can't be combined with --shards, events are handled on each shard instead");
+            return null;
+        }
+        if (!(_codec instanceof BinaryEventCodec)) {
+            _logger.warn("--pipeline needs the binary codec to split frames off connections, events are handled by their readers instead");
+            return null;
+        }
+
+        var size = EventPipeline.DEFAULT_SIZE;
+        var sizeValue = _config.getString("pipeline");
+        if (sizeValue != null && !sizeValue.isEmpty()) {
+            try {
+                size = Integer.parseInt(sizeValue);
+            }
+            catch (NumberFormatException formatEx) {
+                _logger.warn("invalid pipeline size %s, using %d slots", sizeValue, size);
+            }
+        }
+        var pipeline = new EventPipeline(_logger, (BinaryEventCodec)_codec, size);
+        pipeline.start();
+        return pipeline;
+    }
+
+    /**
+     * Opens the journal if the "journal" configuration value names a directory, and refills the history with the
+     * most recent messages it holds.
+     * @return The started journal, or null if messages aren't journalled.
+     */
+    private MessageJournal openJournal() {
+        var options = JournalOptions.fromConfig(_config);
+        if (options == null) {
+            return null;
+        }
+        try {
+            var journal = MessageJournal.open(_logger, options);
+            var history = _messageBus.getHistory();
+            var search = _messageBus.getSearch();
+            if ((history != null || search != null) && options.getReplay() > 0) {
+                // DMs are journalled with no room, they have no history to go back into
+                journal.replay(options.getReplay(), (sequence, timestamp, room, frame) -> {
+                    if (room == null) {
+                        return;
+                    }
+                    if (history != null) {
+                        history.record(room, frame);
+                    }
+                    if (search != null) {
+                        indexJournalled(search, room, frame);
+                    }
+                });
+            }
+            _logger.info("journal opened at %s, %d segments, last sequence %d", options.getDirectory(), journal.getSegmentCount(), journal.getLastSequence());
+            journal.start();
+            return journal;
+        }
+        catch (IOException ioEx) {
+            _logger.error("failed to open the journal, messages won't be journalled: %s", ioEx.getMessage());
+            return null;
+        }
+    }
+
+    private void indexJournalled(SearchIndex search, String room, byte[] frame) {
+        try {
+            var messageArgs = (MessageSendEventArgs)_codec.read(new ByteArrayInputStream(frame)).getEventArgs();
+            search.add(messageArgs.getAuthor(), room, messageArgs.getContent());
+        }
+        catch (IOException | ClassCastException decodeEx) {
+            _logger.debug("skipped an undecodable journal record: %s", decodeEx.getMessage());
+        }
+    }
+
+    private Federation createFederation() {
+        try {
+            return Federation.fromConfig(_config, _logger, _messageBus);
+        }
+        catch (IOException | NumberFormatException configEx) {
+            _logger.error("invalid federation configuration, running on our own: %s", configEx.getMessage());
+            return null;
+        }
+    }
+
+    private MetricsEndpoint createMetricsEndpoint() {
+        try {
+            return MetricsEndpoint.fromConfig(_config, _logger, _messageBus.getMetrics().getRegistry());
+        }
+        catch (IOException | NumberFormatException configEx) {
+            _logger.error("invalid metrics configuration, metrics won't be served: %s", configEx.getMessage());
+            return null;
+        }
+    }
+
+    private void startMetricsEndpoint() {
+        if (_metricsEndpoint == null) {
+            return;
+        }
+        try {
+            _metricsEndpoint.start();
+        }
+        catch (IOException ioEx) {
+            // Clients can still be served without it
+            _logger.error("failed to bind the metrics port %d, metrics won't be served: %s", _metricsEndpoint.getPort(), ioEx.getMessage());
+        }
+    }
+
+    /**
+     * Creates the store DMs to offline users are kept in, unless "inboxmessages" is 0.
+     */
+    private DirectMessageStore createInboxes() {
+        try {
+            return DirectMessageStore.fromConfig(_config, _logger);
+        }
+        catch (IOException ioEx) {
+            _logger.error("failed to create the DM spill directory, DMs to offline users will be dropped: %s", ioEx.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates the transport selected by the "transport" configuration value.
+     * @return The transport, or null if the configured value isn't recognised.
+     */
+    private IServerTransport createTransport() {
+        var transport = _config.getString("transport", "blocking");
+        if (_messageBus instanceof ShardedMessageBus) {
+            // Every shard is an event loop, so sharding always runs on the nio transport
+            if (!transport.equals("nio") && _config.isSet("transport")) {
+                _logger.warn("--shards requires the nio transport, ignoring --transport=%s", transport);
+            }
+            var shardCount = ((ShardedMessageBus)_messageBus).getShardCount();
+            return new NioServerTransport(_logger, this, _messageBus, _codec, shardCount);
+        }
+        switch (transport) {
+            case "blocking":
+                return new BlockingServerTransport(_logger, this, _messageBus, _codec);
+            case "nio":
+                var loops = _config.getString("loops", String.valueOf(Runtime.getRuntime().availableProcessors()));
                 try {
-                    // Block on accept();
-                    var clientSocket = _socket.accept();
-                    // Prepare to handle the client handshake
-                    var handshaker = new ClientSessionNegotiator(_logger, clientSocket, _messageBus);
-                    // Chain an async continuation that calls handleSession() to the result of the handshake
-                    CompletableFuture.supplyAsync(handshaker, AppThreadPool.getInstance()).thenAcceptAsync(this::handleSession, AppThreadPool.getInstance());
+                    return new NioServerTransport(_logger, this, _messageBus, _codec, Math.max(1, Integer.parseInt(loops)));
                 }
-                catch (IOException ignored) {
-                    return;
+                catch (NumberFormatException formatEx) {
+                    _logger.error("invalid loop count %s", loops);
+                    return null;
                 }
-            }
-        }, AppThreadPool.getInstance());
+            default:
+                _logger.error("unknown transport %s", transport);
+                return null;
+        }
     }
 
     /**
-     * Called asynchronously when a client has completed the handshake process and established a new potential session.
+     * Called by the transport when a client has completed the handshake and is ready to join.
      * @param session The potential session
+     * @return Whether the session was added to the bus. Rejected sessions are closed.
      */
-    private void handleSession(ClientSession session) {
-        // If the session wasn't established i.e. failed the handshake, we're done.
-        if (session == null) {
-            return;
+    boolean openSession(ClientSession session) {
+        // A client resuming a dropped session takes its place without anyone else being told
+        var resumeRequest = session.getResumeRequest();
+        if (resumeRequest != null && tryResume(session, resumeRequest)) {
+            watch(session);
+            return true;
         }
-
         try {
-            // If there is already a user with this name connected, reject the connection
-            if (!_messageBus.tryAddClient(session)) {
+            // If there is already a user with this name connected, reject the connection. A session of theirs that
+            // is only waiting to be resumed gives way to a fresh login.
+            if (!_messageBus.tryAddClient(session) && (!evictParked(session.getName()) || !_messageBus.tryAddClient(session))) {
                 _logger.debug("%s: already has an existing session", session.getName());
                 session.close();
-                return;
+                return false;
             }
-            // If they were added to the bus successfully, broadcast their join event.
-            _logger.info("%s: connected", session.getName());
-            var joinEvent = ChatEventFactory.fromUserJoin(session.getName());
-            _messageBus.broadcast(joinEvent);
-            // Block
-            session.run();
-            // Once this method returns, it means they disconnected- time to clean up.
-            _messageBus.removeClient(session);
+        }
+        catch (IOException ignored) {
+            return false;
+        }
+        // If they were added to the bus successfully, broadcast their join event.
+        _logger.info("%s: connected", session.getName());
+        var joinEvent = ChatEventFactory.fromUserJoin(session.getName());
+        _messageBus.broadcast(joinEvent);
+        _messageBus.getRoster().join(session.getName());
+        issueResumeToken(session, 0);
+        // Everyone online, the delta with us in it follows
+        _messageBus.getRoster().sendSnapshot(session);
+        // Then catch them up on what's been said in the room they start in, and on DMs sent while they were away
+        _messageBus.replayHistory(session, session.getRoom());
+        _messageBus.deliverInbox(session);
+        watch(session);
+        return true;
+    }
+
+    private void watch(ClientSession session) {
+        var heartbeat = _messageBus.getHeartbeat();
+        if (heartbeat != null) {
+            heartbeat.watch(session);
+        }
+    }
+
+    /**
+     * Resumes the parked session a RESUME names, sending the new session only the events the client missed.
+     * @return False if there was no such session, or it's missed too much, and the client should join afresh.
+     */
+    private boolean tryResume(ClientSession session, ResumeEventArgs request) {
+        var parkedSessions = _messageBus.getParkedSessions();
+        var parked = parkedSessions == null ? null : parkedSessions.claim(request.getToken());
+        if (parked == null) {
+            _logger.debug("%s: nothing to resume, joining afresh", session.getName());
+            return false;
+        }
+        if (!_messageBus.resume(parked, session, request.getSequence())) {
+            _logger.debug("%s: missed more than can be resumed, joining afresh", parked.getName());
+            leave(parked);
+            return false;
+        }
+        parkedSessions.recordResumed();
+        _logger.info("%s: resumed", session.getName());
+        issueResumeToken(session, request.getSequence());
+        return true;
+    }
+
+    /**
+     * Gives a session a token to resume it with, if the server resumes sessions.
+     * @param resumedAfter The sequence number the session was resumed after, 0 for a new session.
+     */
+    private void issueResumeToken(ClientSession session, long resumedAfter) {
+        var parkedSessions = _messageBus.getParkedSessions();
+        if (parkedSessions == null) {
+            return;
+        }
+        session.setResumeToken(parkedSessions.issueToken());
+        session.send(ChatEventFactory.fromResume(session.getName(), session.getResumeToken(), resumedAfter));
+    }
+
+    /**
+     * Ends a parked session of the given name.
+     * @return Whether there was one.
+     */
+    private boolean evictParked(String name) {
+        var parkedSessions = _messageBus.getParkedSessions();
+        var parked = parkedSessions == null ? null : parkedSessions.claimByName(name);
+        if (parked == null) {
+            return false;
+        }
+        leave(parked);
+        return true;
+    }
+
+    /**
+     * Called by the transport once an established session has disconnected.
+     * @param session The session that was previously accepted by openSession()
+     */
+    void closeSession(ClientSession session) {
+        var heartbeat = _messageBus.getHeartbeat();
+        if (heartbeat != null) {
+            heartbeat.unwatch(session);
+        }
+        var parkedSessions = _messageBus.getParkedSessions();
+        // Decided before closing, as closing the session from our side ends it
+        var resumable = parkedSessions != null && session.getResumeToken() != null && !session.isEnded()
+                && session.getRoom() != null && _transport != null && _transport.isOpen();
+        try {
             session.close();
-            // Announce the disconnect
-            _messageBus.broadcast(ChatEventFactory.fromUserLeave(session.getName()));
-            _logger.info("%s: disconnected", session.getName());
         }
         catch (IOException ignored) {
         }
+        if (resumable) {
+            // It stays on the bus, and keeps what it's sent, until it's resumed or the window runs out
+            _logger.info("%s: connection lost, holding the session for %d s", session.getName(), parkedSessions.getWindowMillis() / 1000);
+            parkedSessions.park(session, () -> leave(session));
+            return;
+        }
+        leave(session);
+    }
+
+    /**
+     * Takes a session off the bus and announces it has gone.
+     */
+    private void leave(ClientSession session) {
+        _messageBus.removeClient(session);
+        // Announce the disconnect
+        _messageBus.broadcast(ChatEventFactory.fromUserLeave(session.getName()));
+        // Unless the name has already been taken up again, e.g. by a user on another node
+        if (_messageBus.getClient(session.getName()) == null) {
+            _messageBus.getRoster().leave(session.getName());
+        }
+        _logger.info("%s: disconnected", session.getName());
     }
 
     private void dispose() {
@@ -230,14 +539,33 @@ public class ChatServer {
         if (!_cleanupLock.tryAcquire()) {
             return;
         }
+        if (_transport == null) {
+            return;
+        }
         try {
             _logger.info("closing socket");
-            _socket.close();
+            _transport.close();
             _logger.info("closed");
         }
         catch (IOException ioEx) {
             _logger.error("error closing socket: %s", ioEx.getMessage());
         }
+        if (_messageBus.getFederation() != null) {
+            _messageBus.getFederation().close();
+        }
+        if (_metricsEndpoint != null) {
+            _metricsEndpoint.close();
+        }
+        if (_messageBus.getPipeline() != null) {
+            _messageBus.getPipeline().close();
+        }
+        if (_messageBus.getJournal() != null) {
+            _messageBus.getJournal().close();
+        }
+        if (_messageBus.getSearch() != null) {
+            _messageBus.getSearch().close();
+        }
+        _timers.close();
     }
 
     /**
@@ -253,11 +581,61 @@ public class ChatServer {
         var configuration = new ConfigurationBuilder()
                 .addConsole(args)
                 .build();
+        AppThreadPool.configure(configuration);
 
         var helpMenu = new HelpMenuBuilder()
                 .setTitle("==ChatServer==")
                 .addItem("csp", "The port that the server should bind to. Defaults to 14001")
                 .addItem("csa", "The ipv4 host that the server should bind on. Defaults to 127.0.0.1")
+                .addItem("metrics", "Port to serve metrics on at /metrics, in the Prometheus text format, on the csa address. Defaults to 0, not served")
+                .addItem("trace", "Time how long every frame waits in its session's queue, alongside the hops of messages clients trace, shown by STATS")
+                .addItem("transport", "How client connections are serviced, blocking or nio. Defaults to blocking")
+                .addItem("loops", "The number of event loop threads used by the nio transport. Defaults to the number of cores")
+                .addItem("shards", "Partitions sessions across this many thread-per-core shards, each with its own nio event loop. Defaults to 0, unsharded")
+                .addItem("pipeline", "Hands events read from clients to a ring buffer pipeline of decode, validate and fan-out threads. Takes an optional ring size, defaults to 4096 slots")
+                .addItem("history", "Messages kept per room and replayed to users joining it, 0 to keep none. Defaults to 100")
+                .addItem("historybytes", "Bytes of messages kept per room. Defaults to 65536")
+                .addItem("historyrooms", "Rooms history is kept for, the quietest loses its history past this. Defaults to 256")
+                .addItem("search", "Messages kept searchable with SEARCH, 0 to index none. Defaults to 100000")
+                .addItem("journal", "Directory to journal every message and DM to, replayed into the history on startup. Defaults to none")
+                .addItem("journalsegment", "Bytes per journal segment file. Defaults to 67108864")
+                .addItem("journalbytes", "Bytes of journal kept before the oldest segments are deleted. Defaults to 1073741824")
+                .addItem("journalhours", "Hours a journal segment is kept after its last write. Defaults to 168")
+                .addItem("journalsync", "batch to force every group commit to disk, none to leave it to the OS. Defaults to batch")
+                .addItem("journalreplay", "Messages read back out of the journal into the history on startup. Defaults to 10000")
+                .addItem("inboxmessages", "DMs kept for each offline user until they next log in, 0 to drop them. Defaults to 1000")
+                .addItem("inboxbytes", "Bytes of DMs kept in memory per offline user before the rest spill to disk. Defaults to 65536")
+                .addItem("inboxspill", "Bytes of DMs spilled to disk per offline user. Defaults to 1048576")
+                .addItem("inboxmemory", "Bytes of DMs kept in memory across every offline user. Defaults to 16777216")
+                .addItem("inboxdisk", "Bytes of DMs spilled to disk across every offline user. Defaults to 268435456")
+                .addItem("inboxusers", "Offline users DMs are kept for at once. Defaults to 10000")
+                .addItem("inboxage", "Seconds DMs are kept for an offline user who doesn't log in, 0 for no limit. Defaults to 86400")
+                .addItem("inboxdir", "Directory DMs are spilled to. Defaults to a new temporary directory")
+                .addItem("resume", "Seconds a session whose connection dropped is held for its client to resume, 0 to end it at once. Defaults to 30")
+                .addItem("resumeframes", "Frames sent to each session kept for resuming it. Defaults to 256")
+                .addItem("handshake", "Seconds a connection has to log in before it's dropped, 0 to wait for ever. Defaults to 10")
+                .addItem("ping", "Seconds a client may send nothing before it's pinged, 0 to never ping. Defaults to 30")
+                .addItem("pingtimeout", "Seconds a pinged client has to answer before its connection is dropped. Defaults to 10")
+                .addItem("idle", "Seconds a client may send nothing but PONGs before it's disconnected, 0 to never disconnect it. Defaults to 0")
+                .addItem("rate", "Events per second each client may send, the rest are dropped and the client told. Defaults to 0, unlimited")
+                .addItem("burst", "Events a client may send at once over its rate. Defaults to 2 seconds' worth")
+                .addItem("acceptrate", "Connections accepted per second, the rest are rejected in place of a HELLO. Defaults to 0, unlimited")
+                .addItem("acceptburst", "Connections accepted at once over the accept rate. Defaults to 2 seconds' worth")
+                .addItem("roster", "Milliseconds changes to who's online are gathered up for before clients are sent them as one ROSTER delta, 0 to send each at once. Defaults to 100")
+                .addItem("compress", "Smallest frame body in bytes compressed for clients that ask for it, 0 to never compress. Defaults to 128")
+                .addItem("federation", "Port to link with other servers on, sharing one chat between them. Defaults to 0, running on our own")
+                .addItem("peers", "Comma separated host:port federation addresses of the other servers, every server must list or be listed by every other. Defaults to none")
+                .addItem("federationsecret", "Secret every node of the federation shares and presents when linking, required with federation")
+                .addItem("federationaddress", "Address to link with other servers on, e.g. a private interface. Defaults to csa")
+                .addItem("node", "This server's name among the federation, unique to it. Defaults to csa:csp")
+                .addItem("backlog", "Connections the OS queues for the server to accept. Defaults to 50")
+                .addItem("codec", "Wire format spoken with clients, binary or java. Defaults to binary")
+                .addItem("queuehigh", "Frames a client may fall behind by before the overflow policy applies. Defaults to 1024")
+                .addItem("queuelow", "Depth a congested client's queue must drain to before it recovers. Defaults to queuehigh / 4")
+                .addItem("overflow", "What to do with a client over queuehigh, dropoldest, dropnew or disconnect. Defaults to disconnect")
+                .addItem("flushbytes", "Bytes of outgoing frames buffered per client before a write is forced. Defaults to 16384")
+                .addItem("flushus", "Microseconds outgoing frames may be held back to share a write, e.g. 500. Defaults to 0, flushing whenever the writer runs dry")
+                .addItem("executor", "Runs handshakes and blocking sessions on a fixed pool or on virtual threads. Defaults to fixed")
                 .build();
 
         if (configuration.isSet("help")) {
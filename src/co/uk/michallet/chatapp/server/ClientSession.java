@@ -1,123 +1,564 @@
 package co.uk.michallet.chatapp.server;
 
 import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
 import co.uk.michallet.chatapp.common.net.ChatEvent;
 import co.uk.michallet.chatapp.common.net.SocketOpCode;
 import co.uk.michallet.chatapp.common.net.models.DmEventArgs;
+import co.uk.michallet.chatapp.common.net.models.HistoryEventArgs;
 import co.uk.michallet.chatapp.common.net.models.MessageSendEventArgs;
+import co.uk.michallet.chatapp.common.net.models.ResumeEventArgs;
+import co.uk.michallet.chatapp.common.net.models.RoomEventArgs;
+import co.uk.michallet.chatapp.common.net.models.SearchEventArgs;
 import co.uk.michallet.chatapp.common.net.models.UserChangeNameArgs;
 import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.util.Collections;
 
 /**
- * Represents the session of a connected client.
+ * Represents the session of a connected client, independent of the transport the client is connected over.
  */
-public class ClientSession implements Runnable {
+public abstract class ClientSession {
+    // Longest search a client may run
+    private static final int MAX_QUERY_LENGTH = 256;
+
     private final ILogger _logger;
-    private final Socket _socket;
     private String _name;
+    // Only changed by the bus, null once the session has been removed from it
+    private volatile String _room;
     private final UserJoinEventArgs _joinEventArgs;
     private final ConcurrentMessageBus _messageBus;
+    // Routing of events handled inline, only touched by whichever thread reads from the connection
+    private final EventRoute _route;
+    // Frames recently sent to us, null if sessions can't be resumed
+    private final ResumeBuffer _resumeBuffer;
+    // Issued once the session is established, null until then
+    private volatile String _resumeToken;
+    // Set if the client logged in with a RESUME rather than a USER_JOIN
+    private ResumeEventArgs _resumeRequest;
+    // Set once either end has ended the session on purpose, a session that only lost its connection can be resumed
+    private volatile boolean _ended;
+    // Heartbeat ticks the client last sent anything, and last sent anything but a PONG, on
+    private volatile long _lastActivity;
+    private volatile long _lastEvent;
+    // Set when the heartbeat pings us, cleared by anything the client sends
+    private volatile boolean _awaitingPong;
+    // Null unless the server watches for quiet sessions
+    private SessionHeartbeat _heartbeat;
+    // Limits the events the client may send, null if they aren't limited
+    private final TokenBucket _rateLimit;
+    // Set while the client is over its limit, only touched by whichever thread applies its events
+    private boolean _throttled;
+    // Compresses what we're sent, null if the client didn't ask for it
+    private final FrameCompression _compression;
+    private final ServerMetrics _metrics;
 
-    public ClientSession(ILogger logger, Socket socket, UserJoinEventArgs joinEventArgs, ConcurrentMessageBus messageBus) {
+    public ClientSession(ILogger logger, UserJoinEventArgs joinEventArgs, ConcurrentMessageBus messageBus) {
         _logger = logger;
-        _socket = socket;
         _name = joinEventArgs.getName();
         _joinEventArgs = joinEventArgs;
         _messageBus = messageBus;
+        _route = new EventRoute();
+        var parked = messageBus.getParkedSessions();
+        _resumeBuffer = parked == null ? null : new ResumeBuffer(parked.getBufferFrames());
+        var admission = messageBus.getAdmission();
+        _rateLimit = admission == null ? null : admission.createSessionBucket();
+        var compression = messageBus.getCompression();
+        _compression = compression != null && compression.accepts(joinEventArgs) ? compression : null;
+        _metrics = messageBus.getMetrics();
+    }
+
+    /**
+     * @return The name to create a session as, from the USER_JOIN or RESUME a client logged in with, or null if the
+     * event is neither or the name isn't a valid one.
+     */
+    static UserJoinEventArgs getLoginArgs(ChatEvent loginEvent) {
+        var opCode = loginEvent.getOpCode();
+        UserJoinEventArgs joinArgs = null;
+        if (opCode == SocketOpCode.USER_JOIN.getValue() && loginEvent.getEventArgs() instanceof UserJoinEventArgs) {
+            joinArgs = (UserJoinEventArgs)loginEvent.getEventArgs();
+        }
+        else if (opCode == SocketOpCode.RESUME.getValue() && loginEvent.getEventArgs() instanceof ResumeEventArgs) {
+            var resumeArgs = (ResumeEventArgs)loginEvent.getEventArgs();
+            joinArgs = new UserJoinEventArgs();
+            joinArgs.setName(resumeArgs.getName());
+            joinArgs.setCompression(resumeArgs.getCompression());
+        }
+        if (joinArgs == null || !ConcurrentMessageBus.isValidUserName(joinArgs.getName())) {
+            return null;
+        }
+        return joinArgs;
     }
 
     public String getName() {
         return _name;
     }
 
+    /**
+     * Only used when resuming, a session takes the name of the one it replaces.
+     */
+    void setName(String value) {
+        _name = value;
+    }
+
+    public String getRoom() {
+        return _room;
+    }
+
+    void setRoom(String value) {
+        _room = value;
+    }
+
     public UserJoinEventArgs getJoinEvent() {
         return _joinEventArgs;
     }
 
+    /**
+     * @return Whether the client agreed to compression, so its frames may be sent, and may arrive, compressed.
+     */
+    public boolean isCompressed() {
+        return _compression != null;
+    }
+
+    protected ILogger getLogger() {
+        return _logger;
+    }
+
+    protected ConcurrentMessageBus getMessageBus() {
+        return _messageBus;
+    }
+
+    ResumeBuffer getResumeBuffer() {
+        return _resumeBuffer;
+    }
+
+    public String getResumeToken() {
+        return _resumeToken;
+    }
+
+    void setResumeToken(String value) {
+        _resumeToken = value;
+    }
+
+    /**
+     * @return The RESUME the client logged in with, or null if it logged in with a USER_JOIN.
+     */
+    ResumeEventArgs getResumeRequest() {
+        return _resumeRequest;
+    }
+
+    void setResumeRequest(ResumeEventArgs value) {
+        _resumeRequest = value;
+    }
+
+    /**
+     * @return Whether the session was ended on purpose, by a GOODBYE from the client or by the server closing it.
+     */
+    public boolean isEnded() {
+        return _ended;
+    }
+
+    void end() {
+        _ended = true;
+    }
+
+    SessionHeartbeat getHeartbeat() {
+        return _heartbeat;
+    }
+
+    void setHeartbeat(SessionHeartbeat value) {
+        _heartbeat = value;
+    }
+
+    long getLastActivityTick() {
+        return _lastActivity;
+    }
+
+    long getLastEventTick() {
+        return _lastEvent;
+    }
+
+    boolean isAwaitingPong() {
+        return _awaitingPong;
+    }
+
+    void setAwaitingPong(boolean value) {
+        _awaitingPong = value;
+    }
+
+    /**
+     * Notes that the client has sent something.
+     * @param tick The heartbeat's current tick.
+     * @param isEvent False if it was only a PONG, which keeps the connection alive but not an idle session.
+     */
+    void touch(long tick, boolean isEvent) {
+        // Only written when they change, most events arrive on the same tick as the one before
+        if (_lastActivity != tick) {
+            _lastActivity = tick;
+        }
+        if (isEvent && _lastEvent != tick) {
+            _lastEvent = tick;
+        }
+        if (_awaitingPong) {
+            _awaitingPong = false;
+        }
+    }
+
+    /**
+     * Sends a PING. It's written straight to the connection without a sequence number, as it's no use to a client
+     * resuming the session.
+     */
+    void ping() {
+        writeUnsequenced(ChatEventFactory.fromPing());
+    }
+
+    private void writeUnsequenced(ChatEvent chatEvent) {
+        try {
+            writeFrame(_messageBus.getCodec().encode(chatEvent));
+        }
+        catch (IOException ignored) {
+        }
+    }
+
     /**
      * Sends an event to this session.
      * @param chatEvent The event payload to send.
      */
-    public synchronized void send(ChatEvent chatEvent) {
+    public void send(ChatEvent chatEvent) {
         try {
-            var objectWriter = new ObjectOutputStream(_socket.getOutputStream());
-            objectWriter.writeObject(chatEvent);
+            sendFrame(encode(chatEvent));
         }
-        catch(Exception ex) {
-            // swallowed, IOExceptions will be immediately thrown in run()- no need to handle them here.
+        catch (IOException ignored) {
+            // Nothing is written during encoding, a failure here means the event itself couldn't be encoded.
         }
     }
 
     /**
-     * Called when the session has been established and the server is ready to read in messages from the client.
+     * Sends an already encoded event to this session. The frame may be shared with other sessions and must not be
+     * modified. It's kept for resuming the session, or passed on to the session that resumed this one.
+     * @param frame A complete frame produced by the bus' codec.
      */
-    @Override
-    public void run() {
-        try {
-            while (!Thread.interrupted() && !_socket.isClosed()) {
-                var eventData = readEvent();
+    public void sendFrame(byte[] frame) {
+        var buffer = _resumeBuffer;
+        if (buffer == null) {
+            queue(frame);
+            return;
+        }
+        ClientSession successor;
+        synchronized (buffer) {
+            successor = buffer.getSuccessor();
+            if (successor == null) {
+                // Recorded and queued together, so the buffer holds frames in the order the client is sent them.
+                // It keeps them as they were, the session that resumes this one may not compress.
+                buffer.record(frame);
+                queue(frame);
+                return;
+            }
+        }
+        successor.sendFrame(frame);
+    }
+
+    private void queue(byte[] frame) {
+        if (_compression != null) {
+            frame = _compression.compress(frame);
+        }
+        _metrics.getFramesOut().increment();
+        _metrics.getBytesOut().add(frame.length);
+        writeFrame(frame);
+    }
+
+    /**
+     * Queues a frame to be written to the connection.
+     */
+    protected abstract void writeFrame(byte[] frame);
 
-                if (eventData == null) {
-                    _logger.debug("%s: null, aborting", _name);
-                    return;
+    /**
+     * @return The queue of frames waiting to be written to this session.
+     */
+    public abstract OutboundQueue getOutboundQueue();
+
+    protected byte[] encode(ChatEvent chatEvent) throws IOException {
+        chatEvent.setSequence(_messageBus.nextSequence());
+        return _messageBus.getCodec().encode(chatEvent);
+    }
+
+    /**
+     * Close the underlying connection
+     * @throws IOException
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * Drops the connection without a GOODBYE, as though it had been lost, so the session can still be resumed.
+     */
+    public abstract void abort();
+
+    /**
+     * Handles an event the client sent to the server.
+     * @param eventData The event read from the connection.
+     * @return Whether the session should keep reading events.
+     */
+    protected boolean handleEvent(ChatEvent eventData) {
+        if (!applyEvent(eventData, _route)) {
+            return false;
+        }
+        deliverEvent(eventData, _route);
+        return true;
+    }
+
+    /**
+     * Validates an event the client sent and applies its effects on the session, e.g. stamping the author or changing
+     * the session's name or room, without sending anything. Events must be applied in the order the client sent them.
+     * @param route Filled in with where deliverEvent() should send the event.
+     * @return Whether the session should keep reading events.
+     */
+    boolean applyEvent(ChatEvent eventData, EventRoute route) {
+        route.reset();
+        _metrics.getEventsIn().increment();
+        var heartbeat = _messageBus.getHeartbeat();
+        if (heartbeat != null) {
+            touch(heartbeat.now(), eventData.getOpCode() != SocketOpCode.PONG.getValue());
+        }
+        // Dropped before they can cost a fan-out, a PONG or GOODBYE is never held against the client
+        if (_rateLimit != null && eventData.getOpCode() != SocketOpCode.PONG.getValue()
+                && eventData.getOpCode() != SocketOpCode.GOODBYE.getValue()) {
+            if (!_rateLimit.tryAcquire()) {
+                shed(eventData.getOpCode());
+                return true;
+            }
+            _throttled = false;
+        }
+        SocketOpCode opCode;
+        try {
+            opCode = SocketOpCode.fromValue(eventData.getOpCode());
+        }
+        catch (IllegalArgumentException unknownEx) {
+            _logger.debug("%s: unknown opcode %d, closing", _name, eventData.getOpCode());
+            return false;
+        }
+        // Switch on the opcode of the event we received. The binary codec always decodes the args an opcode calls
+        // for, the java codec takes whatever the client serialized, so args of the wrong type end the session.
+        switch (opCode) {
+            case CHANGE_NAME:
+                _logger.debug("%s: change name", _name);
+                var nameArgs = argsOf(eventData, UserChangeNameArgs.class);
+                if (nameArgs == null) {
+                    return rejectArgs(opCode);
                 }
-                // Switch on the opcode of the event we received
-                switch (SocketOpCode.fromValue(eventData.getOpCode())) {
-                    case CHANGE_NAME:
-                        _logger.debug("%s: change name", _name);
-                        var nameArgs = (UserChangeNameArgs)eventData.getEventArgs();
-                        nameArgs.setOldName(_name);
-                        if (_messageBus.tryRename(nameArgs.getOldName(), nameArgs.getName())) {
-                            _name = nameArgs.getName();
-                            _messageBus.broadcast(eventData);
-                        }
-                        break;
-                    case MESSAGE:
-                        _logger.debug("%s: sent message", _name);
-                        var messageArgs = (MessageSendEventArgs)eventData.getEventArgs();
-                        messageArgs.setAuthor(_name); // Never trust the client. Set the name associated with the session server-side.
-                        _messageBus.broadcast(eventData);
-                        break;
-                    case DIRECT_MESSAGE:
-                        _logger.debug("%s: sent direct message", _name);
-                        var dmArgs = (DmEventArgs)eventData.getEventArgs();
-                        var target = _messageBus.getClient(dmArgs.getTargetName());
-                        if (target != null) {
-                            dmArgs.setSenderName(_name); // Never trust the client 2: electric boogaloo
-                            target.send(eventData);
-                            send(eventData);
-                        }
-                        break;
-                    case GOODBYE:
-                        _logger.debug("%s: sent goodbye", _name);
-                        return;
-                    default:
-                        _logger.debug("%s: unknown opcode", _name);
-                        break;
+                if (!ConcurrentMessageBus.isValidUserName(nameArgs.getName())) {
+                    _logger.debug("%s: invalid name", _name);
+                    break;
                 }
-            }
+                nameArgs.setOldName(_name);
+                if (_messageBus.tryRename(nameArgs.getOldName(), nameArgs.getName())) {
+                    _name = nameArgs.getName();
+                    route.setDeliver(true);
+                }
+                break;
+            case MESSAGE:
+                _logger.debug("%s: sent message", _name);
+                var messageArgs = argsOf(eventData, MessageSendEventArgs.class);
+                if (messageArgs == null) {
+                    return rejectArgs(opCode);
+                }
+                messageArgs.setAuthor(_name); // Never trust the client. Set the name associated with the session server-side.
+                _metrics.getMessagesIn().increment();
+                route.setRoom(_room);
+                // A pipeline can still be working through events from a session that has since left the bus
+                route.setDeliver(_room != null && messageArgs.getContent() != null);
+                break;
+            case JOIN:
+                var roomArgs = argsOf(eventData, RoomEventArgs.class);
+                if (roomArgs == null) {
+                    return rejectArgs(opCode);
+                }
+                changeRoom(roomArgs, roomArgs.getRoom(), route);
+                break;
+            case PART:
+                var partArgs = argsOf(eventData, RoomEventArgs.class);
+                if (partArgs == null) {
+                    return rejectArgs(opCode);
+                }
+                // Leaving a room puts you back in the lobby
+                changeRoom(partArgs, ConcurrentMessageBus.DEFAULT_ROOM, route);
+                break;
+            case HISTORY:
+                if (argsOf(eventData, HistoryEventArgs.class) == null) {
+                    return rejectArgs(opCode);
+                }
+                // Always our own room, regardless of what the client asked for
+                route.setRoom(_room);
+                route.setDeliver(_room != null);
+                break;
+            case SEARCH:
+                // Answered to us alone, however long a query is it's only worth running up to a point
+                var searchArgs = argsOf(eventData, SearchEventArgs.class);
+                if (searchArgs == null) {
+                    return rejectArgs(opCode);
+                }
+                var query = searchArgs.getQuery();
+                route.setDeliver(query != null && query.length() <= MAX_QUERY_LENGTH);
+                break;
+            case DIRECT_MESSAGE:
+                _logger.debug("%s: sent direct message", _name);
+                var dmArgs = argsOf(eventData, DmEventArgs.class);
+                if (dmArgs == null) {
+                    return rejectArgs(opCode);
+                }
+                _metrics.getMessagesIn().increment();
+                // The java codec doesn't check for these itself
+                if (!ConcurrentMessageBus.isValidUserName(dmArgs.getTargetName()) || dmArgs.getContent() == null) {
+                    break;
+                }
+                var target = _messageBus.getClient(dmArgs.getTargetName());
+                // A target who isn't connected has the DM kept for them, if the server keeps any
+                if (target != null || _messageBus.getInboxes() != null) {
+                    dmArgs.setSenderName(_name); // Never trust the client 2: electric boogaloo
+                    route.setTarget(target);
+                    route.setDeliver(true);
+                }
+                break;
+            case PING:
+                // Answered however the server is configured, the client may have its own heartbeat
+                route.setDeliver(true);
+                break;
+            case ROSTER:
+                // Asking for a fresh snapshot, e.g. after missing a delta
+                route.setDeliver(true);
+                break;
+            case PONG:
+                // Only ever an answer to our PING, touching the session was all it was for
+                break;
+            case GOODBYE:
+                _logger.debug("%s: sent goodbye", _name);
+                _ended = true;
+                return false;
+            default:
+                _logger.debug("%s: unknown opcode", _name);
+                break;
         }
-        catch (IOException | ClassNotFoundException ignored) {
+        return true;
+    }
+
+    /**
+     * @return The event's args if they're of the type given, otherwise null.
+     */
+    private static <T> T argsOf(ChatEvent eventData, Class<T> type) {
+        var args = eventData.getEventArgs();
+        return type.isInstance(args) ? type.cast(args) : null;
+    }
+
+    /**
+     * @return False, an event missing the args its opcode calls for is a protocol error.
+     */
+    private boolean rejectArgs(SocketOpCode opCode) {
+        _logger.debug("%s: %s without its args, closing", _name, opCode);
+        return false;
+    }
+
+    private void shed(int opCode) {
+        var startedThrottling = !_throttled;
+        _throttled = true;
+        _messageBus.getAdmission().recordShed(startedThrottling);
+        if (startedThrottling) {
+            // Told once each time it goes over, rather than answering a flood with one of our own
+            _logger.debug("%s: over the rate limit, dropping events", _name);
+            send(ChatEventFactory.fromReject(opCode, "rate limited", _rateLimit.getMillisUntilAvailable()));
         }
     }
 
-    private ChatEvent readEvent() throws IOException, ClassNotFoundException {
-        // Wrap the socket inputstream in an object reader
-        var objectReader = new ObjectInputStream(_socket.getInputStream());
-        // Deserialize the bytes into a ChatEvent POJO
-        return (ChatEvent)objectReader.readObject();
+    private void changeRoom(RoomEventArgs roomArgs, String room, EventRoute route) {
+        if (!ConcurrentMessageBus.isValidRoomName(room)) {
+            _logger.debug("%s: invalid room name", _name);
+            return;
+        }
+        var previous = _messageBus.moveToRoom(this, room);
+        if (previous == null) {
+            return;
+        }
+        _logger.debug("%s: moved from %s to %s", _name, previous, room);
+        roomArgs.setName(_name);
+        route.setPreviousRoom(previous);
+        route.setRoom(room);
+        route.setDeliver(true);
     }
 
     /**
-     * Close the socket
-     * @throws IOException
+     * Sends an event that applyEvent() has accepted to wherever it was routed. applyEvent() has checked its args are
+     * of the type its opcode calls for.
      */
-    public synchronized void close() throws IOException {
-        _socket.close();
+    void deliverEvent(ChatEvent eventData, EventRoute route) {
+        if (!route.shouldDeliver()) {
+            return;
+        }
+        if (eventData.getTrace() != null) {
+            _metrics.recordTrace(eventData.getTrace());
+        }
+        switch (SocketOpCode.fromValue(eventData.getOpCode())) {
+            case CHANGE_NAME:
+                _messageBus.broadcast(eventData);
+                var nameArgs = (UserChangeNameArgs)eventData.getEventArgs();
+                _messageBus.getRoster().rename(nameArgs.getOldName(), nameArgs.getName());
+                break;
+            case MESSAGE:
+                _messageBus.broadcastToRoom(route.getRoom(), eventData);
+                break;
+            case JOIN:
+            case PART:
+                // The old room no longer includes us, so we're told we left separately. The new room's JOIN reaches us too.
+                var name = ((RoomEventArgs)eventData.getEventArgs()).getName();
+                var partEvent = ChatEventFactory.fromRoomPart(name, route.getPreviousRoom());
+                _messageBus.broadcastToRoom(route.getPreviousRoom(), partEvent);
+                send(partEvent);
+                _messageBus.broadcastToRoom(route.getRoom(), ChatEventFactory.fromRoomJoin(name, route.getRoom()));
+                _messageBus.replayHistory(this, route.getRoom());
+                break;
+            case HISTORY:
+                var history = _messageBus.getHistory();
+                if (history != null) {
+                    var frames = history.tail(route.getRoom(), ((HistoryEventArgs)eventData.getEventArgs()).getCount());
+                    if (frames != null) {
+                        sendFrame(frames);
+                    }
+                }
+                break;
+            case SEARCH:
+                var searchArgs = (SearchEventArgs)eventData.getEventArgs();
+                var search = _messageBus.getSearch();
+                if (search == null) {
+                    // Still answered, so the client isn't left waiting
+                    send(ChatEventFactory.fromSearchResults(searchArgs.getQuery(), searchArgs.getPage(), 0, Collections.emptyList()));
+                    break;
+                }
+                var results = search.search(searchArgs.getQuery(), searchArgs.getPage());
+                send(ChatEventFactory.fromSearchResults(results.getQuery(), results.getPage(), results.getTotal(), results.getHits()));
+                break;
+            case DIRECT_MESSAGE:
+                // Both ends are sent the same frame, so only encode it once
+                try {
+                    var frame = encode(eventData);
+                    if (route.getTarget() != null) {
+                        _messageBus.sendTo(route.getTarget(), frame);
+                    }
+                    else if (!_messageBus.sendOrStore(((DmEventArgs)eventData.getEventArgs()).getTargetName(), frame)) {
+                        // Their inbox is full, the sender doesn't get an echo of a DM nobody will read
+                        break;
+                    }
+                    sendFrame(frame);
+                    _messageBus.retain(null, eventData, frame);
+                }
+                catch (IOException ignored) {
+                }
+                break;
+            case PING:
+                writeUnsequenced(ChatEventFactory.fromPong());
+                break;
+            case ROSTER:
+                _messageBus.getRoster().sendSnapshot(this);
+                break;
+            default:
+                break;
+        }
     }
 }
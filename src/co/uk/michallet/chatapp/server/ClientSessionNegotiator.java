@@ -1,70 +1,96 @@
 package co.uk.michallet.chatapp.server;
 
 import co.uk.michallet.chatapp.common.ILogger;
-import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
 import co.uk.michallet.chatapp.common.net.ChatEvent;
-import co.uk.michallet.chatapp.common.net.SocketOpCode;
-import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.MeteredInputStream;
+import co.uk.michallet.chatapp.common.net.models.ResumeEventArgs;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.net.Socket;
 import java.util.function.Supplier;
 
 /**
  * Handles the handshake that upgrades the connection to a chat session
  */
-public class ClientSessionNegotiator implements Supplier<ClientSession> {
+public class ClientSessionNegotiator implements Supplier<BlockingClientSession> {
     private final ILogger _logger;
     private final Socket _socket;
+    private final IEventCodec _codec;
     private final ConcurrentMessageBus _messageBus;
+    // Armed as soon as the connection is accepted, so waiting for a handshake thread counts against it
+    private final HandshakeDeadline _deadline;
+    private InputStream _input;
 
-    public ClientSessionNegotiator(ILogger logger, Socket socket, ConcurrentMessageBus messageBus) {
+    public ClientSessionNegotiator(ILogger logger, Socket socket, IEventCodec codec, ConcurrentMessageBus messageBus) {
         _logger = logger;
         _socket = socket;
+        _codec = codec;
         _messageBus = messageBus;
+        // Closing the socket unblocks the read the handshake thread is waiting in
+        _deadline = messageBus.getHandshakes().begin(this::closeQuietly);
     }
 
     @Override
-    public ClientSession get() {
+    public BlockingClientSession get() {
         try {
-            // Send a HELLO payload with no event data to the client
+            // The same buffered stream is handed to the session, so nothing read ahead of the handshake is lost
+            _input = new BufferedInputStream(new MeteredInputStream(_socket.getInputStream(), _messageBus.getMetrics().getBytesIn()));
+            // Send a HELLO, with anything the server offers, to the client
             _logger.debug("starting handshake");
-            var helloEvent = ChatEventFactory.fromHello();
+            var helloEvent = _messageBus.createHello();
             writeEvent(helloEvent);
             _logger.debug("hello");
 
-            // Expect to receive a USER_JOIN in response
-            var userJoinEvent = readEvent();
-            if (!(userJoinEvent.getEventArgs() instanceof UserJoinEventArgs) || SocketOpCode.fromValue(userJoinEvent.getOpCode()) != SocketOpCode.USER_JOIN) {
+            // Expect to receive a USER_JOIN in response, or a RESUME from a client that was connected before.
+            // A client may have sent it straight after connecting, without waiting for the HELLO.
+            var loginEvent = readEvent();
+            var joinArgs = ClientSession.getLoginArgs(loginEvent);
+            if (joinArgs == null) {
                 _logger.debug("bad login message, aborting");
+                _messageBus.getHandshakes().fail(_deadline);
                 _socket.close();
                 return null;
             }
+            if (!_messageBus.getHandshakes().complete(_deadline)) {
+                // Arrived just as the deadline passed, the socket is already closed
+                return null;
+            }
 
             // If we got one, spin up a new session and pass it back to the caller
-            _logger.debug("%s: identify", ((UserJoinEventArgs)userJoinEvent.getEventArgs()).getName());
-            return new ClientSession(_logger, _socket, (UserJoinEventArgs)userJoinEvent.getEventArgs(), _messageBus);
+            _logger.debug("%s: identify", joinArgs.getName());
+            var session = new BlockingClientSession(_logger, _socket, _input, _codec, joinArgs, _messageBus);
+            if (loginEvent.getEventArgs() instanceof ResumeEventArgs) {
+                session.setResumeRequest((ResumeEventArgs)loginEvent.getEventArgs());
+            }
+            return session;
         }
-        catch (IOException | ClassNotFoundException ioEx) {
+        catch (IOException ioEx) {
             _logger.debug("exception during handshake: %s", ioEx.getMessage());
+            // Already counted if it was the deadline closing the socket
+            _messageBus.getHandshakes().fail(_deadline);
+            closeQuietly();
             return null;
         }
     }
 
+    private void closeQuietly() {
+        try {
+            _socket.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
     private void writeEvent(ChatEvent event) throws IOException {
-        // Wrap the Socket's OutputStream in an ObjectOutputStream and serialize a POJO to it
-        var objectWriter = new ObjectOutputStream(_socket.getOutputStream());
-        objectWriter.writeObject(event);
-        // Flush any buffered bytes to the underlying stream
-        objectWriter.flush();
+        // Encode the POJO into a single frame and write it to the socket in one go
+        _socket.getOutputStream().write(_codec.encode(event));
     }
 
-    private ChatEvent readEvent() throws IOException, ClassNotFoundException {
-        // Wrap the byte stream coming in over the socket in an ObjectInputStream
-        var objectReader = new ObjectInputStream(_socket.getInputStream());
-        // Deserialize them into a ChatEvent
-        return (ChatEvent)objectReader.readObject();
+    private ChatEvent readEvent() throws IOException {
+        // Decode the next frame coming in over the socket into a ChatEvent, compressed only if HELLO offered it
+        return _codec.read(_input, _messageBus.getCompression() != null);
     }
 }
@@ -1,63 +1,678 @@
 package co.uk.michallet.chatapp.server;
 
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
 import co.uk.michallet.chatapp.common.net.ChatEvent;
+import co.uk.michallet.chatapp.common.net.FlushOptions;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.SocketOpCode;
+import co.uk.michallet.chatapp.common.net.WriteStats;
+import co.uk.michallet.chatapp.common.net.models.MessageSendEventArgs;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
- * Maintains a list of subscribed sessions and broadcasts messages to them
+ * Maintains a list of subscribed sessions and broadcasts messages to them, either to everyone or to a single room.
+ * Every session is in exactly one room, starting out in the lobby.
  */
 public class ConcurrentMessageBus {
-    private Map<String, ClientSession> _subscribers;
+    public static final String DEFAULT_ROOM = "lobby";
+    private static final Pattern ROOM_NAME = Pattern.compile("[\\w-]{1,32}");
+    // Anything printable, spaces included, e.g. "Unnamed User"
+    private static final Pattern USER_NAME = Pattern.compile("[^\\p{Cntrl}]{1,32}");
 
-    public ConcurrentMessageBus() {
-        // We need to use a concurrent collection here otherwise getNames() is not threadsafe
-        _subscribers = new ConcurrentHashMap<>();
+    // Sessions connected to this node, by name and as an array each broadcast iterates
+    private final SessionRegistry _subscribers;
+    // Members of each room. Arrays are replaced rather than modified, so a broadcast iterates one without locking
+    private final Map<String, ClientSession[]> _rooms;
+    private final IEventCodec _codec;
+    private final OutboundQueueOptions _queueOptions;
+    private final FlushOptions _flushOptions;
+    // Shared by every subscriber's writer
+    private final WriteStats _writeStats;
+    // Set when events read from sessions are handled by a pipeline rather than on the reading thread
+    private EventPipeline _pipeline;
+    // Recent messages of each room, null if none are kept
+    private MessageHistory _history;
+    private MessageJournal _journal;
+    private DirectMessageStore _inboxes;
+    private SearchIndex _search;
+    private ParkedSessions _parkedSessions;
+    private HeartbeatMonitor _heartbeat;
+    private AdmissionControl _admission;
+    private HandshakeMonitor _handshakes;
+    // Who's online, as told to clients
+    private Roster _roster;
+    // Other servers we share the chat with, null if we're on our own
+    private Federation _federation;
+    // Null if frames are never compressed
+    private FrameCompression _compression;
+    // Numbers every event the server sends, so a client resuming can say which it saw last
+    private final AtomicLong _sequence;
+    private final ServerMetrics _metrics;
+
+    /**
+     * @param codec Wire format every subscriber speaks, events are encoded with it once per broadcast.
+     * @param queueOptions Limits on how far any one subscriber may fall behind.
+     * @param flushOptions How subscribers' writers coalesce frames.
+     */
+    public ConcurrentMessageBus(IEventCodec codec, OutboundQueueOptions queueOptions, FlushOptions flushOptions) {
+        _subscribers = new SessionRegistry();
+        _rooms = new ConcurrentHashMap<>();
+        _codec = codec;
+        _queueOptions = queueOptions;
+        _flushOptions = flushOptions;
+        _writeStats = new WriteStats();
+        _sequence = new AtomicLong();
+        _metrics = new ServerMetrics(this);
+        // Timed, but without a deadline, until the server says otherwise
+        _handshakes = new HandshakeMonitor(null, 0);
+        _metrics.registerHandshakes(_handshakes);
+        // Sending a delta for every change, until the server says otherwise
+        _roster = new Roster(this, null, 0);
+    }
+
+    public IEventCodec getCodec() {
+        return _codec;
+    }
+
+    public OutboundQueueOptions getQueueOptions() {
+        return _queueOptions;
+    }
+
+    public FlushOptions getFlushOptions() {
+        return _flushOptions;
+    }
+
+    public WriteStats getWriteStats() {
+        return _writeStats;
+    }
+
+    public ServerMetrics getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * @return The pipeline readers should publish frames to, or null if they handle events themselves.
+     */
+    public EventPipeline getPipeline() {
+        return _pipeline;
+    }
+
+    /**
+     * Must be called before any session is accepted.
+     */
+    public void setPipeline(EventPipeline pipeline) {
+        _pipeline = pipeline;
+        if (pipeline != null) {
+            _metrics.registerPipeline(pipeline);
+        }
+    }
+
+    public MessageHistory getHistory() {
+        return _history;
+    }
+
+    /**
+     * Must be called before any session is accepted.
+     */
+    public void setHistory(MessageHistory history) {
+        _history = history;
+    }
+
+    public MessageJournal getJournal() {
+        return _journal;
+    }
+
+    /**
+     * Must be called before any session is accepted.
+     */
+    public void setJournal(MessageJournal journal) {
+        _journal = journal;
+        if (journal != null) {
+            _metrics.registerJournal(journal);
+        }
+    }
+
+    /**
+     * @return Where DMs to users who aren't connected are kept, or null if they're dropped.
+     */
+    public DirectMessageStore getInboxes() {
+        return _inboxes;
+    }
+
+    /**
+     * Must be called before any session is accepted.
+     */
+    public void setInboxes(DirectMessageStore inboxes) {
+        _inboxes = inboxes;
+        if (inboxes != null) {
+            _metrics.registerInboxes(inboxes);
+        }
+    }
+
+    /**
+     * @return The index of messages broadcast to rooms, or null if they aren't searchable.
+     */
+    public SearchIndex getSearch() {
+        return _search;
+    }
+
+    /**
+     * Must be called before any session is accepted.
+     */
+    public void setSearch(SearchIndex search) {
+        _search = search;
+        if (search != null) {
+            _metrics.registerSearch(search);
+        }
+    }
+
+    /**
+     * @return Sessions waiting to be resumed, or null if sessions can't be resumed.
+     */
+    public ParkedSessions getParkedSessions() {
+        return _parkedSessions;
+    }
+
+    /**
+     * Must be called before any session is accepted.
+     */
+    public void setParkedSessions(ParkedSessions parkedSessions) {
+        _parkedSessions = parkedSessions;
+        if (parkedSessions != null) {
+            _metrics.registerParkedSessions(parkedSessions);
+        }
+    }
+
+    /**
+     * @return What pings quiet sessions and evicts idle ones, or null if nothing does.
+     */
+    public HeartbeatMonitor getHeartbeat() {
+        return _heartbeat;
+    }
+
+    /**
+     * Must be called before any session is accepted.
+     */
+    public void setHeartbeat(HeartbeatMonitor heartbeat) {
+        _heartbeat = heartbeat;
+        if (heartbeat != null) {
+            _metrics.registerHeartbeat(heartbeat);
+        }
+    }
+
+    /**
+     * @return The limits on events and connections, or null if nothing is limited.
+     */
+    public AdmissionControl getAdmission() {
+        return _admission;
+    }
+
+    /**
+     * Must be called before any session is accepted.
+     */
+    public void setAdmission(AdmissionControl admission) {
+        _admission = admission;
+        if (admission != null) {
+            _metrics.registerAdmission(admission);
+        }
+    }
+
+    /**
+     * @return The deadlines and timings of connections logging in.
+     */
+    public HandshakeMonitor getHandshakes() {
+        return _handshakes;
+    }
+
+    /**
+     * Must be called before any connection is accepted.
+     */
+    public void setHandshakes(HandshakeMonitor handshakes) {
+        _handshakes = handshakes;
+        if (handshakes != null) {
+            _metrics.registerHandshakes(handshakes);
+        }
+    }
+
+    public Roster getRoster() {
+        return _roster;
     }
 
-    private boolean getIsNameTaken(String name) {
-        return _subscribers.containsKey(name);
+    /**
+     * Must be called before any session is accepted.
+     */
+    public void setRoster(Roster roster) {
+        _roster = roster;
     }
 
+    /**
+     * @return The other nodes broadcasts and DMs are passed on to, or null if the server runs on its own.
+     */
+    public Federation getFederation() {
+        return _federation;
+    }
+
+    /**
+     * Must be called before any session is accepted.
+     */
+    public void setFederation(Federation federation) {
+        _federation = federation;
+        if (federation != null) {
+            _metrics.registerFederation(federation);
+        }
+    }
+
+    /**
+     * @return The compression of frames sent to clients that ask for it, or null if the server doesn't compress.
+     */
+    public FrameCompression getCompression() {
+        return _compression;
+    }
+
+    /**
+     * Must be called before any connection is accepted.
+     */
+    public void setCompression(FrameCompression compression) {
+        _compression = compression;
+    }
+
+    /**
+     * @return The HELLO to greet a new connection with, offering whatever the server offers.
+     */
+    ChatEvent createHello() {
+        return _compression == null ? ChatEventFactory.fromHello() : _compression.createHello();
+    }
+
+    /**
+     * @return A sequence number for an event about to be sent, unique for the life of the server.
+     */
+    public long nextSequence() {
+        return _sequence.incrementAndGet();
+    }
+
+    private boolean getIsRemoteName(String name) {
+        return _federation != null && _federation.getRemoteUser(name) != null;
+    }
+
+    /**
+     * Moves the session with the old name to the new one, if nobody else has it.
+     */
     public boolean tryRename(String oldName, String newName) {
-        if (getIsNameTaken(newName)) {
+        var session = _subscribers.get(oldName);
+        if (session == null || !isValidUserName(newName) || getIsRemoteName(newName)) {
             return false;
         }
+        return _subscribers.tryRename(session, oldName, newName);
+    }
 
-        var session = _subscribers.remove(oldName);
-        _subscribers.put(newName, session);
-        return true;
+    public static boolean isValidRoomName(String room) {
+        return room != null && ROOM_NAME.matcher(room).matches();
+    }
+
+    public static boolean isValidUserName(String name) {
+        return name != null && !name.isBlank() && USER_NAME.matcher(name).matches();
     }
 
+    protected byte[] tryEncode(ChatEvent event) {
+        try {
+            // Encode once up front, every subscriber is written the same bytes.
+            event.setSequence(nextSequence());
+            return _codec.encode(event);
+        }
+        catch (IOException encodeEx) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends an event to every session on the server, and every other node's.
+     */
     public void broadcast(ChatEvent event) {
-        for (var client : _subscribers.values()) {
-            CompletableFuture.runAsync(() -> {
-                client.send(event);
-            });
+        broadcast(event, true);
+    }
+
+    /**
+     * @param forward Whether to pass the event on to other nodes, false for one that came from another node.
+     */
+    void broadcast(ChatEvent event, boolean forward) {
+        var frame = tryEncode(event);
+        if (frame == null) {
+            return;
+        }
+        if (forward && _federation != null) {
+            _federation.forward(null, frame);
+        }
+
+        // sendFrame only queues the frame, each session's own writer puts it on the wire.
+        var start = System.nanoTime();
+        var sessions = _subscribers.getSessions();
+        for (var client : sessions) {
+            client.sendFrame(frame);
+        }
+        _metrics.recordFanOut(start, sessions.length);
+    }
+
+    /**
+     * Sends an event to the members of a single room, the rest of the server never sees it. Other nodes are sent it
+     * for the members they have.
+     */
+    public void broadcastToRoom(String room, ChatEvent event) {
+        broadcastToRoom(room, event, true);
+    }
+
+    /**
+     * @param forward Whether to pass the event on to other nodes, false for one that came from another node.
+     */
+    void broadcastToRoom(String room, ChatEvent event, boolean forward) {
+        forward = forward && _federation != null;
+        var members = _rooms.get(room);
+        // Other nodes may have members even if we don't
+        if (members == null && !forward) {
+            return;
+        }
+        var frame = tryEncode(event);
+        if (frame == null) {
+            return;
+        }
+        if (forward) {
+            _federation.forward(room, frame);
+        }
+        if (members == null) {
+            return;
+        }
+        retain(room, event, frame);
+
+        var start = System.nanoTime();
+        for (var client : members) {
+            client.sendFrame(frame);
         }
+        _metrics.recordFanOut(start, members.length);
     }
 
+    /**
+     * Sends an already encoded frame to a single session, e.g. the target of a DM.
+     */
+    public void sendTo(ClientSession target, byte[] frame) {
+        target.sendFrame(frame);
+    }
+
+    /**
+     * Sends a DM frame to a user who wasn't connected when it was sent, or keeps it in their inbox if they still
+     * aren't. Looking them up again under the store's lock means a DM can't land in an inbox deliverInbox() has
+     * already emptied, and one for a user who has connected but not been handed their inbox yet joins the back of it.
+     * @return Whether the DM was sent or kept.
+     */
+    public boolean sendOrStore(String recipient, byte[] frame) {
+        if (_inboxes == null) {
+            return false;
+        }
+        synchronized (_inboxes) {
+            var target = getClient(recipient);
+            if (target != null && !_inboxes.hasInbox(recipient)) {
+                sendTo(target, frame);
+                return true;
+            }
+            return _inboxes.store(recipient, frame);
+        }
+    }
+
+    /**
+     * Sends a session that has just joined every DM kept for it while it was away, as a single write. If some were
+     * spilled to disk it's sent once they've been read back, by the store's own thread.
+     */
+    public void deliverInbox(ClientSession session) {
+        if (_inboxes != null) {
+            _inboxes.deliver(session.getName(), _subscribers::get);
+        }
+    }
+
+    /**
+     * Keeps a room's MESSAGE frames for replaying to users who join it later and queues them for the search index,
+     * and hands MESSAGE and DIRECT_MESSAGE frames to the journal.
+     * @param room The room the frame was broadcast to, null for a DIRECT_MESSAGE.
+     */
+    public void retain(String room, ChatEvent event, byte[] frame) {
+        var opCode = event.getOpCode();
+        if (event.getTrace() != null && (_history != null || _journal != null)) {
+            // Kept without its trace, or whoever it's replayed to would time it from when it was first sent
+            frame = encodeUntraced(event, frame);
+        }
+        if (opCode == SocketOpCode.MESSAGE.getValue()) {
+            if (_history != null) {
+                _history.record(room, frame);
+            }
+            if (_search != null) {
+                var messageArgs = (MessageSendEventArgs)event.getEventArgs();
+                _search.add(messageArgs.getAuthor(), room, messageArgs.getContent());
+            }
+        }
+        else if (opCode != SocketOpCode.DIRECT_MESSAGE.getValue()) {
+            return;
+        }
+        if (_journal != null) {
+            _journal.append(room, frame);
+        }
+    }
+
+    private byte[] encodeUntraced(ChatEvent event, byte[] frame) {
+        var trace = event.getTrace();
+        event.setTrace(null);
+        try {
+            return _codec.encode(event);
+        }
+        catch (IOException encodeEx) {
+            return frame;
+        }
+        finally {
+            event.setTrace(trace);
+        }
+    }
+
+    /**
+     * Sends a session everything said in a room recently, as a single write.
+     */
+    public void replayHistory(ClientSession session, String room) {
+        if (_history == null || room == null) {
+            return;
+        }
+        var frames = _history.replay(room);
+        if (frames != null) {
+            session.sendFrame(frames);
+        }
+    }
+
+    /**
+     * Adds a session to the bus, in the lobby, if nobody else has its name.
+     */
     public boolean tryAddClient(ClientSession session) {
-        if (getIsNameTaken(session.getName())) {
+        if (!isValidUserName(session.getName()) || getIsRemoteName(session.getName()) || !_subscribers.tryAdd(session)) {
             return false;
         }
 
-        _subscribers.put(session.getName(), session);
+        synchronized (session) {
+            addMember(DEFAULT_ROOM, session);
+            session.setRoom(DEFAULT_ROOM);
+        }
         return true;
     }
 
     public void removeClient(ClientSession session) {
-        _subscribers.remove(session.getName());
+        _subscribers.remove(session);
+        synchronized (session) {
+            var room = session.getRoom();
+            if (room != null) {
+                removeMember(room, session);
+                session.setRoom(null);
+            }
+        }
+    }
+
+    /**
+     * Hands a parked session's place on the bus, name and room included, to the new session of the same client.
+     * The new session is first sent everything the parked one was sent after the last event the client saw, as a
+     * single write, and anything still sent to the parked session afterwards is passed on to it.
+     * @param lastSequence The sequence number of the last event the client received.
+     * @return False if the parked session no longer holds that event, in which case nothing has changed.
+     */
+    public boolean resume(ClientSession parked, ClientSession session, long lastSequence) {
+        var buffer = parked.getResumeBuffer();
+        if (buffer == null) {
+            return false;
+        }
+        synchronized (buffer) {
+            byte[] missed;
+            try {
+                missed = buffer.after(lastSequence, _codec);
+            }
+            catch (IOException decodeEx) {
+                return false;
+            }
+            if (missed == null) {
+                return false;
+            }
+            session.setName(parked.getName());
+            if (missed.length > 0) {
+                session.sendFrame(missed);
+            }
+            buffer.setSuccessor(session);
+        }
+
+        _subscribers.replace(parked, session);
+        synchronized (parked) {
+            var room = parked.getRoom();
+            if (room != null) {
+                synchronized (session) {
+                    replaceMember(room, parked, session);
+                    session.setRoom(room);
+                }
+                parked.setRoom(null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves a session out of its current room and into another one, creating it if it's empty.
+     * @return The room the session left, or null if it was already in the room or has been removed from the bus.
+     */
+    public String moveToRoom(ClientSession session, String room) {
+        // Moves and removals of the same session are serialised, so a session is never left in two rooms
+        synchronized (session) {
+            var previous = session.getRoom();
+            if (previous == null || previous.equals(room)) {
+                return null;
+            }
+            removeMember(previous, session);
+            addMember(room, session);
+            session.setRoom(room);
+            return previous;
+        }
     }
 
+    protected void addMember(String room, ClientSession session) {
+        _rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                return new ClientSession[] { session };
+            }
+            var grown = Arrays.copyOf(members, members.length + 1);
+            grown[members.length] = session;
+            return grown;
+        });
+    }
+
+    /**
+     * Swaps one member of a room for another in a single step, so no broadcast reaches both or neither.
+     */
+    protected void replaceMember(String room, ClientSession previous, ClientSession session) {
+        _rooms.computeIfPresent(room, (name, members) -> {
+            for (int i = 0; i < members.length; i++) {
+                if (members[i] == previous) {
+                    var replaced = members.clone();
+                    replaced[i] = session;
+                    return replaced;
+                }
+            }
+            return members;
+        });
+    }
+
+    protected void removeMember(String room, ClientSession session) {
+        _rooms.computeIfPresent(room, (name, members) -> {
+            for (int i = 0; i < members.length; i++) {
+                if (members[i] != session) {
+                    continue;
+                }
+                if (members.length == 1) {
+                    // Empty rooms are dropped from the index
+                    return null;
+                }
+                var shrunk = new ClientSession[members.length - 1];
+                System.arraycopy(members, 0, shrunk, 0, i);
+                System.arraycopy(members, i + 1, shrunk, i, members.length - i - 1);
+                return shrunk;
+            }
+            return members;
+        });
+    }
+
+    public Set<String> getRooms() {
+        return _rooms.keySet();
+    }
+
+    public int getRoomSize(String room) {
+        var members = _rooms.get(room);
+        return members == null ? 0 : members.length;
+    }
+
+    /**
+     * @return The session of that name, on this node or another, or null if nobody of that name is connected.
+     */
     public ClientSession getClient(String name) {
-        return _subscribers.getOrDefault(name, null);
+        var session = _subscribers.get(name);
+        if (session == null && _federation != null) {
+            return _federation.getRemoteUser(name);
+        }
+        return session;
     }
 
+    /**
+     * @return The session of that name connected to this node, or null if there isn't one.
+     */
+    public ClientSession getLocalClient(String name) {
+        return _subscribers.get(name);
+    }
+
+    /**
+     * @return The names of the sessions connected to this node.
+     */
     public Set<String> getNames() {
-        return _subscribers.keySet();
+        return _subscribers.getNames();
+    }
+
+    /**
+     * @return The sessions connected to this node at the moment, not to be modified.
+     */
+    public ClientSession[] getLocalClients() {
+        return _subscribers.getSessions();
+    }
+
+    /**
+     * @return The names of everyone connected, to this node or another.
+     */
+    public Set<String> getAllNames() {
+        if (_federation == null) {
+            return _subscribers.getNames();
+        }
+        var names = new HashSet<>(_subscribers.getNames());
+        names.addAll(_federation.getRemoteNames());
+        return names;
     }
 }
@@ -0,0 +1,163 @@
+package co.uk.michallet.chatapp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * DMs waiting for one offline user. The first ones are held in memory, once the inbox or the server has no memory to
+ * spare the rest are queued to be appended to a spill file, so delivering them in order is memory, then file, then
+ * whatever hasn't been written out yet.
+ * Counts and the in memory frames are guarded by the DirectMessageStore, frames waiting to be spilled by the inbox
+ * itself. Only the store's spill thread touches the file.
+ */
+public class DirectMessageInbox {
+    private final Path _spillFile;
+    private final long _created;
+    private final ArrayDeque<byte[]> _frames;
+    // Guarded by this
+    private final ArrayDeque<byte[]> _pending;
+    private boolean _closed;
+    private int _memoryBytes;
+    private long _spilledBytes;
+    private int _count;
+    private boolean _draining;
+
+    public DirectMessageInbox(Path spillFile, long created) {
+        _spillFile = spillFile;
+        _created = created;
+        _frames = new ArrayDeque<>();
+        _pending = new ArrayDeque<>();
+    }
+
+    public void add(byte[] frame) {
+        _frames.add(frame);
+        _memoryBytes += frame.length;
+        _count++;
+    }
+
+    /**
+     * Queues a frame to be appended to the spill file by writePending().
+     * @return Whether nothing else was waiting, so the caller knows to schedule a write.
+     */
+    public boolean spill(byte[] frame) {
+        _spilledBytes += frame.length;
+        _count++;
+        synchronized (this) {
+            _pending.add(frame);
+            return _pending.size() == 1;
+        }
+    }
+
+    /**
+     * Appends every frame waiting to be spilled to the file. If that fails they're kept, and delivered from memory.
+     */
+    public void writePending() throws IOException {
+        ArrayDeque<byte[]> batch;
+        synchronized (this) {
+            if (_closed || _pending.isEmpty()) {
+                return;
+            }
+            batch = _pending.clone();
+        }
+        var output = new ByteArrayOutputStream();
+        for (var frame : batch) {
+            output.writeBytes(frame);
+        }
+        // Frames are self delimiting, so the file is just them back to back
+        Files.write(_spillFile, output.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        synchronized (this) {
+            // Only ever appended to in between, so the batch is still at the front
+            for (int i = batch.size(); i > 0; i--) {
+                _pending.poll();
+            }
+        }
+    }
+
+    /**
+     * @return Everything written to the spill file so far, for passing to drain().
+     */
+    public byte[] readSpilled() throws IOException {
+        return Files.exists(_spillFile) ? Files.readAllBytes(_spillFile) : new byte[0];
+    }
+
+    /**
+     * @return Whether anything has been spilled, after which nothing more may be held in memory.
+     */
+    public boolean hasSpilled() {
+        return _spilledBytes > 0;
+    }
+
+    /**
+     * Empties the inbox and closes it to further writes. The spill file is left for deleteSpillFile().
+     * @param spilled What readSpilled() returned, null if nothing was spilled.
+     * @return Every frame it held as a single buffer, oldest first.
+     */
+    public byte[] drain(byte[] spilled) {
+        var output = new ByteArrayOutputStream((int)Math.min(Integer.MAX_VALUE - 8, _memoryBytes + _spilledBytes));
+        for (var frame : _frames) {
+            output.writeBytes(frame);
+        }
+        if (spilled != null) {
+            output.writeBytes(spilled);
+        }
+        synchronized (this) {
+            for (var frame : _pending) {
+                output.writeBytes(frame);
+            }
+        }
+        close();
+        return output.toByteArray();
+    }
+
+    /**
+     * Empties the inbox and closes it to further writes, without deleting its spill file.
+     */
+    public void close() {
+        _frames.clear();
+        _memoryBytes = 0;
+        _spilledBytes = 0;
+        _count = 0;
+        synchronized (this) {
+            _pending.clear();
+            _closed = true;
+        }
+    }
+
+    public void deleteSpillFile() throws IOException {
+        Files.deleteIfExists(_spillFile);
+    }
+
+    /**
+     * @return When the inbox's first DM was kept, in milliseconds since the epoch.
+     */
+    public long getCreated() {
+        return _created;
+    }
+
+    /**
+     * @return Whether its spilled DMs are being read back to be delivered.
+     */
+    public boolean isDraining() {
+        return _draining;
+    }
+
+    public void setDraining(boolean value) {
+        _draining = value;
+    }
+
+    public int getMemoryBytes() {
+        return _memoryBytes;
+    }
+
+    public long getSpilledBytes() {
+        return _spilledBytes;
+    }
+
+    public int getCount() {
+        return _count;
+    }
+}
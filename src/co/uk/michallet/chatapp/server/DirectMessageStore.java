@@ -0,0 +1,296 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.ILogger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Store-and-forward for DMs sent to users who aren't connected, handed over in one write when they next log in.
+ * Each recipient's inbox keeps up to bytesPerRecipient in memory, as long as every inbox together stays under
+ * maxMemoryBytes, and spills the rest to a file of up to spillBytesPerRecipient, as long as every file together stays
+ * under maxSpillBytes. Past messagesPerRecipient, or any byte limit, a recipient's new DMs are dropped. At most
+ * maxRecipients inboxes exist at once, and one is thrown away maxAgeMillis after its first DM, so names nobody logs in
+ * with don't hold their place forever.
+ * Spill files are only written and read back on the store's own thread, never while holding its lock, so a DM to an
+ * offline user costs whoever sent it no more than queueing it.
+ * Inboxes don't outlive the server, spill files left by a previous run are deleted.
+ */
+public class DirectMessageStore {
+    // Longer names aren't stored for, their spill file name would be too long
+    private static final int MAX_NAME_BYTES = 64;
+    // How often inboxes are checked for expiry, they're also checked whenever there's no room for another
+    private static final long SWEEP_INTERVAL_MILLIS = 60_000;
+
+    private final ILogger _logger;
+    private final Path _spillDirectory;
+    private final int _messagesPerRecipient;
+    private final int _bytesPerRecipient;
+    private final long _spillBytesPerRecipient;
+    private final long _maxMemoryBytes;
+    private final long _maxSpillBytes;
+    private final int _maxRecipients;
+    private final long _maxAgeMillis;
+    private final ExecutorService _spiller;
+    // Guarded by this
+    private final Map<String, DirectMessageInbox> _inboxes;
+    private long _memoryBytes;
+    private long _spilledBytes;
+    private long _dropped;
+    private long _expired;
+    private long _lastSweep;
+
+    /**
+     * @param maxAgeMillis How long an inbox is kept for after its first DM, 0 to keep them until they're delivered.
+     */
+    public DirectMessageStore(ILogger logger, Path spillDirectory, int messagesPerRecipient, int bytesPerRecipient,
+                              long spillBytesPerRecipient, long maxMemoryBytes, long maxSpillBytes, int maxRecipients,
+                              long maxAgeMillis) {
+        _logger = logger;
+        _spillDirectory = spillDirectory;
+        _messagesPerRecipient = Math.max(1, messagesPerRecipient);
+        _bytesPerRecipient = Math.max(0, bytesPerRecipient);
+        _spillBytesPerRecipient = Math.max(0, spillBytesPerRecipient);
+        _maxMemoryBytes = Math.max(0, maxMemoryBytes);
+        _maxSpillBytes = Math.max(0, maxSpillBytes);
+        _maxRecipients = Math.max(1, maxRecipients);
+        _maxAgeMillis = Math.max(0, maxAgeMillis);
+        _spiller = Executors.newSingleThreadExecutor(task -> {
+            var thread = new Thread(task, "inbox-spill");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _inboxes = new HashMap<>();
+        _lastSweep = System.currentTimeMillis();
+    }
+
+    /**
+     * Queues a DM for a recipient who isn't connected.
+     * @param frame The frame the DM would have been sent as, it must not be modified afterwards.
+     * @return Whether it was kept, false if the recipient's inbox or the store is full.
+     */
+    public synchronized boolean store(String recipient, byte[] frame) {
+        var now = System.currentTimeMillis();
+        if (now - _lastSweep >= SWEEP_INTERVAL_MILLIS) {
+            expire(now);
+        }
+        var inbox = _inboxes.get(recipient);
+        if (inbox == null) {
+            if (_inboxes.size() >= _maxRecipients) {
+                expire(now);
+            }
+            if (_inboxes.size() >= _maxRecipients || recipient.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+                _dropped++;
+                return false;
+            }
+            inbox = new DirectMessageInbox(_spillDirectory.resolve(toFileName(recipient)), now);
+            _inboxes.put(recipient, inbox);
+        }
+        if (inbox.getCount() >= _messagesPerRecipient) {
+            _dropped++;
+            return false;
+        }
+
+        if (!inbox.hasSpilled() && inbox.getMemoryBytes() + frame.length <= _bytesPerRecipient && _memoryBytes + frame.length <= _maxMemoryBytes) {
+            inbox.add(frame);
+            _memoryBytes += frame.length;
+            return true;
+        }
+        if (inbox.getSpilledBytes() + frame.length > _spillBytesPerRecipient || _spilledBytes + frame.length > _maxSpillBytes) {
+            _dropped++;
+            return false;
+        }
+        if (inbox.spill(frame)) {
+            var spilling = inbox;
+            _spiller.execute(() -> writePending(recipient, spilling));
+        }
+        _spilledBytes += frame.length;
+        return true;
+    }
+
+    public synchronized boolean hasInbox(String recipient) {
+        return _inboxes.containsKey(recipient);
+    }
+
+    /**
+     * Sends every DM kept for a recipient, as back to back frames oldest first, to the local session holding their
+     * name. Anything spilled is read back on the store's thread first, DMs for them in the meantime join the back of
+     * the inbox.
+     * @param sessions Looks up the local session holding a name, at the moment the DMs are sent.
+     */
+    public synchronized void deliver(String recipient, Function<String, ClientSession> sessions) {
+        var inbox = _inboxes.get(recipient);
+        if (inbox == null || inbox.isDraining()) {
+            return;
+        }
+        if (inbox.hasSpilled()) {
+            inbox.setDraining(true);
+            _spiller.execute(() -> readBack(recipient, inbox, sessions));
+            return;
+        }
+        var session = sessions.apply(recipient);
+        if (session != null) {
+            remove(recipient);
+            session.sendFrame(inbox.drain(null));
+        }
+    }
+
+    private void writePending(String recipient, DirectMessageInbox inbox) {
+        try {
+            inbox.writePending();
+        }
+        catch (IOException spillEx) {
+            // Kept in memory instead, and tried again with the inbox's next spilled DM
+            _logger.warn("failed to spill DMs for %s: %s", recipient, spillEx.getMessage());
+        }
+    }
+
+    private void readBack(String recipient, DirectMessageInbox inbox, Function<String, ClientSession> sessions) {
+        byte[] spilled = null;
+        try {
+            inbox.writePending();
+            spilled = inbox.readSpilled();
+        }
+        catch (IOException readEx) {
+            _logger.warn("failed to read back DMs spilled for %s: %s", recipient, readEx.getMessage());
+        }
+        synchronized (this) {
+            inbox.setDraining(false);
+            var session = sessions.apply(recipient);
+            if (session == null || _inboxes.get(recipient) != inbox) {
+                // Gone again, or expired, before we got to it
+                return;
+            }
+            remove(recipient);
+            session.sendFrame(inbox.drain(spilled));
+        }
+        deleteSpillFile(recipient, inbox);
+    }
+
+    /**
+     * Throws away every inbox older than maxAgeMillis, except any being read back for delivery.
+     */
+    private void expire(long now) {
+        _lastSweep = now;
+        if (_maxAgeMillis == 0) {
+            return;
+        }
+        var iterator = _inboxes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            var inbox = entry.getValue();
+            if (inbox.isDraining() || now - inbox.getCreated() < _maxAgeMillis) {
+                continue;
+            }
+            iterator.remove();
+            _memoryBytes -= inbox.getMemoryBytes();
+            _spilledBytes -= inbox.getSpilledBytes();
+            _expired++;
+            var spilled = inbox.hasSpilled();
+            inbox.close();
+            if (spilled) {
+                var recipient = entry.getKey();
+                _spiller.execute(() -> deleteSpillFile(recipient, inbox));
+            }
+        }
+    }
+
+    private void remove(String recipient) {
+        var inbox = _inboxes.remove(recipient);
+        _memoryBytes -= inbox.getMemoryBytes();
+        _spilledBytes -= inbox.getSpilledBytes();
+    }
+
+    private void deleteSpillFile(String recipient, DirectMessageInbox inbox) {
+        try {
+            inbox.deleteSpillFile();
+        }
+        catch (IOException deleteEx) {
+            _logger.warn("failed to delete DMs spilled for %s: %s", recipient, deleteEx.getMessage());
+        }
+    }
+
+    /**
+     * Names are hex encoded so any of them make a safe file name.
+     */
+    private static String toFileName(String recipient) {
+        var builder = new StringBuilder();
+        for (var b : recipient.getBytes(StandardCharsets.UTF_8)) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.append(".dm").toString();
+    }
+
+    public synchronized int getRecipientCount() {
+        return _inboxes.size();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return _memoryBytes;
+    }
+
+    public synchronized long getSpilledBytes() {
+        return _spilledBytes;
+    }
+
+    /**
+     * @return DMs turned away because an inbox, or the store, was full.
+     */
+    public synchronized long getDropped() {
+        return _dropped;
+    }
+
+    /**
+     * @return Inboxes thrown away undelivered because nobody logged in with their name in time.
+     */
+    public synchronized long getExpired() {
+        return _expired;
+    }
+
+    /**
+     * Reads the "inboxmessages", "inboxbytes", "inboxspill", "inboxmemory", "inboxdisk", "inboxusers", "inboxage" and
+     * "inboxdir" configuration values. Defaults to 1000 DMs per recipient, 64KB of them in memory and 1MB spilled,
+     * 16MB in memory and 256MB spilled across 10000 recipients, kept for a day, spilling to a new temporary directory.
+     * @return The store, or null if "inboxmessages" is 0.
+     */
+    public static DirectMessageStore fromConfig(IConfiguration config, ILogger logger) throws IOException {
+        var messages = Integer.parseInt(config.getString("inboxmessages", "1000"));
+        if (messages <= 0) {
+            return null;
+        }
+        var bytes = Integer.parseInt(config.getString("inboxbytes", "65536"));
+        var spillBytes = Long.parseLong(config.getString("inboxspill", "1048576"));
+        var memoryBytes = Long.parseLong(config.getString("inboxmemory", "16777216"));
+        var spillLimit = Long.parseLong(config.getString("inboxdisk", "268435456"));
+        var recipients = Integer.parseInt(config.getString("inboxusers", "10000"));
+        var maxAge = Long.parseLong(config.getString("inboxage", "86400"));
+
+        var directoryName = config.getString("inboxdir");
+        Path directory;
+        if (directoryName == null || directoryName.isEmpty()) {
+            directory = Files.createTempDirectory("chat-inbox");
+            directory.toFile().deleteOnExit();
+        }
+        else {
+            directory = Files.createDirectories(Paths.get(directoryName));
+            try (var files = Files.list(directory)) {
+                for (var file : (Iterable<Path>)files::iterator) {
+                    if (file.getFileName().toString().endsWith(".dm")) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+        return new DirectMessageStore(logger, directory, messages, bytes, spillBytes, memoryBytes, spillLimit, recipients,
+                maxAge * 1000);
+    }
+}
@@ -0,0 +1,334 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+import co.uk.michallet.chatapp.common.net.BinaryEventCodec;
+import co.uk.michallet.chatapp.common.net.EventTrace;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Disruptor style pipeline between the threads reading client connections and the bus. Readers only split frames off
+ * their connection and publish them into a preallocated ring of slots, claimed by sequence number. Three stages, each
+ * on its own thread, then see every slot in order: decode, validate (apply the event to its session and stamp the
+ * author) and fan-out. A stage takes everything published since it last looked as one batch, and records how long
+ * each slot waited for it.
+ * A reader that mustn't block, like an nio loop, publishes with tryPublish() and stops reading while the ring is full,
+ * asking to be told once fan-out has made room.
+ */
+public class EventPipeline {
+    public static final int DEFAULT_SIZE = 4096;
+
+    private static final int DECODE = 0;
+    private static final int VALIDATE = 1;
+    private static final int FAN_OUT = 2;
+    private static final String[] STAGE_NAMES = { "decode", "validate", "fanout" };
+    // How often a stage with nothing to do checks again before parking
+    private static final int SPINS = 100;
+
+    private final ILogger _logger;
+    private final BinaryEventCodec _codec;
+    private final PipelineSlot[] _slots;
+    private final int _mask;
+    private final int _shift;
+    // Highest sequence handed to a producer
+    private final AtomicLong _claimed;
+    // The round each slot was last published in, so the first stage can tell a published slot from a stale one
+    private final AtomicIntegerArray _published;
+    private final Stage[] _stages;
+    // Run by fan-out once it has freed some slots, for producers that found the ring full
+    private final Queue<Runnable> _waiters;
+    private final AtomicLong _stalls;
+    private volatile boolean _running;
+
+    /**
+     * @param size Number of slots in the ring, rounded up to a power of two.
+     */
+    public EventPipeline(ILogger logger, BinaryEventCodec codec, int size) {
+        _logger = logger;
+        _codec = codec;
+        size = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        _slots = new PipelineSlot[size];
+        _published = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            _slots[i] = new PipelineSlot();
+            _published.set(i, -1);
+        }
+        _mask = size - 1;
+        _shift = Integer.numberOfTrailingZeros(size);
+        _claimed = new AtomicLong(-1);
+        _waiters = new ConcurrentLinkedQueue<>();
+        _stalls = new AtomicLong();
+        _stages = new Stage[STAGE_NAMES.length];
+        for (int i = 0; i < _stages.length; i++) {
+            _stages[i] = new Stage(i);
+        }
+    }
+
+    public void start() {
+        _running = true;
+        for (var stage : _stages) {
+            var thread = new Thread(stage, "pipeline-" + STAGE_NAMES[stage._index]);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void close() {
+        _running = false;
+        for (var stage : _stages) {
+            stage.wake();
+        }
+    }
+
+    /**
+     * @return The codec producers must split frames off their connections with.
+     */
+    public BinaryEventCodec getCodec() {
+        return _codec;
+    }
+
+    public int getSize() {
+        return _slots.length;
+    }
+
+    /**
+     * @return Slots published but not yet through the fan-out stage.
+     */
+    public long getBacklog() {
+        return _claimed.get() - _stages[FAN_OUT]._sequence.get();
+    }
+
+    /**
+     * @return Times a producer found the ring full and stopped reading until it had room.
+     */
+    public long getStalls() {
+        return _stalls.get();
+    }
+
+    public int getStageCount() {
+        return _stages.length;
+    }
+
+    public String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * @return Nanoseconds between the previous stage, or the producer, finishing with a slot and this stage finishing
+     * with it.
+     */
+    public Histogram getStageLatency(int stage) {
+        return _stages[stage]._latency;
+    }
+
+    /**
+     * @return Slots processed per batch by the stage.
+     */
+    public Histogram getBatchSizes(int stage) {
+        return _stages[stage]._batchSizes;
+    }
+
+    /**
+     * Copies a frame body into the next slot and publishes it. Safe to call from any number of threads, blocks while
+     * the ring is full.
+     * @param session The session the frame was read from.
+     */
+    public void publish(ClientSession session, byte[] frame, int offset, int length) {
+        while (!tryPublish(session, frame, offset, length)) {
+            if (!_running) {
+                return;
+            }
+            LockSupport.parkNanos(1000);
+        }
+    }
+
+    /**
+     * Copies a frame body into the next slot and publishes it, unless the ring is full. Safe to call from any number
+     * of threads, never blocks.
+     * @param session The session the frame was read from.
+     * @return False if every slot is still in use, nothing has been published.
+     */
+    public boolean tryPublish(ClientSession session, byte[] frame, int offset, int length) {
+        long sequence;
+        do {
+            sequence = _claimed.get() + 1;
+            // The slot is reused once the ring wraps, it's free once fan-out has finished with its previous occupant
+            if (sequence - _slots.length > _stages[FAN_OUT]._sequence.get()) {
+                return false;
+            }
+        }
+        while (!_claimed.compareAndSet(sequence - 1, sequence));
+
+        var index = (int)sequence & _mask;
+        _slots[index].fill(session, frame, offset, length, System.nanoTime());
+        _published.set(index, (int)(sequence >>> _shift));
+        _stages[DECODE].wake();
+        return true;
+    }
+
+    /**
+     * @return Whether a slot is free, so tryPublish() would succeed if nobody else claims it first.
+     */
+    public boolean hasRoom() {
+        return _claimed.get() + 1 - _slots.length <= _stages[FAN_OUT]._sequence.get();
+    }
+
+    /**
+     * Asks fan-out to run the waiter, once, the next time it frees any slots. A producer that found the ring full
+     * should check hasRoom() after this, in case fan-out caught up in between.
+     * @param waiter Run on the fan-out thread, so it should only hand the news on.
+     */
+    public void whenRoom(Runnable waiter) {
+        _stalls.incrementAndGet();
+        _waiters.add(waiter);
+    }
+
+    private boolean isPublished(long sequence) {
+        return _published.get((int)sequence & _mask) == (int)(sequence >>> _shift);
+    }
+
+    /**
+     * One consumer of the ring. Each stage trails the one before it, the first trails the producers.
+     */
+    private class Stage implements Runnable {
+        private final int _index;
+        // Last sequence this stage has finished with
+        private final AtomicLong _sequence;
+        private final Histogram _latency;
+        private final Histogram _batchSizes;
+        private final IdleParker _parker;
+        // The sequence waitFor() is waiting on, only touched by the stage's thread
+        private long _waitingFor;
+
+        Stage(int index) {
+            _index = index;
+            _sequence = new AtomicLong(-1);
+            _latency = new Histogram();
+            _batchSizes = new Histogram();
+            _parker = new IdleParker(() -> !_running || availableFrom(_waitingFor) >= _waitingFor);
+        }
+
+        void wake() {
+            _parker.wake();
+        }
+
+        /**
+         * @return The highest sequence this stage may process, which is below next if there's nothing to do.
+         */
+        private long availableFrom(long next) {
+            if (_index > 0) {
+                return _stages[_index - 1]._sequence.get();
+            }
+            // Producers can publish out of order, the batch ends at the first gap
+            var claimed = _claimed.get();
+            var sequence = next;
+            while (sequence <= claimed && isPublished(sequence)) {
+                sequence++;
+            }
+            return sequence - 1;
+        }
+
+        private long waitFor(long next) {
+            for (int spins = 0; _running; spins++) {
+                var available = availableFrom(next);
+                if (available >= next) {
+                    return available;
+                }
+                if (spins < SPINS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                _waitingFor = next;
+                _parker.park(10_000_000);
+            }
+            return next - 1;
+        }
+
+        @Override
+        public void run() {
+            var next = _sequence.get() + 1;
+            while (_running) {
+                var available = waitFor(next);
+                if (available < next) {
+                    continue;
+                }
+                for (var sequence = next; sequence <= available; sequence++) {
+                    var slot = _slots[(int)sequence & _mask];
+                    try {
+                        process(slot);
+                    }
+                    catch (RuntimeException ex) {
+                        // One bad event mustn't stall everything queued behind it
+                        _logger.warn("pipeline %s stage failed: %s", STAGE_NAMES[_index], ex);
+                        slot.setEvent(null);
+                    }
+                    var now = System.nanoTime();
+                    _latency.record(now - slot.getStageNanos());
+                    slot.setStageNanos(now);
+                    if (_index == FAN_OUT) {
+                        slot.clear();
+                    }
+                }
+                _batchSizes.record(available - next + 1);
+                _sequence.set(available);
+                if (_index < _stages.length - 1) {
+                    _stages[_index + 1].wake();
+                }
+                else {
+                    wakeWaiters();
+                }
+                next = available + 1;
+            }
+        }
+
+        private void wakeWaiters() {
+            Runnable waiter;
+            while ((waiter = _waiters.poll()) != null) {
+                try {
+                    waiter.run();
+                }
+                catch (RuntimeException ex) {
+                    _logger.warn("pipeline waiter failed: %s", ex);
+                }
+            }
+        }
+
+        private void process(PipelineSlot slot) {
+            var session = slot.getSession();
+            switch (_index) {
+                case DECODE:
+                    try {
+                        slot.setEvent(EventTrace.stampDecoded(_codec.decodeFrame(slot.getBody(), session.isCompressed())));
+                    }
+                    catch (IOException decodeEx) {
+                        _logger.debug("%s: undecodable frame, %s", session.getName(), decodeEx.getMessage());
+                        slot.setClose(true);
+                    }
+                    break;
+                case VALIDATE:
+                    if (slot.getEvent() != null && !session.applyEvent(slot.getEvent(), slot.getRoute())) {
+                        slot.setClose(true);
+                    }
+                    break;
+                case FAN_OUT:
+                    if (slot.shouldClose()) {
+                        try {
+                            session.close();
+                        }
+                        catch (IOException ignored) {
+                        }
+                    }
+                    else if (slot.getEvent() != null) {
+                        session.deliverEvent(slot.getEvent(), slot.getRoute());
+                    }
+                    break;
+            }
+        }
+    }
+}
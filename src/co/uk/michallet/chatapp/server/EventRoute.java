@@ -0,0 +1,54 @@
+package co.uk.michallet.chatapp.server;
+
+/**
+ * Where an event a client sent should be delivered, decided by ClientSession.applyEvent(). Instances are reset and
+ * reused for every event, so routing doesn't allocate.
+ */
+public class EventRoute {
+    private boolean _deliver;
+    // The room a MESSAGE goes to, or the room a JOIN/PART moved the sender into
+    private String _room;
+    // The room a JOIN/PART moved the sender out of
+    private String _previousRoom;
+    // The recipient of a DM
+    private ClientSession _target;
+
+    public void reset() {
+        _deliver = false;
+        _room = null;
+        _previousRoom = null;
+        _target = null;
+    }
+
+    public boolean shouldDeliver() {
+        return _deliver;
+    }
+
+    public String getRoom() {
+        return _room;
+    }
+
+    public String getPreviousRoom() {
+        return _previousRoom;
+    }
+
+    public ClientSession getTarget() {
+        return _target;
+    }
+
+    public void setDeliver(boolean value) {
+        _deliver = value;
+    }
+
+    public void setRoom(String value) {
+        _room = value;
+    }
+
+    public void setPreviousRoom(String value) {
+        _previousRoom = value;
+    }
+
+    public void setTarget(ClientSession value) {
+        _target = value;
+    }
+}
@@ -0,0 +1,504 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.net.ChatEvent;
+import co.uk.michallet.chatapp.common.net.SocketOpCode;
+import co.uk.michallet.chatapp.common.net.models.DmEventArgs;
+import co.uk.michallet.chatapp.common.net.models.UserChangeNameArgs;
+import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
+import co.uk.michallet.chatapp.common.net.models.UserLeftEventArgs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Joins this server to others, each a node of one chat. Every node links to every other, and passes on what's
+ * broadcast on it and DMs for users homed elsewhere, so users see the same chat whichever node they connect to.
+ * Each node keeps a table of the users connected to the others, built from a snapshot when a link comes up and kept
+ * current by the USER_JOIN, USER_LEAVE and CHANGE_NAME events passed over it, and looks names up in it as well as
+ * its own sessions.
+ * Names are unique once the nodes have caught up with each other. Should the same name log in on two nodes at once,
+ * the node whose name sorts first keeps it and the other disconnects its session.
+ */
+public class Federation {
+    // How often peers we aren't linked to are dialled
+    private static final long DIAL_INTERVAL_MILLIS = 2000;
+    private static final int DIAL_TIMEOUT_MILLIS = 1000;
+
+    private final ILogger _logger;
+    private final ConcurrentMessageBus _bus;
+    // Our name, as the other nodes know us
+    private final String _node;
+    private final InetAddress _address;
+    private final int _port;
+    private final List<InetSocketAddress> _peers;
+    private final String _codecName;
+    // Every node must present it in its NODE record before anything it sends is acted on
+    private final byte[] _secret;
+    // Keyed by the node at the other end, only holds links that have introduced themselves
+    private final Map<String, FederationLink> _links;
+    // The last link dialled to each peer
+    private final Map<InetSocketAddress, FederationLink> _dialed;
+    // Users homed on other nodes
+    private final Map<String, RemoteSession> _remoteUsers;
+    private final AtomicLong _forwarded;
+    private final AtomicLong _delivered;
+    private final AtomicLong _conflicts;
+    private volatile boolean _running;
+    private ServerSocket _listener;
+
+    /**
+     * @param node Our name, unique among the nodes.
+     * @param address The address to accept links from other nodes on.
+     * @param port The port to accept links on.
+     * @param peers The other nodes to dial.
+     * @param secret Shared by every node, a link that doesn't present it is dropped.
+     */
+    public Federation(ILogger logger, ConcurrentMessageBus bus, String node, InetAddress address, int port,
+                      List<InetSocketAddress> peers, String secret) {
+        _logger = logger;
+        _bus = bus;
+        _node = node;
+        _address = address;
+        _port = port;
+        _peers = peers;
+        // Every node must speak the same wire format, frames are passed on as they are
+        _codecName = bus.getCodec().getClass().getSimpleName();
+        _secret = secret.getBytes(StandardCharsets.UTF_8);
+        _links = new ConcurrentHashMap<>();
+        _dialed = new ConcurrentHashMap<>();
+        _remoteUsers = new ConcurrentHashMap<>();
+        _forwarded = new AtomicLong();
+        _delivered = new AtomicLong();
+        _conflicts = new AtomicLong();
+    }
+
+    public String getNode() {
+        return _node;
+    }
+
+    public int getPort() {
+        return _port;
+    }
+
+    /**
+     * Starts accepting links from other nodes and dialling the peers.
+     * @throws IOException If the port couldn't be bound.
+     */
+    public void start() throws IOException {
+        _listener = new ServerSocket();
+        _listener.setReuseAddress(true);
+        _listener.bind(new InetSocketAddress(_address, _port));
+        _running = true;
+        startThread(this::acceptLoop, "federation-accept");
+        startThread(this::dialLoop, "federation-dial");
+        _logger.info("federation: node %s linking on %s:%d", _node, _address.getHostAddress(), _port);
+    }
+
+    private static void startThread(Runnable task, String name) {
+        var thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        _running = false;
+        try {
+            if (_listener != null) {
+                _listener.close();
+            }
+        }
+        catch (IOException ignored) {
+        }
+        for (var link : _links.values()) {
+            link.close();
+        }
+        for (var link : _dialed.values()) {
+            link.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (_running) {
+            try {
+                var socket = _listener.accept();
+                socket.setTcpNoDelay(true);
+                new FederationLink(_logger, this, socket, false).start(_node, _codecName, _secret);
+            }
+            catch (IOException acceptEx) {
+                if (_running) {
+                    _logger.warn("federation: failed to accept a link: %s", acceptEx.getMessage());
+                }
+            }
+        }
+    }
+
+    private void dialLoop() {
+        while (_running) {
+            for (var peer : _peers) {
+                if (needsDial(peer)) {
+                    dial(peer);
+                }
+            }
+            try {
+                Thread.sleep(DIAL_INTERVAL_MILLIS);
+            }
+            catch (InterruptedException interruptEx) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Whether we have no link to a peer, either one we dialled or one it dialled us on.
+     */
+    private boolean needsDial(InetSocketAddress peer) {
+        var link = _dialed.get(peer);
+        if (link == null) {
+            return true;
+        }
+        if (link.isOpen()) {
+            return false;
+        }
+        // Our link may have lost out to the one the peer dialled
+        var node = link.getNode();
+        return node == null || !_links.containsKey(node);
+    }
+
+    private void dial(InetSocketAddress peer) {
+        var socket = new Socket();
+        try {
+            socket.connect(peer, DIAL_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+        }
+        catch (IOException dialEx) {
+            _logger.debug("federation: failed to dial %s: %s", peer, dialEx.getMessage());
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) {
+            }
+            return;
+        }
+        var link = new FederationLink(_logger, this, socket, true);
+        _dialed.put(peer, link);
+        link.start(_node, _codecName, _secret);
+    }
+
+    /**
+     * Called once a link's peer has introduced itself. Two nodes that dial each other at once end up with two links,
+     * both keep the one dialled by the node whose name sorts first.
+     * @return Whether the link should be kept.
+     */
+    boolean onNode(FederationLink link, String node, String codecName, byte[] secret) {
+        // Compared in constant time, so the secret can't be guessed a byte at a time
+        if (!MessageDigest.isEqual(_secret, secret)) {
+            _logger.warn("federation: %s presented the wrong secret, dropping the link", link.getRemoteAddress());
+            return false;
+        }
+        if (node.isBlank()) {
+            _logger.warn("federation: %s didn't name itself, dropping the link", link.getRemoteAddress());
+            return false;
+        }
+        if (!_codecName.equals(codecName)) {
+            _logger.warn("federation: %s speaks %s rather than %s, dropping the link", node, codecName, _codecName);
+            return false;
+        }
+        if (node.equals(_node)) {
+            _logger.warn("federation: linked to ourselves, or another node is also called %s", node);
+            return false;
+        }
+        link.setNode(node);
+        var preferred = link.isDialed() == (_node.compareTo(node) < 0);
+        FederationLink replaced;
+        synchronized (_links) {
+            var existing = _links.get(node);
+            if (existing != null && existing.isOpen() && !preferred) {
+                return false;
+            }
+            replaced = _links.put(node, link);
+        }
+        if (replaced != null) {
+            replaced.close();
+        }
+        _logger.info("federation: linked to %s", node);
+        // Only sent once the link is in the map, anyone joining after the snapshot is passed on as an event
+        link.sendSnapshot(_bus.getNames());
+        return true;
+    }
+
+    /**
+     * Called when a link closes. If it was a node's current link, the users homed there are taken to have left.
+     */
+    void onClosed(FederationLink link) {
+        var node = link.getNode();
+        if (node == null || !_links.remove(node, link)) {
+            return;
+        }
+        _logger.info("federation: lost the link to %s", node);
+        for (var user : new ArrayList<>(_remoteUsers.values())) {
+            if (user.getNode().equals(node) && _remoteUsers.remove(user.getName(), user)) {
+                _bus.broadcast(ChatEventFactory.fromUserLeave(user.getName()), false);
+                _bus.getRoster().leave(user.getName());
+            }
+        }
+    }
+
+    void onSnapshot(FederationLink link, Collection<String> names) {
+        if (!isCurrent(link)) {
+            return;
+        }
+        for (var name : names) {
+            if (addRemote(link.getNode(), name)) {
+                _bus.broadcast(ChatEventFactory.fromUserJoin(name), false);
+                _bus.getRoster().join(name);
+            }
+        }
+    }
+
+    /**
+     * Delivers an event broadcast on another node to our own sessions, updating the table of remote users first if
+     * it's one that changes who's connected.
+     * @param room The room it was broadcast to, null for the whole server.
+     */
+    void onEvent(FederationLink link, String room, byte[] frame) {
+        if (!isCurrent(link)) {
+            return;
+        }
+        var event = decode(frame);
+        if (event == null) {
+            return;
+        }
+        var node = link.getNode();
+        var deliver = true;
+        var roster = _bus.getRoster();
+        switch (SocketOpCode.fromValue(event.getOpCode())) {
+            case USER_JOIN:
+                var joined = ((UserJoinEventArgs)event.getEventArgs()).getName();
+                deliver = addRemote(node, joined);
+                if (deliver) {
+                    roster.join(joined);
+                }
+                break;
+            case USER_LEAVE:
+                var left = ((UserLeftEventArgs)event.getEventArgs()).getName();
+                deliver = removeRemote(node, left) != null;
+                if (deliver) {
+                    roster.leave(left);
+                }
+                break;
+            case CHANGE_NAME:
+                var nameArgs = (UserChangeNameArgs)event.getEventArgs();
+                deliver = removeRemote(node, nameArgs.getOldName()) != null && addRemote(node, nameArgs.getName());
+                if (deliver) {
+                    roster.rename(nameArgs.getOldName(), nameArgs.getName());
+                }
+                break;
+            default:
+                break;
+        }
+        if (!deliver) {
+            return;
+        }
+        _delivered.incrementAndGet();
+        // Renumbered as it's re-encoded, and not passed on again, every node hears from the sender itself
+        if (room == null) {
+            _bus.broadcast(event, false);
+        }
+        else {
+            _bus.broadcastToRoom(room, event, false);
+        }
+    }
+
+    /**
+     * Delivers a DM sent on another node to a user homed on ours, or keeps it for them if they've since left.
+     */
+    void onDirect(FederationLink link, byte[] frame) {
+        if (!isCurrent(link)) {
+            return;
+        }
+        var event = decode(frame);
+        if (event == null || !(event.getEventArgs() instanceof DmEventArgs)) {
+            return;
+        }
+        var recipient = ((DmEventArgs)event.getEventArgs()).getTargetName();
+        var encoded = _bus.tryEncode(event);
+        if (encoded == null) {
+            return;
+        }
+        _delivered.incrementAndGet();
+        var target = _bus.getLocalClient(recipient);
+        if (target != null) {
+            _bus.sendTo(target, encoded);
+        }
+        else {
+            _bus.sendOrStore(recipient, encoded);
+        }
+    }
+
+    private boolean isCurrent(FederationLink link) {
+        var node = link.getNode();
+        return node != null && _links.get(node) == link;
+    }
+
+    private ChatEvent decode(byte[] frame) {
+        try {
+            return _bus.getCodec().read(new ByteArrayInputStream(frame));
+        }
+        catch (IOException decodeEx) {
+            _logger.warn("federation: failed to decode a forwarded event: %s", decodeEx.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Notes that a user is homed on another node, settling who keeps the name if it's already in use.
+     * @return Whether the user was added, false if the name stays with whoever already had it.
+     */
+    private boolean addRemote(String node, String name) {
+        var local = _bus.getLocalClient(name);
+        if (local != null) {
+            _conflicts.incrementAndGet();
+            if (_node.compareTo(node) < 0) {
+                // Ours, the other node disconnects its session when it hears of ours
+                return false;
+            }
+            disconnect(local);
+        }
+        var user = _remoteUsers.compute(name, (key, existing) ->
+                existing != null && existing.getNode().compareTo(node) <= 0 ? existing : new RemoteSession(_logger, name, _bus, this, node));
+        return user.getNode().equals(node);
+    }
+
+    /**
+     * @return The user that was removed, or null if the name isn't homed on that node.
+     */
+    private RemoteSession removeRemote(String node, String name) {
+        var user = _remoteUsers.get(name);
+        if (user == null || !user.getNode().equals(node) || !_remoteUsers.remove(name, user)) {
+            return null;
+        }
+        return user;
+    }
+
+    /**
+     * Ends a local session whose name another node has a better claim to.
+     */
+    private void disconnect(ClientSession session) {
+        _logger.info("%s: name is in use on another node, disconnecting", session.getName());
+        session.end();
+        session.send(ChatEventFactory.fromReject(SocketOpCode.USER_JOIN.getValue(), "name in use on another node", 0));
+        session.send(ChatEventFactory.fromGoodbye());
+        try {
+            session.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Passes an event broadcast on this node on to every other node.
+     * @param room The room it was broadcast to, null for the whole server.
+     */
+    void forward(String room, byte[] frame) {
+        for (var link : _links.values()) {
+            link.forward(room, frame);
+        }
+        _forwarded.incrementAndGet();
+    }
+
+    /**
+     * Passes a DM on to the node its recipient is homed on. It's dropped if we've since lost the link.
+     */
+    void sendDirect(String node, byte[] frame) {
+        var link = _links.get(node);
+        if (link != null) {
+            link.sendDirect(frame);
+            _forwarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The user of that name homed on another node, or null if there isn't one.
+     */
+    public RemoteSession getRemoteUser(String name) {
+        return _remoteUsers.get(name);
+    }
+
+    public Set<String> getRemoteNames() {
+        return _remoteUsers.keySet();
+    }
+
+    public Collection<FederationLink> getLinks() {
+        return _links.values();
+    }
+
+    /**
+     * @return Events and DMs passed on to other nodes.
+     */
+    public long getForwarded() {
+        return _forwarded.get();
+    }
+
+    /**
+     * @return Events and DMs from other nodes delivered here.
+     */
+    public long getDelivered() {
+        return _delivered.get();
+    }
+
+    /**
+     * @return Names found to be in use on two nodes at once.
+     */
+    public long getConflicts() {
+        return _conflicts.get();
+    }
+
+    /**
+     * Reads the "federation", "federationaddress", "federationsecret", "peers" and "node" configuration values. Links
+     * are accepted on the "csa" address unless "federationaddress" is set, e.g. to a private interface.
+     * The node is named after the address and port clients connect to unless "node" is set.
+     * @return The federation, or null if "federation" isn't set to a port.
+     * @throws IOException If "federationsecret" isn't set, or a peer isn't host:port.
+     */
+    public static Federation fromConfig(IConfiguration config, ILogger logger, ConcurrentMessageBus bus) throws IOException {
+        var port = Integer.parseInt(config.getString("federation", "0"));
+        if (port <= 0) {
+            return null;
+        }
+        var secret = config.getString("federationsecret", "");
+        if (secret.isBlank()) {
+            throw new IOException("federationsecret must be set, every node must share it");
+        }
+        var host = config.getString("csa", "127.0.0.1");
+        var node = config.getString("node", host + ":" + config.getString("csp", "14001"));
+        var peers = new ArrayList<InetSocketAddress>();
+        for (var peer : config.getString("peers", "").split(",")) {
+            if (peer.isBlank()) {
+                continue;
+            }
+            var separator = peer.lastIndexOf(':');
+            if (separator < 0) {
+                throw new IOException("peer " + peer + " isn't host:port");
+            }
+            peers.add(new InetSocketAddress(peer.substring(0, separator).trim(), Integer.parseInt(peer.substring(separator + 1).trim())));
+        }
+        var address = InetAddress.getByName(config.getString("federationaddress", host));
+        return new Federation(logger, bus, node, address, port, peers, secret);
+    }
+}
@@ -0,0 +1,319 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.net.BinaryEventCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connection between this node and one other node of a Federation. Records are queued and written by the link's
+ * own writer thread, so forwarding an event never blocks the thread that fanned it out, and read in order by its
+ * reader thread, which hands them to the Federation.
+ * Each record is a kind byte followed by:
+ *   NODE     - the sending node's name, wire codec and the federation's shared secret, always the first record each
+ *              way. Nothing else a peer sends is acted on until it has presented the secret
+ *   SNAPSHOT - the names of every user homed on the sending node
+ *   EVENT    - the room it was sent to, empty for the whole server, and the encoded event
+ *   DIRECT   - an encoded DM for a user homed on the receiving node
+ */
+public class FederationLink {
+    static final int NODE = 0;
+    static final int SNAPSHOT = 1;
+    static final int EVENT = 2;
+    static final int DIRECT = 3;
+    // Records a peer may fall behind by before the link is dropped, it resyncs from a snapshot when redialled
+    private static final int MAX_QUEUED = 65536;
+    private static final int BUFFER_SIZE = 65536;
+    // A frame is a body of at most MAX_FRAME_SIZE behind a varint length of up to 5 bytes
+    private static final int MAX_FRAME_SIZE = BinaryEventCodec.MAX_FRAME_SIZE + 5;
+    private static final int MAX_SECRET_SIZE = 1024;
+    // Names preallocated for a snapshot, it grows past this for larger ones
+    private static final int SNAPSHOT_CAPACITY = 1024;
+
+    private final ILogger _logger;
+    private final Federation _federation;
+    private final Socket _socket;
+    // Whether we dialled the peer, as opposed to accepting its connection
+    private final boolean _dialed;
+    private final BlockingQueue<byte[]> _outbound;
+    private final AtomicBoolean _closed;
+    private final AtomicLong _sent;
+    private final AtomicLong _received;
+    // Null until the peer's NODE record has been read
+    private volatile String _node;
+    private Thread _writer;
+
+    public FederationLink(ILogger logger, Federation federation, Socket socket, boolean dialed) {
+        _logger = logger;
+        _federation = federation;
+        _socket = socket;
+        _dialed = dialed;
+        _outbound = new LinkedBlockingQueue<>(MAX_QUEUED);
+        _closed = new AtomicBoolean(false);
+        _sent = new AtomicLong();
+        _received = new AtomicLong();
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return _socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * @return The peer's node name, or null before it has introduced itself.
+     */
+    public String getNode() {
+        return _node;
+    }
+
+    void setNode(String value) {
+        _node = value;
+    }
+
+    public boolean isDialed() {
+        return _dialed;
+    }
+
+    public boolean isOpen() {
+        return !_closed.get();
+    }
+
+    public long getSent() {
+        return _sent.get();
+    }
+
+    public long getReceived() {
+        return _received.get();
+    }
+
+    public int getQueued() {
+        return _outbound.size();
+    }
+
+    /**
+     * Introduces us to the peer and starts the link's reader and writer threads.
+     */
+    public void start(String node, String codecName, byte[] secret) {
+        var record = new Record(NODE);
+        record.writeString(node);
+        record.writeString(codecName);
+        record.writeFrame(secret);
+        send(record);
+
+        var name = _socket.getRemoteSocketAddress().toString();
+        _writer = new Thread(this::writeLoop, "federation-write-" + name);
+        _writer.setDaemon(true);
+        _writer.start();
+        var reader = new Thread(this::readLoop, "federation-read-" + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public void sendSnapshot(Collection<String> names) {
+        // Copied first, the collection may be a live view of the bus
+        var copy = new ArrayList<>(names);
+        var record = new Record(SNAPSHOT);
+        record.writeInt(copy.size());
+        for (var name : copy) {
+            record.writeString(name);
+        }
+        send(record);
+    }
+
+    /**
+     * Passes on an event sent on this node.
+     * @param room The room it was sent to, null if it was sent to the whole server.
+     */
+    public void forward(String room, byte[] frame) {
+        var record = new Record(EVENT);
+        record.writeString(room == null ? "" : room);
+        record.writeFrame(frame);
+        send(record);
+    }
+
+    /**
+     * Passes on a DM for a user homed on the peer.
+     */
+    public void sendDirect(byte[] frame) {
+        var record = new Record(DIRECT);
+        record.writeFrame(frame);
+        send(record);
+    }
+
+    private void send(Record record) {
+        if (_closed.get()) {
+            return;
+        }
+        if (!_outbound.offer(record.toByteArray())) {
+            _logger.warn("federation: more than %d records queued for %s, dropping the link", MAX_QUEUED, _node);
+            close();
+        }
+    }
+
+    private void writeLoop() {
+        try (var output = new BufferedOutputStream(_socket.getOutputStream(), BUFFER_SIZE)) {
+            while (!_closed.get()) {
+                var record = _outbound.take();
+                // Everything queued behind it goes out in the same write
+                do {
+                    output.write(record);
+                    _sent.incrementAndGet();
+                }
+                while ((record = _outbound.poll()) != null);
+                output.flush();
+            }
+        }
+        catch (IOException | InterruptedException ignored) {
+        }
+        close();
+    }
+
+    private void readLoop() {
+        try (var input = new DataInputStream(new BufferedInputStream(_socket.getInputStream(), BUFFER_SIZE))) {
+            while (!_closed.get()) {
+                var kind = input.readByte();
+                _received.incrementAndGet();
+                switch (kind) {
+                    case NODE:
+                        var node = input.readUTF();
+                        var codecName = input.readUTF();
+                        var secret = readSecret(input);
+                        if (!_federation.onNode(this, node, codecName, secret)) {
+                            close();
+                            return;
+                        }
+                        break;
+                    case SNAPSHOT:
+                        var count = input.readInt();
+                        if (count < 0) {
+                            throw new ProtocolException("negative snapshot count " + count);
+                        }
+                        var names = new ArrayList<String>(Math.min(count, SNAPSHOT_CAPACITY));
+                        for (int i = 0; i < count; i++) {
+                            names.add(input.readUTF());
+                        }
+                        _federation.onSnapshot(this, names);
+                        break;
+                    case EVENT:
+                        var room = input.readUTF();
+                        _federation.onEvent(this, room.isEmpty() ? null : room, readFrame(input));
+                        break;
+                    case DIRECT:
+                        _federation.onDirect(this, readFrame(input));
+                        break;
+                    default:
+                        throw new IOException("unknown federation record " + kind);
+                }
+            }
+        }
+        catch (IOException ioEx) {
+            _logger.debug("federation: link to %s lost: %s", _node, ioEx.getMessage());
+        }
+        catch (RuntimeException ex) {
+            // A record we couldn't apply, the peer resyncs from a snapshot when the link is redialled
+            _logger.warn("federation: dropping link to %s after a bad record: %s", _node, ex);
+        }
+        close();
+    }
+
+    private static byte[] readSecret(DataInputStream input) throws IOException {
+        var length = input.readInt();
+        if (length < 0 || length > MAX_SECRET_SIZE) {
+            throw new ProtocolException(String.format("federation secret of %d bytes", length));
+        }
+        var secret = new byte[length];
+        input.readFully(secret);
+        return secret;
+    }
+
+    private static byte[] readFrame(DataInputStream input) throws IOException {
+        var length = input.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException(String.format("federated frame of %d bytes", length));
+        }
+        var frame = new byte[length];
+        input.readFully(frame);
+        return frame;
+    }
+
+    public void close() {
+        if (!_closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            _socket.close();
+        }
+        catch (IOException ignored) {
+        }
+        if (_writer != null) {
+            _writer.interrupt();
+        }
+        _outbound.clear();
+        _federation.onClosed(this);
+    }
+
+    /**
+     * A record being built up, DataOutputStream's modified UTF-8 matches what the reader expects.
+     */
+    private static class Record {
+        private final ByteArrayOutputStream _bytes;
+        private final DataOutputStream _output;
+
+        Record(int kind) {
+            _bytes = new ByteArrayOutputStream();
+            _output = new DataOutputStream(_bytes);
+            writeByte(kind);
+        }
+
+        void writeByte(int value) {
+            try {
+                _output.writeByte(value);
+            }
+            catch (IOException ignored) {
+                // Writing to memory doesn't fail
+            }
+        }
+
+        void writeInt(int value) {
+            try {
+                _output.writeInt(value);
+            }
+            catch (IOException ignored) {
+            }
+        }
+
+        void writeString(String value) {
+            try {
+                _output.writeUTF(value);
+            }
+            catch (IOException ignored) {
+            }
+        }
+
+        void writeFrame(byte[] frame) {
+            writeInt(frame.length);
+            try {
+                _output.write(frame);
+            }
+            catch (IOException ignored) {
+            }
+        }
+
+        byte[] toByteArray() {
+            return _bytes.toByteArray();
+        }
+    }
+}
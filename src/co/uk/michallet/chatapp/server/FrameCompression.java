@@ -0,0 +1,147 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.net.BinaryEventCodec;
+import co.uk.michallet.chatapp.common.net.ChatEvent;
+import co.uk.michallet.chatapp.common.net.FrameCompressor;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
+
+import java.net.ProtocolException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses the frames sent to sessions whose clients asked for it when they logged in. The HELLO offers it, with
+ * the dictionary version and the smallest body worth compressing, and a client takes it up by logging in with the
+ * same dictionary version.
+ * Frames are shared between sessions, so a frame is compressed once by whichever thread fans it out and the result
+ * handed to every session after the first, rather than deflated again for each of them.
+ */
+public class FrameCompression {
+    private final int _threshold;
+    // The last frame each thread compressed and what it compressed to, a fan-out sends the same frame to everyone
+    private final ThreadLocal<byte[][]> _lastFrame;
+    private final AtomicLong _sessions;
+    private final AtomicLong _compressed;
+    private final AtomicLong _reused;
+    private final AtomicLong _bytesIn;
+    private final AtomicLong _bytesOut;
+
+    /**
+     * @param threshold Smallest frame body worth compressing.
+     */
+    public FrameCompression(int threshold) {
+        _threshold = threshold;
+        _lastFrame = ThreadLocal.withInitial(() -> new byte[2][]);
+        _sessions = new AtomicLong();
+        _compressed = new AtomicLong();
+        _reused = new AtomicLong();
+        _bytesIn = new AtomicLong();
+        _bytesOut = new AtomicLong();
+    }
+
+    public int getThreshold() {
+        return _threshold;
+    }
+
+    /**
+     * @return The HELLO to greet a new connection with, offering compression.
+     */
+    public ChatEvent createHello() {
+        return ChatEventFactory.fromHello(FrameCompressor.DICTIONARY_VERSION, _threshold);
+    }
+
+    /**
+     * @return Whether a client that logged in with these args should have its frames compressed.
+     */
+    public boolean accepts(UserJoinEventArgs loginArgs) {
+        if (loginArgs.getCompression() != FrameCompressor.DICTIONARY_VERSION) {
+            return false;
+        }
+        _sessions.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @param frames One or more complete frames, which may be shared with other sessions.
+     * @return The frames with those worth it compressed, or the same array if none were.
+     */
+    public byte[] compress(byte[] frames) {
+        var last = _lastFrame.get();
+        if (last[0] == frames) {
+            if (last[1] != frames) {
+                _reused.incrementAndGet();
+            }
+            return last[1];
+        }
+        var compressor = FrameCompressor.acquire();
+        byte[] compressed;
+        try {
+            compressed = compressor.compressFrames(frames, _threshold);
+        }
+        catch (ProtocolException badFrameEx) {
+            // Only ever given frames we encoded, so leave anything odd for the client to make sense of
+            compressed = frames;
+        }
+        finally {
+            FrameCompressor.release(compressor);
+        }
+        if (compressed != frames) {
+            _compressed.incrementAndGet();
+            _bytesIn.addAndGet(frames.length);
+            _bytesOut.addAndGet(compressed.length);
+        }
+        last[0] = frames;
+        last[1] = compressed;
+        return compressed;
+    }
+
+    /**
+     * @return How many sessions have had their frames compressed.
+     */
+    public long getSessions() {
+        return _sessions.get();
+    }
+
+    /**
+     * @return How many times frames were deflated, each of them at least once.
+     */
+    public long getCompressed() {
+        return _compressed.get();
+    }
+
+    /**
+     * @return How many times a frame already compressed for another session was sent again.
+     */
+    public long getReused() {
+        return _reused.get();
+    }
+
+    public long getBytesIn() {
+        return _bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return _bytesOut.get();
+    }
+
+    /**
+     * Reads the "compress" configuration value, the smallest frame body in bytes worth compressing. Defaults to 128.
+     * @return The compression, or null if it's set to 0 or the codec isn't binary, the only one it applies to.
+     */
+    public static FrameCompression fromConfig(IConfiguration config, IEventCodec codec, ILogger logger) {
+        var threshold = Integer.parseInt(config.getString("compress", "128"));
+        if (threshold <= 0) {
+            return null;
+        }
+        if (!(codec instanceof BinaryEventCodec)) {
+            if (config.isSet("compress")) {
+                logger.warn("compression is only supported by the binary codec, frames won't be compressed");
+            }
+            return null;
+        }
+        return new FrameCompression(threshold);
+    }
+}
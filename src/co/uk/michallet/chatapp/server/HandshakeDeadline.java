@@ -0,0 +1,45 @@
+package co.uk.michallet.chatapp.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The deadline of one connection's handshake. Whichever of the handshake finishing and the deadline passing happens
+ * first decides the outcome, the other finds it already settled.
+ */
+public class HandshakeDeadline extends TimerEntry {
+    private final HandshakeMonitor _monitor;
+    // Drops the connection if the deadline passes first
+    private final Runnable _onExpired;
+    private final long _startNanos;
+    private final AtomicBoolean _settled;
+
+    public HandshakeDeadline(HandshakeMonitor monitor, Runnable onExpired) {
+        _monitor = monitor;
+        _onExpired = onExpired;
+        _startNanos = System.nanoTime();
+        _settled = new AtomicBoolean(false);
+    }
+
+    public long getStartNanos() {
+        return _startNanos;
+    }
+
+    /**
+     * @return Whether this call settled the outcome, false if something already had.
+     */
+    boolean settle() {
+        if (!_settled.compareAndSet(false, true)) {
+            return false;
+        }
+        cancel();
+        return true;
+    }
+
+    @Override
+    protected void expire(TimerWheel wheel) {
+        if (_settled.compareAndSet(false, true)) {
+            _monitor.recordTimedOut();
+            _onExpired.run();
+        }
+    }
+}
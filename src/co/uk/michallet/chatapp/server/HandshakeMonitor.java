@@ -0,0 +1,108 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives every accepted connection a deadline to log in by, so connections that never send a USER_JOIN can't hold on
+ * to a handshake thread or a half set up connection for ever, and tracks how long handshakes take.
+ * A handshake is timed from the connection being accepted, so time spent waiting for a handshake thread counts too.
+ */
+public class HandshakeMonitor {
+    // Null if handshakes have no deadline
+    private final TimerWheel _wheel;
+    private final long _deadlineTicks;
+    private final Histogram _durations;
+    private final AtomicLong _completed;
+    private final AtomicLong _timedOut;
+    private final AtomicLong _failed;
+
+    /**
+     * @param wheel The server's timer wheel, or null if handshakes have no deadline.
+     * @param deadlineMillis How long a connection has to log in.
+     */
+    public HandshakeMonitor(TimerWheel wheel, long deadlineMillis) {
+        _wheel = wheel;
+        _deadlineTicks = wheel == null ? 0 : wheel.toTicks(deadlineMillis);
+        _durations = new Histogram();
+        _completed = new AtomicLong();
+        _timedOut = new AtomicLong();
+        _failed = new AtomicLong();
+    }
+
+    /**
+     * Starts timing a handshake, called as soon as the connection is accepted.
+     * @param onExpired Drops the connection, run on the wheel's thread if the deadline passes first.
+     */
+    public HandshakeDeadline begin(Runnable onExpired) {
+        var deadline = new HandshakeDeadline(this, onExpired);
+        if (_wheel != null) {
+            _wheel.schedule(deadline, _deadlineTicks);
+        }
+        return deadline;
+    }
+
+    /**
+     * Called once the client has logged in.
+     * @return False if the deadline had already passed, and the connection is being dropped.
+     */
+    public boolean complete(HandshakeDeadline deadline) {
+        if (!deadline.settle()) {
+            return false;
+        }
+        _completed.incrementAndGet();
+        _durations.record(System.nanoTime() - deadline.getStartNanos());
+        return true;
+    }
+
+    /**
+     * Called if the handshake fails, e.g. the client disconnects or sends something other than a login. Does nothing
+     * if the handshake has already completed or timed out.
+     */
+    public void fail(HandshakeDeadline deadline) {
+        if (deadline.settle()) {
+            _failed.incrementAndGet();
+        }
+    }
+
+    void recordTimedOut() {
+        _timedOut.incrementAndGet();
+    }
+
+    /**
+     * @return Nanoseconds from accepting each connection to its login arriving.
+     */
+    public Histogram getDurations() {
+        return _durations;
+    }
+
+    public long getCompleted() {
+        return _completed.get();
+    }
+
+    public long getTimedOut() {
+        return _timedOut.get();
+    }
+
+    public long getFailed() {
+        return _failed.get();
+    }
+
+    /**
+     * @return Seconds a connection has to log in, 0 if there's no deadline.
+     */
+    public long getDeadlineSeconds() {
+        return _wheel == null ? 0 : _deadlineTicks * _wheel.getTickMillis() / 1000;
+    }
+
+    /**
+     * Reads the "handshake" configuration value, seconds a connection has to log in. Defaults to 10, 0 for no deadline.
+     * @param wheel The server's timer wheel, shared with anything else that needs deadlines.
+     */
+    public static HandshakeMonitor fromConfig(IConfiguration config, TimerWheel wheel) {
+        var seconds = Long.parseLong(config.getString("handshake", "10"));
+        return new HandshakeMonitor(seconds > 0 ? wheel : null, seconds * 1000);
+    }
+}
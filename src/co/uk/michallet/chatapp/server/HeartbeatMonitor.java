@@ -0,0 +1,176 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Notices sessions whose client has gone quiet. A session that hasn't sent anything for pingMillis is sent a PING,
+ * and if nothing comes back within timeoutMillis its connection is dropped as though it had been lost, which frees
+ * half-open connections the reader would otherwise wait on forever. A session that hasn't sent anything but PONGs
+ * for idleMillis is sent a GOODBYE and closed.
+ * Sessions only note the tick of their last event as they read it, each session's single SessionHeartbeat works out
+ * when it next needs looking at, so the wheel does nothing for a session between its deadlines.
+ */
+public class HeartbeatMonitor {
+    private final ILogger _logger;
+    private final TimerWheel _wheel;
+    // 0 where disabled
+    private final long _pingTicks;
+    private final long _timeoutTicks;
+    private final long _idleTicks;
+    private final AtomicInteger _watched;
+    private final AtomicLong _pings;
+    private final AtomicLong _unresponsive;
+    private final AtomicLong _idle;
+
+    /**
+     * @param pingMillis How long a session may go without sending anything before it's pinged, 0 to never ping.
+     * @param timeoutMillis How long a pinged session has to answer.
+     * @param idleMillis How long a session may go without sending an event before it's closed, 0 to never close it.
+     */
+    public HeartbeatMonitor(ILogger logger, TimerWheel wheel, long pingMillis, long timeoutMillis, long idleMillis) {
+        _logger = logger;
+        _wheel = wheel;
+        _pingTicks = pingMillis > 0 ? _wheel.toTicks(pingMillis) : 0;
+        _timeoutTicks = _wheel.toTicks(timeoutMillis);
+        _idleTicks = idleMillis > 0 ? _wheel.toTicks(idleMillis) : 0;
+        _watched = new AtomicInteger();
+        _pings = new AtomicLong();
+        _unresponsive = new AtomicLong();
+        _idle = new AtomicLong();
+    }
+
+    public TimerWheel getWheel() {
+        return _wheel;
+    }
+
+    /**
+     * @return The wheel's current tick, which is all sessions need to note when they were last heard from.
+     */
+    public long now() {
+        return _wheel.getTick();
+    }
+
+    /**
+     * Starts keeping an eye on a session that has just joined or been resumed.
+     */
+    public void watch(ClientSession session) {
+        var now = _wheel.getTick();
+        session.touch(now, true);
+        var heartbeat = new SessionHeartbeat(this, session);
+        session.setHeartbeat(heartbeat);
+        _watched.incrementAndGet();
+        _wheel.schedule(heartbeat, nextCheck(session, now) - now);
+    }
+
+    /**
+     * Stops watching a session once it has disconnected.
+     */
+    public void unwatch(ClientSession session) {
+        var heartbeat = session.getHeartbeat();
+        if (heartbeat != null && !heartbeat.isCancelled()) {
+            heartbeat.cancel();
+            _watched.decrementAndGet();
+        }
+    }
+
+    /**
+     * Called on the wheel's thread when a session's heartbeat expires.
+     */
+    void check(SessionHeartbeat heartbeat) {
+        var session = heartbeat.getSession();
+        if (session.getRoom() == null) {
+            // Already off the bus
+            return;
+        }
+        var now = _wheel.getTick();
+        if (_idleTicks > 0 && now - session.getLastEventTick() >= _idleTicks) {
+            _idle.incrementAndGet();
+            _logger.info("%s: idle for %d s, disconnecting", session.getName(), (now - session.getLastEventTick()) * _wheel.getTickMillis() / 1000);
+            session.send(ChatEventFactory.fromGoodbye());
+            try {
+                session.close();
+            }
+            catch (IOException ignored) {
+            }
+            return;
+        }
+
+        if (session.isAwaitingPong()) {
+            if (now - heartbeat.getPingTick() >= _timeoutTicks) {
+                _unresponsive.incrementAndGet();
+                _logger.info("%s: didn't answer a ping, dropping the connection", session.getName());
+                session.abort();
+                return;
+            }
+        }
+        else if (_pingTicks > 0 && now - session.getLastActivityTick() >= _pingTicks) {
+            heartbeat.setPingTick(now);
+            // Set before sending, so an answer can't arrive before we're waiting for it
+            session.setAwaitingPong(true);
+            session.ping();
+            _pings.incrementAndGet();
+        }
+        _wheel.schedule(heartbeat, nextCheck(session, now) - now);
+    }
+
+    /**
+     * @return The earliest tick the session could need pinging, dropping or closing.
+     */
+    private long nextCheck(ClientSession session, long now) {
+        var next = Long.MAX_VALUE;
+        if (session.isAwaitingPong()) {
+            next = session.getHeartbeat().getPingTick() + _timeoutTicks;
+        }
+        else if (_pingTicks > 0) {
+            next = session.getLastActivityTick() + _pingTicks;
+        }
+        if (_idleTicks > 0) {
+            next = Math.min(next, session.getLastEventTick() + _idleTicks);
+        }
+        return Math.max(next, now + 1);
+    }
+
+    public int getWatchedCount() {
+        return _watched.get();
+    }
+
+    public long getPingsSent() {
+        return _pings.get();
+    }
+
+    /**
+     * @return Sessions dropped for not answering a PING.
+     */
+    public long getUnresponsiveCount() {
+        return _unresponsive.get();
+    }
+
+    /**
+     * @return Sessions closed for sending nothing for too long.
+     */
+    public long getIdleCount() {
+        return _idle.get();
+    }
+
+    /**
+     * Reads the "ping", "pingtimeout" and "idle" configuration values, in seconds. Defaults to pinging sessions quiet
+     * for 30 seconds, allowing 10 seconds for an answer, and never closing idle sessions.
+     * @param wheel The server's timer wheel, shared with anything else that needs deadlines.
+     * @return The monitor, or null if both "ping" and "idle" are 0.
+     */
+    public static HeartbeatMonitor fromConfig(IConfiguration config, ILogger logger, TimerWheel wheel) {
+        var ping = Long.parseLong(config.getString("ping", "30"));
+        var timeout = Long.parseLong(config.getString("pingtimeout", "10"));
+        var idle = Long.parseLong(config.getString("idle", "0"));
+        if (ping <= 0 && idle <= 0) {
+            return null;
+        }
+        return new HeartbeatMonitor(logger, wheel, ping * 1000, Math.max(1, timeout) * 1000, idle * 1000);
+    }
+}
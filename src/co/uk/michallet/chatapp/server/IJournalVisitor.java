@@ -0,0 +1,12 @@
+package co.uk.michallet.chatapp.server;
+
+/**
+ * Called for each record read back out of a MessageJournal, oldest first.
+ */
+public interface IJournalVisitor {
+    /**
+     * @param room The room a MESSAGE was said in, null for a DIRECT_MESSAGE.
+     * @param frame The frame exactly as it was sent to clients.
+     */
+    void visit(long sequence, long timestamp, String room, byte[] frame);
+}
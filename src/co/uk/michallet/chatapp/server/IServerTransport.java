@@ -0,0 +1,22 @@
+package co.uk.michallet.chatapp.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Accepts client connections and moves events between their sockets and the ChatServer.
+ */
+public interface IServerTransport {
+    void bind(InetAddress addr, int port, int backlog) throws IOException;
+
+    /**
+     * Asynchronously accept new client sessions.
+     * @return Returns a Future that will complete only when cancelled or the transport terminates.
+     */
+    CompletableFuture<Void> acceptAsync();
+
+    boolean isOpen();
+
+    void close() throws IOException;
+}
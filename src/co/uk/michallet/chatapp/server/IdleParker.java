@@ -0,0 +1,44 @@
+package co.uk.michallet.chatapp.server;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Parks a worker thread that has run out of work until a producer hands it more. Only one thread may park on it at a
+ * time, any number may wake it.
+ * The worker announces it's going to sleep, then looks for work once more, so work handed over between the two can't
+ * be missed: either the worker sees it, or the producer sees the announcement and wakes it.
+ */
+public class IdleParker {
+    private final BooleanSupplier _hasWork;
+    // The worker's thread while it's parking, null otherwise
+    private volatile Thread _parked;
+
+    /**
+     * @param hasWork Whether the worker has something to do, or should stop, checked after announcing the park.
+     */
+    public IdleParker(BooleanSupplier hasWork) {
+        _hasWork = hasWork;
+    }
+
+    /**
+     * Called by the worker. Returns once it's woken, the timeout passes or there turns out to be work after all.
+     */
+    public void park(long timeoutNanos) {
+        _parked = Thread.currentThread();
+        if (!_hasWork.getAsBoolean()) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+        _parked = null;
+    }
+
+    /**
+     * Called after handing the worker something to do, costs a volatile read unless it's parking.
+     */
+    public void wake() {
+        var parked = _parked;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+    }
+}
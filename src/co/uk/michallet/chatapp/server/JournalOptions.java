@@ -0,0 +1,78 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Where the MessageJournal keeps its segments, how large they grow and how long they're kept for.
+ */
+public class JournalOptions {
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_BYTES = 1024L * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_HOURS = 168;
+    public static final int DEFAULT_REPLAY = 10000;
+
+    private final Path _directory;
+    private final int _segmentBytes;
+    private final long _retentionBytes;
+    private final long _retentionMillis;
+    // Whether each batch is forced to disk before the writer takes the next, otherwise the OS writes pages back
+    private final boolean _sync;
+    private final int _replay;
+
+    public JournalOptions(Path directory, int segmentBytes, long retentionBytes, long retentionMillis, boolean sync, int replay) {
+        _directory = directory;
+        _segmentBytes = Math.max(4096, segmentBytes);
+        _retentionBytes = retentionBytes;
+        _retentionMillis = retentionMillis;
+        _sync = sync;
+        _replay = Math.max(0, replay);
+    }
+
+    public Path getDirectory() {
+        return _directory;
+    }
+
+    public int getSegmentBytes() {
+        return _segmentBytes;
+    }
+
+    public long getRetentionBytes() {
+        return _retentionBytes;
+    }
+
+    public long getRetentionMillis() {
+        return _retentionMillis;
+    }
+
+    public boolean getSync() {
+        return _sync;
+    }
+
+    /**
+     * @return How many of the most recent messages are read back into the history on startup.
+     */
+    public int getReplay() {
+        return _replay;
+    }
+
+    /**
+     * Reads the "journal", "journalsegment", "journalbytes", "journalhours", "journalsync" and "journalreplay"
+     * configuration values. Segments default to 64MB, retention to 1GB or a week, whichever is hit first.
+     * @return The options, or null if "journal" doesn't name a directory.
+     */
+    public static JournalOptions fromConfig(IConfiguration config) {
+        var directory = config.getString("journal");
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        var segmentBytes = Integer.parseInt(config.getString("journalsegment", String.valueOf(DEFAULT_SEGMENT_BYTES)));
+        var retentionBytes = Long.parseLong(config.getString("journalbytes", String.valueOf(DEFAULT_RETENTION_BYTES)));
+        var retentionHours = Long.parseLong(config.getString("journalhours", String.valueOf(DEFAULT_RETENTION_HOURS)));
+        var sync = !config.getString("journalsync", "batch").equals("none");
+        var replay = Integer.parseInt(config.getString("journalreplay", String.valueOf(DEFAULT_REPLAY)));
+        return new JournalOptions(Paths.get(directory), segmentBytes, retentionBytes, retentionHours * 3_600_000L, sync, replay);
+    }
+}
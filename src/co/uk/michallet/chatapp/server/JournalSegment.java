@@ -0,0 +1,288 @@
+package co.uk.michallet.chatapp.server;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+/**
+ * One fixed-size file of a MessageJournal, named after the first sequence number it holds. The file is preallocated
+ * and mapped, records are written into the mapping back to back:
+ * <pre>
+ * int length | int crc | long sequence | long timestamp | short room length, -1 for none | room | frame
+ * </pre>
+ * The length covers everything after itself and is written last, so the zeroes after the final record, or a record
+ * that was torn by a crash, read as the end of the segment. Alongside it a small index file holds the sequence and
+ * position of a record every INDEX_INTERVAL bytes, so a reader can start near any sequence without scanning the
+ * whole segment.
+ */
+public class JournalSegment {
+    // Bytes of log between index entries
+    private static final int INDEX_INTERVAL = 4096;
+    // long sequence, int position
+    private static final int INDEX_ENTRY_SIZE = 12;
+    // Bytes covered by the length after the crc and before the room
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 8 + 2;
+
+    private final long _baseSequence;
+    private final Path _logPath;
+    private final Path _indexPath;
+    private final int _capacity;
+    private final CRC32C _crc;
+    // Null once sealed, readers map the file again
+    private MappedByteBuffer _log;
+    private final MappedByteBuffer _index;
+    private int _indexCount;
+    private int _lastIndexedPosition;
+    private int _position;
+    private long _lastSequence;
+    private long _lastTimestamp;
+
+    private JournalSegment(long baseSequence, Path logPath, Path indexPath, MappedByteBuffer log, MappedByteBuffer index) {
+        _baseSequence = baseSequence;
+        _logPath = logPath;
+        _indexPath = indexPath;
+        _log = log;
+        _index = index;
+        _capacity = log.capacity();
+        _crc = new CRC32C();
+        _lastSequence = baseSequence - 1;
+    }
+
+    /**
+     * Creates an empty segment whose first record will have the given sequence.
+     */
+    public static JournalSegment create(Path directory, long baseSequence, int capacity) throws IOException {
+        var logPath = directory.resolve(String.format("%020d.log", baseSequence));
+        var indexPath = directory.resolve(String.format("%020d.idx", baseSequence));
+        var log = map(logPath, capacity);
+        var index = map(indexPath, indexCapacity(capacity));
+        return new JournalSegment(baseSequence, logPath, indexPath, log, index);
+    }
+
+    /**
+     * Maps an existing segment and finds the end of what was written to it.
+     */
+    public static JournalSegment open(Path logPath) throws IOException {
+        var fileName = logPath.getFileName().toString();
+        var baseSequence = Long.parseLong(fileName.substring(0, fileName.length() - ".log".length()));
+        var indexPath = logPath.resolveSibling(String.format("%020d.idx", baseSequence));
+        var capacity = (int)Files.size(logPath);
+        var log = map(logPath, capacity);
+        var index = map(indexPath, indexCapacity(capacity));
+        var segment = new JournalSegment(baseSequence, logPath, indexPath, log, index);
+        segment.recover();
+        return segment;
+    }
+
+    private static int indexCapacity(int capacity) {
+        return (capacity / INDEX_INTERVAL + 1) * INDEX_ENTRY_SIZE;
+    }
+
+    private static MappedByteBuffer map(Path path, int capacity) throws IOException {
+        // The mapping stays valid once the file is closed
+        try (var file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() < capacity) {
+                file.setLength(capacity);
+            }
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    /**
+     * Finds the last index entry that still points at a whole record and walks forward from it to the end.
+     */
+    private void recover() {
+        while (_indexCount * INDEX_ENTRY_SIZE < _index.capacity() && _index.getLong(_indexCount * INDEX_ENTRY_SIZE) != 0) {
+            _indexCount++;
+        }
+        var start = 0;
+        while (_indexCount > 0) {
+            var position = _index.getInt((_indexCount - 1) * INDEX_ENTRY_SIZE + 8);
+            if (readRecord(_log, position, Long.MAX_VALUE, null) > 0) {
+                start = position;
+                break;
+            }
+            // Written after a record that didn't make it to disk
+            _indexCount--;
+            _index.putLong(_indexCount * INDEX_ENTRY_SIZE, 0);
+        }
+        _lastIndexedPosition = start;
+        _position = scan(_log, start, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Appends a record, called by the journal's writer only.
+     * @param room The room's name as UTF-8, or null.
+     * @return False if the record doesn't fit and the journal should roll to a new segment.
+     */
+    public boolean append(long sequence, long timestamp, byte[] room, byte[] frame) {
+        var roomLength = room == null ? 0 : room.length;
+        var length = RECORD_HEADER_SIZE + roomLength + frame.length;
+        var start = _position;
+        var end = start + 4 + length;
+        if (end > _capacity) {
+            return false;
+        }
+
+        var log = _log;
+        log.position(start + 8);
+        log.putLong(sequence);
+        log.putLong(timestamp);
+        log.putShort((short)(room == null ? -1 : roomLength));
+        if (room != null) {
+            log.put(room);
+        }
+        log.put(frame);
+        log.putInt(start + 4, checksum(log, start, end));
+        log.putInt(start, length);
+
+        // Indexed after the record is complete, so an entry never points past the end
+        if (_indexCount == 0 || start - _lastIndexedPosition >= INDEX_INTERVAL) {
+            var entry = _indexCount * INDEX_ENTRY_SIZE;
+            if (entry + INDEX_ENTRY_SIZE <= _index.capacity()) {
+                _index.putInt(entry + 8, start);
+                _index.putLong(entry, sequence);
+                _indexCount++;
+                _lastIndexedPosition = start;
+            }
+        }
+        _position = end;
+        _lastSequence = sequence;
+        _lastTimestamp = timestamp;
+        return true;
+    }
+
+    private int checksum(ByteBuffer log, int start, int end) {
+        var body = log.duplicate();
+        body.limit(end).position(start + 8);
+        _crc.reset();
+        _crc.update(body);
+        return (int)_crc.getValue();
+    }
+
+    /**
+     * Reads a record, handing it to the visitor if its sequence is at least fromSequence.
+     * @return The position of the next record, or -1 if there isn't a whole record at position.
+     */
+    private int readRecord(ByteBuffer log, int position, long fromSequence, IJournalVisitor visitor) {
+        if (position > _capacity - 4) {
+            return -1;
+        }
+        var length = log.getInt(position);
+        if (length < RECORD_HEADER_SIZE || length > _capacity - position - 4) {
+            return -1;
+        }
+        var end = position + 4 + length;
+        if (log.getInt(position + 4) != checksum(log, position, end)) {
+            return -1;
+        }
+        var sequence = log.getLong(position + 8);
+        var timestamp = log.getLong(position + 16);
+        if (visitor == null || sequence < fromSequence) {
+            _lastSequence = Math.max(_lastSequence, sequence);
+            _lastTimestamp = Math.max(_lastTimestamp, timestamp);
+            return end;
+        }
+
+        var record = log.duplicate();
+        record.position(position + 24);
+        var roomLength = record.getShort();
+        String room = null;
+        if (roomLength >= 0) {
+            var roomBytes = new byte[roomLength];
+            record.get(roomBytes);
+            room = new String(roomBytes, StandardCharsets.UTF_8);
+        }
+        var frame = new byte[end - record.position()];
+        record.get(frame);
+        visitor.visit(sequence, timestamp, room, frame);
+        return end;
+    }
+
+    /**
+     * @return The position after the last whole record.
+     */
+    private int scan(ByteBuffer log, int position, long fromSequence, IJournalVisitor visitor) {
+        while (true) {
+            var next = readRecord(log, position, fromSequence, visitor);
+            if (next < 0) {
+                return position;
+            }
+            position = next;
+        }
+    }
+
+    /**
+     * Hands every record from fromSequence on to the visitor. Mustn't run alongside the writer.
+     */
+    public void read(long fromSequence, IJournalVisitor visitor) throws IOException {
+        var log = _log;
+        if (log == null) {
+            try (var channel = FileChannel.open(_logPath)) {
+                log = channel.map(FileChannel.MapMode.READ_ONLY, 0, _capacity);
+            }
+        }
+        // Start from the last indexed record at or before the one we want
+        var start = 0;
+        for (int i = 0; i < _indexCount; i++) {
+            if (_index.getLong(i * INDEX_ENTRY_SIZE) > fromSequence) {
+                break;
+            }
+            start = _index.getInt(i * INDEX_ENTRY_SIZE + 8);
+        }
+        scan(log, start, fromSequence, visitor);
+    }
+
+    public void force() {
+        if (_log != null) {
+            _log.force();
+            _index.force();
+        }
+    }
+
+    /**
+     * Forces the segment to disk and drops its log mapping, it won't be written to again.
+     * Java can't unmap a buffer, the pages are released once it's collected.
+     */
+    public void seal() {
+        force();
+        _log = null;
+    }
+
+    public void delete() throws IOException {
+        _log = null;
+        Files.deleteIfExists(_logPath);
+        Files.deleteIfExists(_indexPath);
+    }
+
+    public long getBaseSequence() {
+        return _baseSequence;
+    }
+
+    /**
+     * @return The last sequence written, or one before the base sequence if the segment is empty.
+     */
+    public long getLastSequence() {
+        return _lastSequence;
+    }
+
+    /**
+     * @return When the last record was written, in milliseconds since the epoch.
+     */
+    public long getLastTimestamp() {
+        return _lastTimestamp;
+    }
+
+    /**
+     * @return Bytes of records written.
+     */
+    public int getSize() {
+        return _position;
+    }
+}
@@ -0,0 +1,113 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent messages of each room, replayed to users as they arrive so they don't join to an empty screen.
+ * Memory is bounded by messagesPerRoom and bytesPerRoom for each of at most maxRooms rooms. Past that, the room that
+ * was least recently spoken in loses its history.
+ */
+public class MessageHistory {
+    private final int _messagesPerRoom;
+    private final int _bytesPerRoom;
+    private final int _maxRooms;
+    private final Map<String, RoomHistory> _rooms;
+
+    public MessageHistory(int messagesPerRoom, int bytesPerRoom, int maxRooms) {
+        _messagesPerRoom = Math.max(1, messagesPerRoom);
+        _bytesPerRoom = Math.max(1, bytesPerRoom);
+        _maxRooms = Math.max(1, maxRooms);
+        _rooms = new ConcurrentHashMap<>();
+    }
+
+    public int getMessagesPerRoom() {
+        return _messagesPerRoom;
+    }
+
+    /**
+     * Keeps a message that was just broadcast to a room.
+     * @param frame The frame the message was broadcast as, it must not be modified afterwards.
+     */
+    public void record(String room, byte[] frame) {
+        var history = _rooms.get(room);
+        if (history == null) {
+            history = create(room);
+        }
+        history.append(frame);
+    }
+
+    private synchronized RoomHistory create(String room) {
+        var history = _rooms.get(room);
+        if (history != null) {
+            return history;
+        }
+        if (_rooms.size() >= _maxRooms) {
+            evictQuietestRoom();
+        }
+        history = new RoomHistory(_messagesPerRoom, _bytesPerRoom);
+        _rooms.put(room, history);
+        return history;
+    }
+
+    private void evictQuietestRoom() {
+        var now = System.nanoTime();
+        String quietest = null;
+        var longestSilence = -1L;
+        for (var entry : _rooms.entrySet()) {
+            var silence = now - entry.getValue().getLastAppendNanos();
+            if (silence > longestSilence) {
+                quietest = entry.getKey();
+                longestSilence = silence;
+            }
+        }
+        if (quietest != null) {
+            _rooms.remove(quietest);
+        }
+    }
+
+    /**
+     * @return Everything held for the room as back to back frames, shared by every caller, or null if there's none.
+     */
+    public byte[] replay(String room) {
+        var history = _rooms.get(room);
+        return history == null ? null : history.replay();
+    }
+
+    /**
+     * @return Up to the last count messages of the room as back to back frames, or null if there are none.
+     */
+    public byte[] tail(String room, int count) {
+        var history = _rooms.get(room);
+        return history == null ? null : history.tail(count);
+    }
+
+    public int getRoomCount() {
+        return _rooms.size();
+    }
+
+    public long getBytes() {
+        var bytes = 0L;
+        for (var history : _rooms.values()) {
+            bytes += history.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the "history", "historybytes" and "historyrooms" configuration values.
+     * Defaults to 100 messages and 64KB per room, for up to 256 rooms.
+     * @return The history, or null if "history" is 0.
+     */
+    public static MessageHistory fromConfig(IConfiguration config) {
+        var messages = Integer.parseInt(config.getString("history", "100"));
+        if (messages <= 0) {
+            return null;
+        }
+        var bytes = Integer.parseInt(config.getString("historybytes", "65536"));
+        var rooms = Integer.parseInt(config.getString("historyrooms", "256"));
+        return new MessageHistory(messages, bytes, rooms);
+    }
+}
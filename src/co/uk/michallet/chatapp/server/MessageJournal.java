@@ -0,0 +1,298 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only log of every MESSAGE and DIRECT_MESSAGE the server has sent, kept in memory mapped JournalSegments.
+ * Sessions only queue what they've sent, a single writer thread appends everything queued since it last looked as one
+ * batch and then forces it to disk once, so fan-out never waits on the disk. When the writer can't keep up, appends
+ * past MAX_PENDING are dropped rather than queued without bound.
+ * Segments are deleted oldest first once the journal holds more than the retention allows.
+ */
+public class MessageJournal implements Runnable {
+    private static final int MAX_PENDING = 1 << 18;
+    // Records appended before a batch is committed, however many are waiting
+    private static final int MAX_BATCH = 8192;
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+
+    private final ILogger _logger;
+    private final JournalOptions _options;
+    // Oldest first, the last one is written to. Only touched by the writer once it's started
+    private final ArrayList<JournalSegment> _segments;
+    private final Queue<PendingRecord> _pending;
+    private final AtomicInteger _pendingCount;
+    private final AtomicLong _dropped;
+    private final Histogram _batchSizes;
+    private final Histogram _commitLatency;
+    // Sequence of the last record committed to a segment
+    private volatile long _lastSequence;
+    private volatile long _bytes;
+    private volatile int _segmentCount;
+    private volatile boolean _running;
+    private final IdleParker _parker;
+    private Thread _writer;
+    private long _lastRetentionCheck;
+
+    private MessageJournal(ILogger logger, JournalOptions options) {
+        _logger = logger;
+        _options = options;
+        _segments = new ArrayList<>();
+        _pending = new ConcurrentLinkedQueue<>();
+        _pendingCount = new AtomicInteger();
+        _dropped = new AtomicLong();
+        _batchSizes = new Histogram();
+        _commitLatency = new Histogram();
+        _parker = new IdleParker(() -> !_running || !_pending.isEmpty());
+    }
+
+    /**
+     * Opens the journal in the options' directory, creating it if needed, and finds where the last run stopped
+     * writing. The writer isn't running until start() is called.
+     */
+    public static MessageJournal open(ILogger logger, JournalOptions options) throws IOException {
+        var journal = new MessageJournal(logger, options);
+        var directory = options.getDirectory();
+        Files.createDirectories(directory);
+        try (var files = Files.list(directory)) {
+            var logs = files.filter(path -> path.getFileName().toString().matches("\\d{20}\\.log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+            for (var log : logs) {
+                journal._segments.add(JournalSegment.open(log));
+            }
+        }
+        if (journal._segments.isEmpty()) {
+            journal._segments.add(JournalSegment.create(directory, 1, options.getSegmentBytes()));
+        }
+        journal._lastSequence = journal.activeSegment().getLastSequence();
+        journal.enforceRetention(System.currentTimeMillis());
+        return journal;
+    }
+
+    public void start() {
+        _running = true;
+        _writer = new Thread(this, "journal-writer");
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    /**
+     * Stops the writer once it has committed everything already queued.
+     */
+    public void close() {
+        _running = false;
+        if (_writer == null) {
+            return;
+        }
+        _parker.wake();
+        try {
+            _writer.join(5000);
+        }
+        catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a frame for the writer. Safe to call from any thread, never blocks.
+     * @param room The room a MESSAGE was broadcast to, null for a DIRECT_MESSAGE.
+     */
+    public void append(String room, byte[] frame) {
+        if (_pendingCount.incrementAndGet() > MAX_PENDING) {
+            _pendingCount.decrementAndGet();
+            _dropped.incrementAndGet();
+            return;
+        }
+        _pending.add(new PendingRecord(room, frame, System.currentTimeMillis()));
+        _parker.wake();
+    }
+
+    /**
+     * Hands up to the last count records to the visitor, oldest first. Must be called before start().
+     */
+    public void replay(long count, IJournalVisitor visitor) throws IOException {
+        var from = Math.max(1, _lastSequence - count + 1);
+        for (var segment : _segments) {
+            if (segment.getLastSequence() >= from) {
+                segment.read(from, visitor);
+            }
+        }
+    }
+
+    private JournalSegment activeSegment() {
+        return _segments.get(_segments.size() - 1);
+    }
+
+    @Override
+    public void run() {
+        while (_running || !_pending.isEmpty()) {
+            var record = _pending.poll();
+            if (record == null) {
+                idle();
+                continue;
+            }
+
+            var start = System.nanoTime();
+            var count = 0;
+            try {
+                do {
+                    count++;
+                    write(record);
+                }
+                while (count < MAX_BATCH && (record = _pending.poll()) != null);
+
+                var segment = activeSegment();
+                if (_options.getSync()) {
+                    segment.force();
+                }
+                _lastSequence = segment.getLastSequence();
+                _commitLatency.record(System.nanoTime() - start);
+                _batchSizes.record(count);
+            }
+            catch (RuntimeException ex) {
+                // e.g. an UncheckedIOException from a mapped segment. The next batch forces whatever this one appended.
+                _logger.error("failed to write to the journal: %s", ex);
+            }
+            _pendingCount.addAndGet(-count);
+        }
+        activeSegment().force();
+    }
+
+    private void idle() {
+        var now = System.currentTimeMillis();
+        if (now - _lastRetentionCheck > RETENTION_CHECK_MILLIS) {
+            enforceRetention(now);
+        }
+        _parker.park(100_000_000);
+    }
+
+    private void write(PendingRecord record) {
+        var sequence = activeSegment().getLastSequence() + 1;
+        var room = record._room == null ? null : record._room.getBytes(StandardCharsets.UTF_8);
+        if (activeSegment().append(sequence, record._timestamp, room, record._frame)) {
+            return;
+        }
+        try {
+            roll(sequence);
+        }
+        catch (IOException rollEx) {
+            _logger.error("failed to roll the journal: %s", rollEx.getMessage());
+            _dropped.incrementAndGet();
+            return;
+        }
+        if (!activeSegment().append(sequence, record._timestamp, room, record._frame)) {
+            _logger.warn("a %d byte frame doesn't fit in a journal segment", record._frame.length);
+            _dropped.incrementAndGet();
+        }
+    }
+
+    private void roll(long nextSequence) throws IOException {
+        var previous = activeSegment();
+        // An empty segment is reused rather than left behind
+        if (previous.getSize() == 0) {
+            return;
+        }
+        previous.seal();
+        _segments.add(JournalSegment.create(_options.getDirectory(), nextSequence, _options.getSegmentBytes()));
+        enforceRetention(System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes the oldest segments until what's left is within the retention, never the one being written.
+     */
+    private void enforceRetention(long now) {
+        _lastRetentionCheck = now;
+        var bytes = 0L;
+        for (var segment : _segments) {
+            bytes += segment.getSize();
+        }
+        while (_segments.size() > 1) {
+            var oldest = _segments.get(0);
+            var expired = now - oldest.getLastTimestamp() > _options.getRetentionMillis();
+            if (!expired && bytes <= _options.getRetentionBytes()) {
+                break;
+            }
+            try {
+                oldest.delete();
+            }
+            catch (IOException deleteEx) {
+                _logger.warn("failed to delete journal segment %d: %s", oldest.getBaseSequence(), deleteEx.getMessage());
+                break;
+            }
+            bytes -= oldest.getSize();
+            _segments.remove(0);
+        }
+        _bytes = bytes;
+        _segmentCount = _segments.size();
+    }
+
+    /**
+     * @return The sequence of the last record committed, 0 if nothing has ever been written.
+     */
+    public long getLastSequence() {
+        return _lastSequence;
+    }
+
+    public int getPendingCount() {
+        return _pendingCount.get();
+    }
+
+    /**
+     * @return Appends thrown away because the writer had fallen too far behind, or the record couldn't be written.
+     */
+    public long getDropped() {
+        return _dropped.get();
+    }
+
+    public int getSegmentCount() {
+        return _segmentCount;
+    }
+
+    /**
+     * @return Bytes held by every segment as of the last retention check.
+     */
+    public long getBytes() {
+        return _bytes;
+    }
+
+    public JournalOptions getOptions() {
+        return _options;
+    }
+
+    /**
+     * @return Records committed per batch.
+     */
+    public Histogram getBatchSizes() {
+        return _batchSizes;
+    }
+
+    /**
+     * @return Nanoseconds spent writing and forcing each batch.
+     */
+    public Histogram getCommitLatency() {
+        return _commitLatency;
+    }
+
+    private static class PendingRecord {
+        private final String _room;
+        private final byte[] _frame;
+        private final long _timestamp;
+
+        PendingRecord(String room, byte[] frame, long timestamp) {
+            _room = room;
+            _frame = frame;
+            _timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.metrics.Counter;
+import co.uk.michallet.chatapp.common.metrics.MetricRegistry;
+import co.uk.michallet.chatapp.common.metrics.PrometheusFormat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the server's metrics over HTTP at /metrics, in the Prometheus text format, for dashboards to scrape.
+ * Scrapes are answered one at a time on a thread of their own and only read the metrics, none of which lock, so
+ * however often they come they never hold up a session.
+ */
+public class MetricsEndpoint {
+    private static final String PATH = "/metrics";
+
+    private final ILogger _logger;
+    private final MetricRegistry _registry;
+    private final InetAddress _address;
+    private final int _port;
+    private final Counter _scrapes;
+    // Named in full, the flattened build drops imports from outside java.*
+    private com.sun.net.httpserver.HttpServer _server;
+    private ExecutorService _executor;
+
+    public MetricsEndpoint(ILogger logger, MetricRegistry registry, InetAddress address, int port) {
+        _logger = logger;
+        _registry = registry;
+        _address = address;
+        _port = port;
+        _scrapes = registry.counter("chat_metrics_scrapes_total", "Scrapes of the metrics endpoint");
+    }
+
+    public int getPort() {
+        return _port;
+    }
+
+    /**
+     * Starts answering scrapes.
+     * @throws IOException If the port couldn't be bound.
+     */
+    public void start() throws IOException {
+        _server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(_address, _port), 0);
+        _server.createContext(PATH, this::handle);
+        _executor = Executors.newSingleThreadExecutor(task -> {
+            var thread = new Thread(task, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _server.setExecutor(_executor);
+        _server.start();
+        _logger.info("metrics: serving %s on %s:%d", PATH, _address.getHostAddress(), _port);
+    }
+
+    public void close() {
+        if (_server != null) {
+            _server.stop(0);
+            _executor.shutdownNow();
+        }
+    }
+
+    private void handle(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+        try {
+            var method = exchange.getRequestMethod();
+            // The context also matches anything under the path
+            if (!exchange.getRequestURI().getPath().equals(PATH)) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            _scrapes.increment();
+            var body = PrometheusFormat.write(_registry).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", PrometheusFormat.CONTENT_TYPE);
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads the "metrics" configuration value. Scrapes are answered on the "csa" address.
+     * @return The endpoint, or null if "metrics" isn't set to a port.
+     */
+    public static MetricsEndpoint fromConfig(IConfiguration config, ILogger logger, MetricRegistry registry) throws UnknownHostException {
+        var port = Integer.parseInt(config.getString("metrics", "0"));
+        if (port <= 0) {
+            return null;
+        }
+        return new MetricsEndpoint(logger, registry, InetAddress.getByName(config.getString("csa", "127.0.0.1")), port);
+    }
+}
@@ -0,0 +1,51 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
+
+/**
+ * Session of a client connected over the nio transport. Events are handled on the event loop that owns the connection.
+ */
+public class NioClientSession extends ClientSession {
+    private final NioConnection _connection;
+
+    public NioClientSession(ILogger logger, NioConnection connection, UserJoinEventArgs joinEventArgs, ConcurrentMessageBus messageBus) {
+        super(logger, joinEventArgs, messageBus);
+        _connection = connection;
+    }
+
+    /**
+     * @return The loop every event to and from this session is handled on.
+     */
+    public NioEventLoop getEventLoop() {
+        return _connection.getEventLoop();
+    }
+
+    /**
+     * Queues a frame to be written by the event loop, never blocks.
+     * @param frame A complete, already encoded frame.
+     */
+    @Override
+    protected void writeFrame(byte[] frame) {
+        _connection.sendFrame(frame);
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return _connection.getOutboundQueue();
+    }
+
+    @Override
+    public void abort() {
+        _connection.abort();
+    }
+
+    /**
+     * Closes the connection once any events already queued have been written.
+     */
+    @Override
+    public void close() {
+        end();
+        _connection.closeGracefully();
+    }
+}
@@ -0,0 +1,530 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.net.ChatEvent;
+import co.uk.michallet.chatapp.common.net.EventTrace;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.models.ResumeEventArgs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-channel state of a client connected to the nio transport. Reads and handshakes are driven by the owning
+ * NioEventLoop, writes may be queued from any thread.
+ * The read and write buffers are borrowed from the loop's pools, only while there's a partial frame to hold on to or
+ * something waiting to be written, so idle connections hold neither.
+ */
+public class NioConnection {
+    // Size the read buffer starts at, it doubles whenever a single event doesn't fit
+    private static final int INITIAL_BUFFER_SIZE = BufferPool.MIN_SIZE;
+    // Largest single event we're willing to buffer before deciding the client is misbehaving
+    private static final int MAX_BUFFER_SIZE = BufferPool.MAX_SIZE;
+    // Size of the pooled buffers a batch is copied into, and how many one gathering write takes
+    private static final int WRITE_CHUNK_SIZE = 16384;
+    private static final int MAX_WRITE_CHUNKS = BufferPool.MAX_SIZE / WRITE_CHUNK_SIZE;
+
+    private final ILogger _logger;
+    private final SocketChannel _channel;
+    private final NioEventLoop _loop;
+    private final ChatServer _server;
+    private final ConcurrentMessageBus _messageBus;
+    private final IEventCodec _codec;
+    private final OutboundQueue _outbound;
+    private final AtomicBoolean _closed;
+    // Set while the connection is waiting on the loop to flush it, so each batch is only requested once
+    private final AtomicBoolean _flushRequested;
+
+    private SelectionKey _key;
+    // Null while every byte read has been handled
+    private ByteBuffer _readBuffer;
+    // Pooled direct buffers the frames taken off the outbound queue are copied into for the socket, the first
+    // _writeChunks of them are in use. Only touched by the loop.
+    private final ByteBuffer[] _writeBuffers;
+    private int _writeChunks;
+    // A frame taken off the queue that didn't all fit in the last batch, and how much of it that batch took
+    private byte[] _carry;
+    private int _carryOffset;
+    private int _writeFrames;
+    private int _writeBytes;
+    // When the loop first saw the current batch, 0 if there's nothing waiting
+    private long _batchStartNanos;
+    // Null until the client has completed the handshake
+    private NioClientSession _session;
+    // Whether the session was accepted onto the bus, and therefore needs to be removed from it on close
+    private boolean _established;
+    private volatile boolean _closeWhenFlushed;
+    // Set when the client fell too far behind, the connection is closed after one last attempt to flush its GOODBYE
+    private volatile boolean _abortAfterFlush;
+    // Armed when the connection is accepted, settled once the client logs in
+    private final HandshakeDeadline _handshake;
+    // Next connection in the loop's stack of flush requests
+    private NioConnection _nextFlush;
+    // Whether the loop is holding a flush back until it's due, only touched by the loop
+    private boolean _flushDeferred;
+    // Set while the pipeline is full, reading stops until it has room, only touched by the loop
+    private boolean _readPaused;
+    // Handed to the pipeline when it's full, made once rather than for every stall
+    private final Runnable _resumeReading;
+
+    public NioConnection(ILogger logger, SocketChannel channel, NioEventLoop loop, ChatServer server, ConcurrentMessageBus messageBus, IEventCodec codec) {
+        _logger = logger;
+        _channel = channel;
+        _loop = loop;
+        _server = server;
+        _messageBus = messageBus;
+        _codec = codec;
+        _outbound = new OutboundQueue(messageBus.getQueueOptions());
+        _closed = new AtomicBoolean(false);
+        _flushRequested = new AtomicBoolean(false);
+        _writeBuffers = new ByteBuffer[MAX_WRITE_CHUNKS];
+        _handshake = messageBus.getHandshakes().begin(this::abort);
+        _resumeReading = () -> _loop.resumeReading(this);
+    }
+
+    public NioEventLoop getEventLoop() {
+        return _loop;
+    }
+
+    public SocketChannel getChannel() {
+        return _channel;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return _outbound;
+    }
+
+    NioConnection getNextFlush() {
+        return _nextFlush;
+    }
+
+    void setNextFlush(NioConnection nextFlush) {
+        _nextFlush = nextFlush;
+    }
+
+    boolean isFlushDeferred() {
+        return _flushDeferred;
+    }
+
+    void setFlushDeferred(boolean flushDeferred) {
+        _flushDeferred = flushDeferred;
+    }
+
+    /**
+     * Called by the loop as it takes the connection's flush request, frames queued after this need another one.
+     */
+    void clearFlushRequest() {
+        _flushRequested.set(false);
+    }
+
+    /**
+     * Called on the loop thread once the channel is registered with the selector. Starts the handshake.
+     */
+    public void onRegistered(SelectionKey key) {
+        _key = key;
+        _logger.debug("starting handshake");
+        send(_messageBus.createHello());
+    }
+
+    /**
+     * Called on the loop thread when the channel has bytes waiting to be read.
+     */
+    public void onReadable() {
+        try {
+            if (_readPaused) {
+                return;
+            }
+            if (_readBuffer == null) {
+                _readBuffer = _loop.getReadBuffers().acquire(INITIAL_BUFFER_SIZE);
+            }
+            else if (!_readBuffer.hasRemaining()) {
+                growReadBuffer();
+            }
+            var read = _channel.read(_readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            _messageBus.getMetrics().getBytesIn().add(read);
+            handleBuffered();
+        }
+        catch (IOException ex) {
+            _logger.debug("closing connection: %s", ex.getMessage());
+            close();
+        }
+        finally {
+            releaseReadBuffer();
+        }
+    }
+
+    /**
+     * Called on the loop thread once the pipeline has room again after this connection found it full. Picks up with
+     * the frames already read before reading any more.
+     */
+    public void onResumed() {
+        if (!_readPaused || _closed.get()) {
+            return;
+        }
+        _readPaused = false;
+        _key.interestOps(_key.interestOps() | SelectionKey.OP_READ);
+        if (_readBuffer == null) {
+            return;
+        }
+        try {
+            handleBuffered();
+        }
+        catch (IOException ex) {
+            _logger.debug("closing connection: %s", ex.getMessage());
+            close();
+        }
+        finally {
+            releaseReadBuffer();
+        }
+    }
+
+    /**
+     * Handles every complete event in the read buffer, stopping early if the pipeline fills up.
+     */
+    private void handleBuffered() throws IOException {
+        // A single read may contain any number of events, including a partial one at the end.
+        var pipeline = _messageBus.getPipeline();
+        while (!_readPaused) {
+            if (_established && pipeline != null) {
+                if (!tryPublish(pipeline)) {
+                    break;
+                }
+                continue;
+            }
+            var event = tryDecode();
+            if (event == null) {
+                break;
+            }
+            if (!dispatch(event)) {
+                close();
+                return;
+            }
+        }
+    }
+
+    private void releaseReadBuffer() {
+        // Handed back once nothing is left part way through a frame
+        if (_readBuffer != null && (_closed.get() || _readBuffer.position() == 0)) {
+            _loop.getReadBuffers().release(_readBuffer);
+            _readBuffer = null;
+        }
+    }
+
+    /**
+     * Attempts to decode one event from the bytes read so far.
+     * @return The event, or null if the buffer doesn't hold a complete event yet.
+     */
+    private ChatEvent tryDecode() throws IOException {
+        _readBuffer.flip();
+        try {
+            // Before logging in a client may compress if HELLO offered it, after only if it took the offer up
+            var compressed = _session == null ? _messageBus.getCompression() != null : _session.isCompressed();
+            return EventTrace.stampDecoded(_codec.tryDecode(_readBuffer, compressed));
+        }
+        finally {
+            _readBuffer.compact();
+        }
+    }
+
+    /**
+     * Once the session is established with a pipeline, frames are published to it without being decoded here.
+     * The loop never waits on a full pipeline, reading stops instead and the frame stays buffered until it has room.
+     * @return False if the buffer doesn't hold a complete frame yet, or the pipeline is full.
+     */
+    private boolean tryPublish(EventPipeline pipeline) throws IOException {
+        _readBuffer.flip();
+        try {
+            var start = _readBuffer.position();
+            var length = pipeline.getCodec().tryReadFrameLength(_readBuffer);
+            if (length < 0) {
+                return false;
+            }
+            if (!pipeline.tryPublish(_session, _readBuffer.array(), _readBuffer.arrayOffset() + _readBuffer.position(), length)) {
+                _readBuffer.position(start);
+                pauseReading(pipeline);
+                return false;
+            }
+            _readBuffer.position(_readBuffer.position() + length);
+            return true;
+        }
+        finally {
+            _readBuffer.compact();
+        }
+    }
+
+    private void pauseReading(EventPipeline pipeline) {
+        _readPaused = true;
+        _key.interestOps(_key.interestOps() & ~SelectionKey.OP_READ);
+        pipeline.whenRoom(_resumeReading);
+        // Fan-out may have made room before it could have seen us waiting
+        if (pipeline.hasRoom()) {
+            _loop.resumeReading(this);
+        }
+    }
+
+    private void growReadBuffer() throws IOException {
+        if (_readBuffer.capacity() >= MAX_BUFFER_SIZE) {
+            throw new IOException("event exceeds maximum size");
+        }
+        var larger = _loop.getReadBuffers().acquire(_readBuffer.capacity() * 2);
+        _readBuffer.flip();
+        larger.put(_readBuffer);
+        _loop.getReadBuffers().release(_readBuffer);
+        _readBuffer = larger;
+    }
+
+    /**
+     * Routes a decoded event to the handshake or the established session.
+     * @return Whether the connection should stay open.
+     */
+    private boolean dispatch(ChatEvent event) {
+        if (_session != null) {
+            return _session.handleEvent(event);
+        }
+
+        // Expect to receive a USER_JOIN in response to our HELLO, or a RESUME from a client that was connected before.
+        // A client may have sent it straight after connecting, in which case it arrives alongside our HELLO.
+        var joinArgs = ClientSession.getLoginArgs(event);
+        if (joinArgs == null) {
+            _logger.debug("bad login message, aborting");
+            _messageBus.getHandshakes().fail(_handshake);
+            return false;
+        }
+        if (!_messageBus.getHandshakes().complete(_handshake)) {
+            // Arrived just as the deadline passed, the connection is already being dropped
+            return false;
+        }
+
+        _logger.debug("%s: identify", joinArgs.getName());
+        _session = new NioClientSession(_logger, this, joinArgs, _messageBus);
+        if (event.getEventArgs() instanceof ResumeEventArgs) {
+            _session.setResumeRequest((ResumeEventArgs)event.getEventArgs());
+        }
+        _established = _server.openSession(_session);
+        return _established;
+    }
+
+    /**
+     * Encodes an event and queues it to be written by the loop. Safe to call from any thread.
+     */
+    public void send(ChatEvent event) {
+        if (_closed.get()) {
+            return;
+        }
+        try {
+            sendFrame(_codec.encode(event));
+        }
+        catch (IOException ignored) {
+            // Nothing is written during encoding, a failure here means the event itself couldn't be encoded.
+        }
+    }
+
+    /**
+     * Queues an already encoded frame to be written by the loop. Safe to call from any thread.
+     * @param frame The frame, which may be shared with other connections. It's copied out when it's written.
+     */
+    public void sendFrame(byte[] frame) {
+        if (_closed.get() || _abortAfterFlush) {
+            return;
+        }
+        if (!_outbound.offer(frame)) {
+            disconnectSlowConsumer();
+            return;
+        }
+        requestFlush();
+    }
+
+    private void requestFlush() {
+        if (_flushRequested.compareAndSet(false, true)) {
+            _loop.requestFlush(this);
+        }
+    }
+
+    /**
+     * Called on the loop thread to decide whether the queued frames should be written yet.
+     * @return Nanoseconds until the flush deadline, 0 or less if the flush is due now.
+     */
+    public long untilFlushDue(long now) {
+        if (_batchStartNanos == 0) {
+            _batchStartNanos = now;
+        }
+        var options = _messageBus.getFlushOptions();
+        if (_closeWhenFlushed || _abortAfterFlush || _outbound.getQueuedBytes() >= options.getBufferSize()) {
+            return 0;
+        }
+        return _batchStartNanos + options.getDeadlineNanos() - now;
+    }
+
+    private void disconnectSlowConsumer() {
+        if (_session != null) {
+            _session.end();
+        }
+        _logger.warn("%s: more than %d frames queued, disconnecting", _session != null ? _session.getName() : "client",
+                _outbound.getOptions().getHighWatermark());
+        _outbound.clear();
+        try {
+            _outbound.forceOffer(_codec.encode(ChatEventFactory.fromGoodbye()));
+        }
+        catch (IOException ignored) {
+        }
+        _abortAfterFlush = true;
+        requestFlush();
+    }
+
+    /**
+     * Called on the loop thread, writes as much of the queue as the socket will take without blocking.
+     * Queued frames are copied into pooled direct buffers a batch at a time and handed to one gathering write, which
+     * the socket takes without the further copy a heap buffer would need.
+     */
+    public void flush() {
+        if (_closed.get()) {
+            return;
+        }
+        if (_batchStartNanos == 0) {
+            _batchStartNanos = System.nanoTime();
+        }
+        try {
+            while (true) {
+                if (_writeChunks == 0 && !fillWriteBuffers()) {
+                    break;
+                }
+                _channel.write(_writeBuffers, 0, _writeChunks);
+                if (_writeBuffers[_writeChunks - 1].hasRemaining()) {
+                    if (_abortAfterFlush) {
+                        // The client isn't reading, there's no point waiting for it to take the GOODBYE.
+                        close();
+                        return;
+                    }
+                    // The socket's send buffer is full, ask the selector to tell us when it drains.
+                    _key.interestOps(getReadInterest() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                releaseWriteBuffers();
+                _messageBus.getWriteStats().recordFlush(_writeFrames, _writeBytes, System.nanoTime() - _batchStartNanos);
+            }
+            _batchStartNanos = 0;
+            _key.interestOps(getReadInterest());
+
+            if (_closeWhenFlushed || _abortAfterFlush) {
+                close();
+            }
+        }
+        catch (IOException ioEx) {
+            close();
+        }
+    }
+
+    /**
+     * Copies the next batch of frames off the outbound queue into write buffers, until the batch reaches the flush
+     * buffer size or every chunk is full. Frames are split across chunks, a frame larger than what's left is finished
+     * by the next batch.
+     * @return False if nothing was queued.
+     */
+    private boolean fillWriteBuffers() {
+        var limit = _messageBus.getFlushOptions().getBufferSize();
+        var pool = _loop.getWriteBuffers();
+        ByteBuffer chunk = null;
+        _writeFrames = 0;
+        _writeBytes = 0;
+        while (_writeBytes < limit) {
+            var frame = _carry != null ? _carry : _outbound.poll();
+            if (frame == null) {
+                break;
+            }
+            var offset = _carryOffset;
+            _carry = null;
+            _carryOffset = 0;
+            while (offset < frame.length) {
+                if (chunk == null || !chunk.hasRemaining()) {
+                    if (_writeChunks == MAX_WRITE_CHUNKS) {
+                        _carry = frame;
+                        _carryOffset = offset;
+                        break;
+                    }
+                    chunk = pool.acquire(WRITE_CHUNK_SIZE);
+                    _writeBuffers[_writeChunks++] = chunk;
+                }
+                var length = Math.min(chunk.remaining(), frame.length - offset);
+                chunk.put(frame, offset, length);
+                offset += length;
+                _writeBytes += length;
+            }
+            if (_carry != null) {
+                break;
+            }
+            _writeFrames++;
+        }
+        for (int i = 0; i < _writeChunks; i++) {
+            _writeBuffers[i].flip();
+        }
+        return _writeChunks > 0;
+    }
+
+    private int getReadInterest() {
+        return _readPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    private void releaseWriteBuffers() {
+        var pool = _loop.getWriteBuffers();
+        for (int i = 0; i < _writeChunks; i++) {
+            pool.release(_writeBuffers[i]);
+            _writeBuffers[i] = null;
+        }
+        _writeChunks = 0;
+    }
+
+    /**
+     * Closes the connection on its loop without writing anything else, e.g. to a peer that has stopped answering.
+     */
+    public void abort() {
+        _outbound.clear();
+        _abortAfterFlush = true;
+        requestFlush();
+    }
+
+    /**
+     * Closes the connection once everything queued before this call has been written.
+     */
+    public void closeGracefully() {
+        _closeWhenFlushed = true;
+        requestFlush();
+    }
+
+    /**
+     * Close the channel and, if the client had joined, take them off the bus.
+     */
+    public void close() {
+        if (!_closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (_key != null) {
+            _key.cancel();
+        }
+        try {
+            _channel.close();
+        }
+        catch (IOException ignored) {
+        }
+        _outbound.clear();
+        _carry = null;
+        if (_loop.inEventLoop()) {
+            releaseWriteBuffers();
+        }
+
+        if (_established) {
+            _server.closeSession(_session);
+        }
+        else {
+            // Already settled if the client logged in and was turned away, or the deadline passed
+            _messageBus.getHandshakes().fail(_handshake);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.ILogger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Single threaded event loop that owns a Selector and every connection registered with it.
+ * Other threads only ever talk to the loop through its queues, all socket IO happens on the loop thread.
+ * The loop lends its connections buffers from its own pools for as long as they're reading or writing, so once it has
+ * warmed up, passing frames between the sockets and the bus allocates nothing on the loop.
+ */
+public class NioEventLoop implements Runnable {
+    // Most bytes of idle buffers each of the loop's pools keeps
+    private static final long MAX_POOLED_BYTES = 4 << 20;
+
+    private final ILogger _logger;
+    private final Selector _selector;
+    // Connections accepted on another thread, waiting to be registered with our selector
+    private final Queue<NioConnection> _pendingRegistrations;
+    // Connections that stopped reading for a full pipeline, which has since made room
+    private final Queue<NioConnection> _pendingResumes;
+    // Top of a stack of connections that had events queued for them, possibly by another thread, linked through
+    // each connection so that requesting a flush allocates nothing
+    private final AtomicReference<NioConnection> _pendingFlushes;
+    // Connections holding frames back until their flush deadline or buffer fills, only touched by the loop
+    private final List<NioConnection> _deferredFlushes;
+    // Direct buffers the queued frames are gathered into to be written, the OS copies straight out of them
+    private final BufferPool _writeBuffers;
+    // Heap buffers, as the codecs and the pipeline decode straight out of the array
+    private final BufferPool _readBuffers;
+    private final Consumer<SelectionKey> _onSelected;
+
+    private volatile boolean _running;
+    private volatile Thread _thread;
+
+    public NioEventLoop(ILogger logger) throws IOException {
+        _logger = logger;
+        _selector = Selector.open();
+        _pendingRegistrations = new ConcurrentLinkedQueue<>();
+        _pendingResumes = new ConcurrentLinkedQueue<>();
+        _pendingFlushes = new AtomicReference<>();
+        _deferredFlushes = new ArrayList<>();
+        _writeBuffers = new BufferPool(true, MAX_POOLED_BYTES);
+        _readBuffers = new BufferPool(false, MAX_POOLED_BYTES);
+        _onSelected = this::onSelected;
+        _running = true;
+    }
+
+    /**
+     * Hands a connection to this loop. Safe to call from any thread.
+     */
+    public void register(NioConnection connection) {
+        _pendingRegistrations.add(connection);
+        _selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write out whatever the connection has queued once its flush is due. Safe to call from any
+     * thread, the connection makes sure it is only requested once per batch.
+     */
+    public void requestFlush(NioConnection connection) {
+        NioConnection next;
+        do {
+            next = _pendingFlushes.get();
+            connection.setNextFlush(next);
+        }
+        while (!_pendingFlushes.compareAndSet(next, connection));
+        // On the loop thread the flush is picked up before the next select, so there's nothing to wake.
+        if (!inEventLoop()) {
+            _selector.wakeup();
+        }
+    }
+
+    /**
+     * Asks the loop to start reading from a connection again, after it stopped for a full pipeline. Safe to call from
+     * any thread.
+     */
+    public void resumeReading(NioConnection connection) {
+        _pendingResumes.add(connection);
+        if (!inEventLoop()) {
+            _selector.wakeup();
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == _thread;
+    }
+
+    /**
+     * Only to be used on the loop thread.
+     */
+    public BufferPool getWriteBuffers() {
+        return _writeBuffers;
+    }
+
+    /**
+     * Only to be used on the loop thread.
+     */
+    public BufferPool getReadBuffers() {
+        return _readBuffers;
+    }
+
+    /**
+     * Interrupts a blocked select so the loop comes back round and runs its tasks.
+     */
+    public void wakeup() {
+        _selector.wakeup();
+    }
+
+    /**
+     * Called on the loop thread at the top of every iteration, before any flushes are processed. Lets subclasses
+     * hand the loop extra work without another thread.
+     * @return Whether work is still outstanding, in which case the loop doesn't block in select for long.
+     */
+    protected boolean runTasks() {
+        return false;
+    }
+
+    @Override
+    public void run() {
+        _thread = Thread.currentThread();
+        try {
+            while (_running && !Thread.interrupted()) {
+                var backlogged = runTasks();
+                var untilNextFlush = processFlushes();
+                // Ready keys are handed straight to onSelected, rather than iterating the selected key set
+                if (backlogged) {
+                    // Come back round shortly rather than waiting on the selector indefinitely
+                    _selector.select(_onSelected, 1);
+                }
+                else if (untilNextFlush < 0) {
+                    _selector.select(_onSelected);
+                }
+                else {
+                    // Selector timeouts are in milliseconds, so deadlines are rounded up to the next one.
+                    _selector.select(_onSelected, Math.max(1, TimeUnit.NANOSECONDS.toMillis(untilNextFlush + 999_999)));
+                }
+                processRegistrations();
+                processResumes();
+            }
+        }
+        catch (IOException | ClosedSelectorException ex) {
+            _logger.error("event loop terminated: %s", ex.getMessage());
+        }
+        finally {
+            shutdown();
+        }
+    }
+
+    private void onSelected(SelectionKey key) {
+        var connection = (NioConnection)key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        }
+        catch (RuntimeException ex) {
+            onFailed(connection, ex);
+        }
+    }
+
+    /**
+     * Closes a connection whose handling threw, rather than letting it take down every other connection on the loop.
+     */
+    private void onFailed(NioConnection connection, RuntimeException ex) {
+        _logger.warn("closing a connection that failed on %s: %s", _thread.getName(), ex);
+        try {
+            connection.close();
+        }
+        catch (RuntimeException closeEx) {
+            _logger.debug("failed to close the connection: %s", closeEx);
+        }
+    }
+
+    private void processRegistrations() {
+        NioConnection connection;
+        while ((connection = _pendingRegistrations.poll()) != null) {
+            try {
+                var key = connection.getChannel().register(_selector, SelectionKey.OP_READ, connection);
+                connection.onRegistered(key);
+            }
+            catch (IOException ioEx) {
+                _logger.debug("failed to register connection: %s", ioEx.getMessage());
+                connection.close();
+            }
+        }
+    }
+
+    private void processResumes() {
+        NioConnection connection;
+        while ((connection = _pendingResumes.poll()) != null) {
+            try {
+                connection.onResumed();
+            }
+            catch (RuntimeException ex) {
+                onFailed(connection, ex);
+            }
+        }
+    }
+
+    /**
+     * Flushes every connection whose batch is due and holds the rest back.
+     * @return Nanoseconds until the earliest held back batch is due, or -1 if none are.
+     */
+    private long processFlushes() {
+        // Taken all at once, newest first, so the ones added are reversed to flush them in the order they were requested
+        var connection = _pendingFlushes.getAndSet(null);
+        var start = _deferredFlushes.size();
+        while (connection != null) {
+            var next = connection.getNextFlush();
+            connection.setNextFlush(null);
+            // Frames queued from here on need another request, the connection is already held back if it was before
+            connection.clearFlushRequest();
+            if (!connection.isFlushDeferred()) {
+                connection.setFlushDeferred(true);
+                _deferredFlushes.add(connection);
+            }
+            connection = next;
+        }
+        for (int i = start, j = _deferredFlushes.size() - 1; i < j; i++, j--) {
+            _deferredFlushes.set(i, _deferredFlushes.set(j, _deferredFlushes.get(i)));
+        }
+        if (_deferredFlushes.isEmpty()) {
+            return -1;
+        }
+
+        var now = System.nanoTime();
+        var untilNextFlush = Long.MAX_VALUE;
+        // Connections that aren't due yet are compacted to the front of the list as we go.
+        var kept = 0;
+        for (int i = 0; i < _deferredFlushes.size(); i++) {
+            connection = _deferredFlushes.get(i);
+            var untilDue = connection.untilFlushDue(now);
+            if (untilDue <= 0) {
+                connection.setFlushDeferred(false);
+                try {
+                    connection.flush();
+                }
+                catch (RuntimeException ex) {
+                    onFailed(connection, ex);
+                }
+            }
+            else {
+                untilNextFlush = Math.min(untilNextFlush, untilDue);
+                _deferredFlushes.set(kept++, connection);
+            }
+        }
+        // Trimmed from the end, subList() would allocate a view every time round
+        while (_deferredFlushes.size() > kept) {
+            _deferredFlushes.remove(_deferredFlushes.size() - 1);
+        }
+        return kept == 0 ? -1 : untilNextFlush;
+    }
+
+    /**
+     * Best-effort write of anything still queued, then close every connection owned by this loop.
+     */
+    private void shutdown() {
+        if (!_selector.isOpen()) {
+            return;
+        }
+        for (var key : _selector.keys()) {
+            var connection = (NioConnection)key.attachment();
+            connection.flush();
+            connection.close();
+        }
+        try {
+            _selector.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Stops the loop. Connections are closed on the loop thread once it observes the request.
+     */
+    public void close() {
+        _running = false;
+        _selector.wakeup();
+    }
+}
@@ -0,0 +1,121 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.AppThreadPool;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+import co.uk.michallet.chatapp.common.net.SocketOpCode;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Selector based transport which multiplexes every session over a small, fixed number of event loop threads.
+ * With a ShardedMessageBus each loop is one of its shards.
+ */
+public class NioServerTransport implements IServerTransport {
+    private final ILogger _logger;
+    private final ChatServer _server;
+    private final ConcurrentMessageBus _messageBus;
+    private final IEventCodec _codec;
+    private final NioEventLoop[] _loops;
+    private ServerSocketChannel _channel;
+    // Index of the loop the next connection is handed to
+    private int _nextLoop;
+
+    /**
+     * @param loopCount The number of event loop threads to spread sessions across.
+     */
+    public NioServerTransport(ILogger logger, ChatServer server, ConcurrentMessageBus messageBus, IEventCodec codec, int loopCount) {
+        _logger = logger;
+        _server = server;
+        _messageBus = messageBus;
+        _codec = codec;
+        _loops = new NioEventLoop[loopCount];
+    }
+
+    @Override
+    public void bind(InetAddress addr, int port, int backlog) throws IOException {
+        _channel = ServerSocketChannel.open();
+        _channel.bind(new InetSocketAddress(addr, port), backlog);
+
+        for (int i = 0; i < _loops.length; i++) {
+            // A sharded bus needs every shard's loop to exist before any of them start exchanging messages
+            _loops[i] = _messageBus instanceof ShardedMessageBus
+                    ? new ShardEventLoop(_logger, (ShardedMessageBus)_messageBus, i)
+                    : new NioEventLoop(_logger);
+        }
+        for (int i = 0; i < _loops.length; i++) {
+            var thread = new Thread(_loops[i], String.format("nio-loop-%d", i));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        _logger.debug("started %d event loops", _loops.length);
+    }
+
+    /**
+     * Asynchronously accept new client connections and hand them to the event loops round-robin.
+     * @return Returns a Future that will complete only when cancelled or the channel is closed.
+     */
+    @Override
+    public CompletableFuture<Void> acceptAsync() {
+        return CompletableFuture.runAsync(() -> {
+            _logger.info("ready");
+            while (!Thread.interrupted() && _channel.isOpen()) {
+                try {
+                    // The accept channel stays in blocking mode, only the client channels are multiplexed.
+                    var clientChannel = _channel.accept();
+                    var admission = _messageBus.getAdmission();
+                    if (admission != null && !admission.tryAccept()) {
+                        reject(clientChannel, admission);
+                        continue;
+                    }
+                    clientChannel.configureBlocking(false);
+                    clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                    var loop = _loops[_nextLoop];
+                    _nextLoop = (_nextLoop + 1) % _loops.length;
+                    loop.register(new NioConnection(_logger, clientChannel, loop, _server, _messageBus, _codec));
+                }
+                catch (IOException ignored) {
+                    return;
+                }
+            }
+        }, AppThreadPool.getInstance());
+    }
+
+    /**
+     * Tells a client the server is taking on no more connections for now, in place of a HELLO, and closes it.
+     */
+    private void reject(SocketChannel clientChannel, AdmissionControl admission) {
+        _logger.debug("accepting connections too fast, rejecting one");
+        try (clientChannel) {
+            var reject = ChatEventFactory.fromReject(SocketOpCode.HELLO.getValue(), "too many connections", admission.getAcceptRetryMillis());
+            // Still in blocking mode, and small enough to fit in the socket's send buffer
+            clientChannel.write(ByteBuffer.wrap(_codec.encode(reject)));
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return _channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        _channel.close();
+        for (var loop : _loops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to a session. Any number of threads may offer frames, a single
+ * writer polls them, and under DROP_OLDEST an offering thread may also shed from the head.
+ * Frames are kept in a fixed ring without locks: each slot carries a sequence number saying whether it's free for the
+ * next offer or holds a frame for the next poll, and both ends claim slots with a CAS. The ring holds the high
+ * watermark, so once it exists queueing a frame allocates nothing.
+ */
+public class OutboundQueue {
+    private final OutboundQueueOptions _options;
+    // Allocated on first use so sessions that are never written to don't pay for it
+    private final AtomicReference<Ring> _ring;
+    // Next slot to offer into and next slot to poll, both only ever counting up
+    private final AtomicInteger _tail;
+    private final AtomicInteger _head;
+    // Tracked apart from the ring so the watermarks can be checked before a slot is claimed
+    private final AtomicInteger _depth;
+    private final AtomicLong _queuedBytes;
+    private final AtomicInteger _peakDepth;
+    private final AtomicLong _droppedFrames;
+    private final AtomicLong _overflows;
+    // Set when the high watermark is crossed, cleared once the writer drains back to the low watermark
+    private volatile boolean _congested;
+
+    public OutboundQueue(OutboundQueueOptions options) {
+        _options = options;
+        _ring = new AtomicReference<>();
+        _tail = new AtomicInteger();
+        _head = new AtomicInteger();
+        _depth = new AtomicInteger();
+        _queuedBytes = new AtomicLong();
+        _peakDepth = new AtomicInteger();
+        _droppedFrames = new AtomicLong();
+        _overflows = new AtomicLong();
+    }
+
+    /**
+     * Queues a frame, applying the overflow policy if the queue is over budget.
+     * @return False if the session should be disconnected, in which case the frame was not queued.
+     */
+    public boolean offer(byte[] frame) {
+        var policy = _options.getPolicy();
+        if (_congested && policy == OverflowPolicy.DROP_NEW) {
+            _droppedFrames.incrementAndGet();
+            return true;
+        }
+
+        var depth = _depth.incrementAndGet();
+        if (depth > _options.getHighWatermark()) {
+            _depth.decrementAndGet();
+            if (!_congested) {
+                _congested = true;
+                _overflows.incrementAndGet();
+            }
+            switch (policy) {
+                case DROP_NEW:
+                    _droppedFrames.incrementAndGet();
+                    return true;
+                case DROP_OLDEST:
+                    shed();
+                    depth = _depth.incrementAndGet();
+                    break;
+                default:
+                    return false;
+            }
+        }
+
+        add(frame);
+        _queuedBytes.addAndGet(frame.length);
+        _peakDepth.accumulateAndGet(depth, Math::max);
+        return true;
+    }
+
+    /**
+     * Queues a frame regardless of the watermarks, used for the final GOODBYE of a session.
+     */
+    public void forceOffer(byte[] frame) {
+        _depth.incrementAndGet();
+        add(frame);
+        _queuedBytes.addAndGet(frame.length);
+    }
+
+    /**
+     * Removes the next frame to write. Only called by the session's writer.
+     * @return The frame, or null if the queue is empty.
+     */
+    public byte[] poll() {
+        var frame = take(_options.getWaitLatency());
+        if (frame == null) {
+            return null;
+        }
+        _queuedBytes.addAndGet(-frame.length);
+        if (_depth.decrementAndGet() <= _options.getLowWatermark()) {
+            _congested = false;
+        }
+        return frame;
+    }
+
+    public OutboundQueueOptions getOptions() {
+        return _options;
+    }
+
+    public boolean isEmpty() {
+        var ring = _ring.get();
+        if (ring == null) {
+            return true;
+        }
+        // Empty until the frame in the head slot has been published, the same as poll() sees it
+        var head = _head.get();
+        return ring.sequences.get(head & ring.mask) - (head + 1) < 0;
+    }
+
+    /**
+     * Discards every queued frame, counting them as dropped.
+     */
+    public void clear() {
+        while (poll() != null) {
+            _droppedFrames.incrementAndGet();
+        }
+    }
+
+    private void shed() {
+        // The writer never holds a partially written frame in the queue, so dropping from the head is safe.
+        while (_depth.get() > _options.getLowWatermark()) {
+            var frame = take(null);
+            if (frame == null) {
+                break;
+            }
+            _queuedBytes.addAndGet(-frame.length);
+            _depth.decrementAndGet();
+            _droppedFrames.incrementAndGet();
+        }
+    }
+
+    private void add(byte[] frame) {
+        var timed = _options.getWaitLatency() != null;
+        var ring = ring(timed);
+        var now = timed ? System.nanoTime() : 0;
+        var tail = _tail.get();
+        while (true) {
+            var index = tail & ring.mask;
+            var free = ring.sequences.get(index) - tail;
+            if (free == 0) {
+                if (_tail.compareAndSet(tail, tail + 1)) {
+                    break;
+                }
+                tail = _tail.get();
+            }
+            else if (free < 0) {
+                // Only a GOODBYE or racing DROP_OLDEST offers can get here, make room the way DROP_OLDEST would
+                dropOldest();
+                tail = _tail.get();
+            }
+            else {
+                tail = _tail.get();
+            }
+        }
+        var index = tail & ring.mask;
+        ring.frames.set(index, frame);
+        if (ring.queuedAt != null) {
+            ring.queuedAt[index] = now;
+        }
+        // Publishes the frame, and its timestamp, to whoever takes the slot
+        ring.sequences.set(index, tail + 1);
+    }
+
+    /**
+     * @param waitLatency Records how long the frame was queued for, if it's timed. Null for frames being dropped.
+     */
+    private byte[] take(Histogram waitLatency) {
+        var ring = _ring.get();
+        if (ring == null) {
+            return null;
+        }
+        var head = _head.get();
+        while (true) {
+            var index = head & ring.mask;
+            var ready = ring.sequences.get(index) - (head + 1);
+            if (ready == 0) {
+                if (_head.compareAndSet(head, head + 1)) {
+                    break;
+                }
+                head = _head.get();
+            }
+            else if (ready < 0) {
+                return null;
+            }
+            else {
+                head = _head.get();
+            }
+        }
+        var index = head & ring.mask;
+        var frame = ring.frames.get(index);
+        var queuedAt = ring.queuedAt != null ? ring.queuedAt[index] : 0L;
+        ring.frames.set(index, null);
+        // Hands the slot back to offers, one lap of the ring later
+        ring.sequences.set(index, head + ring.mask + 1);
+        if (waitLatency != null && queuedAt != 0) {
+            waitLatency.record(System.nanoTime() - queuedAt);
+        }
+        return frame;
+    }
+
+    private void dropOldest() {
+        var frame = take(null);
+        if (frame != null) {
+            _queuedBytes.addAndGet(-frame.length);
+            _depth.decrementAndGet();
+            _droppedFrames.incrementAndGet();
+        }
+    }
+
+    private Ring ring(boolean timed) {
+        var ring = _ring.get();
+        if (ring == null) {
+            // The frame that fills the high watermark, plus a GOODBYE, fit without wrapping
+            var candidate = new Ring(Integer.highestOneBit(_options.getHighWatermark()) << 1, timed);
+            ring = _ring.compareAndSet(null, candidate) ? candidate : _ring.get();
+        }
+        return ring;
+    }
+
+    public int getDepth() {
+        return _depth.get();
+    }
+
+    public long getQueuedBytes() {
+        return _queuedBytes.get();
+    }
+
+    public int getPeakDepth() {
+        return _peakDepth.get();
+    }
+
+    public long getDroppedFrames() {
+        return _droppedFrames.get();
+    }
+
+    /**
+     * @return The number of times the queue has gone over the high watermark.
+     */
+    public long getOverflowCount() {
+        return _overflows.get();
+    }
+
+    public boolean isCongested() {
+        return _congested;
+    }
+
+    /**
+     * A slot's sequence is its index plus a lap of the ring for each time it has been offered into and polled, so it
+     * equals the tail when the slot is free and the head plus one once it holds a frame.
+     */
+    private static final class Ring {
+        final int mask;
+        final AtomicReferenceArray<byte[]> frames;
+        final AtomicIntegerArray sequences;
+        // When each frame in the ring was queued, only kept while queue waits are timed
+        final long[] queuedAt;
+
+        Ring(int capacity, boolean timed) {
+            mask = capacity - 1;
+            frames = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicIntegerArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+            queuedAt = timed ? new long[capacity] : null;
+        }
+    }
+}
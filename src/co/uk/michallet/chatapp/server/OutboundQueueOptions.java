@@ -0,0 +1,78 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+
+/**
+ * Limits applied to the outbound queue of every session.
+ */
+public class OutboundQueueOptions {
+    private final int _highWatermark;
+    private final int _lowWatermark;
+    private final OverflowPolicy _policy;
+    // Set before any session is created, null unless queue waits are timed
+    private Histogram _waitLatency;
+
+    /**
+     * @param highWatermark Frames a session may have queued before the overflow policy kicks in.
+     * @param lowWatermark Depth the queue has to drain back down to before the session stops being congested.
+     */
+    public OutboundQueueOptions(int highWatermark, int lowWatermark, OverflowPolicy policy) {
+        _highWatermark = Math.max(1, highWatermark);
+        _lowWatermark = Math.max(0, Math.min(lowWatermark, _highWatermark));
+        _policy = policy;
+    }
+
+    public int getHighWatermark() {
+        return _highWatermark;
+    }
+
+    public int getLowWatermark() {
+        return _lowWatermark;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return _policy;
+    }
+
+    /**
+     * @return Where the time each frame waits between being queued and being taken by its writer is recorded, in
+     * nanoseconds, or null if it isn't timed.
+     */
+    public Histogram getWaitLatency() {
+        return _waitLatency;
+    }
+
+    public void setWaitLatency(Histogram value) {
+        _waitLatency = value;
+    }
+
+    /**
+     * Reads the "queuehigh", "queuelow" and "overflow" configuration values.
+     * Defaults to 1024 frames, a quarter of the high watermark, and disconnecting slow consumers.
+     */
+    public static OutboundQueueOptions fromConfig(IConfiguration config, ILogger logger) {
+        var high = Integer.parseInt(config.getString("queuehigh", "1024"));
+        var low = Integer.parseInt(config.getString("queuelow", String.valueOf(high / 4)));
+
+        OverflowPolicy policy;
+        var policyName = config.getString("overflow", "disconnect");
+        switch (policyName) {
+            case "dropoldest":
+                policy = OverflowPolicy.DROP_OLDEST;
+                break;
+            case "dropnew":
+                policy = OverflowPolicy.DROP_NEW;
+                break;
+            case "disconnect":
+                policy = OverflowPolicy.DISCONNECT;
+                break;
+            default:
+                logger.warn("unknown overflow policy %s, disconnecting slow consumers", policyName);
+                policy = OverflowPolicy.DISCONNECT;
+                break;
+        }
+        return new OutboundQueueOptions(high, low, policy);
+    }
+}
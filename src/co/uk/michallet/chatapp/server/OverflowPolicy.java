@@ -0,0 +1,13 @@
+package co.uk.michallet.chatapp.server;
+
+/**
+ * What a session does with outbound frames once its queue is over the high watermark.
+ */
+public enum OverflowPolicy {
+    // Shed the oldest queued frames until the queue is back down to the low watermark
+    DROP_OLDEST,
+    // Discard new frames until the queue has drained to the low watermark
+    DROP_NEW,
+    // Send a GOODBYE, if the connection will still take it, and close the session
+    DISCONNECT
+}
@@ -0,0 +1,139 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.AppThreadPool;
+import co.uk.michallet.chatapp.common.IConfiguration;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sessions whose connection dropped without a GOODBYE, held for a short window in case their client reconnects
+ * and resumes them. A parked session stays on the bus, so everything sent to it is still kept in its ResumeBuffer,
+ * and the rest of the server isn't told it has left until the window runs out.
+ */
+public class ParkedSessions {
+    private static final int TOKEN_BYTES = 16;
+
+    private final long _windowMillis;
+    private final int _bufferFrames;
+    // Keyed by resume token
+    private final Map<String, ClientSession> _sessions;
+    private final SecureRandom _random;
+    private final AtomicLong _resumed;
+    private final AtomicLong _expired;
+
+    /**
+     * @param windowMillis How long a session is held before it's treated as having left.
+     * @param bufferFrames Frames kept per session for resuming it.
+     */
+    public ParkedSessions(long windowMillis, int bufferFrames) {
+        _windowMillis = windowMillis;
+        _bufferFrames = bufferFrames;
+        _sessions = new ConcurrentHashMap<>();
+        _random = new SecureRandom();
+        _resumed = new AtomicLong();
+        _expired = new AtomicLong();
+    }
+
+    public long getWindowMillis() {
+        return _windowMillis;
+    }
+
+    public int getBufferFrames() {
+        return _bufferFrames;
+    }
+
+    /**
+     * @return A new, unguessable token for a client to resume its session with.
+     */
+    public String issueToken() {
+        var bytes = new byte[TOKEN_BYTES];
+        _random.nextBytes(bytes);
+        var builder = new StringBuilder();
+        for (var b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Holds a session until it's claimed, or the window runs out and onExpired is run.
+     */
+    public void park(ClientSession session, Runnable onExpired) {
+        var token = session.getResumeToken();
+        _sessions.put(token, session);
+        AppThreadPool.getSchedulerInstance().schedule(() -> {
+            // Only if nobody resumed it in the meantime
+            if (_sessions.remove(token, session)) {
+                _expired.incrementAndGet();
+                onExpired.run();
+            }
+        }, _windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes a parked session back out to be resumed.
+     * @return The session, or null if the token is unknown or its window has run out.
+     */
+    public ClientSession claim(String token) {
+        if (token == null) {
+            return null;
+        }
+        return _sessions.remove(token);
+    }
+
+    /**
+     * Called once a claimed session has been resumed.
+     */
+    public void recordResumed() {
+        _resumed.incrementAndGet();
+    }
+
+    /**
+     * Takes a parked session out by name, e.g. when its user logs in afresh rather than resuming.
+     * @return The session, or null if no session of that name is parked.
+     */
+    public ClientSession claimByName(String name) {
+        for (var entry : _sessions.entrySet()) {
+            if (entry.getValue().getName().equals(name) && _sessions.remove(entry.getKey(), entry.getValue())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    public int getCount() {
+        return _sessions.size();
+    }
+
+    /**
+     * @return Sessions a client has resumed.
+     */
+    public long getResumed() {
+        return _resumed.get();
+    }
+
+    /**
+     * @return Sessions whose window ran out before anyone resumed them.
+     */
+    public long getExpired() {
+        return _expired.get();
+    }
+
+    /**
+     * Reads the "resume" and "resumeframes" configuration values. Defaults to holding sessions for 30 seconds, with
+     * the last 256 frames sent to each kept.
+     * @return The parked sessions, or null if "resume" is 0.
+     */
+    public static ParkedSessions fromConfig(IConfiguration config) {
+        var seconds = Integer.parseInt(config.getString("resume", "30"));
+        if (seconds <= 0) {
+            return null;
+        }
+        var frames = Integer.parseInt(config.getString("resumeframes", "256"));
+        return new ParkedSessions(seconds * 1000L, Math.max(1, frames));
+    }
+}
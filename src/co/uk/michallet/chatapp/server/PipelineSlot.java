@@ -0,0 +1,104 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.net.ChatEvent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One entry of the EventPipeline's ring. Slots are allocated up front and refilled every time the ring wraps, so an
+ * event passing through the pipeline only allocates what decoding it does.
+ */
+public class PipelineSlot {
+    private static final int INITIAL_FRAME_SIZE = 256;
+    // Buffers grown past this for an unusually large frame are given back once it has been processed
+    private static final int MAX_RETAINED_FRAME_SIZE = 16384;
+
+    private final EventRoute _route;
+    private ClientSession _session;
+    private byte[] _frame;
+    private ByteBuffer _body;
+    private int _length;
+    private ChatEvent _event;
+    // Set by the validate stage when the client said goodbye
+    private boolean _close;
+    // When the previous stage finished with the slot, or when it was published
+    private long _stageNanos;
+
+    public PipelineSlot() {
+        _route = new EventRoute();
+        setFrameBuffer(new byte[INITIAL_FRAME_SIZE]);
+    }
+
+    private void setFrameBuffer(byte[] buffer) {
+        _frame = buffer;
+        _body = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Called by the producer that claimed the slot, copies the frame body in.
+     */
+    void fill(ClientSession session, byte[] frame, int offset, int length, long nowNanos) {
+        if (length > _frame.length) {
+            setFrameBuffer(new byte[length]);
+        }
+        System.arraycopy(frame, offset, _frame, 0, length);
+        _length = length;
+        _session = session;
+        _event = null;
+        _close = false;
+        _stageNanos = nowNanos;
+    }
+
+    /**
+     * Drops the references the slot holds once the last stage is done with it.
+     */
+    void clear() {
+        _session = null;
+        _event = null;
+        _route.reset();
+        if (_frame.length > MAX_RETAINED_FRAME_SIZE) {
+            setFrameBuffer(new byte[INITIAL_FRAME_SIZE]);
+        }
+    }
+
+    public ClientSession getSession() {
+        return _session;
+    }
+
+    /**
+     * @return The frame body, from position to limit.
+     */
+    public ByteBuffer getBody() {
+        _body.clear();
+        _body.limit(_length);
+        return _body;
+    }
+
+    public ChatEvent getEvent() {
+        return _event;
+    }
+
+    public EventRoute getRoute() {
+        return _route;
+    }
+
+    public boolean shouldClose() {
+        return _close;
+    }
+
+    public long getStageNanos() {
+        return _stageNanos;
+    }
+
+    public void setEvent(ChatEvent value) {
+        _event = value;
+    }
+
+    public void setClose(boolean value) {
+        _close = value;
+    }
+
+    public void setStageNanos(long value) {
+        _stageNanos = value;
+    }
+}
@@ -0,0 +1,183 @@
+package co.uk.michallet.chatapp.server;
+
+import java.util.Arrays;
+
+/**
+ * The ids of the messages containing one term, ascending, out of a generation of at most universe ids.
+ * A rare term's ids are stored as varint gaps from the previous one. Once a term is in more than one message in
+ * DENSE_FRACTION the gaps would take about as much space as a bitmap of the whole generation, so it switches to one,
+ * which also lets common terms be intersected a word at a time. There is no boxing anywhere.
+ * Not thread safe, the SearchIndex guards it.
+ */
+public class PostingList {
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int DENSE_FRACTION = 16;
+
+    private final int _universe;
+    // Gaps while sparse, null once dense
+    private byte[] _data;
+    private int _length;
+    // Null while sparse
+    private long[] _bits;
+    private int _count;
+    private int _last;
+
+    public PostingList(int universe) {
+        _universe = universe;
+        _data = new byte[INITIAL_CAPACITY];
+        _last = -1;
+    }
+
+    /**
+     * Adds an id, which must not be lower than any added before. Adding the last id again does nothing.
+     */
+    public void add(int id) {
+        if (id <= _last) {
+            return;
+        }
+        if (_bits != null) {
+            _bits[id >>> 6] |= 1L << id;
+        }
+        else {
+            if (_length + 5 > _data.length) {
+                _data = Arrays.copyOf(_data, _data.length * 2);
+            }
+            var gap = id - _last;
+            while ((gap & ~0x7F) != 0) {
+                _data[_length++] = (byte)((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            _data[_length++] = (byte)gap;
+        }
+        _last = id;
+        _count++;
+        if (_bits == null && _count > _universe / DENSE_FRACTION) {
+            toBitmap();
+        }
+    }
+
+    private void toBitmap() {
+        var bits = new long[(_universe + 63) >>> 6];
+        for (var id : decode()) {
+            bits[id >>> 6] |= 1L << id;
+        }
+        _bits = bits;
+        _data = null;
+        _length = 0;
+    }
+
+    public int getCount() {
+        return _count;
+    }
+
+    public boolean isDense() {
+        return _bits != null;
+    }
+
+    /**
+     * @return Bytes held, including the unused tail of the buffer.
+     */
+    public int getBytes() {
+        return _bits != null ? _bits.length * 8 : _data.length;
+    }
+
+    /**
+     * @return Every id, ascending.
+     */
+    public int[] decode() {
+        if (_bits != null) {
+            return fromBits(_bits, _count);
+        }
+        var ids = new int[_count];
+        var position = 0;
+        var value = -1;
+        for (int i = 0; i < _count; i++) {
+            var gap = 0;
+            for (int shift = 0; ; shift += 7) {
+                var b = _data[position++];
+                gap |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            value += gap;
+            ids[i] = value;
+        }
+        return ids;
+    }
+
+    /**
+     * Keeps only the ids also in this list, walking both in step, or testing each one against the bitmap.
+     * @param ids Ascending ids, the survivors are moved to the front.
+     * @param count How many of ids are in use.
+     * @return How many survived.
+     */
+    public int retainAll(int[] ids, int count) {
+        var kept = 0;
+        if (_bits != null) {
+            for (int i = 0; i < count; i++) {
+                var id = ids[i];
+                if ((_bits[id >>> 6] & (1L << id)) != 0) {
+                    ids[kept++] = id;
+                }
+            }
+            return kept;
+        }
+
+        var position = 0;
+        var remaining = _count;
+        var value = -1;
+        for (int i = 0; i < count; i++) {
+            var id = ids[i];
+            while (value < id && remaining > 0) {
+                var gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    var b = _data[position++];
+                    gap |= (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                value += gap;
+                remaining--;
+            }
+            if (value == id) {
+                ids[kept++] = id;
+            }
+            else if (value < id) {
+                // This list has run out
+                break;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Intersects dense lists a word at a time.
+     * @return The ids in every list, ascending.
+     */
+    public static int[] intersectDense(PostingList[] lists) {
+        var bits = lists[0]._bits.clone();
+        var count = 0;
+        for (int w = 0; w < bits.length; w++) {
+            for (int i = 1; i < lists.length; i++) {
+                bits[w] &= lists[i]._bits[w];
+            }
+            count += Long.bitCount(bits[w]);
+        }
+        return fromBits(bits, count);
+    }
+
+    private static int[] fromBits(long[] bits, int count) {
+        var ids = new int[count];
+        var i = 0;
+        for (int w = 0; w < bits.length; w++) {
+            var word = bits[w];
+            while (word != 0) {
+                ids[i++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,59 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.net.models.UserJoinEventArgs;
+
+/**
+ * Stands in for a user homed on another node of a Federation, so that looking them up and sending them a DM works
+ * as it would for a local session. Anything sent to it is passed to their node, which re-sends it to the session
+ * itself. It's never added to the bus or a room, and has no connection of its own to close.
+ */
+public class RemoteSession extends ClientSession {
+    private final Federation _federation;
+    private final String _node;
+
+    public RemoteSession(ILogger logger, String name, ConcurrentMessageBus messageBus, Federation federation, String node) {
+        super(logger, createJoinArgs(name), messageBus);
+        _federation = federation;
+        _node = node;
+    }
+
+    private static UserJoinEventArgs createJoinArgs(String name) {
+        var joinArgs = new UserJoinEventArgs();
+        joinArgs.setName(name);
+        return joinArgs;
+    }
+
+    /**
+     * @return The node the user is connected to.
+     */
+    public String getNode() {
+        return _node;
+    }
+
+    /**
+     * Passed straight on, it's their node that keeps frames for resuming the session.
+     */
+    @Override
+    public void sendFrame(byte[] frame) {
+        writeFrame(frame);
+    }
+
+    @Override
+    protected void writeFrame(byte[] frame) {
+        _federation.sendDirect(_node, frame);
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void abort() {
+    }
+}
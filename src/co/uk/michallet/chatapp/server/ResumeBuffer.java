@@ -0,0 +1,91 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.net.ChatEvent;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * The last few frames sent to a session, in the order they were queued, so that a client which loses its connection
+ * can resume and be sent only what it missed. Once the session has been resumed, anything still sent to it is passed
+ * on to its successor instead. Callers hold the buffer's lock around every method.
+ */
+public class ResumeBuffer {
+    private final int _capacity;
+    // Allocated on first use, so that sessions which are never written to don't hold a ring
+    private byte[][] _frames;
+    // Index of the oldest frame
+    private int _head;
+    private int _count;
+    private ClientSession _successor;
+
+    public ResumeBuffer(int capacity) {
+        _capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Keeps a frame, forgetting the oldest one if the buffer is full.
+     */
+    public void record(byte[] frame) {
+        if (_frames == null) {
+            _frames = new byte[_capacity][];
+        }
+        if (_count == _capacity) {
+            _frames[_head] = null;
+            _head = (_head + 1) % _capacity;
+            _count--;
+        }
+        _frames[(_head + _count) % _capacity] = frame;
+        _count++;
+    }
+
+    public int getCount() {
+        return _count;
+    }
+
+    /**
+     * @return The session frames are passed on to once this one has been resumed, or null if it hasn't been.
+     */
+    public ClientSession getSuccessor() {
+        return _successor;
+    }
+
+    public void setSuccessor(ClientSession value) {
+        _successor = value;
+    }
+
+    /**
+     * Finds the last event the client saw and re-encodes every event recorded after it. Frames may hold several
+     * events, e.g. a history replay, so each is decoded rather than compared whole.
+     * @param sequence The sequence number of the last event the client received.
+     * @return The events after it as back to back frames, empty if there are none, or null if no recorded event has
+     * that sequence number, meaning the client has missed more than the buffer holds.
+     */
+    public byte[] after(long sequence, IEventCodec codec) throws IOException {
+        var events = new ArrayList<ChatEvent>();
+        var anchor = -1;
+        for (int i = 0; i < _count; i++) {
+            var input = new ByteArrayInputStream(_frames[(_head + i) % _capacity]);
+            while (input.available() > 0) {
+                var event = codec.read(input);
+                // The last match is the one the client saw, an event replayed from history carries its original number
+                if (event.getSequence() == sequence) {
+                    anchor = events.size();
+                }
+                events.add(event);
+            }
+        }
+        if (anchor < 0) {
+            return null;
+        }
+
+        var missed = new ByteArrayOutputStream();
+        for (int i = anchor + 1; i < events.size(); i++) {
+            missed.write(codec.encode(events.get(i)));
+        }
+        return missed.toByteArray();
+    }
+}
@@ -0,0 +1,89 @@
+package co.uk.michallet.chatapp.server;
+
+/**
+ * The most recent messages said in one room, kept as the frames they were broadcast as. The ring is allocated up front
+ * and evicts its oldest frame once it's full or over its byte budget.
+ */
+public class RoomHistory {
+    private final byte[][] _frames;
+    private final int _maxBytes;
+    // Index of the oldest frame
+    private int _start;
+    private int _count;
+    private int _bytes;
+    // Everything held, concatenated into a single write. Built on first use after each append, then shared.
+    private byte[] _replay;
+    private volatile long _lastAppendNanos;
+
+    public RoomHistory(int capacity, int maxBytes) {
+        _frames = new byte[capacity][];
+        _maxBytes = maxBytes;
+    }
+
+    public synchronized void append(byte[] frame) {
+        if (frame.length > _maxBytes) {
+            // Would push everything else out on its own
+            return;
+        }
+        while (_count == _frames.length || _bytes + frame.length > _maxBytes) {
+            _bytes -= _frames[_start].length;
+            _frames[_start] = null;
+            _start = (_start + 1) % _frames.length;
+            _count--;
+        }
+        _frames[(_start + _count) % _frames.length] = frame;
+        _count++;
+        _bytes += frame.length;
+        _replay = null;
+        _lastAppendNanos = System.nanoTime();
+    }
+
+    /**
+     * @return Every message held as one buffer of back to back frames, or null if there are none. The same buffer is
+     * handed to everyone until the next append, so it must not be modified.
+     */
+    public synchronized byte[] replay() {
+        if (_replay == null && _count > 0) {
+            _replay = tail(_count);
+        }
+        return _replay;
+    }
+
+    /**
+     * @return Up to the last count messages as one buffer of back to back frames, or null if there are none.
+     */
+    public synchronized byte[] tail(int count) {
+        count = Math.min(count, _count);
+        if (count <= 0) {
+            return null;
+        }
+        if (count == _count && _replay != null) {
+            return _replay;
+        }
+        var first = _count - count;
+        var length = 0;
+        for (int i = first; i < _count; i++) {
+            length += _frames[(_start + i) % _frames.length].length;
+        }
+        var frames = new byte[length];
+        var offset = 0;
+        for (int i = first; i < _count; i++) {
+            var frame = _frames[(_start + i) % _frames.length];
+            System.arraycopy(frame, 0, frames, offset, frame.length);
+            offset += frame.length;
+        }
+        return frames;
+    }
+
+    public synchronized int getCount() {
+        return _count;
+    }
+
+    public synchronized int getBytes() {
+        return _bytes;
+    }
+
+    public long getLastAppendNanos() {
+        return _lastAppendNanos;
+    }
+}
@@ -0,0 +1,153 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Who's online, as told to clients with ROSTER events. Each client is sent a snapshot when it logs in, and everyone is
+ * sent a delta each time the roster moves on a version. Changes are gathered up on the timer wheel for a short delay
+ * before being sent as one delta, so a burst of logins costs one version rather than one each, and every client
+ * logging in meanwhile is sent the same encoded snapshot.
+ * A snapshot and the deltas after it are sent under the same lock, so a client never sees a delta from before its
+ * snapshot after it.
+ */
+public class Roster extends TimerEntry {
+    private final ConcurrentMessageBus _bus;
+    // Null to send a delta for every change as it happens
+    private final TimerWheel _wheel;
+    private final long _delayTicks;
+    // Everyone online as of _version
+    private final Set<String> _names;
+    // Changes since _version, not yet sent
+    private final Set<String> _joined;
+    private final Set<String> _left;
+    private long _version;
+    private boolean _flushScheduled;
+    // The snapshot of _version, encoded when first asked for
+    private byte[] _snapshot;
+    private long _snapshotVersion;
+    private final AtomicLong _snapshotsEncoded;
+    private final AtomicLong _snapshotsSent;
+
+    /**
+     * @param wheel Runs the delay changes are gathered up over, null to send each change at once.
+     * @param delayMillis How long changes are gathered up for.
+     */
+    public Roster(ConcurrentMessageBus bus, TimerWheel wheel, long delayMillis) {
+        _bus = bus;
+        _wheel = delayMillis > 0 ? wheel : null;
+        _delayTicks = _wheel == null ? 0 : _wheel.toTicks(delayMillis);
+        _names = new HashSet<>();
+        _joined = new LinkedHashSet<>();
+        _left = new LinkedHashSet<>();
+        _snapshotVersion = -1;
+        _snapshotsEncoded = new AtomicLong();
+        _snapshotsSent = new AtomicLong();
+    }
+
+    public synchronized void join(String name) {
+        // Someone who left and came back before anyone was told is no change at all
+        if (_left.remove(name) || _names.contains(name) || !_joined.add(name)) {
+            return;
+        }
+        changed();
+    }
+
+    public synchronized void leave(String name) {
+        if (_joined.remove(name) || !_names.contains(name) || !_left.add(name)) {
+            return;
+        }
+        changed();
+    }
+
+    public synchronized void rename(String oldName, String newName) {
+        leave(oldName);
+        join(newName);
+    }
+
+    private void changed() {
+        if (_wheel == null) {
+            flush();
+            return;
+        }
+        if (!_flushScheduled) {
+            _flushScheduled = true;
+            _wheel.schedule(this, _delayTicks);
+        }
+    }
+
+    @Override
+    protected void expire(TimerWheel wheel) {
+        flush();
+    }
+
+    /**
+     * Moves the roster on a version and sends everyone what changed.
+     */
+    private synchronized void flush() {
+        _flushScheduled = false;
+        if (_joined.isEmpty() && _left.isEmpty()) {
+            return;
+        }
+        _version++;
+        _names.removeAll(_left);
+        _names.addAll(_joined);
+        // Only for our own sessions, every node keeps its own roster from the presence events it's passed
+        _bus.broadcast(ChatEventFactory.fromRosterDelta(_version, _joined, _left), false);
+        _joined.clear();
+        _left.clear();
+    }
+
+    /**
+     * Sends a session everyone online as of the current version. The deltas after it follow.
+     */
+    public synchronized void sendSnapshot(ClientSession session) {
+        if (_snapshotVersion != _version) {
+            _snapshot = _bus.tryEncode(ChatEventFactory.fromRosterSnapshot(_version, new ArrayList<>(_names)));
+            _snapshotVersion = _version;
+            _snapshotsEncoded.incrementAndGet();
+        }
+        if (_snapshot != null) {
+            session.sendFrame(_snapshot);
+            _snapshotsSent.incrementAndGet();
+        }
+    }
+
+    public synchronized long getVersion() {
+        return _version;
+    }
+
+    public synchronized int getCount() {
+        return _names.size();
+    }
+
+    /**
+     * @return How many times a snapshot has been encoded, at most once per version.
+     */
+    public long getSnapshotsEncoded() {
+        return _snapshotsEncoded.get();
+    }
+
+    public long getSnapshotsSent() {
+        return _snapshotsSent.get();
+    }
+
+    public long getDelayMillis() {
+        return _wheel == null ? 0 : _delayTicks * _wheel.getTickMillis();
+    }
+
+    /**
+     * Reads the "roster" configuration value, milliseconds changes are gathered up for before a delta is sent.
+     * Defaults to 100, 0 sends a delta for every change.
+     */
+    public static Roster fromConfig(IConfiguration config, ConcurrentMessageBus bus, TimerWheel wheel) {
+        var millis = Integer.parseInt(config.getString("roster", "100"));
+        return new Roster(bus, wheel, Math.max(0, millis));
+    }
+}
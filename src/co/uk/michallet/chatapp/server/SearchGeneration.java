@@ -0,0 +1,140 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.net.models.SearchHit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A fixed number of consecutive messages and the inverted index over them. The SearchIndex only ever adds to its
+ * newest generation and forgets the oldest one whole, so no posting list ever has ids removed from the middle.
+ * Message text is packed into one byte array rather than kept as Strings.
+ * Not thread safe, the SearchIndex guards it.
+ */
+public class SearchGeneration {
+    private static final int[] NO_IDS = new int[0];
+
+    private final int _capacity;
+    private final Map<String, PostingList> _terms;
+    private final long[] _timestamps;
+    // Where each message's author, room and content start in _text
+    private final int[] _offsets;
+    private byte[] _text;
+    private int _textLength;
+    private int _count;
+
+    public SearchGeneration(int capacity) {
+        _capacity = capacity;
+        _terms = new HashMap<>();
+        _timestamps = new long[capacity];
+        _offsets = new int[capacity];
+        _text = new byte[4096];
+    }
+
+    public boolean isFull() {
+        return _count == _capacity;
+    }
+
+    public int getCount() {
+        return _count;
+    }
+
+    public int getTermCount() {
+        return _terms.size();
+    }
+
+    /**
+     * Adds a message, which must not be full.
+     * @param terms The message's terms, as produced by SearchIndex.tokenize().
+     */
+    public void add(String author, String room, String content, long timestamp, List<String> terms) {
+        var id = _count++;
+        _timestamps[id] = timestamp;
+        _offsets[id] = _textLength;
+        writeString(author);
+        writeString(room);
+        writeString(content);
+        for (var term : terms) {
+            _terms.computeIfAbsent(term, key -> new PostingList(_capacity)).add(id);
+        }
+    }
+
+    private void writeString(String value) {
+        var bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        if (_textLength + bytes.length + 5 > _text.length) {
+            _text = Arrays.copyOf(_text, Math.max(_text.length * 2, _textLength + bytes.length + 5));
+        }
+        var length = bytes.length;
+        while ((length & ~0x7F) != 0) {
+            _text[_textLength++] = (byte)((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        _text[_textLength++] = (byte)length;
+        System.arraycopy(bytes, 0, _text, _textLength, bytes.length);
+        _textLength += bytes.length;
+    }
+
+    /**
+     * @return The ids of the messages containing every term, ascending.
+     */
+    public int[] match(List<String> terms) {
+        var lists = new PostingList[terms.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = _terms.get(terms.get(i));
+            if (lists[i] == null) {
+                return NO_IDS;
+            }
+        }
+        // Start from the rarest term, every other list only has to confirm what it found
+        Arrays.sort(lists, Comparator.comparingInt(PostingList::getCount));
+        if (lists[0].isDense()) {
+            // So is every other list
+            return lists.length == 1 ? lists[0].decode() : PostingList.intersectDense(lists);
+        }
+        var ids = lists[0].decode();
+        var count = ids.length;
+        for (int i = 1; i < lists.length && count > 0; i++) {
+            count = lists[i].retainAll(ids, count);
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    public SearchHit getHit(int id, long nowMillis) {
+        var hit = new SearchHit();
+        var position = new int[] { _offsets[id] };
+        hit.setAuthor(readString(position));
+        hit.setRoom(readString(position));
+        hit.setContent(readString(position));
+        hit.setAgeSeconds((int)Math.max(0, (nowMillis - _timestamps[id]) / 1000));
+        return hit;
+    }
+
+    private String readString(int[] position) {
+        var length = 0;
+        for (int shift = 0; ; shift += 7) {
+            var b = _text[position[0]++];
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        var value = new String(_text, position[0], length, StandardCharsets.UTF_8);
+        position[0] += length;
+        return value;
+    }
+
+    /**
+     * @return Roughly the heap held by the generation, its term dictionary's entries aside.
+     */
+    public long getBytes() {
+        var bytes = (long)_text.length + _timestamps.length * 8L + _offsets.length * 4L;
+        for (var list : _terms.values()) {
+            bytes += list.getBytes();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,322 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.IConfiguration;
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+import co.uk.michallet.chatapp.common.net.models.SearchEventArgs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Incremental inverted index over the messages broadcast to rooms, from each term to the ids of the messages holding
+ * it. Broadcasting only queues the message, an indexer thread tokenizes it and adds it to the newest SearchGeneration.
+ * Once the index holds maxMessages the oldest generation is forgotten.
+ * A query is a list of words, every one of which a message must contain, plus optional from:name and in:room terms.
+ * Results are newest first, PAGE_SIZE at a time.
+ */
+public class SearchIndex implements Runnable {
+    public static final int PAGE_SIZE = 10;
+
+    private static final int GENERATION_SIZE = 1 << 16;
+    private static final int MAX_PENDING = 1 << 16;
+    // Messages indexed per hold of the write lock, so queries aren't kept waiting behind a backlog
+    private static final int MAX_BATCH = 1024;
+    // Longer words are cut short, nobody searches for them whole
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final String AUTHOR_PREFIX = "from:";
+    private static final String ROOM_PREFIX = "in:";
+
+    private final ILogger _logger;
+    private final int _maxGenerations;
+    // Oldest first, guarded by _lock
+    private final ArrayList<SearchGeneration> _generations;
+    private final ReentrantReadWriteLock _lock;
+    private final Queue<PendingMessage> _pending;
+    private final AtomicInteger _pendingCount;
+    private final AtomicLong _dropped;
+    private final AtomicLong _indexed;
+    private final Histogram _queryLatency;
+    private volatile boolean _running;
+    private final IdleParker _parker;
+    private Thread _indexer;
+
+    /**
+     * @param maxMessages Messages kept searchable, rounded up to a whole number of generations.
+     */
+    public SearchIndex(ILogger logger, int maxMessages) {
+        _logger = logger;
+        _maxGenerations = Math.max(1, (maxMessages + GENERATION_SIZE - 1) / GENERATION_SIZE);
+        _generations = new ArrayList<>();
+        _lock = new ReentrantReadWriteLock();
+        _pending = new ConcurrentLinkedQueue<>();
+        _pendingCount = new AtomicInteger();
+        _dropped = new AtomicLong();
+        _indexed = new AtomicLong();
+        _queryLatency = new Histogram();
+        _parker = new IdleParker(() -> !_running || !_pending.isEmpty());
+    }
+
+    public void start() {
+        _running = true;
+        _indexer = new Thread(this, "search-indexer");
+        _indexer.setDaemon(true);
+        _indexer.start();
+    }
+
+    public void close() {
+        _running = false;
+        _parker.wake();
+    }
+
+    /**
+     * Queues a message broadcast to a room for indexing. Safe to call from any thread, never blocks.
+     */
+    public void add(String author, String room, String content) {
+        if (_pendingCount.incrementAndGet() > MAX_PENDING) {
+            _pendingCount.decrementAndGet();
+            _dropped.incrementAndGet();
+            return;
+        }
+        _pending.add(new PendingMessage(author, room, content, System.currentTimeMillis()));
+        _parker.wake();
+    }
+
+    @Override
+    public void run() {
+        while (_running) {
+            if (_pending.isEmpty()) {
+                _parker.park(100_000_000);
+                continue;
+            }
+
+            var count = 0;
+            _lock.writeLock().lock();
+            try {
+                PendingMessage message;
+                while (count < MAX_BATCH && (message = _pending.poll()) != null) {
+                    index(message);
+                    count++;
+                }
+            }
+            catch (RuntimeException ex) {
+                _logger.warn("failed to index a message: %s", ex);
+            }
+            finally {
+                _lock.writeLock().unlock();
+            }
+            _pendingCount.addAndGet(-count);
+            _indexed.addAndGet(count);
+        }
+    }
+
+    private void index(PendingMessage message) {
+        var terms = tokenize(message._content);
+        if (message._author != null) {
+            terms.add(AUTHOR_PREFIX + message._author.toLowerCase(Locale.ROOT));
+        }
+        if (message._room != null) {
+            terms.add(ROOM_PREFIX + message._room.toLowerCase(Locale.ROOT));
+        }
+
+        var newest = _generations.isEmpty() ? null : _generations.get(_generations.size() - 1);
+        if (newest == null || newest.isFull()) {
+            if (_generations.size() == _maxGenerations) {
+                _generations.remove(0);
+            }
+            newest = new SearchGeneration(GENERATION_SIZE);
+            _generations.add(newest);
+        }
+        newest.add(message._author, message._room, message._content, message._timestamp, terms);
+    }
+
+    /**
+     * Splits text into lower case runs of letters and digits.
+     */
+    public static List<String> tokenize(String text) {
+        var terms = new ArrayList<String>();
+        if (text == null) {
+            return terms;
+        }
+        var lower = text.toLowerCase(Locale.ROOT);
+        var start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            var isWordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (isWordChar && start < 0) {
+                start = i;
+            }
+            else if (!isWordChar && start >= 0) {
+                terms.add(lower.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Words are tokenized as messages are, from: and in: terms are kept whole.
+     */
+    private static List<String> parseQuery(String query) {
+        var terms = new ArrayList<String>();
+        if (query == null) {
+            return terms;
+        }
+        for (var word : query.trim().split("\\s+")) {
+            var lower = word.toLowerCase(Locale.ROOT);
+            if ((lower.startsWith(AUTHOR_PREFIX) && lower.length() > AUTHOR_PREFIX.length())
+                    || (lower.startsWith(ROOM_PREFIX) && lower.length() > ROOM_PREFIX.length())) {
+                terms.add(lower);
+            }
+            else {
+                terms.addAll(tokenize(lower));
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Finds the messages matching a query.
+     * @param page Which page of results to return, counted from 1.
+     * @return The page of hits, newest first, and how many messages matched in total.
+     */
+    public SearchEventArgs search(String query, int page) {
+        var start = System.nanoTime();
+        var results = new SearchEventArgs();
+        results.setQuery(query);
+        results.setPage(Math.max(1, page));
+
+        var terms = parseQuery(query);
+        if (terms.isEmpty()) {
+            return results;
+        }
+        var skip = (long)(results.getPage() - 1) * PAGE_SIZE;
+        var total = 0;
+        var now = System.currentTimeMillis();
+        _lock.readLock().lock();
+        try {
+            for (int g = _generations.size() - 1; g >= 0; g--) {
+                var generation = _generations.get(g);
+                var ids = generation.match(terms);
+                total += ids.length;
+                if (skip >= ids.length) {
+                    skip -= ids.length;
+                    continue;
+                }
+                for (var i = ids.length - 1 - (int)skip; i >= 0 && results.getHits().size() < PAGE_SIZE; i--) {
+                    results.getHits().add(generation.getHit(ids[i], now));
+                }
+                skip = 0;
+            }
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+        results.setTotal(total);
+        _queryLatency.record(System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * @return Messages currently searchable.
+     */
+    public int getMessageCount() {
+        _lock.readLock().lock();
+        try {
+            var count = 0;
+            for (var generation : _generations) {
+                count += generation.getCount();
+            }
+            return count;
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    public int getTermCount() {
+        _lock.readLock().lock();
+        try {
+            var count = 0;
+            for (var generation : _generations) {
+                count += generation.getTermCount();
+            }
+            return count;
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    public long getBytes() {
+        _lock.readLock().lock();
+        try {
+            var bytes = 0L;
+            for (var generation : _generations) {
+                bytes += generation.getBytes();
+            }
+            return bytes;
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Messages indexed since the server started, including those since forgotten.
+     */
+    public long getIndexed() {
+        return _indexed.get();
+    }
+
+    public int getPendingCount() {
+        return _pendingCount.get();
+    }
+
+    /**
+     * @return Messages never indexed because the indexer had fallen too far behind.
+     */
+    public long getDropped() {
+        return _dropped.get();
+    }
+
+    /**
+     * @return Nanoseconds taken by each search.
+     */
+    public Histogram getQueryLatency() {
+        return _queryLatency;
+    }
+
+    /**
+     * Reads the "search" configuration value, the number of messages kept searchable. Defaults to 100000.
+     * @return The started index, or null if "search" is 0.
+     */
+    public static SearchIndex fromConfig(IConfiguration config, ILogger logger) {
+        var messages = Integer.parseInt(config.getString("search", "100000"));
+        if (messages <= 0) {
+            return null;
+        }
+        var index = new SearchIndex(logger, messages);
+        index.start();
+        return index;
+    }
+
+    private static class PendingMessage {
+        private final String _author;
+        private final String _room;
+        private final String _content;
+        private final long _timestamp;
+
+        PendingMessage(String author, String room, String content, long timestamp) {
+            _author = author;
+            _room = room;
+            _content = content;
+            _timestamp = timestamp;
+        }
+    }
+}
@@ -4,6 +4,12 @@ import co.uk.michallet.chatapp.common.SDK.ChatEventFactory;
 import co.uk.michallet.chatapp.common.commands.Command;
 import co.uk.michallet.chatapp.common.commands.ExecutionResult;
 import co.uk.michallet.chatapp.common.commands.IResult;
+import co.uk.michallet.chatapp.common.net.ChatEvent;
+import co.uk.michallet.chatapp.common.net.models.MessageSendEventArgs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class ServerCommands {
     private ServerCommandContext _context;
@@ -28,14 +34,338 @@ public class ServerCommands {
     @Command("LIST")
     public IResult list(String[] args) {
         var message = new StringBuilder();
-        int size = _context.getMessageBus().getNames().size();
-        message.append(size).append(" users online: ");
-        message.append(String.join(", ", _context.getMessageBus().getNames()));
+        // Including those connected to other nodes
+        var names = _context.getMessageBus().getAllNames();
+        message.append(names.size()).append(" users online: ");
+        message.append(String.join(", ", names));
 
         _context.getLogger().info(message.toString());
         return new ExecutionResult(true);
     }
 
+    /**
+     * Lists every room that has someone in it and how many users are there.
+     */
+    @Command("ROOMS")
+    public IResult rooms(String[] args) {
+        var bus = _context.getMessageBus();
+        var message = new StringBuilder();
+        message.append(bus.getRooms().size()).append(" rooms:");
+        for (var room : bus.getRooms()) {
+            message.append(' ').append(room).append(" (").append(bus.getRoomSize(room)).append(')');
+        }
+
+        _context.getLogger().info(message.toString());
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Prints the last n messages kept for a room, the lobby unless one is named. HISTORY [n] [room]
+     */
+    @Command("HISTORY")
+    public IResult history(String[] args) {
+        var history = _context.getMessageBus().getHistory();
+        if (history == null) {
+            return new ExecutionResult(false, "history is disabled");
+        }
+        int count;
+        try {
+            count = args.length > 0 ? Integer.parseInt(args[0]) : history.getMessagesPerRoom();
+        }
+        catch (NumberFormatException formatEx) {
+            return new ExecutionResult(false, "the count must be a number");
+        }
+        var room = args.length > 1 ? args[1] : ConcurrentMessageBus.DEFAULT_ROOM;
+        var frames = history.tail(room, count);
+        var logger = _context.getLogger();
+        if (frames != null) {
+            var codec = _context.getMessageBus().getCodec();
+            var buffer = ByteBuffer.wrap(frames);
+            try {
+                ChatEvent event;
+                while ((event = codec.tryDecode(buffer)) != null) {
+                    var messageArgs = (MessageSendEventArgs)event.getEventArgs();
+                    logger.info("#%s <%s> %s", room, messageArgs.getAuthor(), messageArgs.getContent());
+                }
+            }
+            catch (IOException ignored) {
+            }
+        }
+        logger.info("%d rooms of history held, %d bytes", history.getRoomCount(), history.getBytes());
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Reports how far behind each client's outbound queue is.
+     */
+    @Command("QUEUES")
+    public IResult queues(String[] args) {
+        var bus = _context.getMessageBus();
+        var logger = _context.getLogger();
+        var totalDepth = 0L;
+        var totalDropped = 0L;
+        var congested = 0;
+
+        var sessions = bus.getLocalClients();
+        for (var session : sessions) {
+            var name = session.getName();
+            var queue = session.getOutboundQueue();
+            totalDepth += queue.getDepth();
+            totalDropped += queue.getDroppedFrames();
+            if (queue.isCongested()) {
+                congested++;
+            }
+            logger.info("%s: %d queued (%d bytes), peak %d, %d dropped, %d overflows%s", name, queue.getDepth(), queue.getQueuedBytes(), queue.getPeakDepth(),
+                    queue.getDroppedFrames(), queue.getOverflowCount(), queue.isCongested() ? " (congested)" : "");
+        }
+
+        logger.info("%d frames queued, %d dropped, %d of %d users congested", totalDepth, totalDropped, congested, sessions.length);
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Reports the server's traffic: messages and bytes per second since the last STATS, how long fanning a frame out
+     * takes, and how many sessions there are and how far behind they are. With tracing, also the hops traced messages
+     * took to reach the bus and how long frames wait in their queues.
+     */
+    @Command("STATS")
+    public IResult stats(String[] args) {
+        var metrics = _context.getMessageBus().getMetrics();
+        var logger = _context.getLogger();
+        var fanOut = metrics.getFanOutLatency();
+        logger.info("messages  : %d received, %.1f/s, %d events in", metrics.getMessagesIn().get(),
+                metrics.getMessagesIn().sampleRate(), metrics.getEventsIn().get());
+        logger.info("bytes     : %.1f KB in (%.1f KB/s), %.1f KB out (%.1f KB/s) in %d frames", metrics.getBytesIn().get() / 1024.0,
+                metrics.getBytesIn().sampleRate() / 1024, metrics.getBytesOut().get() / 1024.0,
+                metrics.getBytesOut().sampleRate() / 1024, metrics.getFramesOut().get());
+        logger.info("fan-out us: p50=%.1f p99=%.1f p999=%.1f max=%.1f over %d broadcasts, %.1f recipients each",
+                fanOut.getValueAtPercentile(50) / 1000.0, fanOut.getValueAtPercentile(99) / 1000.0,
+                fanOut.getValueAtPercentile(99.9) / 1000.0, fanOut.getMax() / 1000.0, fanOut.getCount(), metrics.getFanOutSize().getMean());
+        logger.info("sessions  : %d, %d frames queued, %d in the deepest queue, %d congested",
+                metrics.getSessionCount(), metrics.getQueuedFrames(), metrics.getDeepestQueue(), metrics.getCongestedSessions());
+        var uplink = metrics.getTraceUplink();
+        var server = metrics.getTraceServer();
+        if (uplink.getCount() > 0) {
+            logger.info("trace us  : %d traced, p50/p99 uplink %.1f/%.1f, server %.1f/%.1f", uplink.getCount(),
+                    uplink.getValueAtPercentile(50) / 1000.0, uplink.getValueAtPercentile(99) / 1000.0,
+                    server.getValueAtPercentile(50) / 1000.0, server.getValueAtPercentile(99) / 1000.0);
+        }
+        var queueWait = metrics.getQueueWait();
+        if (queueWait != null) {
+            logger.info("queued us : p50=%.1f p99=%.1f p999=%.1f max=%.1f over %d frames", queueWait.getValueAtPercentile(50) / 1000.0,
+                    queueWait.getValueAtPercentile(99) / 1000.0, queueWait.getValueAtPercentile(99.9) / 1000.0,
+                    queueWait.getMax() / 1000.0, queueWait.getCount());
+        }
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Reports how many frames are sharing each write to clients, and how long they're held back for.
+     */
+    @Command("WRITES")
+    public IResult writes(String[] args) {
+        var stats = _context.getMessageBus().getWriteStats();
+        var logger = _context.getLogger();
+        logger.info("frames per write : %s", stats.getBatchFrames().summarize());
+        logger.info("bytes per write  : %s", stats.getBatchBytes().summarize());
+        logger.info("flush latency ns : %s", stats.getFlushLatency().summarize());
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Reports how long events spend in each stage of the pipeline, and how many each stage handles at once.
+     */
+    @Command("PIPELINE")
+    public IResult pipeline(String[] args) {
+        var pipeline = _context.getMessageBus().getPipeline();
+        var logger = _context.getLogger();
+        if (pipeline == null) {
+            return new ExecutionResult(false, "the server isn't running with --pipeline");
+        }
+        logger.info("%d of %d slots in use, readers stalled %d times on a full ring", pipeline.getBacklog(), pipeline.getSize(),
+                pipeline.getStalls());
+        for (int i = 0; i < pipeline.getStageCount(); i++) {
+            logger.info("%-8s latency ns : %s", pipeline.getStageName(i), pipeline.getStageLatency(i).summarize());
+            logger.info("%-8s batch size : %s", pipeline.getStageName(i), pipeline.getBatchSizes(i).summarize());
+        }
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Searches the messages said in rooms, newest first. SEARCH [-p page] words [from:name] [in:room]
+     */
+    @Command("SEARCH")
+    public IResult search(String[] args) {
+        var search = _context.getMessageBus().getSearch();
+        if (search == null) {
+            return new ExecutionResult(false, "search is disabled");
+        }
+        var page = 1;
+        var first = 0;
+        if (args.length > 1 && args[0].equals("-p")) {
+            try {
+                page = Integer.parseInt(args[1]);
+            }
+            catch (NumberFormatException formatEx) {
+                return new ExecutionResult(false, "the page must be a number");
+            }
+            first = 2;
+        }
+        if (first >= args.length) {
+            return new ExecutionResult(false, "nothing to search for");
+        }
+
+        var start = System.nanoTime();
+        var results = search.search(String.join(" ", Arrays.copyOfRange(args, first, args.length)), page);
+        var elapsed = System.nanoTime() - start;
+        var logger = _context.getLogger();
+        for (var hit : results.getHits()) {
+            logger.info("#%s <%s> %s (%ds ago)", hit.getRoom(), hit.getAuthor(), hit.getContent(), hit.getAgeSeconds());
+        }
+        var pages = (results.getTotal() + SearchIndex.PAGE_SIZE - 1) / SearchIndex.PAGE_SIZE;
+        logger.info("page %d of %d, %d matches in %.2f ms", results.getPage(), pages, results.getTotal(), elapsed / 1e6);
+        logger.info("%d messages indexed, %d terms, %d bytes, %d pending, %d dropped", search.getMessageCount(),
+                search.getTermCount(), search.getBytes(), search.getPendingCount(), search.getDropped());
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Reports how many DMs are waiting for offline users, and how much of them is in memory or spilled to disk.
+     */
+    @Command("INBOXES")
+    public IResult inboxes(String[] args) {
+        var inboxes = _context.getMessageBus().getInboxes();
+        if (inboxes == null) {
+            return new ExecutionResult(false, "DMs to offline users aren't being kept");
+        }
+        _context.getLogger().info("%d offline users with DMs waiting, %d bytes in memory, %d bytes spilled, %d dropped, %d expired",
+                inboxes.getRecipientCount(), inboxes.getMemoryBytes(), inboxes.getSpilledBytes(), inboxes.getDropped(),
+                inboxes.getExpired());
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Reports how many dropped sessions are waiting to be resumed, and how many have been resumed or given up on.
+     */
+    @Command("RESUMES")
+    public IResult resumes(String[] args) {
+        var parked = _context.getMessageBus().getParkedSessions();
+        if (parked == null) {
+            return new ExecutionResult(false, "the server is running with --resume=0");
+        }
+        _context.getLogger().info("%d sessions waiting to be resumed for up to %d s, %d resumed, %d expired",
+                parked.getCount(), parked.getWindowMillis() / 1000, parked.getResumed(), parked.getExpired());
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Reports how many sessions the heartbeat watches, how many it's pinged or evicted, and how long its ticks take.
+     */
+    @Command("HEARTBEATS")
+    public IResult heartbeats(String[] args) {
+        var heartbeat = _context.getMessageBus().getHeartbeat();
+        var logger = _context.getLogger();
+        if (heartbeat == null) {
+            return new ExecutionResult(false, "the server is running with --ping=0 and --idle=0");
+        }
+        logger.info("%d sessions watched, %d pings sent, %d unresponsive dropped, %d idle closed",
+                heartbeat.getWatchedCount(), heartbeat.getPingsSent(), heartbeat.getUnresponsiveCount(), heartbeat.getIdleCount());
+        logger.info("tick ns : %s", heartbeat.getWheel().getTickLatency().summarize());
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Reports how many connections have logged in, timed out or failed to, and how long logging in takes.
+     */
+    @Command("HANDSHAKES")
+    public IResult handshakes(String[] args) {
+        var handshakes = _context.getMessageBus().getHandshakes();
+        var logger = _context.getLogger();
+        logger.info("%d completed, %d timed out after %d s, %d failed",
+                handshakes.getCompleted(), handshakes.getTimedOut(), handshakes.getDeadlineSeconds(), handshakes.getFailed());
+        logger.info("handshake ns : %s", handshakes.getDurations().summarize());
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Reports the limits on events and connections, and how much traffic they've shed.
+     */
+    @Command("LIMITS")
+    public IResult limits(String[] args) {
+        var admission = _context.getMessageBus().getAdmission();
+        if (admission == null) {
+            return new ExecutionResult(false, "the server is running without --rate or --acceptrate");
+        }
+        _context.getLogger().info("%.1f events / s per client, bursts of %d: %d events dropped, %d times a client went over",
+                admission.getEventRate(), admission.getEventBurst(), admission.getShedEvents(), admission.getThrottledCount());
+        _context.getLogger().info("%d connections rejected", admission.getRejectedConnections());
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Reports how far the journal has got, how much it holds and how its group commits are batching up.
+     */
+    @Command("JOURNAL")
+    public IResult journal(String[] args) {
+        var journal = _context.getMessageBus().getJournal();
+        var logger = _context.getLogger();
+        if (journal == null) {
+            return new ExecutionResult(false, "the server isn't running with --journal");
+        }
+        logger.info("last sequence %d, %d pending, %d dropped", journal.getLastSequence(), journal.getPendingCount(), journal.getDropped());
+        logger.info("%d segments, %d bytes in %s", journal.getSegmentCount(), journal.getBytes(), journal.getOptions().getDirectory());
+        logger.info("batch size : %s", journal.getBatchSizes().summarize());
+        logger.info("commit ns  : %s", journal.getCommitLatency().summarize());
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Lists the nodes we're linked to and how much has passed over each link.
+     */
+    @Command("FEDERATION")
+    public IResult federation(String[] args) {
+        var federation = _context.getMessageBus().getFederation();
+        var logger = _context.getLogger();
+        if (federation == null) {
+            return new ExecutionResult(false, "the server isn't running with --federation");
+        }
+        logger.info("node %s: %d links, %d remote users, %d forwarded, %d delivered, %d name conflicts",
+                federation.getNode(), federation.getLinks().size(), federation.getRemoteNames().size(),
+                federation.getForwarded(), federation.getDelivered(), federation.getConflicts());
+        for (var link : federation.getLinks()) {
+            logger.info("  %s (%s): %d records sent, %d received, %d queued",
+                    link.getNode(), link.isDialed() ? "dialled" : "accepted", link.getSent(), link.getReceived(), link.getQueued());
+        }
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Shows the roster's version, who's online and how often its snapshot has been shared.
+     */
+    @Command("ROSTER")
+    public IResult roster(String[] args) {
+        var roster = _context.getMessageBus().getRoster();
+        _context.getLogger().info("version %d: %d online, deltas gathered for %d ms, %d snapshots encoded for %d sent",
+                roster.getVersion(), roster.getCount(), roster.getDelayMillis(), roster.getSnapshotsEncoded(), roster.getSnapshotsSent());
+        return new ExecutionResult(true);
+    }
+
+    /**
+     * Shows how many sessions have their frames compressed, and how much smaller the frames compressed came out.
+     */
+    @Command("COMPRESSION")
+    public IResult compression(String[] args) {
+        var compression = _context.getMessageBus().getCompression();
+        if (compression == null) {
+            return new ExecutionResult(false, "the server isn't compressing frames");
+        }
+        var bytesIn = compression.getBytesIn();
+        _context.getLogger().info("%d sessions compressed, frames over %d bytes: %d compressed, %d reused, %d -> %d bytes (%.0f%%)",
+                compression.getSessions(), compression.getThreshold(), compression.getCompressed(), compression.getReused(),
+                bytesIn, compression.getBytesOut(), bytesIn == 0 ? 100.0 : 100.0 * compression.getBytesOut() / bytesIn);
+        return new ExecutionResult(true);
+    }
+
     /**
      * Shuts down the server.
      */
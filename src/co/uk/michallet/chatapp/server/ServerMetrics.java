@@ -0,0 +1,259 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.metrics.Counter;
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+import co.uk.michallet.chatapp.common.metrics.MetricRegistry;
+import co.uk.michallet.chatapp.common.net.EventTrace;
+import co.uk.michallet.chatapp.common.net.WriteStats;
+
+/**
+ * What the server reports about its traffic: events and bytes in and out, how long fanning a frame out takes and how
+ * far sessions have fallen behind. The gauges are read from the bus whenever they're reported.
+ * The bus registers each optional part of the server as it's set, sharing the counts and histograms that part keeps
+ * for its own command, so the registry reports everything the admin commands do.
+ */
+public class ServerMetrics {
+    private final ConcurrentMessageBus _bus;
+    private final MetricRegistry _registry;
+    private final Counter _eventsIn;
+    private final Counter _messagesIn;
+    private final Counter _bytesIn;
+    private final Counter _framesOut;
+    private final Counter _bytesOut;
+    private final Histogram _fanOutLatency;
+    private final Histogram _fanOutSize;
+    private final Histogram _traceUplink;
+    private final Histogram _traceServer;
+    // Null until queue waits are timed
+    private Histogram _queueWait;
+
+    public ServerMetrics(ConcurrentMessageBus bus) {
+        _bus = bus;
+        _registry = new MetricRegistry();
+        _eventsIn = _registry.counter("chat_events_in_total", "Events received from clients");
+        _messagesIn = _registry.counter("chat_messages_in_total", "Room messages and DMs received from clients");
+        _bytesIn = _registry.counter("chat_bytes_in_total", "Bytes read from clients");
+        _framesOut = _registry.counter("chat_frames_out_total", "Frames queued to clients");
+        _bytesOut = _registry.counter("chat_bytes_out_total", "Bytes of frames queued to clients, after compression");
+        _fanOutLatency = _registry.histogram("chat_fanout_nanos", "Time taken to queue a broadcast frame to every recipient");
+        _fanOutSize = _registry.histogram("chat_fanout_recipients", "Sessions each broadcast frame was queued to");
+        _traceUplink = _registry.histogram("chat_trace_uplink_nanos", "Traced messages from being sent by their author to being decoded");
+        _traceServer = _registry.histogram("chat_trace_server_nanos", "Traced messages from being decoded to being handed to the bus");
+        _registry.gauge("chat_sessions", "Sessions connected to this node", this::getSessionCount);
+        _registry.gauge("chat_queued_frames", "Frames queued to every session, waiting to be written", this::getQueuedFrames);
+        _registry.gauge("chat_queue_depth_max", "Frames queued to the session furthest behind", this::getDeepestQueue);
+        _registry.gauge("chat_congested_sessions", "Sessions over their queue's high watermark", this::getCongestedSessions);
+        registerWrites(bus.getWriteStats());
+    }
+
+    /**
+     * @return Every metric, including any registered by other parts of the server, e.g. its commands.
+     */
+    public MetricRegistry getRegistry() {
+        return _registry;
+    }
+
+    public Counter getEventsIn() {
+        return _eventsIn;
+    }
+
+    public Counter getMessagesIn() {
+        return _messagesIn;
+    }
+
+    public Counter getBytesIn() {
+        return _bytesIn;
+    }
+
+    public Counter getFramesOut() {
+        return _framesOut;
+    }
+
+    public Counter getBytesOut() {
+        return _bytesOut;
+    }
+
+    /**
+     * @return Fan-out times in nanoseconds.
+     */
+    public Histogram getFanOutLatency() {
+        return _fanOutLatency;
+    }
+
+    public Histogram getFanOutSize() {
+        return _fanOutSize;
+    }
+
+    /**
+     * @return Traced messages from their author's client to being decoded here, in nanoseconds.
+     */
+    public Histogram getTraceUplink() {
+        return _traceUplink;
+    }
+
+    /**
+     * @return Traced messages from being decoded to being handed to the bus, e.g. waiting in the pipeline, in
+     * nanoseconds.
+     */
+    public Histogram getTraceServer() {
+        return _traceServer;
+    }
+
+    /**
+     * @return How long frames waited in their session's queue before being written, in nanoseconds, or null if that
+     * isn't timed.
+     */
+    public Histogram getQueueWait() {
+        return _queueWait;
+    }
+
+    /**
+     * Starts timing how long every frame waits in its session's queue. Costs two clock reads a frame, so it's only
+     * done while tracing. Must be called before any session is created.
+     */
+    public void enableQueueTiming(OutboundQueueOptions options) {
+        _queueWait = _registry.histogram("chat_queue_wait_nanos", "Time frames waited in their session's queue before being written");
+        options.setWaitLatency(_queueWait);
+    }
+
+    private void registerWrites(WriteStats stats) {
+        _registry.histogram("chat_write_batch_frames", "Frames sent to a client in each write", stats.getBatchFrames());
+        _registry.histogram("chat_write_batch_bytes", "Bytes sent to a client in each write", stats.getBatchBytes());
+        _registry.histogram("chat_write_flush_nanos", "Time from a write's first frame being queued to it being flushed", stats.getFlushLatency());
+    }
+
+    public void registerPipeline(EventPipeline pipeline) {
+        _registry.gauge("chat_pipeline_backlog", "Pipeline slots published but not yet fanned out", pipeline::getBacklog);
+        _registry.counter("chat_pipeline_stalls_total", "Times a reader found the pipeline full", pipeline::getStalls);
+        for (int i = 0; i < pipeline.getStageCount(); i++) {
+            var stage = pipeline.getStageName(i);
+            _registry.histogram("chat_pipeline_" + stage + "_nanos", "Time a slot took to get through the pipeline's " + stage + " stage",
+                    pipeline.getStageLatency(i));
+            _registry.histogram("chat_pipeline_" + stage + "_batch", "Slots the pipeline's " + stage + " stage handled at once",
+                    pipeline.getBatchSizes(i));
+        }
+    }
+
+    public void registerJournal(MessageJournal journal) {
+        _registry.gauge("chat_journal_last_sequence", "Sequence of the last event written to the journal", journal::getLastSequence);
+        _registry.gauge("chat_journal_pending", "Events waiting to be written to the journal", journal::getPendingCount);
+        _registry.counter("chat_journal_dropped_total", "Events the journal fell too far behind to write", journal::getDropped);
+        _registry.gauge("chat_journal_segments", "Segment files the journal holds", journal::getSegmentCount);
+        _registry.gauge("chat_journal_bytes", "Bytes the journal holds", journal::getBytes);
+        _registry.histogram("chat_journal_batch_events", "Events written by each of the journal's group commits", journal.getBatchSizes());
+        _registry.histogram("chat_journal_commit_nanos", "Time each of the journal's group commits took", journal.getCommitLatency());
+    }
+
+    public void registerInboxes(DirectMessageStore inboxes) {
+        _registry.gauge("chat_inbox_recipients", "Offline users with DMs waiting", inboxes::getRecipientCount);
+        _registry.gauge("chat_inbox_memory_bytes", "Bytes of waiting DMs held in memory", inboxes::getMemoryBytes);
+        _registry.gauge("chat_inbox_spilled_bytes", "Bytes of waiting DMs spilled to disk", inboxes::getSpilledBytes);
+        _registry.counter("chat_inbox_dropped_total", "DMs to offline users dropped for want of space", inboxes::getDropped);
+        _registry.counter("chat_inbox_expired_total", "DMs to offline users dropped for waiting too long", inboxes::getExpired);
+    }
+
+    public void registerSearch(SearchIndex search) {
+        _registry.gauge("chat_search_messages", "Messages in the search index", search::getMessageCount);
+        _registry.gauge("chat_search_terms", "Terms in the search index", search::getTermCount);
+        _registry.gauge("chat_search_bytes", "Bytes the search index holds", search::getBytes);
+        _registry.gauge("chat_search_pending", "Messages waiting to be indexed", search::getPendingCount);
+        _registry.counter("chat_search_indexed_total", "Messages indexed", search::getIndexed);
+        _registry.counter("chat_search_dropped_total", "Messages the index fell too far behind to index", search::getDropped);
+        _registry.histogram("chat_search_query_nanos", "Time each search took", search.getQueryLatency());
+    }
+
+    public void registerParkedSessions(ParkedSessions parked) {
+        _registry.gauge("chat_parked_sessions", "Dropped sessions waiting to be resumed", parked::getCount);
+        _registry.counter("chat_resumed_total", "Dropped sessions resumed", parked::getResumed);
+        _registry.counter("chat_resume_expired_total", "Dropped sessions given up on", parked::getExpired);
+    }
+
+    public void registerHeartbeat(HeartbeatMonitor heartbeat) {
+        _registry.gauge("chat_heartbeat_watched", "Sessions the heartbeat watches", heartbeat::getWatchedCount);
+        _registry.counter("chat_heartbeat_pings_total", "Pings sent to quiet sessions", heartbeat::getPingsSent);
+        _registry.counter("chat_heartbeat_unresponsive_total", "Sessions dropped for not answering a ping", heartbeat::getUnresponsiveCount);
+        _registry.counter("chat_heartbeat_idle_total", "Sessions closed for being idle", heartbeat::getIdleCount);
+        _registry.histogram("chat_timer_tick_nanos", "Time each tick of the timer wheel took", heartbeat.getWheel().getTickLatency());
+    }
+
+    public void registerHandshakes(HandshakeMonitor handshakes) {
+        _registry.counter("chat_handshakes_completed_total", "Connections that logged in", handshakes::getCompleted);
+        _registry.counter("chat_handshakes_timed_out_total", "Connections closed for not logging in in time", handshakes::getTimedOut);
+        _registry.counter("chat_handshakes_failed_total", "Connections that closed or were turned away before logging in", handshakes::getFailed);
+        _registry.histogram("chat_handshake_nanos", "Time from a connection being accepted to it logging in", handshakes.getDurations());
+    }
+
+    public void registerAdmission(AdmissionControl admission) {
+        _registry.counter("chat_admission_shed_total", "Events dropped for going over a client's rate", admission::getShedEvents);
+        _registry.counter("chat_admission_throttled_total", "Times a client went over its rate", admission::getThrottledCount);
+        _registry.counter("chat_admission_rejected_total", "Connections rejected for arriving too fast", admission::getRejectedConnections);
+    }
+
+    public void registerFederation(Federation federation) {
+        _registry.gauge("chat_federation_links", "Links to other nodes", () -> federation.getLinks().size());
+        _registry.gauge("chat_federation_remote_users", "Users homed on other nodes", () -> federation.getRemoteNames().size());
+        _registry.counter("chat_federation_forwarded_total", "Events and DMs passed on to other nodes", federation::getForwarded);
+        _registry.counter("chat_federation_delivered_total", "Events and DMs from other nodes delivered here", federation::getDelivered);
+        _registry.counter("chat_federation_conflicts_total", "Names claimed on more than one node", federation::getConflicts);
+    }
+
+    public long getSessionCount() {
+        return _bus.getLocalClients().length;
+    }
+
+    /**
+     * @return Frames queued to every session, waiting to be written.
+     */
+    public long getQueuedFrames() {
+        var depth = 0L;
+        for (var session : _bus.getLocalClients()) {
+            depth += session.getOutboundQueue().getDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * @return Frames queued to the session furthest behind.
+     */
+    public long getDeepestQueue() {
+        var deepest = 0L;
+        for (var session : _bus.getLocalClients()) {
+            deepest = Math.max(deepest, session.getOutboundQueue().getDepth());
+        }
+        return deepest;
+    }
+
+    public long getCongestedSessions() {
+        var congested = 0L;
+        for (var session : _bus.getLocalClients()) {
+            if (session.getOutboundQueue().isCongested()) {
+                congested++;
+            }
+        }
+        return congested;
+    }
+
+    /**
+     * @param startNanos When the fan-out began, from System.nanoTime().
+     * @param recipients Sessions the frame was queued to.
+     */
+    public void recordFanOut(long startNanos, int recipients) {
+        _fanOutLatency.record(System.nanoTime() - startNanos);
+        _fanOutSize.record(recipients);
+    }
+
+    /**
+     * Stamps a traced message as it's handed to the bus and records the hops it has taken so far. The uplink is
+     * timed from the client's own stamp, so it's skipped unless that's plausible.
+     */
+    public void recordTrace(EventTrace trace) {
+        trace.setBusEnqueued(EventTrace.now());
+        var decoded = trace.getServerDecoded();
+        if (decoded > 0) {
+            if (EventTrace.isPlausible(trace.getClientSent(), decoded)) {
+                _traceUplink.record((decoded - trace.getClientSent()) * 1000);
+            }
+            _traceServer.record((trace.getBusEnqueued() - decoded) * 1000);
+        }
+    }
+}
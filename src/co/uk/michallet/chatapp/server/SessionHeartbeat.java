@@ -0,0 +1,33 @@
+package co.uk.michallet.chatapp.server;
+
+/**
+ * The one TimerEntry each session has on the HeartbeatMonitor's wheel, scheduled again every time it expires.
+ */
+public class SessionHeartbeat extends TimerEntry {
+    private final HeartbeatMonitor _monitor;
+    private final ClientSession _session;
+    // The tick the outstanding PING was sent on, only touched by the wheel
+    private long _pingTick;
+
+    public SessionHeartbeat(HeartbeatMonitor monitor, ClientSession session) {
+        _monitor = monitor;
+        _session = session;
+    }
+
+    public ClientSession getSession() {
+        return _session;
+    }
+
+    long getPingTick() {
+        return _pingTick;
+    }
+
+    void setPingTick(long value) {
+        _pingTick = value;
+    }
+
+    @Override
+    protected void expire(TimerWheel wheel) {
+        _monitor.check(this);
+    }
+}
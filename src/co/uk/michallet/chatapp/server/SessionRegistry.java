@@ -0,0 +1,134 @@
+package co.uk.michallet.chatapp.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The sessions connected to this node, by name and as an array for fanning out to all of them.
+ * Names are claimed atomically, so of two clients racing for a name exactly one gets it, and renames claim the new name
+ * before giving up the old one so nobody can take either in between.
+ * The array is replaced rather than modified whenever a session joins or leaves, a broadcast iterates whichever one
+ * it read without locking or allocating. Joins and leaves are rare next to broadcasts, so copying it is cheap overall.
+ */
+public class SessionRegistry {
+    private static final ClientSession[] EMPTY = new ClientSession[0];
+
+    private final ConcurrentHashMap<String, ClientSession> _byName;
+    private final AtomicReference<ClientSession[]> _sessions;
+
+    public SessionRegistry() {
+        _byName = new ConcurrentHashMap<>();
+        _sessions = new AtomicReference<>(EMPTY);
+    }
+
+    /**
+     * Claims the session's name for it.
+     * @return False if the name isn't valid or another session already has it, in which case nothing has changed.
+     */
+    public boolean tryAdd(ClientSession session) {
+        var name = session.getName();
+        // The map throws on a null key, and nothing here may be registered under a name a client couldn't log in with
+        if (!ConcurrentMessageBus.isValidUserName(name) || _byName.putIfAbsent(name, session) != null) {
+            return false;
+        }
+        ClientSession[] sessions;
+        ClientSession[] grown;
+        do {
+            sessions = _sessions.get();
+            grown = new ClientSession[sessions.length + 1];
+            System.arraycopy(sessions, 0, grown, 0, sessions.length);
+            grown[sessions.length] = session;
+        }
+        while (!_sessions.compareAndSet(sessions, grown));
+        return true;
+    }
+
+    /**
+     * Hands a session's name and place to another session, e.g. the new connection of a client resuming.
+     * @param session The session taking over, already given the name.
+     */
+    public void replace(ClientSession previous, ClientSession session) {
+        _byName.put(session.getName(), session);
+        ClientSession[] sessions;
+        ClientSession[] replaced;
+        do {
+            sessions = _sessions.get();
+            var index = indexOf(sessions, previous);
+            if (index < 0) {
+                replaced = new ClientSession[sessions.length + 1];
+                System.arraycopy(sessions, 0, replaced, 0, sessions.length);
+                replaced[sessions.length] = session;
+            }
+            else {
+                replaced = sessions.clone();
+                replaced[index] = session;
+            }
+        }
+        while (!_sessions.compareAndSet(sessions, replaced));
+    }
+
+    /**
+     * Takes a session off the registry, leaving its name to whoever holds it if that's another session.
+     */
+    public void remove(ClientSession session) {
+        _byName.remove(session.getName(), session);
+        ClientSession[] sessions;
+        ClientSession[] shrunk;
+        do {
+            sessions = _sessions.get();
+            var index = indexOf(sessions, session);
+            if (index < 0) {
+                return;
+            }
+            shrunk = sessions.length == 1 ? EMPTY : new ClientSession[sessions.length - 1];
+            System.arraycopy(sessions, 0, shrunk, 0, index);
+            System.arraycopy(sessions, index + 1, shrunk, index, sessions.length - index - 1);
+        }
+        while (!_sessions.compareAndSet(sessions, shrunk));
+    }
+
+    /**
+     * Moves a session from one name to another. For a moment it holds both, so neither can be claimed by anyone else.
+     * @return False if the new name isn't valid or is taken, or the session no longer holds the old one, in which case
+     * nothing has changed.
+     */
+    public boolean tryRename(ClientSession session, String oldName, String newName) {
+        if (oldName == null || !ConcurrentMessageBus.isValidUserName(newName)) {
+            return false;
+        }
+        if (_byName.putIfAbsent(newName, session) != null) {
+            return false;
+        }
+        if (!_byName.remove(oldName, session)) {
+            // Left, or was renamed by someone else, while we were claiming the name
+            _byName.remove(newName, session);
+            return false;
+        }
+        return true;
+    }
+
+    public ClientSession get(String name) {
+        return name == null ? null : _byName.get(name);
+    }
+
+    /**
+     * @return Every session at the moment, not to be modified.
+     */
+    public ClientSession[] getSessions() {
+        return _sessions.get();
+    }
+
+    public Set<String> getNames() {
+        return _byName.keySet();
+    }
+
+    private static int indexOf(ClientSession[] sessions, ClientSession session) {
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] == session) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
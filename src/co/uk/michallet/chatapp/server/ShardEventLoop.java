@@ -0,0 +1,246 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.ILogger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Event loop that is also one shard of a ShardedMessageBus. The shard's sessions, and the index of which rooms they're
+ * in, are only ever touched on its own thread. Frames from other shards arrive on a single-producer/single-consumer
+ * queue per sending shard, so shards never contend with each other on the message path.
+ */
+public class ShardEventLoop extends NioEventLoop {
+    // Slots per queue between each pair of shards
+    private static final int QUEUE_CAPACITY = 4096;
+    // Messages held back for a shard that isn't keeping up before new ones for it are dropped, like a session's
+    // OutboundQueue with DROP_NEW, rather than letting it take all of our memory
+    private static final int MAX_BACKLOG = 16 * QUEUE_CAPACITY;
+
+    private final ILogger _logger;
+    private final ShardedMessageBus _messageBus;
+    private final int _index;
+    // Room -> this shard's members of it, only touched by the loop
+    private final Map<String, ArrayList<ClientSession>> _rooms;
+    // Indexed by the sending shard, our own slot is unused
+    private final SpscQueue<ShardMessage>[] _inbound;
+    // Messages for other shards that didn't fit in their queue yet, indexed by the receiving shard
+    private final ArrayDeque<ShardMessage>[] _backlog;
+    // Whether we're dropping messages for each shard, so it's only logged once each time it falls behind
+    private final boolean[] _shedding;
+    // Work handed to us by threads that aren't shards, e.g. the console
+    private final Queue<Runnable> _tasks;
+    // Set once someone has woken the selector, so a burst of messages only wakes it once
+    private final AtomicBoolean _wakeupPending;
+    // Events numbered by this shard, only touched by the loop
+    private long _sequence;
+    // Messages dropped because their shard's backlog was full, only written by the loop
+    private volatile long _shed;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ShardEventLoop(ILogger logger, ShardedMessageBus messageBus, int index) throws IOException {
+        super(logger);
+        _logger = logger;
+        _messageBus = messageBus;
+        _index = index;
+        _rooms = new HashMap<>();
+        var shardCount = messageBus.getShardCount();
+        _inbound = new SpscQueue[shardCount];
+        _backlog = new ArrayDeque[shardCount];
+        _shedding = new boolean[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            if (i != index) {
+                _inbound[i] = new SpscQueue<>(QUEUE_CAPACITY);
+                _backlog[i] = new ArrayDeque<>();
+            }
+        }
+        _tasks = new ConcurrentLinkedQueue<>();
+        _wakeupPending = new AtomicBoolean(false);
+        messageBus.attachShard(this);
+    }
+
+    public int getIndex() {
+        return _index;
+    }
+
+    /**
+     * @return Messages for other shards dropped because they'd fallen too far behind.
+     */
+    public long getShed() {
+        return _shed;
+    }
+
+    /**
+     * Called on this shard's thread.
+     * @return How many events this shard has numbered, including this one.
+     */
+    long nextSequence() {
+        return ++_sequence;
+    }
+
+    /**
+     * Runs a task on this shard's thread, directly if we're already on it. Safe to call from any thread.
+     */
+    public void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+        _tasks.add(task);
+        wakeupOnce();
+    }
+
+    private void wakeupOnce() {
+        if (_wakeupPending.compareAndSet(false, true)) {
+            wakeup();
+        }
+    }
+
+    /**
+     * Called on this shard's thread. Delivers a frame to our own sessions, then passes it on to every other shard.
+     */
+    public void publish(ShardMessage message) {
+        deliver(message);
+        for (var shard : _messageBus.getShards()) {
+            if (shard != this) {
+                sendTo(shard, message);
+            }
+        }
+    }
+
+    /**
+     * Called on this shard's thread, hands a message to one other shard.
+     */
+    public void sendTo(ShardEventLoop shard, ShardMessage message) {
+        var backlog = _backlog[shard._index];
+        // Anything already backlogged has to go first, or the receiver would see our frames out of order
+        if (!backlog.isEmpty() || !shard._inbound[_index].offer(message)) {
+            if (backlog.size() >= MAX_BACKLOG) {
+                _shed++;
+                if (!_shedding[shard._index]) {
+                    _shedding[shard._index] = true;
+                    _logger.warn("shard %d: more than %d messages backlogged for shard %d, dropping new ones", _index, MAX_BACKLOG, shard._index);
+                }
+                return;
+            }
+            backlog.add(message);
+            return;
+        }
+        shard.wakeupOnce();
+    }
+
+    /**
+     * Called on this shard's thread, hands a frame to the sessions it's meant for.
+     */
+    void deliver(ShardMessage message) {
+        var frame = message.getFrame();
+        if (message.getTarget() != null) {
+            message.getTarget().sendFrame(frame);
+        }
+        else if (message.getRoom() != null) {
+            var members = _rooms.get(message.getRoom());
+            if (members != null) {
+                var start = System.nanoTime();
+                for (var session : members) {
+                    session.sendFrame(frame);
+                }
+                // Each shard's share of the fan-out is recorded on its own
+                _messageBus.getMetrics().recordFanOut(start, members.size());
+            }
+        }
+        else {
+            var start = System.nanoTime();
+            var recipients = 0;
+            for (var members : _rooms.values()) {
+                for (var session : members) {
+                    session.sendFrame(frame);
+                }
+                recipients += members.size();
+            }
+            _messageBus.getMetrics().recordFanOut(start, recipients);
+        }
+    }
+
+    /**
+     * Called on this shard's thread once the bus has moved one of our sessions into a room.
+     */
+    void addToRoom(String room, ClientSession session) {
+        _rooms.computeIfAbsent(room, name -> new ArrayList<>()).add(session);
+    }
+
+    /**
+     * Called on this shard's thread once the bus has taken one of our sessions out of a room.
+     */
+    void removeFromRoom(String room, ClientSession session) {
+        var members = _rooms.get(room);
+        if (members != null && members.remove(session) && members.isEmpty()) {
+            _rooms.remove(room);
+        }
+    }
+
+    @Override
+    protected boolean runTasks() {
+        // Cleared before draining, so a message queued after we look still wakes the selector
+        _wakeupPending.set(false);
+
+        Runnable task;
+        while ((task = _tasks.poll()) != null) {
+            try {
+                task.run();
+            }
+            catch (RuntimeException ex) {
+                // One bad task or message mustn't take the shard, and every session on it, down with it
+                _logger.warn("shard %d: task failed: %s", _index, ex);
+            }
+        }
+        for (var inbound : _inbound) {
+            if (inbound == null) {
+                continue;
+            }
+            ShardMessage message;
+            while ((message = inbound.poll()) != null) {
+                try {
+                    deliver(message);
+                }
+                catch (RuntimeException ex) {
+                    _logger.warn("shard %d: delivering a message failed: %s", _index, ex);
+                }
+            }
+        }
+        return retryBacklog();
+    }
+
+    /**
+     * Moves as much of each backlog into its shard's queue as will fit.
+     * @return Whether anything is still waiting.
+     */
+    private boolean retryBacklog() {
+        var backlogged = false;
+        for (var shard : _messageBus.getShards()) {
+            var backlog = _backlog[shard._index];
+            if (backlog == null || backlog.isEmpty()) {
+                continue;
+            }
+            var inbound = shard._inbound[_index];
+            var moved = false;
+            while (!backlog.isEmpty() && inbound.offer(backlog.peek())) {
+                backlog.poll();
+                moved = true;
+            }
+            if (moved) {
+                shard.wakeupOnce();
+            }
+            if (backlog.isEmpty()) {
+                _shedding[shard._index] = false;
+            }
+            backlogged |= !backlog.isEmpty();
+        }
+        return backlogged;
+    }
+}
@@ -0,0 +1,42 @@
+package co.uk.michallet.chatapp.server;
+
+/**
+ * An encoded frame on its way from one shard to another, along with who on the receiving shard it's for.
+ */
+public class ShardMessage {
+    // Null to reach every session on the shard
+    private final String _room;
+    // Set for a frame meant for a single session, e.g. a DM
+    private final ClientSession _target;
+    private final byte[] _frame;
+
+    private ShardMessage(String room, ClientSession target, byte[] frame) {
+        _room = room;
+        _target = target;
+        _frame = frame;
+    }
+
+    public static ShardMessage toAll(byte[] frame) {
+        return new ShardMessage(null, null, frame);
+    }
+
+    public static ShardMessage toRoom(String room, byte[] frame) {
+        return new ShardMessage(room, null, frame);
+    }
+
+    public static ShardMessage toSession(ClientSession target, byte[] frame) {
+        return new ShardMessage(null, target, frame);
+    }
+
+    public String getRoom() {
+        return _room;
+    }
+
+    public ClientSession getTarget() {
+        return _target;
+    }
+
+    public byte[] getFrame() {
+        return _frame;
+    }
+}
@@ -0,0 +1,150 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.net.ChatEvent;
+import co.uk.michallet.chatapp.common.net.FlushOptions;
+import co.uk.michallet.chatapp.common.net.IEventCodec;
+
+/**
+ * Bus for the thread-per-core mode, where sessions are partitioned across shards that each own an nio event loop.
+ * A shard delivers frames to its own sessions directly and passes them to every other shard over an SPSC queue, so
+ * the message path never touches state shared between cores. The name directory and room index inherited from
+ * ConcurrentMessageBus are only written when sessions join, leave or change room, and back DM lookups and the admin
+ * commands. Only works with the nio transport, every session must be a NioClientSession on one of our shards.
+ */
+public class ShardedMessageBus extends ConcurrentMessageBus {
+    private final ShardEventLoop[] _shards;
+
+    /**
+     * @param shardCount How many shards sessions are spread across, the transport runs a loop for each.
+     */
+    public ShardedMessageBus(IEventCodec codec, OutboundQueueOptions queueOptions, FlushOptions flushOptions, int shardCount) {
+        super(codec, queueOptions, flushOptions);
+        _shards = new ShardEventLoop[shardCount];
+    }
+
+    public int getShardCount() {
+        return _shards.length;
+    }
+
+    ShardEventLoop[] getShards() {
+        return _shards;
+    }
+
+    /**
+     * Called by each shard as it's created, before any of them are started.
+     */
+    void attachShard(ShardEventLoop shard) {
+        _shards[shard.getIndex()] = shard;
+    }
+
+    /**
+     * @return The shard whose thread we're on, or null if this isn't a shard's thread.
+     */
+    private ShardEventLoop currentShard() {
+        for (var shard : _shards) {
+            if (shard != null && shard.inEventLoop()) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    private static ShardEventLoop shardOf(ClientSession session) {
+        return (ShardEventLoop)((NioClientSession)session).getEventLoop();
+    }
+
+    /**
+     * Each shard numbers its own events, interleaved so they never collide, rather than contending on one counter.
+     * Events sent from off the shards take the last slot.
+     */
+    @Override
+    public long nextSequence() {
+        var current = currentShard();
+        var slot = current != null ? current.getIndex() : _shards.length;
+        var count = current != null ? current.nextSequence() : super.nextSequence();
+        return count * (_shards.length + 1) + slot;
+    }
+
+    @Override
+    void broadcast(ChatEvent event, boolean forward) {
+        var frame = tryEncode(event);
+        if (frame == null) {
+            return;
+        }
+        if (forward && getFederation() != null) {
+            getFederation().forward(null, frame);
+        }
+        publish(ShardMessage.toAll(frame));
+    }
+
+    /**
+     * Every shard is sent the frame, those without members in the room drop it after a single lookup.
+     */
+    @Override
+    void broadcastToRoom(String room, ChatEvent event, boolean forward) {
+        var frame = tryEncode(event);
+        if (frame == null) {
+            return;
+        }
+        if (forward && getFederation() != null) {
+            getFederation().forward(room, frame);
+        }
+        retain(room, event, frame);
+        publish(ShardMessage.toRoom(room, frame));
+    }
+
+    private void publish(ShardMessage message) {
+        var current = currentShard();
+        if (current != null) {
+            current.publish(message);
+            return;
+        }
+        // Off the shards, e.g. a console command, so each shard is asked to deliver its own part
+        for (var shard : _shards) {
+            shard.execute(() -> shard.deliver(message));
+        }
+    }
+
+    @Override
+    public void sendTo(ClientSession target, byte[] frame) {
+        if (target instanceof RemoteSession) {
+            // Not on any shard, the frame goes straight to the link to its node
+            target.sendFrame(frame);
+            return;
+        }
+        var current = currentShard();
+        var shard = shardOf(target);
+        if (current == null || current == shard) {
+            target.sendFrame(frame);
+            return;
+        }
+        current.sendTo(shard, ShardMessage.toSession(target, frame));
+    }
+
+    @Override
+    protected void addMember(String room, ClientSession session) {
+        super.addMember(room, session);
+        var shard = shardOf(session);
+        shard.execute(() -> shard.addToRoom(room, session));
+    }
+
+    /**
+     * The two sessions may be on different shards, in which case a frame published between the two steps can reach
+     * both of them, the old one passing its copy on to the new.
+     */
+    @Override
+    protected void replaceMember(String room, ClientSession previous, ClientSession session) {
+        super.replaceMember(room, previous, session);
+        var shard = shardOf(session);
+        shard.execute(() -> shard.addToRoom(room, session));
+        var previousShard = shardOf(previous);
+        previousShard.execute(() -> previousShard.removeFromRoom(room, previous));
+    }
+
+    @Override
+    protected void removeMember(String room, ClientSession session) {
+        super.removeMember(room, session);
+        var shard = shardOf(session);
+        shard.execute(() -> shard.removeFromRoom(room, session));
+    }
+}
@@ -0,0 +1,69 @@
+package co.uk.michallet.chatapp.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded ring buffer for exactly one producer thread and one consumer thread. Neither side ever takes a lock or
+ * retries a CAS, each only publishes its own index, and reads the other's only when its cached copy runs out.
+ */
+public class SpscQueue<T> {
+    private final Object[] _buffer;
+    private final int _mask;
+    // Next slot the consumer reads, only written by the consumer
+    private final AtomicLong _head;
+    // Next slot the producer writes, only written by the producer
+    private final AtomicLong _tail;
+    // The producer's last sight of _head
+    private long _headCache;
+    // The consumer's last sight of _tail
+    private long _tailCache;
+
+    /**
+     * @param capacity Rounded up to a power of two.
+     */
+    public SpscQueue(int capacity) {
+        var size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        _buffer = new Object[size];
+        _mask = size - 1;
+        _head = new AtomicLong();
+        _tail = new AtomicLong();
+    }
+
+    /**
+     * Called by the producer only.
+     * @return False if the queue is full.
+     */
+    public boolean offer(T value) {
+        var tail = _tail.get();
+        if (tail - _headCache >= _buffer.length) {
+            _headCache = _head.get();
+            if (tail - _headCache >= _buffer.length) {
+                return false;
+            }
+        }
+        _buffer[(int)tail & _mask] = value;
+        // Ordered store, the slot is visible to the consumer before the index that covers it
+        _tail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Called by the consumer only.
+     * @return The oldest value, or null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        var head = _head.get();
+        if (head >= _tailCache) {
+            _tailCache = _tail.get();
+            if (head >= _tailCache) {
+                return null;
+            }
+        }
+        var index = (int)head & _mask;
+        var value = (T)_buffer[index];
+        _buffer[index] = null;
+        _head.lazySet(head + 1);
+        return value;
+    }
+}
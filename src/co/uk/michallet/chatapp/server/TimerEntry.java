@@ -0,0 +1,31 @@
+package co.uk.michallet.chatapp.server;
+
+/**
+ * Something scheduled on a TimerWheel. Entries are linked straight into the wheel's buckets, so scheduling one again
+ * allocates nothing, and an entry is in at most one bucket at a time. Only the wheel's thread touches the links.
+ */
+public abstract class TimerEntry {
+    // The tick the entry expires on
+    long _deadline;
+    TimerEntry _prev;
+    TimerEntry _next;
+    // Index of the bucket the entry is linked into, -1 if it isn't in one
+    int _bucket = -1;
+    private volatile boolean _cancelled;
+
+    /**
+     * Called on the wheel's thread once the entry's deadline has passed. It may schedule itself again.
+     */
+    protected abstract void expire(TimerWheel wheel);
+
+    /**
+     * Stops the entry from expiring. Safe to call from any thread, the wheel unlinks it when it next comes across it.
+     */
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+}
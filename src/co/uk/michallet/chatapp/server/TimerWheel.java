@@ -0,0 +1,197 @@
+package co.uk.michallet.chatapp.server;
+
+import co.uk.michallet.chatapp.common.ILogger;
+import co.uk.michallet.chatapp.common.metrics.Histogram;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel. Time is divided into ticks, and an entry due on a tick is linked into the bucket that tick
+ * hashes to, so each tick only visits the entries in one bucket rather than everything scheduled. Entries more than
+ * one turn of the wheel away share a bucket with nearer ones and are skipped until their turn comes round.
+ * A single thread runs the wheel however many entries there are, scheduling from other threads is handed to it
+ * through a queue.
+ */
+public class TimerWheel implements Runnable {
+    private final ILogger _logger;
+    private final long _tickNanos;
+    private final TimerEntry[] _buckets;
+    private final int _mask;
+    // Entries scheduled from other threads, linked in at the start of the next tick
+    private final Queue<TimerEntry> _pending;
+    private final Histogram _tickLatency;
+    private volatile long _tick;
+    private volatile int _scheduled;
+    private volatile boolean _running;
+    private Thread _thread;
+
+    /**
+     * @param tickMillis Length of a tick, deadlines are rounded up to a whole number of them.
+     * @param wheelSize Number of buckets, rounded up to a power of two.
+     */
+    public TimerWheel(ILogger logger, long tickMillis, int wheelSize) {
+        _logger = logger;
+        _tickNanos = Math.max(1, tickMillis) * 1_000_000L;
+        var size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        _buckets = new TimerEntry[size];
+        _mask = size - 1;
+        _pending = new ConcurrentLinkedQueue<>();
+        _tickLatency = new Histogram();
+    }
+
+    public void start() {
+        _running = true;
+        _thread = new Thread(this, "timer-wheel");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public void close() {
+        _running = false;
+        if (_thread != null) {
+            LockSupport.unpark(_thread);
+        }
+    }
+
+    /**
+     * @return Ticks since the wheel started. A cheap clock for anything that only needs tick precision.
+     */
+    public long getTick() {
+        return _tick;
+    }
+
+    public long getTickMillis() {
+        return _tickNanos / 1_000_000L;
+    }
+
+    /**
+     * @return A number of milliseconds in ticks, rounded up.
+     */
+    public long toTicks(long millis) {
+        var tickMillis = getTickMillis();
+        return Math.max(1, (millis + tickMillis - 1) / tickMillis);
+    }
+
+    /**
+     * Schedules an entry to expire after a number of ticks. Safe to call from any thread, but an entry must only be
+     * scheduled by one thread at a time, e.g. by its own expire().
+     */
+    public void schedule(TimerEntry entry, long ticks) {
+        entry._deadline = _tick + Math.max(1, ticks);
+        if (Thread.currentThread() == _thread) {
+            link(entry);
+        }
+        else {
+            _pending.add(entry);
+        }
+    }
+
+    @Override
+    public void run() {
+        var start = System.nanoTime();
+        while (_running) {
+            var next = start + (_tick + 1) * _tickNanos;
+            var now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(this, next - now);
+                continue;
+            }
+            _tick++;
+            var tickStart = System.nanoTime();
+            try {
+                transferPending();
+                expireBucket();
+            }
+            catch (RuntimeException ex) {
+                _logger.warn("timer wheel tick failed: %s", ex);
+            }
+            _tickLatency.record(System.nanoTime() - tickStart);
+        }
+    }
+
+    private void transferPending() {
+        TimerEntry entry;
+        while ((entry = _pending.poll()) != null) {
+            link(entry);
+        }
+    }
+
+    /**
+     * Expires everything in the current tick's bucket that's due.
+     */
+    private void expireBucket() {
+        var tick = _tick;
+        var entry = _buckets[(int)(tick & _mask)];
+        while (entry != null) {
+            // Anything expire() links goes on the front of a bucket, so it won't be visited again this tick
+            var next = entry._next;
+            if (entry.isCancelled()) {
+                unlink(entry);
+            }
+            else if (entry._deadline <= tick) {
+                unlink(entry);
+                try {
+                    entry.expire(this);
+                }
+                catch (RuntimeException ex) {
+                    _logger.warn("timer entry failed: %s", ex);
+                }
+            }
+            entry = next;
+        }
+    }
+
+    private void link(TimerEntry entry) {
+        if (entry._bucket >= 0) {
+            unlink(entry);
+        }
+        if (entry.isCancelled()) {
+            return;
+        }
+        // Anything already overdue, e.g. scheduled from another thread just before the tick, goes in the next bucket
+        var deadline = Math.max(entry._deadline, _tick + 1);
+        entry._deadline = deadline;
+        var index = (int)(deadline & _mask);
+        var head = _buckets[index];
+        entry._prev = null;
+        entry._next = head;
+        if (head != null) {
+            head._prev = entry;
+        }
+        _buckets[index] = entry;
+        entry._bucket = index;
+        _scheduled++;
+    }
+
+    private void unlink(TimerEntry entry) {
+        if (entry._prev != null) {
+            entry._prev._next = entry._next;
+        }
+        else {
+            _buckets[entry._bucket] = entry._next;
+        }
+        if (entry._next != null) {
+            entry._next._prev = entry._prev;
+        }
+        entry._prev = null;
+        entry._next = null;
+        entry._bucket = -1;
+        _scheduled--;
+    }
+
+    /**
+     * @return Entries linked into the wheel, including cancelled ones it hasn't come across yet.
+     */
+    public int getScheduledCount() {
+        return _scheduled;
+    }
+
+    /**
+     * @return Nanoseconds spent on each tick.
+     */
+    public Histogram getTickLatency() {
+        return _tickLatency;
+    }
+}
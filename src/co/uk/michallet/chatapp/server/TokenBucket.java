@@ -0,0 +1,57 @@
+package co.uk.michallet.chatapp.server;
+
+/**
+ * Allows a steady rate of actions with bursts of up to a fixed size. Tokens are refilled lazily, from the time
+ * passed since the last call, so an idle bucket costs nothing.
+ * Not thread safe, each bucket belongs to the one thread that takes from it.
+ */
+public class TokenBucket {
+    private final double _tokensPerNano;
+    private final double _capacity;
+    private double _tokens;
+    private long _lastRefillNanos;
+
+    /**
+     * @param ratePerSecond Tokens added per second.
+     * @param burst Most tokens the bucket holds, it starts full.
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        _tokensPerNano = ratePerSecond / 1e9;
+        _capacity = Math.max(1, burst);
+        _tokens = _capacity;
+        _lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes a token if there is one.
+     * @return False if the bucket is empty.
+     */
+    public boolean tryAcquire() {
+        refill(System.nanoTime());
+        if (_tokens < 1) {
+            return false;
+        }
+        _tokens -= 1;
+        return true;
+    }
+
+    /**
+     * @return Milliseconds until the bucket next holds a token, 0 if it does now.
+     */
+    public int getMillisUntilAvailable() {
+        refill(System.nanoTime());
+        if (_tokens >= 1) {
+            return 0;
+        }
+        return (int)Math.ceil((1 - _tokens) / _tokensPerNano / 1e6);
+    }
+
+    private void refill(long now) {
+        var elapsed = now - _lastRefillNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        _tokens = Math.min(_capacity, _tokens + elapsed * _tokensPerNano);
+        _lastRefillNanos = now;
+    }
+}